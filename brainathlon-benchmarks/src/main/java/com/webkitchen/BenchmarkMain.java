@@ -0,0 +1,42 @@
+package com.webkitchen;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with JMH's usual command line, adding the GC profiler so every run
+ * reports the allocation rate of each benchmark alongside its time.  Runs that ask for
+ * their own profilers, or only list or describe the benchmarks, are passed to JMH
+ * unchanged.
+ *
+ * @author Amy Palke
+ */
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions options;
+        try
+        {
+            options = new CommandLineOptions(args);
+        }
+        catch (CommandLineOptionException e)
+        {
+            // Let JMH report the error
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+            || options.shouldListProfilers() || options.shouldListResultFormats()
+            || !options.getProfilers().isEmpty())
+        {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
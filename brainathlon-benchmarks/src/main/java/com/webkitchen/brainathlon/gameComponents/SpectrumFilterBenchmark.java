@@ -0,0 +1,77 @@
+package com.webkitchen.brainathlon.gameComponents;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the <code>SpectrumFilter</code> filtering samples into its four bands and
+ * notifying a listener of each <code>Spectrum</code>, per sample and for a batch of 16
+ * samples.  Divide the batch results by 16 to compare them with the per-sample results.
+ *
+ * @author Amy Palke
+ * @see SpectrumFilter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrumFilterBenchmark
+{
+    private static final int BATCH_SIZE = 16;
+    private static final int SIGNAL_LENGTH = 1024;
+
+    private SpectrumFilter filter;
+    private double[] signal = new double[SIGNAL_LENGTH];
+    private double[] batch = new double[BATCH_SIZE];
+    private int position;
+    private double sum;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(13);
+        for (int i = 0; i < SIGNAL_LENGTH; i++)
+        {
+            signal[i] = random.nextGaussian() * 50;
+        }
+        filter = new SpectrumFilter(256);
+        filter.addSpectrumListener(new ISpectrumListener()
+        {
+            public void receiveSpectrum(Spectrum spectrum)
+            {
+                sum += spectrum.getAlpha();
+            }
+        });
+    }
+
+    @Benchmark
+    public double receiveSample()
+    {
+        position = (position + 1) & (SIGNAL_LENGTH - 1);
+        filter.receiveSample(signal[position]);
+        return sum;
+    }
+
+    @Benchmark
+    public double receiveSamples()
+    {
+        position = (position + BATCH_SIZE) & (SIGNAL_LENGTH - 1);
+        System.arraycopy(signal, position, batch, 0, BATCH_SIZE);
+        filter.receiveSamples(batch, BATCH_SIZE);
+        return sum;
+    }
+}
@@ -0,0 +1,93 @@
+package com.webkitchen.eeg.acquisition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the <code>Demultiplexer</code> fanning one packet out to a listener on each
+ * channel, sending each a <code>RawSample</code>, or adding to each listener's
+ * <code>RawSampleBatch</code> and sending it when it's full.  The listeners only add up
+ * what they receive, so this is the cost of the fan-out itself.
+ *
+ * @author Amy Palke
+ * @see Demultiplexer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemultiplexerBenchmark
+{
+    @Param({"2", "6", "16"})
+    public int channelCount;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private Demultiplexer demultiplexer;
+    private Packet packet;
+    private int packetNumber;
+    private long sum;
+
+    @Setup
+    public void setup()
+    {
+        demultiplexer = new Demultiplexer();
+        for (int c = 1; c <= channelCount; c++)
+        {
+            if (batchSize > 1)
+            {
+                demultiplexer.addBatchListener(new IRawSampleBatchListener()
+                {
+                    public void receiveSamples(RawSampleBatch batch)
+                    {
+                        int[] values = batch.getSamples(0);
+                        for (int i = 0; i < batch.getSize(); i++)
+                        {
+                            sum += values[i];
+                        }
+                    }
+                }, new int[]{c}, batchSize);
+            }
+            else
+            {
+                demultiplexer.addSampleListener(new IRawSampleListener()
+                {
+                    public void receiveSample(RawSample rawSample)
+                    {
+                        sum += rawSample.getSamples()[0];
+                    }
+                }, new int[]{c});
+            }
+        }
+        int[] samples = new int[channelCount];
+        for (int c = 0; c < channelCount; c++)
+        {
+            samples[c] = (c * 37) % 512 - 256;
+        }
+        packet = new Packet(0, channelCount, samples);
+    }
+
+    @Benchmark
+    public long receivePacket()
+    {
+        // The samples stay the same, only the packet number changes
+        packet.reset(packetNumber++, channelCount);
+        demultiplexer.receivePacket(packet);
+        return sum;
+    }
+}
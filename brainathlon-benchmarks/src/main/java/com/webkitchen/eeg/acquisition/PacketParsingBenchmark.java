@@ -0,0 +1,86 @@
+package com.webkitchen.eeg.acquisition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares decoding NeuroServer data lines with the <code>PacketParser</code> against
+ * the original <code>String</code>/<code>StringTokenizer</code> path.
+ * Run with <code>-prof gc</code> to see the allocation rate of each.
+ *
+ * @author Amy Palke
+ * @see PacketParser
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketParsingBenchmark
+{
+    private static final int SIGNAL_DIFFERENCE = -512;
+
+    @Param({"2", "6", "32"})
+    public int channelCount;
+
+    private byte[] lineBytes;
+    private PacketParser parser;
+    private Packet packet;
+
+    @Setup
+    public void setup()
+    {
+        StringBuilder builder = new StringBuilder("! 0 123 ").append(channelCount);
+        for (int i = 0; i < channelCount; i++)
+        {
+            builder.append(' ').append(300 + (i * 37) % 700);
+        }
+        lineBytes = builder.append("\r\n").toString().getBytes(Charset.forName("US-ASCII"));
+        parser = new PacketParser(SIGNAL_DIFFERENCE);
+        packet = new Packet();
+    }
+
+    @Benchmark
+    public Packet packetParser()
+    {
+        parser.parse(lineBytes, 0, lineBytes.length, packet);
+        return packet;
+    }
+
+    /**
+     * The original <code>NeuroServerReader.getNext()</code> decoding, including the
+     * <code>String</code> a <code>BufferedReader</code> would have created for the line
+     */
+    @Benchmark
+    public Packet stringTokenizer()
+    {
+        String data = new String(lineBytes, 0, lineBytes.length - 2, Charset.forName("US-ASCII"));
+        StringTokenizer tokenizer = new StringTokenizer(data);
+        // skip over first 2 tokens "!" & "0"
+        tokenizer.nextToken();
+        tokenizer.nextToken();
+        int packetNumber = Integer.parseInt(tokenizer.nextToken());
+        int channelCount = Integer.parseInt(tokenizer.nextToken());
+        int samples[] = new int[channelCount];
+        for (int i = 0; i < channelCount; i++)
+        {
+            samples[i] = Integer.parseInt(tokenizer.nextToken()) + SIGNAL_DIFFERENCE;
+        }
+        return new Packet(packetNumber, channelCount, samples);
+    }
+}
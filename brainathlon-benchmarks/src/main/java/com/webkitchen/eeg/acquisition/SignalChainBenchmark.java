@@ -0,0 +1,141 @@
+package com.webkitchen.eeg.acquisition;
+
+import com.webkitchen.brainathlon.gameComponents.Player;
+import com.webkitchen.eeg.analysis.BandFilter;
+import com.webkitchen.eeg.analysis.BandMonitor;
+import com.webkitchen.eeg.analysis.IAmplitudeListener;
+import com.webkitchen.eeg.analysis.filterdesign.BiquadCascadeBenchmark;
+import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
+import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times one packet's trip through the whole signal chain, as the game wires it: a data
+ * line is decoded by the <code>PacketParser</code>, fanned out by the
+ * <code>Demultiplexer</code> to a <code>Player</code> on each channel, and filtered into
+ * each band by a <code>BandFilter</code>, whose <code>BandMonitor</code> keeps the band's
+ * amplitude over a window.  Players receive batches of samples, as configured by
+ * <code>sampleBatchSize</code>, or one sample at a time for a batch size of 1.
+ * <P>
+ * Each invocation sends the next of 1024 recorded-looking lines, so the filters see a
+ * changing signal.
+ *
+ * @author Amy Palke
+ * @see Demultiplexer
+ * @see BandFilter
+ * @see BandMonitor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalChainBenchmark
+{
+    private static final double[][] BANDS = {{4, 8}, {8, 12}, {12, 15}, {15, 20}, {20, 30}};
+    private static final int LINE_COUNT = 1024;
+
+    @Param({"2", "6"})
+    public int channelCount;
+
+    @Param({"1", "5"})
+    public int bandCount;
+
+    @Param({"64", "256"})
+    public int windowSize;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private byte[][] lines;
+    private int line;
+    private PacketParser parser;
+    private Packet packet;
+    private Demultiplexer demultiplexer;
+    private double amplitudeSum;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(7);
+        Charset ascii = Charset.forName("US-ASCII");
+        lines = new byte[LINE_COUNT][];
+        for (int n = 0; n < LINE_COUNT; n++)
+        {
+            StringBuilder builder = new StringBuilder("! 0 ").append(n).append(' ').append(channelCount);
+            for (int c = 0; c < channelCount; c++)
+            {
+                double alpha = 40 * Math.sin(2 * Math.PI * 10 * n / 256.0);
+                builder.append(' ').append(512 + (int) (alpha + random.nextGaussian() * 20));
+            }
+            lines[n] = builder.append("\r\n").toString().getBytes(ascii);
+        }
+        parser = new PacketParser(NeuroServerReader.SIGNAL_DIFFERENCE);
+        packet = new Packet();
+
+        FilterDesigner designer = new FilterDesigner();
+        FilterSpecification[] specs = new FilterSpecification[bandCount];
+        double[][] coefficients = new double[bandCount][];
+        for (int b = 0; b < bandCount; b++)
+        {
+            specs[b] = BiquadCascadeBenchmark.bandpass(5, BANDS[b][0], BANDS[b][1]);
+            coefficients[b] = designer.createCoefficients(specs[b]);
+        }
+
+        IAmplitudeListener sink = new IAmplitudeListener()
+        {
+            public void receiveAmplitude(double amplitude)
+            {
+                amplitudeSum += amplitude;
+            }
+        };
+        demultiplexer = new Demultiplexer();
+        // Channels are 1-based, as in the configuration
+        for (int c = 1; c <= channelCount; c++)
+        {
+            Player player = new Player(1, "Player " + c, new int[]{c}, null);
+            for (int b = 0; b < bandCount; b++)
+            {
+                BandFilter bandFilter = new BandFilter(specs[b], coefficients[b]);
+                BandMonitor bandMonitor = new BandMonitor(windowSize, 2.0, 16);
+                bandMonitor.addAmplitudeListener(sink);
+                bandFilter.addBandListener(bandMonitor);
+                player.addSampleListener(bandFilter);
+            }
+            if (batchSize > 1)
+            {
+                demultiplexer.addBatchListener(player, new int[]{c}, batchSize);
+            }
+            else
+            {
+                demultiplexer.addSampleListener(player, new int[]{c});
+            }
+        }
+    }
+
+    @Benchmark
+    public double packet()
+    {
+        byte[] bytes = lines[line];
+        line = (line + 1) & (LINE_COUNT - 1);
+        parser.parse(bytes, 0, bytes.length, packet);
+        demultiplexer.receivePacket(packet);
+        return amplitudeSum;
+    }
+}
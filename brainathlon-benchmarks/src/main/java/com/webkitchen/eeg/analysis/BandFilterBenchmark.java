@@ -0,0 +1,114 @@
+package com.webkitchen.eeg.analysis;
+
+import com.webkitchen.eeg.analysis.filterdesign.BiquadCascadeBenchmark;
+import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
+import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
+import com.webkitchen.eeg.analysis.filterdesign.IIRFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times one channel's band filters, as a <code>Player</code> drives them: each
+ * <code>IIRFilter</code> processing a single sample, and each <code>BandFilter</code>
+ * filtering a batch of 16 samples and passing it on to a batch listener.
+ *
+ * @author Amy Palke
+ * @see BandFilter
+ * @see IIRFilter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandFilterBenchmark
+{
+    private static final double[][] BANDS = {{4, 8}, {8, 12}, {12, 15}, {15, 20}, {20, 30}};
+    private static final int ORDER = 5;
+    private static final int BATCH_SIZE = 16;
+    private static final int SIGNAL_LENGTH = 1024;
+
+    @Param({"1", "5"})
+    public int bandCount;
+
+    private IIRFilter[] filters;
+    private BandFilter[] bandFilters;
+    private double[] signal = new double[SIGNAL_LENGTH];
+    private double[] batch = new double[BATCH_SIZE];
+    private int position;
+    private double sum;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(3);
+        for (int i = 0; i < SIGNAL_LENGTH; i++)
+        {
+            signal[i] = random.nextGaussian() * 50;
+        }
+        FilterDesigner designer = new FilterDesigner();
+        IBandSampleBatchListener sink = new IBandSampleBatchListener()
+        {
+            public void receiveBand(double sampleValue)
+            {
+                sum += sampleValue;
+            }
+
+            public void receiveBands(double[] sampleValues, int count)
+            {
+                sum += sampleValues[count - 1];
+            }
+        };
+        filters = new IIRFilter[bandCount];
+        bandFilters = new BandFilter[bandCount];
+        for (int b = 0; b < bandCount; b++)
+        {
+            FilterSpecification spec = BiquadCascadeBenchmark.bandpass(ORDER, BANDS[b][0], BANDS[b][1]);
+            double[] coefficients = designer.createCoefficients(spec);
+            filters[b] = new IIRFilter(spec, coefficients);
+            bandFilters[b] = new BandFilter(spec, coefficients);
+            bandFilters[b].addBandListener(sink);
+        }
+    }
+
+    @Benchmark
+    public double iirFilterPerSample()
+    {
+        position = (position + 1) & (SIGNAL_LENGTH - 1);
+        double total = 0;
+        for (int b = 0; b < bandCount; b++)
+        {
+            total += filters[b].process(signal[position]);
+        }
+        return total;
+    }
+
+    /**
+     * Filters a batch of 16 samples, divide by 16 to compare with the per-sample results
+     */
+    @Benchmark
+    public double bandFilterBatch()
+    {
+        position = (position + BATCH_SIZE) & (SIGNAL_LENGTH - 1);
+        System.arraycopy(signal, position, batch, 0, BATCH_SIZE);
+        for (int b = 0; b < bandCount; b++)
+        {
+            bandFilters[b].receiveSamples(batch, BATCH_SIZE);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,126 @@
+package com.webkitchen.eeg.analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the amplitude windows of the <code>BandMonitor</code> and <code>RatioMonitor</code>,
+ * per sample and for a batch of 16 samples, with the notification settings the courses
+ * are configured with.  Divide the batch results by 16 to compare them with the
+ * per-sample results.
+ *
+ * @author Amy Palke
+ * @see BandMonitor
+ * @see RatioMonitor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark
+{
+    private static final int BATCH_SIZE = 16;
+    private static final int SIGNAL_LENGTH = 1024;
+    private static final double TOLERANCE = 2.0;
+    private static final int MIN_NOTIFICATION_INTERVAL = 16;
+
+    @Param({"64", "256", "1024"})
+    public int windowSize;
+
+    private BandMonitor bandMonitor;
+    private RatioMonitor ratioMonitor;
+    private double[] signal1 = new double[SIGNAL_LENGTH];
+    private double[] signal2 = new double[SIGNAL_LENGTH];
+    private double[] batch1 = new double[BATCH_SIZE];
+    private double[] batch2 = new double[BATCH_SIZE];
+    private int position;
+    private double sum;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(11);
+        for (int i = 0; i < SIGNAL_LENGTH; i++)
+        {
+            signal1[i] = random.nextGaussian() * 20;
+            signal2[i] = random.nextGaussian() * 10;
+        }
+        bandMonitor = new BandMonitor(windowSize, TOLERANCE, MIN_NOTIFICATION_INTERVAL);
+        bandMonitor.addAmplitudeListener(new IAmplitudeListener()
+        {
+            public void receiveAmplitude(double amplitude)
+            {
+                sum += amplitude;
+            }
+        });
+        ratioMonitor = new RatioMonitor(windowSize, TOLERANCE, MIN_NOTIFICATION_INTERVAL);
+        ratioMonitor.addRatioListener(new IRatioListener()
+        {
+            public void receiveRatio(double ratio)
+            {
+                sum += ratio;
+            }
+        });
+        ratioMonitor.addAmplitudeListener(new IDualAmplitudeListener()
+        {
+            public void receiveAmplitude(double amplitudeOne, double amplitudeTwo)
+            {
+                sum += amplitudeOne + amplitudeTwo;
+            }
+        });
+    }
+
+    @Benchmark
+    public double bandMonitorPerSample()
+    {
+        position = (position + 1) & (SIGNAL_LENGTH - 1);
+        bandMonitor.receiveBand(signal1[position]);
+        return sum;
+    }
+
+    @Benchmark
+    public double bandMonitorBatch()
+    {
+        nextBatch();
+        bandMonitor.receiveBands(batch1, BATCH_SIZE);
+        return sum;
+    }
+
+    @Benchmark
+    public double ratioMonitorPerSample()
+    {
+        position = (position + 1) & (SIGNAL_LENGTH - 1);
+        ratioMonitor.receiveBand(signal1[position], signal2[position]);
+        return sum;
+    }
+
+    @Benchmark
+    public double ratioMonitorBatch()
+    {
+        nextBatch();
+        ratioMonitor.receiveBands(batch1, batch2, BATCH_SIZE);
+        return sum;
+    }
+
+    private void nextBatch()
+    {
+        position = (position + BATCH_SIZE) & (SIGNAL_LENGTH - 1);
+        System.arraycopy(signal1, position, batch1, 0, BATCH_SIZE);
+        System.arraycopy(signal2, position, batch2, 0, BATCH_SIZE);
+    }
+}
@@ -0,0 +1,80 @@
+package com.webkitchen.eeg.analysis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the <code>WelchSpectrumAnalyzer</code> receiving a batch of 16 samples, with 50%
+ * overlapping segments averaged over 4 segments.  Most batches only fill the segment
+ * ring; one in every <code>fftSize / 32</code> also runs an FFT and totals the bands, so
+ * the average includes the FFT's share.
+ *
+ * @author Amy Palke
+ * @see WelchSpectrumAnalyzer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrumBenchmark
+{
+    private static final double[][] BANDS = {{4, 8}, {8, 12}, {12, 15}, {15, 20}, {20, 30}};
+    private static final int BATCH_SIZE = 16;
+    private static final int SIGNAL_LENGTH = 4096;
+
+    @Param({"256", "512", "1024"})
+    public int fftSize;
+
+    @Param({"1", "5"})
+    public int bandCount;
+
+    private WelchSpectrumAnalyzer analyzer;
+    private double[] signal = new double[SIGNAL_LENGTH];
+    private double[] batch = new double[BATCH_SIZE];
+    private int position;
+    private double sum;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(5);
+        for (int i = 0; i < SIGNAL_LENGTH; i++)
+        {
+            signal[i] = 40 * Math.sin(2 * Math.PI * 10 * i / 256.0) + random.nextGaussian() * 20;
+        }
+        double[][] bands = new double[bandCount][];
+        System.arraycopy(BANDS, 0, bands, 0, bandCount);
+        analyzer = new WelchSpectrumAnalyzer(256, fftSize, fftSize / 2, 4, bands);
+        analyzer.addPowerSpectrumListener(new IPowerSpectrumListener()
+        {
+            public void receivePowerSpectrum(PowerSpectrum spectrum)
+            {
+                sum += spectrum.getBandPower()[0];
+            }
+        });
+    }
+
+    @Benchmark
+    public double receiveSamples()
+    {
+        position = (position + BATCH_SIZE) & (SIGNAL_LENGTH - 1);
+        System.arraycopy(signal, position, batch, 0, BATCH_SIZE);
+        analyzer.receiveSamples(batch, BATCH_SIZE);
+        return sum;
+    }
+}
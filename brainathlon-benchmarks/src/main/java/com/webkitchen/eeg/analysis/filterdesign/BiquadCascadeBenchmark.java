@@ -0,0 +1,142 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the transposed direct form II <code>BiquadCascade</code> with the original
+ * Fidlib filter code, per sample and per block.  Setup first checks that both produce the
+ * same output to within <code>TOLERANCE</code>, and fails the run if they don't.
+ *
+ * @author Amy Palke
+ * @see BiquadCascade
+ * @see FidlibReferenceFilter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BiquadCascadeBenchmark
+{
+    // Largest difference allowed between the two filters, relative to the input amplitude
+    static final double TOLERANCE = 1e-9;
+    private static final int BLOCK_SIZE = 64;
+
+    @Param({"3", "5", "8"})
+    public int order;
+
+    private FidlibReferenceFilter reference;
+    private BiquadCascade cascade;
+    private double[] input = new double[BLOCK_SIZE];
+    private double[] output = new double[BLOCK_SIZE];
+    private int position;
+
+    @Setup
+    public void setup()
+    {
+        FilterSpecification spec = bandpass(order, 8, 12);
+        double[] coefficients = new FilterDesigner().createCoefficients(spec);
+        checkEquivalence(spec, coefficients);
+
+        reference = new FidlibReferenceFilter(spec, coefficients);
+        cascade = new BiquadCascade(spec, coefficients);
+        Random random = new Random(42);
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            input[i] = random.nextGaussian() * 50;
+        }
+    }
+
+    @Benchmark
+    public double fidlibPerSample()
+    {
+        position = (position + 1) & (BLOCK_SIZE - 1);
+        return reference.process(input[position]);
+    }
+
+    @Benchmark
+    public double biquadPerSample()
+    {
+        position = (position + 1) & (BLOCK_SIZE - 1);
+        return cascade.process(input[position]);
+    }
+
+    /**
+     * Filters a block of 64 samples, divide by 64 to compare with the per-sample results
+     */
+    @Benchmark
+    public double[] biquadBlock()
+    {
+        cascade.process(input, output, BLOCK_SIZE);
+        return output;
+    }
+
+    /**
+     * Returns the specification of an auto-adjusted Butterworth bandpass filter at 256
+     * samples per second, for the benchmarks of each stage
+     */
+    public static FilterSpecification bandpass(int order, double frequency0, double frequency1)
+    {
+        FilterSpecification spec = new FilterSpecification();
+        spec.setAlgorithmType(FilterAlgorithm.BUTTERWORTH);
+        spec.setRangeType(FilterRange.BANDPASS);
+        spec.setOrder(order);
+        spec.setRate(256);
+        spec.setFrequency0(frequency0);
+        spec.setFrequency1(frequency1);
+        spec.setAutoAdjust(true);
+        return spec;
+    }
+
+    /**
+     * Runs a few seconds of noise through both filters, and throws if the outputs ever differ
+     * by more than our tolerance
+     */
+    static void checkEquivalence(FilterSpecification spec, double[] coefficients)
+    {
+        FidlibReferenceFilter expected = new FidlibReferenceFilter(spec, coefficients);
+        BiquadCascade perSample = new BiquadCascade(spec, coefficients);
+        BiquadCascade perBlock = new BiquadCascade(spec, coefficients);
+        Random random = new Random(7);
+        double amplitude = 512;
+        double[] block = new double[BLOCK_SIZE];
+        double[] expectedBlock = new double[BLOCK_SIZE];
+        for (int b = 0; b < 64; b++)
+        {
+            for (int i = 0; i < BLOCK_SIZE; i++)
+            {
+                block[i] = (random.nextDouble() * 2 - 1) * amplitude;
+                expectedBlock[i] = expected.process(block[i]);
+                check(expectedBlock[i], perSample.process(block[i]), amplitude);
+            }
+            perBlock.process(block, block, BLOCK_SIZE);
+            for (int i = 0; i < BLOCK_SIZE; i++)
+            {
+                check(expectedBlock[i], block[i], amplitude);
+            }
+        }
+    }
+
+    private static void check(double expected, double actual, double amplitude)
+    {
+        if (Math.abs(expected - actual) > TOLERANCE * amplitude)
+        {
+            throw new IllegalStateException("BiquadCascade output " + actual + " differs from Fidlib output " + expected);
+        }
+    }
+}
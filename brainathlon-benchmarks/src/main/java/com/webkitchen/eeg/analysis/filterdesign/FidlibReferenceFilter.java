@@ -0,0 +1,58 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+
+/**
+ * The original Fidlib-style <code>IIRFilter.process</code> code, which shifts its whole
+ * state buffer for every sample.  Kept here as the baseline that <code>BiquadCascade</code>
+ * is measured and checked against.
+ *
+ * @author Amy Palke
+ * @see BiquadCascade
+ */
+final class FidlibReferenceFilter
+{
+    private final double[] coef;
+    private final double[] buf;
+    private final int bufferSize;
+    private final int order;
+    private final boolean oddOrder;
+
+    FidlibReferenceFilter(FilterSpecification spec, double[] coef)
+    {
+        this.order = spec.getOrder();
+        this.bufferSize = order * 2;
+        this.buf = new double[bufferSize];
+        this.coef = coef;
+        this.oddOrder = (order % 2) != 0;
+    }
+
+    double process(double val)
+    {
+        double tmp, fir, iir;
+        tmp = buf[0]; // save current [0] as arraycopy below overwrites it
+        // scoot everything to left by 1 position
+        System.arraycopy(buf, 1, buf, 0, bufferSize - 1);
+
+        val *= coef[0];
+        for (int i = 1, length = buf.length, midpoint = order; i <= length; i += 2)
+        {
+            iir = val - (coef[i] * tmp) - (coef[i + 1] * buf[i - 1]);
+            if (i < midpoint)
+            {
+                fir = -buf[i - 1] - buf[i - 1] + tmp + iir;
+            }
+            else if (i == midpoint && oddOrder)
+            {
+                fir = -tmp + iir;
+            }
+            else
+            {
+                fir = buf[i - 1] + buf[i - 1] + tmp + iir;
+            }
+            tmp = buf[i];
+            buf[i] = iir;
+            val = fir;
+        }
+        return val;
+    }
+}
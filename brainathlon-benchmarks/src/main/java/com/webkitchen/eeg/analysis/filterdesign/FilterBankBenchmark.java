@@ -0,0 +1,106 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares filtering one packet's samples through 5 bands on every channel with one
+ * <code>BiquadCascade</code> per band and channel, against a single <code>FilterBank</code>.
+ * Setup checks that both produce the same output, and fails the run if they don't.
+ *
+ * @author Amy Palke
+ * @see FilterBank
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBankBenchmark
+{
+    private static final double[][] BANDS = {{1, 4}, {4, 8}, {8, 12}, {12, 25}, {25, 40}};
+    private static final int ORDER = 5;
+
+    @Param({"1", "8", "32"})
+    public int channelCount;
+
+    private BiquadCascade[] cascades;
+    private FilterBank filterBank;
+    private double[] inputs;
+    private double[] outputs;
+
+    @Setup
+    public void setup()
+    {
+        int laneCount = channelCount * BANDS.length;
+        FilterSpecification[] specs = new FilterSpecification[laneCount];
+        double[][] coefficients = new double[laneCount][];
+        FilterDesigner designer = new FilterDesigner();
+        for (int lane = 0; lane < laneCount; lane++)
+        {
+            double[] band = BANDS[lane % BANDS.length];
+            specs[lane] = BiquadCascadeBenchmark.bandpass(ORDER, band[0], band[1]);
+            coefficients[lane] = lane < BANDS.length ? designer.createCoefficients(specs[lane])
+                                                     : coefficients[lane % BANDS.length];
+        }
+        cascades = new BiquadCascade[laneCount];
+        for (int lane = 0; lane < laneCount; lane++)
+        {
+            cascades[lane] = new BiquadCascade(specs[lane], coefficients[lane]);
+        }
+        filterBank = new FilterBank(specs, coefficients);
+        inputs = new double[laneCount];
+        outputs = new double[laneCount];
+
+        // Both must agree before we time them
+        Random random = new Random(3);
+        for (int n = 0; n < 2048; n++)
+        {
+            for (int lane = 0; lane < laneCount; lane++)
+            {
+                inputs[lane] = (random.nextDouble() * 2 - 1) * 512;
+            }
+            filterBank.process(inputs, outputs);
+            for (int lane = 0; lane < laneCount; lane++)
+            {
+                double expected = cascades[lane].process(inputs[lane]);
+                if (Math.abs(expected - outputs[lane]) > BiquadCascadeBenchmark.TOLERANCE * 512)
+                {
+                    throw new IllegalStateException("FilterBank lane " + lane + " output " + outputs[lane]
+                                                    + " differs from BiquadCascade output " + expected);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public double[] separateCascades()
+    {
+        for (int lane = 0; lane < cascades.length; lane++)
+        {
+            outputs[lane] = cascades[lane].process(inputs[lane]);
+        }
+        return outputs;
+    }
+
+    @Benchmark
+    public double[] filterBank()
+    {
+        filterBank.process(inputs, outputs);
+        return outputs;
+    }
+}
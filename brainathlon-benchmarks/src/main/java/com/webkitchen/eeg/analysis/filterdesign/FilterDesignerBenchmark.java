@@ -0,0 +1,91 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times designing auto-adjusted bandpass filters: a single filter, as a course does at
+ * start-up, and a bank of filters for several bands and orders, one at a time and with
+ * <code>createCoefficients(FilterSpecification[])</code>.  Setup checks that both ways
+ * of designing the bank give the same coefficients, and fails the run if they don't.
+ *
+ * @author Amy Palke
+ * @see FilterDesigner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterDesignerBenchmark
+{
+    private static final double[][] BANDS = {{4, 8}, {8, 12}, {12, 15}, {15, 20}, {20, 30}, {30, 40}};
+    private static final int[] ORDERS = {3, 4, 5, 6};
+
+    private FilterDesigner designer;
+    private FilterSpecification alpha;
+    private FilterSpecification[] bank;
+
+    @Setup
+    public void setup()
+    {
+        designer = new FilterDesigner();
+        alpha = BiquadCascadeBenchmark.bandpass(5, 8, 12);
+        bank = new FilterSpecification[BANDS.length * ORDERS.length];
+        int i = 0;
+        for (int order : ORDERS)
+        {
+            for (double[] band : BANDS)
+            {
+                bank[i++] = BiquadCascadeBenchmark.bandpass(order, band[0], band[1]);
+            }
+        }
+
+        // Both must agree before we time them
+        double[][] together = designer.createCoefficients(bank);
+        double[][] separate = designBankSeparately();
+        for (i = 0; i < bank.length; i++)
+        {
+            if (!Arrays.equals(together[i], separate[i]))
+            {
+                throw new IllegalStateException("Filter " + i + " designed differently in a bank");
+            }
+        }
+    }
+
+    @Benchmark
+    public double[] designOne()
+    {
+        return designer.createCoefficients(alpha);
+    }
+
+    @Benchmark
+    public double[][] designBankSeparately()
+    {
+        double[][] coefficients = new double[bank.length][];
+        for (int i = 0; i < bank.length; i++)
+        {
+            coefficients[i] = designer.createCoefficients(bank[i]);
+        }
+        return coefficients;
+    }
+
+    @Benchmark
+    public double[][] designBankTogether()
+    {
+        return designer.createCoefficients(bank);
+    }
+}
@@ -3,15 +3,23 @@ package com.webkitchen.brainathlon;
 import com.webkitchen.brainathlon.data.Configuration;
 import com.webkitchen.brainathlon.data.PlayerData;
 import com.webkitchen.eeg.acquisition.EEGAcquisitionController;
+import com.webkitchen.eeg.acquisition.IRawSampleGenerator;
+import com.webkitchen.eeg.acquisition.SessionRecording;
 import com.webkitchen.brainathlon.gameComponents.Player;
+import com.webkitchen.brainathlon.gameComponents.PlayerExecutor;
 import com.webkitchen.brainathlon.gameControl.GameController;
 import com.webkitchen.brainathlon.gameControl.SimpleDisplayCourse;
 import com.webkitchen.brainathlon.ui.*;
+import com.webkitchen.brainathlon.util.PlayerLogWriter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
 
 import javax.swing.*;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
@@ -27,6 +35,8 @@ public class Application
     private ApplicationState state;
     private GameData gameData;
     private EEGAcquisitionController eegAcquisitionController;
+    // The listener receiving each player's samples, the player or its executor
+    private List<Object> playerListeners = new ArrayList<Object>();
 
     private Application()
     {
@@ -98,23 +108,116 @@ public class Application
 
     private void setupEEGReader() throws IOException
     {
-        eegAcquisitionController.startReading(Configuration.getDebugMode());
+        // Fill short gaps in the packet sequence, so lost packets don't upset the filters
+        int maxFilledGap = Configuration.getMaxFilledGap();
+        if (maxFilledGap < 0)
+        {
+            maxFilledGap = eegAcquisitionController.getMaxFilledGap();
+        }
+        eegAcquisitionController.setGapFilling(Configuration.getGapInterpolation(), maxFilledGap);
+
+        // In debug mode, replay the configured recording instead of reading the EEG device
+        String replayFile = Configuration.getReplayFile();
+        if (Configuration.getDebugMode() && replayFile != null)
+        {
+            eegAcquisitionController.startReplay(new File(replayFile), Configuration.getSampleRate(),
+                                                 Configuration.getReplaySpeed(), true);
+        }
+        else
+        {
+            eegAcquisitionController.startReading(Configuration.getDebugMode());
+        }
+
+        // Record the raw EEG for later analysis, if we have somewhere to put it.  The game
+        // can go on without a recording.
+        String recordingDirectory = Configuration.getSessionRecordingDirectory();
+        if (recordingDirectory != null)
+        {
+            File directory = new File(recordingDirectory);
+            String fileName = "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                              + SessionRecording.FILE_EXTENSION;
+            try
+            {
+                directory.mkdirs();
+                eegAcquisitionController.startRecording(new File(directory, fileName), Configuration.getSampleRate());
+            }
+            catch (IOException e)
+            {
+                System.out.println("Unable to record this session in " + directory);
+                e.printStackTrace();
+            }
+        }
     }
 
     private void attachPlayerFilters()
     {
-        // Add players as rawSample listeners, listening to their channels
+        // Add players as rawSample listeners, listening to their channels.  Players receive
+        // batches of samples, unless the configuration asks for one sample at a time.  Each
+        // player can be analysed on its own thread, so players are analysed in parallel.
+        IRawSampleGenerator generator = eegAcquisitionController.getChannelSampleGenerator();
+        int batchSize = Configuration.getSampleBatchSize();
         for (Iterator itr = gameData.players.iterator(); itr.hasNext();)
         {
             Player player = (Player) itr.next();
             int[] channels = player.getChannels();
-            eegAcquisitionController.getChannelSampleGenerator().addSampleListener(player, channels);
+            if (Configuration.getPlayerThreads())
+            {
+                PlayerExecutor executor = new PlayerExecutor(player, PlayerExecutor.DEFAULT_QUEUE_CAPACITY);
+                executor.start();
+                playerListeners.add(executor);
+                if (batchSize > 1)
+                {
+                    generator.addBatchListener(executor, channels, batchSize);
+                }
+                else
+                {
+                    generator.addSampleListener(executor, channels);
+                }
+            }
+            else
+            {
+                playerListeners.add(player);
+                if (batchSize > 1)
+                {
+                    generator.addBatchListener(player, channels, batchSize);
+                }
+                else
+                {
+                    generator.addSampleListener(player, channels);
+                }
+            }
+        }
+    }
+
+    private void detachPlayerFilters()
+    {
+        // Stop sending samples to the last game's players, and stop their threads
+        IRawSampleGenerator generator = eegAcquisitionController.getChannelSampleGenerator();
+        for (Object listener : playerListeners)
+        {
+            if (listener instanceof PlayerExecutor)
+            {
+                PlayerExecutor executor = (PlayerExecutor) listener;
+                generator.removeSampleListener(executor);
+                generator.removeBatchListener(executor);
+                executor.stop();
+            }
+            else
+            {
+                Player player = (Player) listener;
+                generator.removeSampleListener(player);
+                generator.removeBatchListener(player);
+            }
         }
+        playerListeners.clear();
     }
 
     private void loadConfiguration()
     {
         Configuration.load();
+        PlayerLogWriter.getInstance().setFlushInterval(Configuration.getLogFlushInterval());
+        // Let operators watch the pipeline from a JMX console, such as JConsole
+        MetricRegistry.getInstance().startJmxExport();
     }
 
 
@@ -394,6 +497,7 @@ public class Application
                 }
                 else if (selection == GameOverUI.Selection.NEWGAME)
                 {
+                    app.detachPlayerFilters();
                     nextState = new NewGameState();
                 }
                 // else we'll return nextState = null, the quit state
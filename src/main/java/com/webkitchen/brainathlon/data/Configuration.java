@@ -5,6 +5,8 @@ import com.thoughtworks.xstream.io.xml.DomDriver;
 import com.webkitchen.brainathlon.gameControl.BandIncreaseConfiguration;
 import com.webkitchen.brainathlon.gameControl.DualBandRatioConfiguration;
 import com.webkitchen.brainathlon.gameControl.SustainedIncreaseConfiguration;
+import com.webkitchen.brainathlon.util.PlayerLogWriter;
+import com.webkitchen.eeg.acquisition.GapInterpolation;
 
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -102,6 +104,30 @@ public class Configuration
         return ourInstance.ourData.sampleRate;
     }
 
+    /**
+     * Returns the number of samples delivered to each player at once.  Batches cut the
+     * cost of passing samples through the filters and monitors, but delay feedback by
+     * the length of a batch.
+     *
+     * @return the number of samples per batch, or 0 or 1 to deliver samples one at a time
+     */
+    public static int getSampleBatchSize()
+    {
+        return ourInstance.ourData.sampleBatchSize;
+    }
+
+    /**
+     * Returns true if each player's samples are analysed on a thread of its own, so
+     * players are analysed in parallel, rather than all on the packet dispatcher's thread
+     *
+     * @return true to give each player a <code>PlayerExecutor</code>, false if it isn't configured
+     */
+    public static boolean getPlayerThreads()
+    {
+        Boolean playerThreads = ourInstance.ourData.playerThreads;
+        return (playerThreads != null) && playerThreads.booleanValue();
+    }
+
     public static Integer[] getChannels()
     {
         return ourInstance.ourData.channels;
@@ -117,11 +143,102 @@ public class Configuration
         return ourInstance.ourData.debugMode;
     }
 
+    /**
+     * Returns the recording of NeuroServer packet lines that is replayed in debug mode
+     *
+     * @return the recording's file name, or null to replay the default debugging file
+     */
+    public static String getReplayFile()
+    {
+        return ourInstance.ourData.replayFile;
+    }
+
+    /**
+     * Returns how many times faster than real time the recording is replayed in debug mode
+     *
+     * @return the speed multiplier, 1 if it isn't configured, or 0 to replay as fast as possible
+     */
+    public static double getReplaySpeed()
+    {
+        Double speed = ourInstance.ourData.replaySpeed;
+        return (speed == null) ? 1.0 : speed.doubleValue();
+    }
+
+    /**
+     * Returns how the samples of a few missing packets are filled in
+     *
+     * @return the interpolation named by the configuration ("linear", "hold" or "none"),
+     *         or <code>GapInterpolation.LINEAR</code> if it isn't configured
+     */
+    public static GapInterpolation getGapInterpolation()
+    {
+        String name = ourInstance.ourData.gapInterpolation;
+        if (name == null || name.equalsIgnoreCase(GapInterpolation.LINEAR.toString()))
+        {
+            return GapInterpolation.LINEAR;
+        }
+        else if (name.equalsIgnoreCase(GapInterpolation.HOLD.toString()))
+        {
+            return GapInterpolation.HOLD;
+        }
+        else if (name.equalsIgnoreCase(GapInterpolation.NONE.toString()))
+        {
+            return GapInterpolation.NONE;
+        }
+        System.out.println("Unknown gap interpolation " + name + ", using linear");
+        return GapInterpolation.LINEAR;
+    }
+
+    /**
+     * Returns the most missing packets that are filled in.  After a longer gap, the
+     * filters start afresh.
+     *
+     * @return the longest gap that is filled, in packets, or -1 if it isn't configured
+     */
+    public static int getMaxFilledGap()
+    {
+        Integer gap = ourInstance.ourData.maxFilledGap;
+        return (gap == null) ? -1 : gap.intValue();
+    }
+
     public static String getUserLogFileDirectory()
     {
         return ourInstance.ourData.userLogFileDirectory;
     }
 
+    /**
+     * Returns the longest time a player's logged amplitudes wait before they're flushed
+     * to disk
+     *
+     * @return the flush interval in milliseconds, <code>PlayerLogWriter.DEFAULT_FLUSH_INTERVAL</code>
+     *         if it isn't configured
+     */
+    public static long getLogFlushInterval()
+    {
+        Integer interval = ourInstance.ourData.logFlushInterval;
+        return (interval == null) ? PlayerLogWriter.DEFAULT_FLUSH_INTERVAL : interval.longValue();
+    }
+
+    /**
+     * Returns the directory where the raw EEG of each run is recorded
+     *
+     * @return the recording directory, or null not to record
+     */
+    public static String getSessionRecordingDirectory()
+    {
+        return ourInstance.ourData.sessionRecordingDirectory;
+    }
+
+    /**
+     * Returns the directory where designed filter coefficients are cached between runs
+     *
+     * @return the cache directory, or null to only cache coefficients in memory
+     */
+    public static String getFilterCacheDirectory()
+    {
+        return ourInstance.ourData.filterCacheDirectory;
+    }
+
     public static BandIncreaseConfiguration getBandIncreaseConfiguration()
     {
         return ourInstance.bandIncreaseConfiguration;
@@ -143,11 +260,20 @@ public class Configuration
         private int sampleRate;
         private Integer[] channels;
         private boolean debugMode;
+        private int sampleBatchSize;
+        private Boolean playerThreads;
+        private String replayFile;
+        private Double replaySpeed;
+        private String gapInterpolation;
+        private Integer maxFilledGap;
 
         // File information
         private String midiFileDirectory;
         private String courseOverSong;
         private String userLogFileDirectory;
+        private Integer logFlushInterval;
+        private String filterCacheDirectory;
+        private String sessionRecordingDirectory;
         private String bandIncreaseConfigurationFile;
         private String sustainedIncreaseConfigurationFile;
         private String dualBandRatioConfigurationFile;
@@ -1,6 +1,8 @@
 package com.webkitchen.brainathlon.gameComponents;
 
 import com.webkitchen.brainathlon.data.Configuration;
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
 
 import javax.sound.midi.*;
 import java.io.File;
@@ -173,7 +175,8 @@ public class MidiFeedback
     }
 
     /**
-     * Plays a feedback sound
+     * Plays a feedback sound.  If the sound is feedback for samples being traced, its
+     * latency is recorded by the <code>LatencyTracer</code>.
      *
      * @param type       the type of feedback
      * @param channel    the channel to use
@@ -187,6 +190,7 @@ public class MidiFeedback
 
         midiChannels[channel].noteOn(type.note, volume.velocity);
         midiChannels[channel].noteOff(type.note, volume.velocity);
+        LatencyTracer.getInstance().record(LatencyStage.SOUNDED);
     }
 
     /**
@@ -1,10 +1,16 @@
 package com.webkitchen.brainathlon.gameComponents;
 
 import com.webkitchen.brainathlon.data.PlayerData;
+import com.webkitchen.eeg.acquisition.IRawSampleBatchListener;
 import com.webkitchen.eeg.acquisition.IRawSampleListener;
 import com.webkitchen.eeg.acquisition.RawSample;
+import com.webkitchen.eeg.acquisition.RawSampleBatch;
+import com.webkitchen.eeg.analysis.IChannelSampleBatchListener;
 import com.webkitchen.eeg.analysis.IChannelSampleGenerator;
 import com.webkitchen.eeg.analysis.IChannelSampleListener;
+import com.webkitchen.eeg.analysis.IGapListener;
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,11 +18,24 @@ import java.util.List;
 
 
 /**
- * A person playing the game
+ * A person playing the game.  A player can receive raw samples one at a time, or in
+ * batches, and passes batches along to listeners that implement
+ * <code>IChannelSampleBatchListener</code>.
+ * <P>
+ * Listeners receive plain sample values, so while they process them the player traces
+ * the samples with the <code>LatencyTracer</code>, from the time their packet arrived.
+ * <P>
+ * When samples follow a gap in the signal that couldn't be filled in, listeners that
+ * implement <code>IGapListener</code> are told about the gap before they receive them.
+ * <P>
+ * A player's samples are analysed on the packet dispatcher's thread, unless it is given a
+ * <code>PlayerExecutor</code>, which analyses them on a thread of its own so that several
+ * players are analysed in parallel.
  *
  * @author Amy Palke
+ * @see PlayerExecutor
  */
-public class Player implements IRawSampleListener, IChannelSampleGenerator
+public class Player implements IRawSampleListener, IRawSampleBatchListener, IChannelSampleGenerator
 {
     private int playerNumber;
     private String firstName;
@@ -25,6 +44,9 @@ public class Player implements IRawSampleListener, IChannelSampleGenerator
     // Our listener list must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
     private List<IChannelSampleListener> listeners = Collections.synchronizedList(new ArrayList<IChannelSampleListener>());
+    // Holds the latest batch of samples, grown as needed
+    private double[] batchSamples = new double[0];
+    private final double[] singleSample = new double[1];
 
     /**
      * Creates a new player with the given number, name, channels and midi instrument selection
@@ -90,7 +112,109 @@ public class Player implements IRawSampleListener, IChannelSampleGenerator
      */
     public void receiveSample(RawSample rawSample)
     {
-        notifyListeners(rawSample.getSamples()[0]);
+        singleSample[0] = rawSample.getSamples()[0];
+        analyse(singleSample, 1, rawSample.getTimestamp(), rawSample.isAfterGap());
+    }
+
+    /**
+     * Receive a batch of raw samples, and pass their values along to our listeners.
+     * The batch is traced from its oldest sample, so its latency includes the time it
+     * waited for the batch to fill.
+     *
+     * @param batch our latest batch of EEG raw samples
+     */
+    public void receiveSamples(RawSampleBatch batch)
+    {
+        int count = batch.getSize();
+        if (batchSamples.length < count)
+        {
+            batchSamples = new double[count];
+        }
+        int[] samples = batch.getSamples(0);
+        for (int i = 0; i < count; i++)
+        {
+            batchSamples[i] = samples[i];
+        }
+        analyse(batchSamples, count, batch.getTimestamps()[0], batch.isAfterGap());
+    }
+
+    /**
+     * Pass the samples along to our listeners, traced from the time their packet arrived.
+     * Called by the thread that analyses our samples, which is the packet dispatcher's
+     * thread unless we have a <code>PlayerExecutor</code>.
+     *
+     * @param rawSamples our latest EEG raw samples, oldest first
+     * @param count      the number of valid samples
+     * @param timestamp  the <code>System.nanoTime</code> the oldest sample's packet arrived
+     * @param afterGap   true if samples are missing before the oldest sample
+     */
+    void analyse(double[] rawSamples, int count, long timestamp, boolean afterGap)
+    {
+        LatencyTracer tracer = LatencyTracer.getInstance();
+        tracer.startTrace(timestamp);
+        try
+        {
+            tracer.record(LatencyStage.DELIVERED);
+            if (afterGap)
+            {
+                notifyGapListeners();
+            }
+            if (count == 1)
+            {
+                notifyListeners(rawSamples[0]);
+            }
+            else
+            {
+                notifyListeners(rawSamples, count);
+            }
+        }
+        finally
+        {
+            tracer.endTrace();
+        }
+    }
+
+    /**
+     * Send the latest raw samples to our listeners, as a batch to those who accept them
+     *
+     * @param rawSamples our latest EEG raw samples
+     * @param count      the number of valid samples
+     */
+    private void notifyListeners(double[] rawSamples, int count)
+    {
+        // Note: This method is called by the eeg reader thread so we'll make an
+        //  array copy to iterate to protect against concurrent modification errors
+        //  if the listener list is changed by the main thread
+        IChannelSampleListener[] listenerCopy = listeners.toArray(new IChannelSampleListener[0]);
+        for (IChannelSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IChannelSampleBatchListener)
+            {
+                ((IChannelSampleBatchListener) listener).receiveSamples(rawSamples, count);
+            }
+            else
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    listener.receiveSample(rawSamples[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell our listeners who keep state from earlier samples that samples are missing
+     */
+    private void notifyGapListeners()
+    {
+        IChannelSampleListener[] listenerCopy = listeners.toArray(new IChannelSampleListener[0]);
+        for (IChannelSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IGapListener)
+            {
+                ((IGapListener) listener).receiveGap();
+            }
+        }
     }
 
     /**
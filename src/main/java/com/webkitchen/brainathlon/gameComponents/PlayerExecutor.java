@@ -0,0 +1,240 @@
+package com.webkitchen.brainathlon.gameComponents;
+
+import com.webkitchen.eeg.acquisition.IRawSampleBatchListener;
+import com.webkitchen.eeg.acquisition.IRawSampleListener;
+import com.webkitchen.eeg.acquisition.RawSample;
+import com.webkitchen.eeg.acquisition.RawSampleBatch;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.Gauge;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Analyses one player's samples on a thread of its own, so each player's filters, monitors
+ * and course monitors run in parallel with every other player's, rather than one after
+ * another on the packet dispatcher's thread.
+ * <P>
+ * The executor listens for the player's samples in place of the player.  The dispatcher
+ * only copies each sample, or batch, into a chunk and queues it; our thread takes the
+ * chunks in order and passes them to the player, so the player sees its samples in the
+ * same order as before.  The chunks are reused, so queueing creates no garbage.
+ * <P>
+ * If the player's analysis falls so far behind that the queue is full, new samples are
+ * dropped and counted rather than holding up every other player, and the first samples
+ * queued after the drop are flagged as following a gap, so the player's filters start
+ * afresh.
+ *
+ * @author Amy Palke
+ * @see Player
+ */
+public class PlayerExecutor implements IRawSampleListener, IRawSampleBatchListener, Runnable
+{
+    /**
+     * The default number of samples, or batches, waiting to be analysed
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    /**
+     * How often, in milliseconds, a waiting analysis thread checks whether it's been stopped
+     */
+    public static final long POLL_INTERVAL = 100;
+
+    private final Player player;
+    // Chunks waiting to be analysed, and empty chunks waiting to be filled
+    private final BlockingQueue<Chunk> queue;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+    private volatile boolean running;
+    // Set by the dispatcher thread when it drops samples, until the next chunk is queued
+    private boolean dropped;
+
+    private final Counter droppedSamples;
+
+    /**
+     * Creates a new executor for a player.  Call <code>start</code> before adding it as a
+     * sample listener.
+     *
+     * @param player        the player whose samples we analyse
+     * @param queueCapacity the most samples, or batches, waiting to be analysed
+     */
+    public PlayerExecutor(Player player, int queueCapacity)
+    {
+        if (queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+        }
+        this.player = player;
+        queue = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        free = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++)
+        {
+            free.add(new Chunk());
+        }
+        thread = new Thread(this, "Player " + player.getPlayerNumber() + " analysis");
+        thread.setDaemon(true);
+
+        String prefix = "player." + player.getPlayerNumber() + ".";
+        MetricRegistry registry = MetricRegistry.getInstance();
+        droppedSamples = registry.counter(prefix + "samples.dropped",
+                                          "Samples dropped because the player's analysis fell behind");
+        registry.register(new Gauge(prefix + "queue.depth", "Samples or batches waiting to be analysed")
+        {
+            public long getValue()
+            {
+                return queue.size();
+            }
+        });
+    }
+
+    /**
+     * Returns the player whose samples we analyse
+     *
+     * @return our player
+     */
+    public Player getPlayer()
+    {
+        return player;
+    }
+
+    /**
+     * Starts our analysis thread
+     */
+    public void start()
+    {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops our analysis thread once it has finished the chunk it is analysing, or within
+     * <code>POLL_INTERVAL</code> milliseconds if it is waiting for samples.  Samples still
+     * waiting are discarded.
+     */
+    public void stop()
+    {
+        running = false;
+    }
+
+    /**
+     * Queue the sample for our player.  Called by the packet dispatcher thread.
+     *
+     * @param rawSample the latest EEG raw sample
+     */
+    public void receiveSample(RawSample rawSample)
+    {
+        Chunk chunk = free.poll();
+        if (chunk == null)
+        {
+            drop(1);
+            return;
+        }
+        chunk.fill(rawSample.getSamples()[0], rawSample.getTimestamp(), rawSample.isAfterGap() || dropped);
+        enqueue(chunk);
+    }
+
+    /**
+     * Queue the batch of samples for our player.  Called by the packet dispatcher thread.
+     *
+     * @param batch the latest batch of EEG raw samples
+     */
+    public void receiveSamples(RawSampleBatch batch)
+    {
+        Chunk chunk = free.poll();
+        if (chunk == null)
+        {
+            drop(batch.getSize());
+            return;
+        }
+        chunk.fill(batch.getSamples(0), batch.getSize(), batch.getTimestamps()[0], batch.isAfterGap() || dropped);
+        enqueue(chunk);
+    }
+
+    private void enqueue(Chunk chunk)
+    {
+        // There are only as many chunks as the queue holds, so there is always room
+        queue.add(chunk);
+        dropped = false;
+    }
+
+    private void drop(int count)
+    {
+        droppedSamples.add(count);
+        dropped = true;
+    }
+
+    /**
+     * Take chunks from our queue in order, and have our player analyse them
+     */
+    public void run()
+    {
+        while (running)
+        {
+            Chunk chunk;
+            try
+            {
+                // Wake up now and then to see if we've been stopped
+                chunk = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            if (chunk == null)
+            {
+                continue;
+            }
+            try
+            {
+                player.analyse(chunk.samples, chunk.count, chunk.timestamp, chunk.afterGap);
+            }
+            catch (RuntimeException e)
+            {
+                System.out.println("Unexpected error analysing samples for " + player);
+                e.printStackTrace();
+            }
+            finally
+            {
+                free.add(chunk);
+            }
+        }
+    }
+
+
+    /**
+     * A sample, or batch of samples, waiting to be analysed.  Filled by the dispatcher
+     * thread, then read by our thread once it's taken from the queue.
+     */
+    private static class Chunk
+    {
+        private double[] samples = new double[1];
+        private int count;
+        private long timestamp;
+        private boolean afterGap;
+
+        void fill(int sample, long timestamp, boolean afterGap)
+        {
+            samples[0] = sample;
+            this.count = 1;
+            this.timestamp = timestamp;
+            this.afterGap = afterGap;
+        }
+
+        void fill(int[] batchSamples, int count, long timestamp, boolean afterGap)
+        {
+            if (samples.length < count)
+            {
+                samples = new double[count];
+            }
+            for (int i = 0; i < count; i++)
+            {
+                samples[i] = batchSamples[i];
+            }
+            this.count = count;
+            this.timestamp = timestamp;
+            this.afterGap = afterGap;
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package com.webkitchen.brainathlon.gameComponents;
 
 import com.webkitchen.brainathlon.data.Configuration;
-import com.webkitchen.eeg.analysis.IChannelSampleListener;
+import com.webkitchen.eeg.analysis.IChannelSampleBatchListener;
+import com.webkitchen.eeg.analysis.IGapListener;
+import com.webkitchen.eeg.analysis.filterdesign.CachingFilterDesigner;
 import com.webkitchen.eeg.analysis.filterdesign.FilterAlgorithm;
+import com.webkitchen.eeg.analysis.filterdesign.FilterBank;
+import com.webkitchen.eeg.analysis.filterdesign.FilterDesignException;
 import com.webkitchen.eeg.analysis.filterdesign.FilterRange;
 import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
-import com.webkitchen.eeg.analysis.filterdesign.IIRFilter;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -17,33 +23,84 @@ import java.util.List;
  * frequency bands of Beta, Alpha, Theta and Delta, then notifies listeners
  * of the latest values values packaged in a <code>Spectrum</code>.
  * Objects can add themselves as listeners/observers to receive copies of
- * all new <code>Spectrum</code>s.
+ * all new <code>Spectrum</code>s.  The four band filters run together in a
+ * <code>FilterBank</code>, and batches of raw samples are filtered in one pass.
+ * The filters are designed for the configured sample rate.
  *
  * @author Amy Palke
  * @see ISpectrumGenerator
  * @see ISpectrumListener
  * @see Spectrum
  */
-public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerator
+public class SpectrumFilter implements IChannelSampleBatchListener, IGapListener, ISpectrumGenerator
 {
+    private static Logger logger = Logger.getLogger(SpectrumFilter.class);
     // Our listener list must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
     private List<ISpectrumListener> listeners = Collections.synchronizedList(new ArrayList<ISpectrumListener>());
-    private IIRFilter betaFilter;
-    private IIRFilter alphaFilter;
-    private IIRFilter thetaFilter;
-    private IIRFilter deltaFilter;
+    // Lanes of our filter bank
+    private static final int BETA = 0;
+    private static final int ALPHA = 1;
+    private static final int THETA = 2;
+    private static final int DELTA = 3;
+    private FilterBank filterBank;
+    private double[] bandValues = new double[4];
+    // Hold the filtered values of the latest batch, grown as needed
+    private double[][] batchValues = new double[4][0];
+
+    // Raw samples filtered by every band and spectrum filter
+    private static final Counter samplesFiltered = MetricRegistry.getInstance().counter(
+            "filter.samples", "Raw samples filtered into frequency bands");
 
     /**
      * Creates a new filter that notifies listeners of sample values in the four
-     * standard frequency bands of Beta, Alpha, Theta and Delta
+     * standard frequency bands of Beta, Alpha, Theta and Delta, at the configured sample rate
      */
     public SpectrumFilter()
     {
-        betaFilter = new IIRFilter(new BetaSpec(), BetaSpec.coefficients);
-        alphaFilter = new IIRFilter(new AlphaSpec(), AlphaSpec.coefficients);
-        thetaFilter = new IIRFilter(new ThetaSpec(), ThetaSpec.coefficients);
-        deltaFilter = new IIRFilter(new DeltaSpec(), DeltaSpec.coefficients);
+        this(Configuration.getSampleRate());
+    }
+
+    /**
+     * Creates a new filter that notifies listeners of sample values in the four
+     * standard frequency bands of Beta, Alpha, Theta and Delta
+     *
+     * @param sampleRate the number of samples per second we will receive
+     */
+    public SpectrumFilter(int sampleRate)
+    {
+        FilterSpecification[] specs = {new BetaSpec(sampleRate), new AlphaSpec(sampleRate),
+                                       new ThetaSpec(sampleRate), new DeltaSpec(sampleRate)};
+        filterBank = new FilterBank(specs, designFilters(specs));
+    }
+
+    /**
+     * Returns the coefficients for each band.  The common sample rates are in the precomputed
+     * table, others are designed once and cached.
+     *
+     * @throws FilterDesignException if a band can't be designed at its sample rate
+     */
+    private static double[][] designFilters(FilterSpecification[] specs)
+    {
+        CachingFilterDesigner designer = new CachingFilterDesigner();
+        double[][] coefficients = new double[specs.length][];
+        for (int i = 0; i < specs.length; i++)
+        {
+            try
+            {
+                coefficients[i] = designer.createCoefficients(specs[i]);
+            }
+            catch (RuntimeException e)
+            {
+                // A filter designed for another rate would pass the wrong frequencies,
+                // so there's no sensible filter to fall back to
+                String message = "Unable to design the " + specs[i].getFrequency0() + "-"
+                                 + specs[i].getFrequency1() + "Hz filter at " + specs[i].getRate() + "Hz";
+                logger.error(message, e);
+                throw new FilterDesignException(message + ": " + e);
+            }
+        }
+        return coefficients;
     }
 
     /**
@@ -54,14 +111,51 @@ public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerato
      */
     public void receiveSample(double rawSample)
     {
-        double betaVal = betaFilter.process(rawSample);
-        double alphaVal = alphaFilter.process(rawSample);
-        double thetaVal = thetaFilter.process(rawSample);
-        double deltaVal = deltaFilter.process(rawSample);
-        Spectrum spectrum = new Spectrum(betaVal, alphaVal, thetaVal, deltaVal);
+        samplesFiltered.increment();
+        filterBank.process(rawSample, bandValues);
+        Spectrum spectrum = new Spectrum(bandValues[BETA], bandValues[ALPHA], bandValues[THETA], bandValues[DELTA]);
         notifyListeners(spectrum);
     }
 
+    /**
+     * Processes a batch of samples to filter for our four frequency bands, and notifies
+     * our listeners of a <code>Spectrum</code> for each sample
+     *
+     * @param rawSamples the raw samples that we will process
+     * @param count      the number of valid samples
+     */
+    public void receiveSamples(double[] rawSamples, int count)
+    {
+        if (batchValues[0].length < count)
+        {
+            batchValues = new double[4][count];
+        }
+        samplesFiltered.add(count);
+        filterBank.process(rawSamples, batchValues, count);
+        for (int i = 0; i < count; i++)
+        {
+            notifyListeners(new Spectrum(batchValues[BETA][i], batchValues[ALPHA][i],
+                                         batchValues[THETA][i], batchValues[DELTA][i]));
+        }
+    }
+
+    /**
+     * Clears our filters' memory of the samples before a gap in the signal, and tells our
+     * listeners about the gap
+     */
+    public void receiveGap()
+    {
+        filterBank.reset();
+        ISpectrumListener[] listenerCopy = listeners.toArray(new ISpectrumListener[0]);
+        for (ISpectrumListener listener : listenerCopy)
+        {
+            if (listener instanceof IGapListener)
+            {
+                ((IGapListener) listener).receiveGap();
+            }
+        }
+    }
+
     /**
      * Send the new spectrum to all of our listeners
      *
@@ -114,26 +208,12 @@ public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerato
 
     private static class BetaSpec extends FilterSpecification
     {
-        private static double[] coefficients = new double[]{
-            3.9098846211500405E-5,
-            0.8934292928232863,
-            -1.579565308621543,
-            0.9395802166479443,
-            -1.8470518020719924,
-            0.7579924069303536,
-            -1.522745441226756,
-            0.8284919149144723,
-            -1.7192330130722595,
-            0.7480058533788925,
-            -1.5910928436300789
-        };
-
-        private BetaSpec()
+        private BetaSpec(int sampleRate)
         {
             setAlgorithmType(FilterAlgorithm.BUTTERWORTH);
             setRangeType(FilterRange.BANDPASS);
             setOrder(5);
-            setRate(Configuration.getSampleRate());
+            setRate(sampleRate);
             setFrequency0(12);
             setFrequency1(25);
             setAutoAdjust(true);
@@ -143,26 +223,12 @@ public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerato
 
     private static class AlphaSpec extends FilterSpecification
     {
-        private static double[] coefficients = new double[]{
-            1.4328139213007392E-7,
-            0.9687692182991368,
-            -1.888780817710422,
-            0.9776675530769263,
-            -1.9373671043764888,
-            0.9242662416208486,
-            -1.8555126725577347,
-            0.9383360044218676,
-            -1.8933731982856097,
-            0.9156801402563697,
-            -1.8605106731373373
-        };
-
-        private AlphaSpec()
+        private AlphaSpec(int sampleRate)
         {
             setAlgorithmType(FilterAlgorithm.BUTTERWORTH);
             setRangeType(FilterRange.BANDPASS);
             setOrder(5);
-            setRate(Configuration.getSampleRate());
+            setRate(sampleRate);
             setFrequency0(8);
             setFrequency1(12);
             setAutoAdjust(true);
@@ -172,26 +238,12 @@ public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerato
 
     private static class ThetaSpec extends FilterSpecification
     {
-        private static double[] coefficients = new double[]{
-            1.4328120642830775E-7,
-            0.9656306337607032,
-            -1.9313270209105742,
-            0.9808452753214321,
-            -1.970336616161042,
-            0.9188950445196632,
-            -1.891827629526624,
-            0.9438208751824131,
-            -1.9310490739001676,
-            0.9156801618050924,
-            -1.897231115142515
-        };
-
-        private ThetaSpec()
+        private ThetaSpec(int sampleRate)
         {
             setAlgorithmType(FilterAlgorithm.BUTTERWORTH);
             setRangeType(FilterRange.BANDPASS);
             setOrder(5);
-            setRate(Configuration.getSampleRate());
+            setRate(sampleRate);
             setFrequency0(4);
             setFrequency1(8);
             setAutoAdjust(true);
@@ -201,26 +253,12 @@ public class SpectrumFilter implements IChannelSampleListener, ISpectrumGenerato
 
     private static class DeltaSpec extends FilterSpecification
     {
-        private static double[] coefficients = new double[]{
-            3.517261310962851E-8,
-            0.9690291566054876,
-            -1.9609915984969997,
-            0.9907519645706122,
-            -1.9900444393772285,
-            0.927301687991401,
-            -1.9217012054601756,
-            0.9691853246005308,
-            -1.9682016937989486,
-            0.9361082206161236,
-            -1.933775039373902
-        };
-
-        private DeltaSpec()
+        private DeltaSpec(int sampleRate)
         {
             setAlgorithmType(FilterAlgorithm.BUTTERWORTH);
             setRangeType(FilterRange.BANDPASS);
             setOrder(5);
-            setRate(Configuration.getSampleRate());
+            setRate(sampleRate);
             setFrequency0(1);
             setFrequency1(4);
             setAutoAdjust(true);
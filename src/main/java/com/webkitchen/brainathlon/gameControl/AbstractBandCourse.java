@@ -1,13 +1,16 @@
 package com.webkitchen.brainathlon.gameControl;
 
 import com.webkitchen.eeg.analysis.BandFilter;
+import com.webkitchen.eeg.analysis.BandMonitor;
+import com.webkitchen.eeg.analysis.GoertzelMonitor;
+import com.webkitchen.eeg.analysis.IAmplitudeGenerator;
 import com.webkitchen.eeg.analysis.IAmplitudeListener;
 import com.webkitchen.eeg.analysis.IBandSampleListener;
+import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
 import com.webkitchen.brainathlon.gameComponents.IBandPlayerMonitor;
 import com.webkitchen.brainathlon.gameComponents.Player;
-import com.webkitchen.brainathlon.util.MathUtil;
+import com.webkitchen.brainathlon.util.PlayerLog;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -19,6 +22,13 @@ import java.util.List;
  */
 public abstract class AbstractBandCourse extends AbstractCourse
 {
+    /**
+     * The amplitudeEstimator configuration value that measures the band's amplitude with a
+     * <code>GoertzelMonitor</code>.  Any other value, or none, uses a <code>BandMonitor</code>
+     * listening to the <code>BandFilter</code>.
+     */
+    public static final String GOERTZEL_ESTIMATOR = "Goertzel";
+
     public AbstractBandCourse(List<Player> players)
     {
         super(players);
@@ -31,6 +41,7 @@ public abstract class AbstractBandCourse extends AbstractCourse
             implements IBandPlayerMonitor, IAmplitudeListener
     {
         protected BandFilter bandFilter;
+        protected IAmplitudeGenerator amplitudeMonitor;
         // Our listener lists must be synchronized since listeners will be added and deleted
         // by the main thread, but notification happens in the reader thread.
         protected List<IAmplitudeListener> amplitudeListeners = Collections.synchronizedList(new ArrayList<IAmplitudeListener>());
@@ -82,16 +93,68 @@ public abstract class AbstractBandCourse extends AbstractCourse
         /**
          * Notify listeners of the last amplitude we received
          */
-        protected void notifyAmplitudeListeners(double amplitude)
+        protected void notifyAmplitudeListeners(final double amplitude)
         {
-            // Note: This method is called by the eeg reader thread so we'll make an
-            //  array copy to iterate to protect against concurrent modification errors
-            //  if the listener list is changed by the main thread
-            IAmplitudeListener[] listenerCopy = amplitudeListeners.toArray(new IAmplitudeListener[0]);
-            for (IAmplitudeListener listener : listenerCopy)
+            // Note: This method is called by our player's analysis thread, and the listeners
+            //  are called by the feedback thread, so we'll make an array copy to iterate to
+            //  protect against concurrent modification errors if the listener list is
+            //  changed by the main thread
+            deliverFeedback(new Runnable()
             {
-                listener.receiveAmplitude(amplitude);
+                public void run()
+                {
+                    IAmplitudeListener[] listenerCopy = amplitudeListeners.toArray(new IAmplitudeListener[0]);
+                    for (IAmplitudeListener listener : listenerCopy)
+                    {
+                        listener.receiveAmplitude(amplitude);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Create the monitor that measures the player's amplitude in the target band, and
+         * listen to it.  The default <code>BandMonitor</code> listens to our BandFilter, so the
+         * BandFilter must be attached first; a <code>GoertzelMonitor</code> listens to the
+         * player's raw samples instead.
+         *
+         * @param estimator               the configured amplitude estimator, may be null
+         * @param filterSpec              the target band
+         * @param sampleSize              the number of samples used to compute amplitudes
+         * @param tolerance               the amount of change in amplitude required before notifying us
+         * @param minNotificationInterval the minimum interval for notifying us
+         */
+        protected void attachAmplitudeMonitor(String estimator, FilterSpecification filterSpec, int sampleSize,
+                                              double tolerance, int minNotificationInterval)
+        {
+            if (GOERTZEL_ESTIMATOR.equalsIgnoreCase(estimator))
+            {
+                GoertzelMonitor goertzelMonitor = new GoertzelMonitor(filterSpec.getRate(),
+                                                                      filterSpec.getFrequency0(),
+                                                                      filterSpec.getFrequency1(),
+                                                                      sampleSize, tolerance, minNotificationInterval);
+                player.addSampleListener(goertzelMonitor);
+                amplitudeMonitor = goertzelMonitor;
+            }
+            else
+            {
+                BandMonitor bandMonitor = new BandMonitor(sampleSize, tolerance, minNotificationInterval);
+                bandFilter.addBandListener(bandMonitor);
+                amplitudeMonitor = bandMonitor;
+            }
+            amplitudeMonitor.addAmplitudeListener(this);
+        }
+
+        /**
+         * Detach the monitor created by <code>attachAmplitudeMonitor</code>
+         */
+        protected void detachAmplitudeMonitor()
+        {
+            if (amplitudeMonitor instanceof GoertzelMonitor)
+            {
+                player.removeSampleListener((GoertzelMonitor) amplitudeMonitor);
             }
+            amplitudeMonitor.removeAllAmplitudeListeners();
         }
 
         /**
@@ -133,21 +196,10 @@ public abstract class AbstractBandCourse extends AbstractCourse
              */
             public void receiveAmplitude(double amplitude)
             {
-                if (log != null)
+                PlayerLog playerLog = log;
+                if (playerLog != null)
                 {
-                    synchronized (log)
-                    {
-                        try
-                        {
-                            log.write(String.valueOf(MathUtil.round(amplitude, 2)));
-                            log.newLine();
-                        }
-                        catch (IOException ignore)
-                        {
-                            System.out.println("Unable to log user's amplitude");
-                            ignore.printStackTrace();
-                        }
-                    }
+                    playerLog.logAmplitude(amplitude);
                 }
             }
         }
@@ -3,7 +3,10 @@ package com.webkitchen.brainathlon.gameControl;
 import com.webkitchen.brainathlon.data.Configuration;
 import com.webkitchen.brainathlon.data.FinalScore;
 import com.webkitchen.brainathlon.data.PlayerMonitorList;
+import com.webkitchen.eeg.analysis.filterdesign.CachingFilterDesigner;
+import com.webkitchen.eeg.analysis.filterdesign.FilterCoefficientCache;
 import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
+import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
 import com.webkitchen.brainathlon.gameComponents.IPlayerMonitor;
 import com.webkitchen.brainathlon.gameComponents.IRewardListener;
 import com.webkitchen.brainathlon.gameComponents.IScoreListener;
@@ -13,7 +16,12 @@ import com.webkitchen.brainathlon.ui.CourseOverUI;
 import com.webkitchen.brainathlon.ui.PleaseWaitForFilterSetupUI;
 import com.webkitchen.brainathlon.ui.StartCourseUI;
 import com.webkitchen.brainathlon.ui.StartCourseUI;
+import com.webkitchen.brainathlon.util.PlayerLog;
+import com.webkitchen.brainathlon.util.PlayerLogWriter;
 import com.webkitchen.brainathlon.util.Range;
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.MetricRegistry;
 
 import javax.swing.*;
 import java.awt.*;
@@ -21,8 +29,7 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.text.DateFormat;
@@ -30,6 +37,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -40,10 +51,16 @@ import java.util.List;
 public abstract class AbstractCourse implements WindowListener
 {
     protected List<Player> players;
-    protected Player winner;
+    // Written by the players' analysis threads, read by the main thread
+    protected volatile Player winner;
 
     protected boolean running = false;   // returns control to the game controller
-    protected boolean courseOver = false;  // used internally after game has been won
+    protected volatile boolean courseOver = false;  // used internally after game has been won
+
+    // Players may be analysed on threads of their own, so their score, reward and other
+    // feedback is handed to this one thread, which notifies the UI and MIDI in order
+    private static final int FEEDBACK_QUEUE_CAPACITY = 1024;
+    private volatile ThreadPoolExecutor feedback;
 
     private long gameStartTime;
     private static long TICK_INTERVAL = 1000L; // update timer every second
@@ -77,20 +94,48 @@ public abstract class AbstractCourse implements WindowListener
     protected abstract void createCoefficients(FilterDesigner designer);
 
     /**
-     * Designs IIR filter coefficients if they weren't specified in the configuration file
+     * Designs IIR filter coefficients if they weren't specified in the configuration file.
+     * Filters designed before, on this machine, are taken from the coefficient cache.
      */
     protected void designFilters()
     {
         if (needCoeffients())
         {
-            final PleaseWaitForFilterSetupUI pleaseWaitUI = new PleaseWaitForFilterSetupUI();
-            displayWaitWindow(pleaseWaitUI);
+            String cacheDirectory = Configuration.getFilterCacheDirectory();
+            FilterCoefficientCache.getInstance().setDirectory(cacheDirectory == null ? null : new File(cacheDirectory));
 
-            // Create the filters
-            FilterDesigner designer = new FilterDesigner();
+            // Create the filters, the designer asks the players to wait only if a filter isn't cached
+            WaitingFilterDesigner designer = new WaitingFilterDesigner();
             createCoefficients(designer);
 
-            dismissWaitWindow(pleaseWaitUI);
+            designer.designFinished();
+        }
+    }
+
+    /**
+     * Displays the please wait window the first time a filter has to be designed,
+     * rather than taken from the cache.  Filters may be designed in parallel, so
+     * only the first designer thread shows the window.
+     */
+    private class WaitingFilterDesigner extends CachingFilterDesigner
+    {
+        private PleaseWaitForFilterSetupUI pleaseWaitUI;
+
+        protected synchronized void designStarting(FilterSpecification spec)
+        {
+            if (pleaseWaitUI == null)
+            {
+                pleaseWaitUI = new PleaseWaitForFilterSetupUI();
+                displayWaitWindow(pleaseWaitUI);
+            }
+        }
+
+        synchronized void designFinished()
+        {
+            if (pleaseWaitUI != null)
+            {
+                dismissWaitWindow(pleaseWaitUI);
+            }
         }
     }
 
@@ -99,6 +144,7 @@ public abstract class AbstractCourse implements WindowListener
      */
     public void start()
     {
+        startFeedback();
         designFilters();
         // Display the dialog announcing our course
         if (announceCourse)
@@ -136,9 +182,80 @@ public abstract class AbstractCourse implements WindowListener
         {
             // Make sure the filters are detached
             cleanupMonitors();
+            stopFeedback();
+        }
+    }
+
+    /**
+     * Starts the thread that notifies feedback listeners.  If the listeners fall far
+     * behind, the oldest feedback is dropped, since it's out of date anyway.
+     */
+    private void startFeedback()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                             new ArrayBlockingQueue<Runnable>(FEEDBACK_QUEUE_CAPACITY),
+                                                             new ThreadFactory()
+                                                             {
+                                                                 public Thread newThread(Runnable r)
+                                                                 {
+                                                                     Thread thread = new Thread(r, "Course feedback");
+                                                                     thread.setDaemon(true);
+                                                                     return thread;
+                                                                 }
+                                                             },
+                                                             new ThreadPoolExecutor.DiscardOldestPolicy());
+        feedback = executor;
+    }
+
+    private void stopFeedback()
+    {
+        ThreadPoolExecutor executor = feedback;
+        if (executor != null)
+        {
+            feedback = null;
+            executor.shutdown();
         }
     }
 
+    /**
+     * Notifies feedback listeners, such as the course UI and MIDI feedback, on our feedback
+     * thread, so listeners are never called by several players' threads at once.  The
+     * latency trace of the samples that led to the feedback is carried along.
+     *
+     * @param notification notifies the listeners
+     */
+    protected void deliverFeedback(final Runnable notification)
+    {
+        ThreadPoolExecutor executor = feedback;
+        if (executor == null)
+        {
+            // The course isn't running, there's no one to notify
+            return;
+        }
+        final long trace = LatencyTracer.getInstance().getTrace();
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                LatencyTracer tracer = LatencyTracer.getInstance();
+                tracer.startTrace(trace);
+                try
+                {
+                    notification.run();
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println("Unexpected error notifying feedback listeners");
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    tracer.endTrace();
+                }
+            }
+        });
+    }
+
     private void displayStartDialog()
     {
         final StartCourseUI startDialog = new StartCourseUI(this.courseTitle);
@@ -243,10 +360,21 @@ public abstract class AbstractCourse implements WindowListener
         courseUI.dispose();
     }
 
-    private void endCourseUpdates()
+    /**
+     * Stops the monitors, and records that the course is over.  Only the first caller ends
+     * the course; players analysed on their own threads may both reach the end at once.
+     *
+     * @return false if the course was already over
+     */
+    private synchronized boolean endCourseUpdates()
     {
-        courseOver = true;
+        if (courseOver)
+        {
+            return false;
+        }
         deactivateMonitors();
+        courseOver = true;
+        return true;
     }
 
     /**
@@ -315,13 +443,19 @@ public abstract class AbstractCourse implements WindowListener
     /**
      * End the UI updates, and determine the winner (if it's a 2 player game)
      */
-    private void doTimeIsUp()
+    private synchronized void doTimeIsUp()
     {
-        endCourseUpdates();
+        if (courseOver)
+        {
+            return;
+        }
+        // Decide the winner before the main thread sees the course is over
+        deactivateMonitors();
         if (players.size() == 2)
         {
             determineWinner();
         }
+        endCourseUpdates();
     }
 
     /**
@@ -337,14 +471,19 @@ public abstract class AbstractCourse implements WindowListener
     }
 
     /**
-     * Set the winner
+     * Set the winner, unless another player has already won, or time is up.  Players
+     * analysed on their own threads may both win at once, only the first one counts.
      *
      * @param player the player who won
      */
-    protected void playerWon(Player player)
+    protected synchronized void playerWon(Player player)
     {
-        endCourseUpdates();
-        this.winner = player;
+        if (!courseOver)
+        {
+            // Set the winner before the main thread sees the course is over
+            this.winner = player;
+            endCourseUpdates();
+        }
     }
 
     protected static void dumpCoefficients(String name, double[] coef)
@@ -510,6 +649,16 @@ public abstract class AbstractCourse implements WindowListener
             {
                 stop();
             }
+            else if ((keyCode == KeyEvent.VK_L) && e.isControlDown())
+            {
+                // ctrl-l prints the feedback latencies so far, without interrupting the course
+                System.out.println(LatencyTracer.getInstance().getReport());
+            }
+            else if ((keyCode == KeyEvent.VK_M) && e.isControlDown())
+            {
+                // ctrl-m prints the pipeline metrics, for telling a stalled pipeline from a dead electrode
+                System.out.println(MetricRegistry.getInstance().getReport());
+            }
         }
     }
 
@@ -525,9 +674,12 @@ public abstract class AbstractCourse implements WindowListener
         // by the main thread, but notification happens in the reader thread.
         protected List<IScoreListener> scoreListeners = Collections.synchronizedList(new ArrayList<IScoreListener>());
         protected List<IRewardListener> rewardListeners = Collections.synchronizedList(new ArrayList<IRewardListener>());
-        protected boolean isActive;
-        protected int score = 0;
-        protected BufferedWriter log;
+        // Written by the main thread, read by our player's analysis thread
+        protected volatile boolean isActive;
+        protected volatile int score = 0;
+        // Logged to by the reader thread, but closed by the main thread.  The PlayerLog
+        // writes on its own thread, so logging never blocks the reader on the disk.
+        protected volatile PlayerLog log;
 
 
         /**
@@ -546,9 +698,8 @@ public abstract class AbstractCourse implements WindowListener
                 todayNumeric = todayNumeric.replace('/', '.');
                 String todayDescription = DateFormat.getDateInstance(DateFormat.FULL).format(today);
                 String fileName = player.getFirstName() + "." + todayNumeric + "." + today.getTime() + ".log";
-                log = new BufferedWriter(new FileWriter(Configuration.getUserLogFileDirectory() + fileName));
-                log.write(player.getFirstName() + " - " + todayDescription + " - " + courseTitle);
-                log.newLine();
+                log = PlayerLogWriter.getInstance().open(new File(Configuration.getUserLogFileDirectory() + fileName));
+                log.logLine(player.getFirstName() + " - " + todayDescription + " - " + courseTitle);
             }
             catch (IOException ignore)
             {
@@ -564,38 +715,17 @@ public abstract class AbstractCourse implements WindowListener
         protected abstract void attachFilters();
 
         /**
-         * Close log file.  Subclasses should override to add any clean-up code that
-         * they need, but they must call super.cleanup().
+         * Close log file, once everything logged has been written.  Subclasses should
+         * override to add any clean-up code that they need, but they must call
+         * super.cleanup().
          */
         protected void cleanup()
         {
-            if (log != null)
+            PlayerLog closing = log;
+            if (closing != null)
             {
-                synchronized (log)
-                {
-                    try
-                    {
-                        log.flush();
-                    }
-                    catch (IOException ignore)
-                    {
-                        System.out.println("Unable to flush log file");
-                        ignore.printStackTrace();
-                    }
-                    finally
-                    {
-                        try
-                        {
-                            log.close();
-                        }
-                        catch (IOException ignore)
-                        {
-                            System.out.println("Unable to close log file");
-                            ignore.printStackTrace();
-                        }
-                    }
-                    log = null;
-                }
+                log = null;
+                closing.close();
             }
         }
 
@@ -669,16 +799,24 @@ public abstract class AbstractCourse implements WindowListener
          *
          * @param score the current score
          */
-        protected void notifyScoreListeners(Integer score)
+        protected void notifyScoreListeners(final Integer score)
         {
-            // Note: This method is called by the eeg reader thread so we'll make an
-            //  array copy to iterate to protect against concurrent modification errors
-            //  if the listener list is changed by the main thread
-            IScoreListener[] listenerCopy = scoreListeners.toArray(new IScoreListener[0]);
-            for (IScoreListener listener : listenerCopy)
+            // Note: This method is called by our player's analysis thread, and the listeners
+            //  are called by the feedback thread, so we'll make an array copy to iterate to
+            //  protect against concurrent modification errors if the listener list is
+            //  changed by the main thread
+            deliverFeedback(new Runnable()
             {
-                listener.receiveScore(score);
-            }
+                public void run()
+                {
+                    IScoreListener[] listenerCopy = scoreListeners.toArray(new IScoreListener[0]);
+                    for (IScoreListener listener : listenerCopy)
+                    {
+                        listener.receiveScore(score);
+                    }
+                    LatencyTracer.getInstance().record(LatencyStage.SCORED);
+                }
+            });
         }
 
         /**
@@ -716,16 +854,24 @@ public abstract class AbstractCourse implements WindowListener
         /**
          * Notify listeners of the last amplitude we received
          */
-        protected void notifyRewardListeners(boolean inTarget)
+        protected void notifyRewardListeners(final boolean inTarget)
         {
-            // Note: This method is called by the eeg reader thread so we'll make an
-            //  array copy to iterate to protect against concurrent modification errors
-            //  if the listener list is changed by the main thread
-            IRewardListener[] listenerCopy = rewardListeners.toArray(new IRewardListener[0]);
-            for (IRewardListener listener : listenerCopy)
+            // Note: This method is called by our player's analysis thread, and the listeners
+            //  are called by the feedback thread, so we'll make an array copy to iterate to
+            //  protect against concurrent modification errors if the listener list is
+            //  changed by the main thread
+            deliverFeedback(new Runnable()
             {
-                listener.receiveReward(inTarget);
-            }
+                public void run()
+                {
+                    IRewardListener[] listenerCopy = rewardListeners.toArray(new IRewardListener[0]);
+                    for (IRewardListener listener : listenerCopy)
+                    {
+                        listener.receiveReward(inTarget);
+                    }
+                    LatencyTracer.getInstance().record(LatencyStage.REWARDED);
+                }
+            });
         }
     }
 
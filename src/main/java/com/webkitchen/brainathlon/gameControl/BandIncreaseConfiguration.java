@@ -22,9 +22,11 @@ public class BandIncreaseConfiguration
 
     public final FilterSpecification filterSpec;
     public double[] filterCoefficients;
+    public final String amplitudeEstimator; // "Goertzel", or omit to use a BandFilter and BandMonitor
 
-    public BandIncreaseConfiguration(FilterSpecification filterSpec, int maxScore, int minNotificationInterval, int minScore, int sampleSize, int scoreMultiplier, int targetAmplitude, int timeLimitMinutes, double tolerance)
+    public BandIncreaseConfiguration(String amplitudeEstimator, FilterSpecification filterSpec, int maxScore, int minNotificationInterval, int minScore, int sampleSize, int scoreMultiplier, int targetAmplitude, int timeLimitMinutes, double tolerance)
     {
+        this.amplitudeEstimator = amplitudeEstimator;
         this.filterSpec = filterSpec;
         this.maxScore = maxScore;
         this.minNotificationInterval = minNotificationInterval;
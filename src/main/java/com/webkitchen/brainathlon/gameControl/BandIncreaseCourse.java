@@ -86,7 +86,6 @@ public class BandIncreaseCourse extends AbstractBandCourse
      */
     private class BandIncreasePlayerMonitor extends AbstractBandPlayerMonitor
     {
-        private BandMonitor filterMonitor;
         private BandMonitor amplitudeLogMonitor;
         private int targetAmplitude;
         private double lastAmplitude = 0;
@@ -114,9 +113,8 @@ public class BandIncreaseCourse extends AbstractBandCourse
         {
             bandFilter = new BandFilter(config.filterSpec, config.filterCoefficients);
             player.addSampleListener(bandFilter);
-            filterMonitor = new BandMonitor(config.sampleSize, config.tolerance, config.minNotificationInterval);
-            bandFilter.addBandListener(filterMonitor);
-            filterMonitor.addAmplitudeListener(this);
+            attachAmplitudeMonitor(config.amplitudeEstimator, config.filterSpec, config.sampleSize,
+                                   config.tolerance, config.minNotificationInterval);
             amplitudeLogMonitor = new BandMonitor(Configuration.getSampleRate(), 600, Configuration.getSampleRate());
             bandFilter.addBandListener(amplitudeLogMonitor);
             AmplitudeLogger amplitudeLogger = new AmplitudeLogger();
@@ -131,7 +129,7 @@ public class BandIncreaseCourse extends AbstractBandCourse
             super.cleanup();
             player.removeSampleListener(bandFilter);
             bandFilter.removeAllBandListeners();
-            filterMonitor.removeAllAmplitudeListeners();
+            detachAmplitudeMonitor();
             amplitudeLogMonitor.removeAllAmplitudeListeners();
         }
 
@@ -4,15 +4,15 @@ import com.webkitchen.brainathlon.data.Configuration;
 import com.webkitchen.brainathlon.data.PlayerMonitorList;
 import com.webkitchen.eeg.analysis.*;
 import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
+import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
 import com.webkitchen.eeg.analysis.filterdesign.IIRFilter;
 import com.webkitchen.brainathlon.gameComponents.IRatioPlayerMonitor;
 import com.webkitchen.brainathlon.gameComponents.Player;
 import com.webkitchen.brainathlon.ui.AbstractCourseUI;
 import com.webkitchen.brainathlon.ui.DualBandRatioUI;
-import com.webkitchen.brainathlon.util.MathUtil;
+import com.webkitchen.brainathlon.util.PlayerLog;
 import com.webkitchen.brainathlon.util.Range;
 
-import java.io.IOException;
 import java.util.List;
 
 
@@ -91,8 +91,11 @@ public class DualBandRatioCourse extends AbstractCourse
 
     protected void createCoefficients(FilterDesigner designer)
     {
-        config.bandOneCoefficients = designer.createCoefficients(config.bandOneSpec);
-        config.bandTwoCoefficients = designer.createCoefficients(config.bandTwoSpec);
+        // Design both bands at once
+        double[][] coefficients = designer.createCoefficients(new FilterSpecification[]{config.bandOneSpec,
+                                                                                       config.bandTwoSpec});
+        config.bandOneCoefficients = coefficients[0];
+        config.bandTwoCoefficients = coefficients[1];
     }
 
     /**
@@ -269,23 +272,10 @@ public class DualBandRatioCourse extends AbstractCourse
              */
             public void receiveAmplitude(double amplitudeOne, double amplitudeTwo)
             {
-                if (log != null)
+                PlayerLog playerLog = log;
+                if (playerLog != null)
                 {
-                    synchronized (log)
-                    {
-                        try
-                        {
-                            log.write(String.valueOf(MathUtil.round(amplitudeOne, 2))
-                                      + "\t"
-                                      + String.valueOf(MathUtil.round(amplitudeTwo, 2)));
-                            log.newLine();
-                        }
-                        catch (IOException ignore)
-                        {
-                            System.out.println("Unable to log user's amplitude");
-                            ignore.printStackTrace();
-                        }
-                    }
+                    playerLog.logAmplitudes(amplitudeOne, amplitudeTwo);
                 }
             }
         }
@@ -54,13 +54,13 @@ public class SimpleDisplayCourse extends AbstractCourse
 
     protected boolean needCoeffients()
     {
-        // Our filter has built-in coefficients
+        // Our filter finds its own coefficients, in the precomputed table
         return false;
     }
 
     protected void createCoefficients(FilterDesigner designer)
     {
-        // No need to do anything, our filter has built-in coefficients
+        // No need to do anything, our filter finds its own coefficients
     }
 
     /**
@@ -20,9 +20,11 @@ public class SustainedIncreaseConfiguration
 
     public final FilterSpecification filterSpec;
     public double[] filterCoefficients;
+    public final String amplitudeEstimator; // "Goertzel", or omit to use a BandFilter and BandMonitor
 
-    public SustainedIncreaseConfiguration(FilterSpecification filterSpec, int minNotificationInterval, int sampleSize, int targetAmplitude, int timeGoal, int timeLimitMinutes, double tolerance)
+    public SustainedIncreaseConfiguration(String amplitudeEstimator, FilterSpecification filterSpec, int minNotificationInterval, int sampleSize, int targetAmplitude, int timeGoal, int timeLimitMinutes, double tolerance)
     {
+        this.amplitudeEstimator = amplitudeEstimator;
         this.filterSpec = filterSpec;
         this.minNotificationInterval = minNotificationInterval;
         this.sampleSize = sampleSize;
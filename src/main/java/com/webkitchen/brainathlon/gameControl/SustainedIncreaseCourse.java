@@ -101,7 +101,6 @@ public class SustainedIncreaseCourse extends AbstractBandCourse
     private class SustainedIncreaseMonitor extends AbstractBandPlayerMonitor
             implements ISustainedBandPlayerMonitor
     {
-        private BandMonitor filterMonitor;
         private BandMonitor amplitudeLogMonitor;
         private boolean inCountdown;
         private int targetAmplitude;
@@ -130,9 +129,8 @@ public class SustainedIncreaseCourse extends AbstractBandCourse
         {
             bandFilter = new BandFilter(config.filterSpec, config.filterCoefficients);
             player.addSampleListener(bandFilter);
-            filterMonitor = new BandMonitor(config.sampleSize, config.tolerance, config.minNotificationInterval);
-            bandFilter.addBandListener(filterMonitor);
-            filterMonitor.addAmplitudeListener(this);
+            attachAmplitudeMonitor(config.amplitudeEstimator, config.filterSpec, config.sampleSize,
+                                   config.tolerance, config.minNotificationInterval);
             amplitudeLogMonitor = new BandMonitor(Configuration.getSampleRate(), 600, Configuration.getSampleRate());
             bandFilter.addBandListener(amplitudeLogMonitor);
             AmplitudeLogger amplitudeLogger = new AmplitudeLogger();
@@ -147,7 +145,7 @@ public class SustainedIncreaseCourse extends AbstractBandCourse
             super.cleanup();
             player.removeSampleListener(bandFilter);
             bandFilter.removeAllBandListeners();
-            filterMonitor.removeAllAmplitudeListeners();
+            detachAmplitudeMonitor();
             amplitudeLogMonitor.removeAllAmplitudeListeners();
         }
 
@@ -245,16 +243,22 @@ public class SustainedIncreaseCourse extends AbstractBandCourse
         /**
          * Notify listeners of the last countdown we received
          */
-        protected void notifyCountdownListeners(int countdown)
+        protected void notifyCountdownListeners(final int countdown)
         {
-            // Note: This method is called by the eeg reader thread so we'll make an
-            //  array copy to iterate to protect against concurrent modification errors
-            //  if the listener list is changed by the main thread
-            ICountdownListener[] listenerCopy = countdownListeners.toArray(new ICountdownListener[0]);
-            for (ICountdownListener listener : listenerCopy)
+            // Note: The listeners are called by the feedback thread, so we'll make an array
+            //  copy to iterate to protect against concurrent modification errors if the
+            //  listener list is changed by the main thread
+            deliverFeedback(new Runnable()
             {
-                listener.receiveCountdown(countdown);
-            }
+                public void run()
+                {
+                    ICountdownListener[] listenerCopy = countdownListeners.toArray(new ICountdownListener[0]);
+                    for (ICountdownListener listener : listenerCopy)
+                    {
+                        listener.receiveCountdown(countdown);
+                    }
+                }
+            });
         }
     }
 }
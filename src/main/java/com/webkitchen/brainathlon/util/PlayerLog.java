@@ -0,0 +1,290 @@
+package com.webkitchen.brainathlon.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A log file of one player's activity during a course: a title line, followed by the
+ * player's amplitudes, one reading per line, rounded to 2 decimal places.
+ * <P>
+ * Logging a reading only queues a record of it for the <code>PlayerLogWriter</code>,
+ * which formats and writes it on its own thread, so it's safe to log from the EEG reader
+ * thread.  Readings that arrive while the writer's queue is full are dropped.  Readings
+ * logged after the log is closed are ignored.
+ *
+ * @author Amy Palke
+ * @see PlayerLogWriter
+ */
+public class PlayerLog
+{
+    // The longest we wait for the writer to finish the log when it's closed
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final PlayerLogWriter writer;
+    private final File file;
+    // Only used by the writer thread, once the log is open
+    private final BufferedWriter out;
+    private boolean failed;
+    private boolean finished;
+
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Creates a new log file - logs are opened by <code>PlayerLogWriter.open</code>
+     *
+     * @param writer the writer that writes our records
+     * @param file   the log file
+     * @throws IOException if the file can't be created
+     */
+    PlayerLog(PlayerLogWriter writer, File file) throws IOException
+    {
+        this.writer = writer;
+        this.file = file;
+        this.out = new BufferedWriter(new FileWriter(file));
+    }
+
+    /**
+     * Logs a line of text, such as the log's title.  Waits for room in the writer's queue,
+     * so it shouldn't be called by the EEG reader thread.
+     *
+     * @param text the line to log
+     */
+    public void logLine(String text)
+    {
+        Record record = new Record(this, Record.TEXT);
+        record.text = text;
+        put(record);
+    }
+
+    /**
+     * Logs the player's latest amplitude, without waiting
+     *
+     * @param amplitude the latest amplitude reading
+     */
+    public void logAmplitude(double amplitude)
+    {
+        Record record = new Record(this, Record.AMPLITUDE);
+        record.amplitudeOne = amplitude;
+        offer(record);
+    }
+
+    /**
+     * Logs the player's latest amplitudes in two bands, without waiting
+     *
+     * @param amplitudeOne the latest amplitude reading for one band
+     * @param amplitudeTwo the latest amplitude reading for the other band
+     */
+    public void logAmplitudes(double amplitudeOne, double amplitudeTwo)
+    {
+        Record record = new Record(this, Record.DUAL_AMPLITUDE);
+        record.amplitudeOne = amplitudeOne;
+        record.amplitudeTwo = amplitudeTwo;
+        offer(record);
+    }
+
+    /**
+     * Closes the log once every record already logged has been written, waiting a few
+     * seconds for the writer to finish
+     */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        Record record = new Record(this, Record.CLOSE);
+        try
+        {
+            writer.put(record);
+        }
+        catch (InterruptedException e)
+        {
+            System.out.println("Interrupted while closing " + file);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try
+        {
+            if (!record.written.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                System.out.println("Timed out waiting for log file " + file + " to be written");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of readings dropped because the writer's queue was full
+     *
+     * @return the number of dropped readings
+     */
+    public long getDroppedRecords()
+    {
+        return droppedRecords.get();
+    }
+
+    private void offer(Record record)
+    {
+        if (!closed && !writer.offer(record))
+        {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    private void put(Record record)
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            writer.put(record);
+        }
+        catch (InterruptedException e)
+        {
+            System.out.println("Interrupted while logging to " + file);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Formats and writes a record, closing the log if it's the last one.  Called by the
+     * writer thread.
+     *
+     * @param record the record to write
+     * @return false if the log was closed
+     */
+    boolean write(Record record)
+    {
+        if (finished)
+        {
+            // A reading that was logged just as we were closed
+            return false;
+        }
+        if (record.type == Record.CLOSE)
+        {
+            finish();
+            record.written.countDown();
+            return false;
+        }
+        if (failed)
+        {
+            return true;
+        }
+        try
+        {
+            switch (record.type)
+            {
+                case Record.TEXT:
+                    out.write(record.text);
+                    break;
+                case Record.AMPLITUDE:
+                    out.write(String.valueOf(MathUtil.round(record.amplitudeOne, 2)));
+                    break;
+                default:
+                    out.write(String.valueOf(MathUtil.round(record.amplitudeOne, 2))
+                              + "\t"
+                              + String.valueOf(MathUtil.round(record.amplitudeTwo, 2)));
+                    break;
+            }
+            out.newLine();
+        }
+        catch (IOException e)
+        {
+            fail("Unable to log user's amplitude", e);
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the records written so far to disk.  Called by the writer thread.
+     */
+    void flush()
+    {
+        if (!failed)
+        {
+            try
+            {
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                fail("Unable to flush log file", e);
+            }
+        }
+    }
+
+    private void finish()
+    {
+        finished = true;
+        flush();
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to close log file");
+            e.printStackTrace();
+        }
+        if (droppedRecords.get() > 0)
+        {
+            System.out.println("Dropped " + droppedRecords.get() + " readings from log file " + file
+                               + ", the disk couldn't keep up");
+        }
+    }
+
+    /**
+     * Stops writing after an error, rather than reporting every later record
+     */
+    private void fail(String message, IOException e)
+    {
+        System.out.println(message + " " + file);
+        e.printStackTrace();
+        failed = true;
+    }
+
+
+    /**
+     * A reading, or line of text, waiting to be written
+     */
+    static class Record
+    {
+        static final int TEXT = 0;
+        static final int AMPLITUDE = 1;
+        static final int DUAL_AMPLITUDE = 2;
+        static final int CLOSE = 3;
+
+        private final PlayerLog log;
+        private final int type;
+        private String text;
+        private double amplitudeOne;
+        private double amplitudeTwo;
+        // Released once a close record has been written
+        private final CountDownLatch written;
+
+        Record(PlayerLog log, int type)
+        {
+            this.log = log;
+            this.type = type;
+            this.written = (type == CLOSE) ? new CountDownLatch(1) : null;
+        }
+
+        PlayerLog getLog()
+        {
+            return log;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.webkitchen.brainathlon.util;
+
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.Gauge;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A single writer thread that writes every <code>PlayerLog</code>, so the threads that
+ * produce log records never wait for the disk.
+ * <P>
+ * Records are passed to the writer through a bounded queue.  The writer takes every
+ * record waiting in the queue at once, formats and writes them all, and flushes the logs
+ * it wrote to at most once per flush interval, so one flush commits a whole group of
+ * records.  If the disk is so slow that the queue fills up, new records are dropped and
+ * counted rather than holding up the EEG reader, and the count is reported when the log
+ * is closed.
+ * <P>
+ * The queue depth, and the records written, dropped and flushed, are kept in the
+ * <code>MetricRegistry</code> under <code>log.</code>
+ *
+ * @author Amy Palke
+ * @see PlayerLog
+ */
+public class PlayerLogWriter implements Runnable
+{
+    /**
+     * The default time between flushes, in milliseconds
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    // the single instance of PlayerLogWriter
+    private static final PlayerLogWriter INSTANCE = new PlayerLogWriter();
+
+    // Records waiting to be written, enough for several seconds of every player's amplitudes
+    private static final int QUEUE_CAPACITY = 8192;
+    // The most records written between flush checks
+    private static final int MAX_BATCH = 512;
+
+    private final BlockingQueue<PlayerLog.Record> queue = new ArrayBlockingQueue<PlayerLog.Record>(QUEUE_CAPACITY);
+    private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private Thread thread;
+
+    private final Counter recordsWritten;
+    private final Counter recordsDropped;
+    private final Counter flushes;
+
+    /**
+     * Private constructor - access instance through getInstance() factory method
+     */
+    private PlayerLogWriter()
+    {
+        // private to ensure singleton status
+        MetricRegistry registry = MetricRegistry.getInstance();
+        recordsWritten = registry.counter("log.records.written", "Player log records written");
+        recordsDropped = registry.counter("log.records.dropped", "Player log readings dropped because the queue was full");
+        flushes = registry.counter("log.flushes", "Player log flushes to disk");
+        registry.register(new Gauge("log.queue.depth", "Player log records waiting to be written")
+        {
+            public long getValue()
+            {
+                return queue.size();
+            }
+        });
+    }
+
+    /**
+     * Factory method for return the single instance of PlayerLogWriter
+     *
+     * @return the single instance of PlayerLogWriter
+     */
+    public static PlayerLogWriter getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the longest time written records wait before they are flushed to disk.  Longer
+     * intervals commit more records with each flush, but more records are lost if the
+     * application ends abruptly.
+     *
+     * @param flushInterval the time between flushes in milliseconds, or 0 to flush after
+     *                      every group of records
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        if (flushInterval < 0)
+        {
+            throw new IllegalArgumentException("Flush interval can't be negative: " + flushInterval);
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Returns the longest time written records wait before they are flushed to disk
+     *
+     * @return the time between flushes in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    /**
+     * Creates a new log file, replacing it if it exists, and starts the writer thread if
+     * it hasn't started yet
+     *
+     * @param file the log file
+     * @return the log
+     * @throws IOException if the file can't be created
+     */
+    public synchronized PlayerLog open(File file) throws IOException
+    {
+        PlayerLog log = new PlayerLog(this, file);
+        if (thread == null)
+        {
+            thread = new Thread(this, "Player log writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return log;
+    }
+
+    /**
+     * Adds a record to the queue, without waiting
+     *
+     * @param record the record to write
+     * @return false if the queue is full and the record was dropped
+     */
+    boolean offer(PlayerLog.Record record)
+    {
+        if (queue.offer(record))
+        {
+            return true;
+        }
+        recordsDropped.increment();
+        return false;
+    }
+
+    /**
+     * Adds a record to the queue, waiting for room if it's full
+     *
+     * @param record the record to write
+     * @throws InterruptedException if we're interrupted while waiting
+     */
+    void put(PlayerLog.Record record) throws InterruptedException
+    {
+        queue.put(record);
+    }
+
+    /**
+     * Write records as they arrive, flushing the logs we've written to once per flush interval
+     */
+    public void run()
+    {
+        List<PlayerLog.Record> batch = new ArrayList<PlayerLog.Record>(MAX_BATCH);
+        Set<PlayerLog> unflushed = new LinkedHashSet<PlayerLog>();
+        long nextFlush = 0;
+        while (true)
+        {
+            try
+            {
+                // With nothing to flush, we can wait as long as it takes for a record
+                PlayerLog.Record first;
+                if (unflushed.isEmpty())
+                {
+                    first = queue.take();
+                    nextFlush = System.currentTimeMillis() + flushInterval;
+                }
+                else
+                {
+                    first = queue.poll(Math.max(nextFlush - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                }
+                if (first != null)
+                {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    recordsWritten.add(batch.size());
+                    for (PlayerLog.Record record : batch)
+                    {
+                        if (record.getLog().write(record))
+                        {
+                            unflushed.add(record.getLog());
+                        }
+                        else
+                        {
+                            // The log has been closed, and flushed
+                            unflushed.remove(record.getLog());
+                        }
+                    }
+                    batch.clear();
+                }
+
+                if (System.currentTimeMillis() - nextFlush >= 0)
+                {
+                    for (PlayerLog log : unflushed)
+                    {
+                        log.flush();
+                    }
+                    if (!unflushed.isEmpty())
+                    {
+                        flushes.increment();
+                    }
+                    unflushed.clear();
+                }
+            }
+            catch (InterruptedException ignore)
+            {
+                // we're a daemon thread, there's no one to tell us to stop
+            }
+            catch (RuntimeException e)
+            {
+                System.out.println("Unexpected error writing player logs");
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+}
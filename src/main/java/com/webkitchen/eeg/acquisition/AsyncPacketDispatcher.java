@@ -0,0 +1,170 @@
+package com.webkitchen.eeg.acquisition;
+
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Decouples packet listeners from the reader thread.  The reader hands each packet to
+ * <code>receivePacket</code>, which only copies it into a <code>PacketRingBuffer</code>.
+ * Our own thread takes packets from the buffer and notifies our listeners, so a slow
+ * listener (logging, Swing, MIDI) delays analysis, but never stalls reading from NeuroServer.
+ *
+ * @author Amy Palke
+ * @see PacketRingBuffer
+ * @see NeuroServerReader
+ * @see IPacketListener
+ */
+class AsyncPacketDispatcher extends Thread implements IPacketListener
+{
+    // Our listener list must be thread-safe since listeners will be added and deleted
+    // by the main thread, but notification happens in the dispatcher thread
+    private List<IPacketListener> listeners = new CopyOnWriteArrayList<IPacketListener>();
+    private final PacketRingBuffer buffer;
+    private volatile boolean dispatching = true;
+
+    // The packet we copy buffered values into before notifying our listeners
+    private final Packet packet = new Packet();
+    private final LatencyTracer tracer = LatencyTracer.getInstance();
+
+    // How long we wait for a packet before checking whether we've been stopped
+    private static final long WAIT_NANOS = 10000000L;
+
+    // How often we report dropped packets to the log, in milliseconds
+    private static final long REPORT_INTERVAL = 5000;
+    private long reportedDroppedCount;
+    private long lastReportTime;
+
+    // Log file for debugging
+    private static Logger logger = Logger.getLogger(AsyncPacketDispatcher.class);
+
+    /**
+     * Creates a new dispatcher thread for an EEG device
+     *
+     * @param endpoint       the EEG device whose packets we dispatch, used to name our thread
+     * @param overflowPolicy what to do when our listeners fall behind and the buffer is full
+     */
+    AsyncPacketDispatcher(NeuroServerEndpoint endpoint, OverflowPolicy overflowPolicy)
+    {
+        super("Packet dispatcher " + endpoint);
+        buffer = new PacketRingBuffer(overflowPolicy, PacketRingBuffer.DEFAULT_CAPACITY,
+                                      PacketRingBuffer.DEFAULT_MAX_CHANNELS);
+    }
+
+    /**
+     * Buffer the packet for our thread to deliver.  Called by the reader thread.
+     *
+     * @param packet the latest EDF packet received by the reader
+     */
+    public void receivePacket(Packet packet)
+    {
+        buffer.offer(packet);
+    }
+
+    /**
+     * Take packets from our buffer, and send them along to our listeners
+     */
+    public void run()
+    {
+        lastReportTime = System.currentTimeMillis();
+        while (dispatching)
+        {
+            if (buffer.take(packet, WAIT_NANOS) && dispatching)
+            {
+                tracer.record(LatencyStage.DISPATCHED, packet.getTimestamp());
+                // Note: This method is called by the dispatcher thread.  Our copy-on-write
+                //  list iterates over a snapshot, so changes made by the main thread
+                //  can't cause concurrent modification errors
+                for (IPacketListener listener : listeners)
+                {
+                    try
+                    {
+                        listener.receivePacket(packet);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // One bad packet or listener mustn't stop the others receiving packets
+                        logger.error("Unexpected error delivering packet " + packet.getPacketNumber()
+                                     + " to " + listener, e);
+                    }
+                }
+            }
+            reportDroppedPackets();
+        }
+    }
+
+    /**
+     * Stop delivering packets, and release the reader if it is waiting for room
+     */
+    public void stopDispatching()
+    {
+        dispatching = false;
+        buffer.close();
+    }
+
+    /**
+     * Returns a snapshot of our buffer's occupancy metrics
+     *
+     * @return the buffer statistics
+     */
+    BufferStatistics getStatistics()
+    {
+        return buffer.getStatistics();
+    }
+
+    /**
+     * Attach listener to receive notification/copies of all new Packets
+     *
+     * @param listener the observer who wants to receive Packets
+     */
+    public void addPacketListener(IPacketListener listener)
+    {
+        // Add the listener if he isn't already in our list
+        if (!listeners.contains(listener))
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove listener from our notification list
+     *
+     * @param listener the observer to remove
+     */
+    public void removePacketListener(IPacketListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Remove all listener from our notification list
+     */
+    public void removeAllPacketListeners()
+    {
+        listeners.clear();
+    }
+
+    /**
+     * Log the number of packets dropped since our last report.  We report from our own
+     * thread, so the reader never waits on the log.
+     */
+    private void reportDroppedPackets()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime >= REPORT_INTERVAL)
+        {
+            long droppedCount = buffer.getDroppedCount();
+            if (droppedCount > reportedDroppedCount)
+            {
+                logger.warn("Dropped " + (droppedCount - reportedDroppedCount) + " packets in the last "
+                            + (now - lastReportTime) + "ms, listeners can't keep up: " + buffer.getStatistics());
+                reportedDroppedCount = droppedCount;
+            }
+            lastReportTime = now;
+        }
+    }
+}
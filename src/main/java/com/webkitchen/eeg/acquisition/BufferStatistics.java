@@ -0,0 +1,121 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * A snapshot of the packet buffer between an <code>EEGAcquisitionController</code>'s reader
+ * thread and its listeners.  The values are read without locking, so they are each accurate
+ * but may not be exactly consistent with one another.
+ *
+ * @author Amy Palke
+ * @see EEGAcquisitionController#getBufferStatistics
+ */
+public final class BufferStatistics
+{
+    private final OverflowPolicy overflowPolicy;
+    private final int capacity;
+    private final int occupancy;
+    private final int highWaterMark;
+    private final long offeredCount;
+    private final long deliveredCount;
+    private final long droppedCount;
+
+    /**
+     * Creates a new <code>BufferStatistics</code>
+     *
+     * @param overflowPolicy what the buffer does when it is full
+     * @param capacity       the number of packets the buffer holds
+     * @param occupancy      the number of packets waiting to be delivered
+     * @param highWaterMark  the largest occupancy seen so far
+     * @param offeredCount   the number of packets the reader has offered to the buffer
+     * @param deliveredCount the number of packets delivered to listeners
+     * @param droppedCount   the number of packets discarded because the buffer was full
+     */
+    BufferStatistics(OverflowPolicy overflowPolicy, int capacity, int occupancy, int highWaterMark,
+                     long offeredCount, long deliveredCount, long droppedCount)
+    {
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity;
+        this.occupancy = occupancy;
+        this.highWaterMark = highWaterMark;
+        this.offeredCount = offeredCount;
+        this.deliveredCount = deliveredCount;
+        this.droppedCount = droppedCount;
+    }
+
+    /**
+     * Returns what the buffer does when it is full
+     *
+     * @return the buffer's overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of packets the buffer holds
+     *
+     * @return the buffer capacity, in packets
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of packets waiting to be delivered to listeners
+     *
+     * @return the buffer occupancy, in packets
+     */
+    public int getOccupancy()
+    {
+        return occupancy;
+    }
+
+    /**
+     * Returns the largest number of packets that have been waiting at once
+     *
+     * @return the highest occupancy seen so far, in packets
+     */
+    public int getHighWaterMark()
+    {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the number of packets the reader has offered to the buffer
+     *
+     * @return the number of packets read
+     */
+    public long getOfferedCount()
+    {
+        return offeredCount;
+    }
+
+    /**
+     * Returns the number of packets delivered to listeners
+     *
+     * @return the number of packets delivered
+     */
+    public long getDeliveredCount()
+    {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of packets discarded because the buffer was full
+     *
+     * @return the number of packets dropped
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    public String toString()
+    {
+        return "occupancy " + occupancy + "/" + capacity + " (high " + highWaterMark + "), offered "
+               + offeredCount + ", delivered " + deliveredCount + ", dropped " + droppedCount
+               + " [" + overflowPolicy + "]";
+    }
+}
@@ -1,10 +1,12 @@
 package com.webkitchen.eeg.acquisition;
 
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+import org.apache.log4j.Logger;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -12,23 +14,45 @@ import java.util.concurrent.ConcurrentMap;
  * samples.  Objects can add themselves as listeners/observers to receive copies of
  * all new samples on a specific channel or set of channels
  * <P>
- * Note that any listener adds or removes may not be reflected in the current
- * notification round, since reads (notifications) happen in the eeg reader thread
- * and writes (adds and removes) happen in the main thread.
+ * Listeners are kept in an immutable routing table, with one route for each distinct set
+ * of channels.  Each route holds its precomputed packet indices, its listeners, and a
+ * reusable <code>RawSample</code>, so delivering a packet creates no garbage.  Adds and
+ * removes happen in the main thread and build a new table, which replaces the old one
+ * in a single volatile write; notification happens in the packet dispatcher thread and
+ * reads whichever table is current.  Any listener adds or removes may not be reflected in
+ * the current notification round.
+ * <P>
+ * Batch listeners have their own routes, keyed by channels and batch size.  Each batch route
+ * collects samples into a reusable <code>RawSampleBatch</code>, and notifies its listeners
+ * when the batch is full, or early when a packet follows a gap in the sequence.
+ * <P>
+ * A packet with fewer channels than a route carries is skipped for that route, and counted,
+ * rather than failing every route.  The route's next full packet is flagged as following a
+ * gap, since its listeners missed the skipped ones.
  *
  * @author Amy Palke
  * @see EEGAcquisitionController
  * @see IRawSampleListener
  * @see RawSample
+ * @see RawSampleBatch
  */
 class Demultiplexer implements IPacketListener, IRawSampleGenerator
 {
-    // Contains all listeners, mapped by:
-    //   key = channels that the listener is interested in
-    //   value = List of listeners interested in the channels/key
-    // Using ConcurrentHashMap since listeners will be added and deleted
-    // by the main thread, but notification happens in the reader thread.
-    private ConcurrentMap<int[], List<IRawSampleListener>> listeners = new ConcurrentHashMap<int[], List<IRawSampleListener>>();
+    private static final Route[] NO_ROUTES = new Route[0];
+    private static final BatchRoute[] NO_BATCH_ROUTES = new BatchRoute[0];
+
+    // Packets demultiplexed by every device's demultiplexer
+    private static final Counter packetsDemultiplexed = MetricRegistry.getInstance().counter(
+            "demultiplexer.packets", "Packets split into samples for the listeners");
+    private static final Counter packetsTooShort = MetricRegistry.getInstance().counter(
+            "demultiplexer.packets.short", "Packets skipped for a route because they lacked its channels");
+
+    // Log file for debugging
+    private static Logger logger = Logger.getLogger(Demultiplexer.class);
+
+    // Our current routing tables, replaced (never changed) whenever listeners are added or removed
+    private volatile Route[] routes = NO_ROUTES;
+    private volatile BatchRoute[] batchRoutes = NO_BATCH_ROUTES;
 
     /**
      * Receive packets and send the individual channel samples to our
@@ -39,32 +63,94 @@ class Demultiplexer implements IPacketListener, IRawSampleGenerator
      */
     public void receivePacket(Packet packet)
     {
-        // Note: This method is called by the eeg reader thread, so any adds or removes by the
-        //   main thread won't necessarily be reflected during our iteration.  ConcurrentHashMap
-        //   promises that we'll get keySet elements at most once, and won't get
-        //   ConcurrentModificationExceptions, so no need to synchronize our Map.
+        // Note: This method is called by the packet dispatcher thread.  We read the routing
+        //   table once, so changes by the main thread take effect with the next packet.
+        Route[] currentRoutes = routes;
+        int packetNumber = packet.getPacketNumber();
+        long timestamp = packet.getTimestamp();
+        boolean afterGap = packet.isAfterGap();
+        int[] packetSamples = packet.getSamples();
+        packetsDemultiplexed.increment();
 
-        // Loop through each key in our keySet, creating Samples for our listeners
-        for (int[] key : listeners.keySet())
+        for (Route route : currentRoutes)
         {
-            // Make an array copy to iterate to protect against ConcurrentModificationException
-            // if the listener list is changed by the main thread
-            IRawSampleListener[] channelListeners = listeners.get(key).toArray(new IRawSampleListener[0]);
-
-            // create RawSample for the channels specified by key
-            int[] samples = new int[key.length];
-            for (int i = 0; i < key.length; i++)
+            if (route.highestIndex >= packetSamples.length)
             {
-                int channelIndex = key[i] - 1; // channels are 1-based, not 0-based
-                samples[i] = packet.getSamples()[channelIndex];
+                reportSkipped(route.skipping.skipped, route.rawSample.getChannelNumbers(), packetSamples.length);
+                route.skipping.skipped = true;
+                continue;
+            }
+            // fill in the RawSample for the channels this route carries
+            int[] channelIndices = route.channelIndices;
+            int[] samples = route.rawSample.reset(packetNumber, timestamp, afterGap || route.skipping.skipped);
+            route.skipping.skipped = false;
+            for (int i = 0; i < channelIndices.length; i++)
+            {
+                samples[i] = packetSamples[channelIndices[i]];
             }
-            RawSample rawSample = new RawSample(packet.getPacketNumber(), key, samples);
 
             // send the RawSample to the listeners
-            notifyListeners(channelListeners, rawSample);
+            notifyListeners(route.listeners, route.rawSample);
+        }
+
+        for (BatchRoute route : batchRoutes)
+        {
+            RawSampleBatch batch = route.batch;
+            if (route.highestIndex >= packetSamples.length)
+            {
+                reportSkipped(route.skipping.skipped, batch.getChannelNumbers(), packetSamples.length);
+                route.skipping.skipped = true;
+                continue;
+            }
+            if (afterGap || route.skipping.skipped)
+            {
+                route.skipping.skipped = false;
+                // Batches never span a gap, send the samples before it as a short batch
+                if (batch.getSize() > 0)
+                {
+                    notifyBatchListeners(route.listeners, batch);
+                }
+                batch.setAfterGap(true);
+            }
+            if (batch.add(packetNumber, timestamp, packetSamples, route.channelIndices))
+            {
+                notifyBatchListeners(route.listeners, batch);
+            }
+        }
+    }
+
+    /**
+     * Count a packet skipped for a route, logging the first of each run of skipped packets
+     *
+     * @param skipping     true if the route skipped the previous packet too
+     * @param channels     the channels the route carries
+     * @param channelCount the number of channels in the packet
+     */
+    private static void reportSkipped(boolean skipping, int[] channels, int channelCount)
+    {
+        packetsTooShort.increment();
+        if (!skipping)
+        {
+            logger.warn("Skipping packets with " + channelCount + " channels for listeners to channels "
+                        + Arrays.toString(channels));
         }
     }
 
+    /**
+     * Send the batch to each listener in the array, then empty it
+     *
+     * @param batchListeners an array of listeners that we should send the batch to
+     * @param batch          the batch to send to all listeners
+     */
+    private void notifyBatchListeners(IRawSampleBatchListener[] batchListeners, RawSampleBatch batch)
+    {
+        for (IRawSampleBatchListener listener : batchListeners)
+        {
+            listener.receiveSamples(batch);
+        }
+        batch.clear();
+    }
+
     /**
      * Send the sample to each listener in the array
      *
@@ -86,18 +172,25 @@ class Demultiplexer implements IPacketListener, IRawSampleGenerator
      * @param listener the observer who wants to receive <code>RawSample</code>s
      * @param channels the channels to listen to
      */
-    public void addSampleListener(IRawSampleListener listener, int[] channels)
+    public synchronized void addSampleListener(IRawSampleListener listener, int[] channels)
     {
-        int[] key = channels;
-        List<IRawSampleListener> values = listeners.get(key);
-        // Create the value list, if necessary
-        if (values == null)
+        Route[] oldRoutes = routes;
+        for (int i = 0; i < oldRoutes.length; i++)
         {
-            // Use a synchronized list, since reads and writes happen in different threads
-            values = Collections.synchronizedList(new ArrayList<IRawSampleListener>());
-            listeners.put(key, values);
+            if (Arrays.equals(oldRoutes[i].rawSample.getChannelNumbers(), channels))
+            {
+                // Another listener already receives these channels, share its route
+                Route[] newRoutes = oldRoutes.clone();
+                newRoutes[i] = oldRoutes[i].withListener(listener);
+                routes = newRoutes;
+                return;
+            }
         }
-        values.add(listener);
+
+        // Create a new route for these channels
+        Route[] newRoutes = Arrays.copyOf(oldRoutes, oldRoutes.length + 1);
+        newRoutes[oldRoutes.length] = new Route(channels, new IRawSampleListener[]{listener});
+        routes = newRoutes;
     }
 
     /**
@@ -106,30 +199,266 @@ class Demultiplexer implements IPacketListener, IRawSampleGenerator
      *
      * @param listener the observer to remove
      */
-    public void removeSampleListener(IRawSampleListener listener)
+    public synchronized void removeSampleListener(IRawSampleListener listener)
     {
-        // Loop through our keySet, checking each listener/value list, and
-        // removing the listener from all
-        for (int[] key : listeners.keySet())
+        // Loop through our routes, removing the listener from all, and
+        // dropping any route that no longer has listeners
+        List<Route> newRoutes = new ArrayList<Route>();
+        for (Route route : routes)
         {
-            List<IRawSampleListener> listenerList = listeners.get(key);
-            if (listenerList.contains(listener))
+            Route remaining = route.withoutListener(listener);
+            if (remaining.listeners.length > 0)
             {
-                listenerList.remove(listener);
-                // If the listener was the only value, remove the key as well
-                if (listenerList.isEmpty())
-                {
-                    listeners.remove(key);
-                }
+                newRoutes.add(remaining);
+            }
+        }
+        routes = newRoutes.toArray(NO_ROUTES);
+    }
+
+    /**
+     * Attach listener to receive batches of <code>RawSample</code> values for the specified
+     * channels.  The listener is notified each time <code>batchSize</code> packets have arrived.
+     *
+     * @param listener  the observer who wants to receive <code>RawSampleBatch</code>es
+     * @param channels  the channels to listen to
+     * @param batchSize the number of samples per channel in each batch
+     */
+    public synchronized void addBatchListener(IRawSampleBatchListener listener, int[] channels, int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+        }
+        BatchRoute[] oldRoutes = batchRoutes;
+        for (int i = 0; i < oldRoutes.length; i++)
+        {
+            RawSampleBatch batch = oldRoutes[i].batch;
+            if (batch.getPacketNumbers().length == batchSize && Arrays.equals(batch.getChannelNumbers(), channels))
+            {
+                // Another listener already receives these batches, share its route
+                BatchRoute[] newRoutes = oldRoutes.clone();
+                newRoutes[i] = oldRoutes[i].withListener(listener);
+                batchRoutes = newRoutes;
+                return;
+            }
+        }
+
+        // Create a new route for these channels and batch size
+        BatchRoute[] newRoutes = Arrays.copyOf(oldRoutes, oldRoutes.length + 1);
+        newRoutes[oldRoutes.length] = new BatchRoute(new RawSampleBatch(channels.clone(), batchSize),
+                                                     new IRawSampleBatchListener[]{listener});
+        batchRoutes = newRoutes;
+    }
+
+    /**
+     * Remove batch listener from our notification list.  If the listener is listening to
+     * multiple channels, it will be removed from all of them.
+     *
+     * @param listener the observer to remove
+     */
+    public synchronized void removeBatchListener(IRawSampleBatchListener listener)
+    {
+        List<BatchRoute> newRoutes = new ArrayList<BatchRoute>();
+        for (BatchRoute route : batchRoutes)
+        {
+            BatchRoute remaining = route.withoutListener(listener);
+            if (remaining.listeners.length > 0)
+            {
+                newRoutes.add(remaining);
             }
         }
+        batchRoutes = newRoutes.toArray(NO_BATCH_ROUTES);
     }
 
     /**
-     * Remove all listeners from our notification list
+     * Remove all listeners, including batch listeners, from our notification list
+     */
+    public synchronized void removeAllSampleListeners()
+    {
+        routes = NO_ROUTES;
+        batchRoutes = NO_BATCH_ROUTES;
+    }
+
+    /**
+     * Returns the number of listeners receiving single samples, counting a listener once for
+     * each set of channels it listens to
+     *
+     * @return the number of sample listeners
+     */
+    int getSampleListenerCount()
+    {
+        int count = 0;
+        for (Route route : routes)
+        {
+            count += route.listeners.length;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of listeners receiving batches, counting a listener once for each
+     * set of channels and batch size it listens to
+     *
+     * @return the number of batch listeners
+     */
+    int getBatchListenerCount()
+    {
+        int count = 0;
+        for (BatchRoute route : batchRoutes)
+        {
+            count += route.listeners.length;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the highest of the packet indices, or -1 if there are none
+     */
+    private static int highest(int[] channelIndices)
+    {
+        int highest = -1;
+        for (int index : channelIndices)
+        {
+            highest = Math.max(highest, index);
+        }
+        return highest;
+    }
+
+    /**
+     * Returns the 0-based packet index of each 1-based channel number
+     */
+    private static int[] toChannelIndices(int[] channelNumbers)
+    {
+        int[] channelIndices = new int[channelNumbers.length];
+        for (int i = 0; i < channelNumbers.length; i++)
+        {
+            channelIndices[i] = channelNumbers[i] - 1; // channels are 1-based, not 0-based
+        }
+        return channelIndices;
+    }
+
+    /**
+     * Returns a copy of the listeners without any registrations of the listener,
+     * or null if the listener wasn't registered
+     */
+    private static <T> List<T> without(T[] listeners, T listener)
+    {
+        List<T> remaining = new ArrayList<T>(Arrays.asList(listeners));
+        if (!remaining.remove(listener))
+        {
+            return null;
+        }
+        // Remove every registration of the listener
+        while (remaining.remove(listener))
+        {
+            // keep removing
+        }
+        return remaining;
+    }
+
+
+    /**
+     * One entry in our routing table - a set of channels, where to find them in each packet,
+     * and the listeners who receive them.  Routes are immutable, except for the values in the
+     * reused <code>RawSample</code> and <code>Skipping</code>, which only the dispatcher thread
+     * writes.  Both are shared with the routes that replace this one when listeners change.
+     */
+    private static final class Route
+    {
+        private final int[] channelIndices;
+        private final int highestIndex;
+        private final IRawSampleListener[] listeners;
+        private final RawSample rawSample;
+        private final Skipping skipping;
+
+        Route(int[] channels, IRawSampleListener[] listeners)
+        {
+            this(new RawSample(channels.clone()), new Skipping(), listeners);
+        }
+
+        private Route(RawSample rawSample, Skipping skipping, IRawSampleListener[] listeners)
+        {
+            this.rawSample = rawSample;
+            this.skipping = skipping;
+            this.listeners = listeners;
+            channelIndices = toChannelIndices(rawSample.getChannelNumbers());
+            highestIndex = highest(channelIndices);
+        }
+
+        Route withListener(IRawSampleListener listener)
+        {
+            IRawSampleListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            return new Route(rawSample, skipping, newListeners);
+        }
+
+        Route withoutListener(IRawSampleListener listener)
+        {
+            List<IRawSampleListener> remaining = without(listeners, listener);
+            if (remaining == null)
+            {
+                return this;
+            }
+            return new Route(rawSample, skipping, remaining.toArray(new IRawSampleListener[remaining.size()]));
+        }
+    }
+
+
+    /**
+     * One entry in our batch routing table - a set of channels and batch size, where to find
+     * the channels in each packet, and the listeners who receive the batches.  Like
+     * <code>Route</code>, only the reused <code>RawSampleBatch</code> and <code>Skipping</code>
+     * change, and both are shared with the routes that replace this one.
+     */
+    private static final class BatchRoute
+    {
+        private final int[] channelIndices;
+        private final int highestIndex;
+        private final IRawSampleBatchListener[] listeners;
+        private final RawSampleBatch batch;
+        private final Skipping skipping;
+
+        BatchRoute(RawSampleBatch batch, IRawSampleBatchListener[] listeners)
+        {
+            this(batch, new Skipping(), listeners);
+        }
+
+        private BatchRoute(RawSampleBatch batch, Skipping skipping, IRawSampleBatchListener[] listeners)
+        {
+            this.batch = batch;
+            this.skipping = skipping;
+            this.listeners = listeners;
+            channelIndices = toChannelIndices(batch.getChannelNumbers());
+            highestIndex = highest(channelIndices);
+        }
+
+        BatchRoute withListener(IRawSampleBatchListener listener)
+        {
+            IRawSampleBatchListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            return new BatchRoute(batch, skipping, newListeners);
+        }
+
+        BatchRoute withoutListener(IRawSampleBatchListener listener)
+        {
+            List<IRawSampleBatchListener> remaining = without(listeners, listener);
+            if (remaining == null)
+            {
+                return this;
+            }
+            return new BatchRoute(batch, skipping, remaining.toArray(new IRawSampleBatchListener[remaining.size()]));
+        }
+    }
+
+
+    /**
+     * Whether a route is skipping packets that lack its channels.  Kept apart from the route,
+     * like its <code>RawSample</code>, so replacing the route when listeners are added or
+     * removed doesn't lose a run of skipped packets.  Only the dispatcher thread writes it.
      */
-    public void removeAllSampleListeners()
+    private static final class Skipping
     {
-        listeners.clear();
+        // True while packets lack the route's channels, until the next packet it delivers
+        private boolean skipped;
     }
 }
@@ -1,6 +1,15 @@
 package com.webkitchen.eeg.acquisition;
 
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.Gauge;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -10,36 +19,201 @@ import java.io.IOException;
  * channel(s) with the <code>IRawSampleGenerator</code>'s
  * <code>addSampleListener</code> method, and implement the
  * <code>IRawSampleListener</code> interface.
+ * <P>
+ * There is one controller for each EEG device, identified by a
+ * <code>NeuroServerEndpoint</code>.  Each controller has its own reader thread,
+ * connection and <code>IRawSampleGenerator</code>, so several headsets can be
+ * read in one application.
+ * <P>
+ * Packets pass from the reader thread to the listeners through a bounded buffer, which
+ * is emptied by a separate dispatcher thread, so slow listeners can't stall reading.
+ * The <code>OverflowPolicy</code> decides what happens when the listeners fall behind
+ * and the buffer fills up.
+ * <P>
+ * A <code>PacketSequencer</code> between the dispatcher and the demultiplexer checks the
+ * packet sequence numbers, drops duplicates, fills short gaps by interpolation, and flags
+ * longer gaps, so listeners can reset their filters.  <code>setGapFilling</code> chooses
+ * how, and how long a gap is filled.
+ * <P>
+ * Instead of reading a device, a controller can replay a recording, or an EDF file, for
+ * debugging, regression runs and load tests.  While reading, it can also record every raw
+ * packet to a <code>SessionRecording</code>, or to an EDF+ file for other EEG software.
+ * <P>
+ * Each controller registers gauges with the <code>MetricRegistry</code>, named
+ * <code>acquisition.</code> followed by its endpoint, for the packet buffer, the time since
+ * the last packet arrived, and the number of listeners.  Packets that stop arriving point
+ * to the device or NeuroServer, while packets that arrive but pile up in the buffer point
+ * to the listeners.
  *
  * @author Amy Palke
+ * @see NeuroServerEndpoint
+ * @see OverflowPolicy
+ * @see GapInterpolation
  * @see IRawSampleGenerator
  * @see IRawSampleListener
  * @see RawSample
  */
 public class EEGAcquisitionController
 {
-    private static final EEGAcquisitionController INSTANCE = new EEGAcquisitionController();
-    private static Demultiplexer demultiplexer;
-    private static NeuroServerReader reader;
-    private static boolean isActive;
+    /**
+     * Replay speed that sends recorded samples as fast as the listeners can take them
+     */
+    public static final double UNTHROTTLED = PacedConnection.UNTHROTTLED;
+    // Recording replayed in debug mode unless another is set, recorded from a ModularEEG
+    // at 256 samples/second
+    private static final File DEFAULT_DEBUG_RECORDING = new File("C:\\openeeg\\Brainathlon\\software\\debug\\input.txt");
+    private static final int DEFAULT_DEBUG_SAMPLE_RATE = 256;
+
+    // All controllers created so far, one per endpoint
+    private static final Map<NeuroServerEndpoint, EEGAcquisitionController> INSTANCES = new HashMap<NeuroServerEndpoint, EEGAcquisitionController>();
+
+    private final NeuroServerEndpoint endpoint;
+    private final Demultiplexer demultiplexer;
+    // Volatile so our gauges can read them without waiting for a connection to open
+    private volatile NeuroServerReader reader;
+    private volatile AsyncPacketDispatcher dispatcher;
+    private PacketSequencer sequencer;
+    private IPacketRecorder recorder;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private GapInterpolation gapInterpolation = GapInterpolation.LINEAR;
+    private int maxFilledGap = PacketSequencer.DEFAULT_MAX_FILLED_GAP;
+    private int packetCounterModulus = PacketSequencer.DEFAULT_COUNTER_MODULUS;
+    private File debugRecording = DEFAULT_DEBUG_RECORDING;
+    private int debugSampleRate = DEFAULT_DEBUG_SAMPLE_RATE;
+    private volatile boolean isActive;
 
     /**
-     * Private constructor - access instance through getInstance() factory method
+     * Private constructor - access instances through the getInstance() factory methods
+     *
+     * @param endpoint the EEG device we read from
      */
-    private EEGAcquisitionController()
+    private EEGAcquisitionController(NeuroServerEndpoint endpoint)
     {
+        this.endpoint = endpoint;
         // Create the demultiplexer
         demultiplexer = new Demultiplexer();
+        registerGauges();
+    }
+
+    /**
+     * Registers the gauges that show how our reading is going
+     */
+    private void registerGauges()
+    {
+        String prefix = "acquisition." + endpoint + ".";
+        MetricRegistry registry = MetricRegistry.getInstance();
+        registry.register(new Gauge(prefix + "buffer.occupancy", "Packets waiting for the listeners")
+        {
+            public long getValue()
+            {
+                AsyncPacketDispatcher current = dispatcher;
+                return current == null ? 0 : current.getStatistics().getOccupancy();
+            }
+        });
+        registry.register(new Gauge(prefix + "buffer.highWaterMark", "Most packets ever waiting for the listeners")
+        {
+            public long getValue()
+            {
+                AsyncPacketDispatcher current = dispatcher;
+                return current == null ? 0 : current.getStatistics().getHighWaterMark();
+            }
+        });
+        registry.register(new Gauge(prefix + "packets.delivered", "Packets delivered to the listeners")
+        {
+            public long getValue()
+            {
+                AsyncPacketDispatcher current = dispatcher;
+                return current == null ? 0 : current.getStatistics().getDeliveredCount();
+            }
+        });
+        registry.register(new Gauge(prefix + "packets.dropped", "Packets dropped because the buffer was full")
+        {
+            public long getValue()
+            {
+                AsyncPacketDispatcher current = dispatcher;
+                return current == null ? 0 : current.getStatistics().getDroppedCount();
+            }
+        });
+        registry.register(new Gauge(prefix + "packets.lastArrivalAge",
+                                    "Milliseconds since the last packet arrived, or -1 if we aren't reading")
+        {
+            public long getValue()
+            {
+                NeuroServerReader current = reader;
+                long lastArrival = (current == null) ? LatencyTracer.UNSTAMPED : current.getLastArrival();
+                return (lastArrival == LatencyTracer.UNSTAMPED)
+                       ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastArrival);
+            }
+        });
+        registry.register(new Gauge(prefix + "listeners.samples", "Listeners receiving single samples")
+        {
+            public long getValue()
+            {
+                return demultiplexer.getSampleListenerCount();
+            }
+        });
+        registry.register(new Gauge(prefix + "listeners.batches", "Listeners receiving batches of samples")
+        {
+            public long getValue()
+            {
+                return demultiplexer.getBatchListenerCount();
+            }
+        });
     }
 
     /**
-     * Returns the single instance of EEGAcquisitionController
+     * Returns the EEGAcquisitionController for the first device of a NeuroServer running
+     * on this machine
      *
-     * @return the single instance of EEGAcquisitionController
+     * @return the EEGAcquisitionController for the default endpoint
+     * @see NeuroServerEndpoint#DEFAULT
      */
     public static EEGAcquisitionController getInstance()
     {
-        return INSTANCE;
+        return getInstance(NeuroServerEndpoint.DEFAULT);
+    }
+
+    /**
+     * Returns the EEGAcquisitionController for a device, creating it if necessary
+     *
+     * @param host     the NeuroServer host name
+     * @param port     the NeuroServer port
+     * @param deviceId the number of the device within the NeuroServer, starting at 0
+     * @return the EEGAcquisitionController for the device
+     */
+    public static EEGAcquisitionController getInstance(String host, int port, int deviceId)
+    {
+        return getInstance(new NeuroServerEndpoint(host, port, deviceId));
+    }
+
+    /**
+     * Returns the EEGAcquisitionController for a device, creating it if necessary
+     *
+     * @param endpoint identifies the EEG device
+     * @return the EEGAcquisitionController for the device
+     */
+    public static EEGAcquisitionController getInstance(NeuroServerEndpoint endpoint)
+    {
+        synchronized (INSTANCES)
+        {
+            EEGAcquisitionController controller = INSTANCES.get(endpoint);
+            if (controller == null)
+            {
+                controller = new EEGAcquisitionController(endpoint);
+                INSTANCES.put(endpoint, controller);
+            }
+            return controller;
+        }
+    }
+
+    /**
+     * Returns the EEG device this controller reads from
+     *
+     * @return the EEG device this controller reads from
+     */
+    public NeuroServerEndpoint getEndpoint()
+    {
+        return endpoint;
     }
 
     /**
@@ -47,47 +221,336 @@ public class EEGAcquisitionController
      *
      * @return true or false if filters are set up
      */
-    public static boolean isActive()
+    public boolean isActive()
     {
         return isActive;
     }
 
+    /**
+     * Sets what happens when listeners fall behind the reader and the packet buffer is full.
+     * Takes effect the next time <code>startReading</code> is called.  The default is
+     * <code>OverflowPolicy.DROP_OLDEST</code>, so feedback always reflects the latest EEG data.
+     *
+     * @param overflowPolicy the policy to use when the packet buffer is full
+     */
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        if (overflowPolicy == null)
+        {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns what happens when listeners fall behind the reader and the packet buffer is full
+     *
+     * @return the policy used when the packet buffer is full
+     */
+    public synchronized OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets how gaps in the packet sequence are filled.  Gaps of up to
+     * <code>maxFilledGap</code> missing packets are filled in with interpolated samples;
+     * the first sample after a longer gap is flagged with <code>RawSample.isAfterGap</code>.
+     * Takes effect the next time <code>startReading</code> is called.  The default is
+     * <code>GapInterpolation.LINEAR</code>, for gaps of up to 4 packets.
+     *
+     * @param interpolation how to fill short gaps, or <code>GapInterpolation.NONE</code> to
+     *                      flag every gap
+     * @param maxFilledGap  the most missing packets to fill in
+     */
+    public synchronized void setGapFilling(GapInterpolation interpolation, int maxFilledGap)
+    {
+        if (interpolation == null)
+        {
+            throw new IllegalArgumentException("interpolation must not be null");
+        }
+        if (maxFilledGap < 0)
+        {
+            throw new IllegalArgumentException("Maximum filled gap can't be negative: " + maxFilledGap);
+        }
+        this.gapInterpolation = interpolation;
+        this.maxFilledGap = maxFilledGap;
+    }
+
+    /**
+     * Returns how gaps in the packet sequence are filled
+     *
+     * @return the interpolation used for short gaps
+     */
+    public synchronized GapInterpolation getGapInterpolation()
+    {
+        return gapInterpolation;
+    }
+
+    /**
+     * Returns the most missing packets that are filled in
+     *
+     * @return the longest gap that is filled, in packets
+     */
+    public synchronized int getMaxFilledGap()
+    {
+        return maxFilledGap;
+    }
+
+    /**
+     * Sets the recording this device replays in debug mode, so each device can replay a
+     * recording of its own.  Takes effect the next time <code>startReading</code> is called.
+     *
+     * @param recording  the file of recorded packet lines
+     * @param sampleRate the number of samples per second when the recording was made
+     */
+    public synchronized void setDebugRecording(File recording, int sampleRate)
+    {
+        if (sampleRate <= 0)
+        {
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        }
+        this.debugRecording = recording;
+        this.debugSampleRate = sampleRate;
+    }
+
+    /**
+     * Returns the recording this device replays in debug mode
+     *
+     * @return the file of recorded packet lines
+     */
+    public synchronized File getDebugRecording()
+    {
+        return debugRecording;
+    }
+
+    /**
+     * Sets the range of the device's packet counter, which wraps around to 0 when it
+     * reaches the range.  Takes effect the next time <code>startReading</code> is called.
+     * The default is 256, the range of the ModEEG's counter.
+     *
+     * @param modulus the number of distinct packet numbers
+     */
+    public synchronized void setPacketCounterModulus(int modulus)
+    {
+        if (modulus < 2)
+        {
+            throw new IllegalArgumentException("Packet counter modulus must be at least 2: " + modulus);
+        }
+        this.packetCounterModulus = modulus;
+    }
+
+    /**
+     * Returns a snapshot of the packet buffer's occupancy metrics, for the current reading
+     * session or the last one if we have stopped reading
+     *
+     * @return the buffer statistics, or null if reading has never been started
+     */
+    public synchronized BufferStatistics getBufferStatistics()
+    {
+        return dispatcher == null ? null : dispatcher.getStatistics();
+    }
+
     /**
      * Begins the reading of EEG data, and notification of <code>IRawSampleGenerator</code>
      * listeners.  Objects that call <code>startReading</code> should always
      * call <code>stopReading</code> when they are done reading EEG data.
      *
-     * @throws IOException if we are unable to connect to the EEG device
+     * @param debugMode true to replay the debug recording in real time for debugging, false
+     *                  to read from the EEG device
+     * @throws FileNotFoundException if we are in debug mode, and the debug recording is missing
+     * @throws IOException           if we are unable to connect to the EEG device
+     * @see #setDebugRecording
+     * @see #startReplay
      */
-    public void startReading(boolean debugMode) throws IOException
+    public synchronized void startReading(boolean debugMode) throws IOException
+    {
+        // Replay a static file when in debug mode, read the EEG machine when not in debugMode
+        if (debugMode)
+        {
+            if (!debugRecording.isFile())
+            {
+                throw new FileNotFoundException("No debug recording for " + endpoint + " at "
+                                                + debugRecording.getAbsolutePath()
+                                                + ", set one with setDebugRecording");
+            }
+            startReplay(debugRecording, debugSampleRate, 1.0, true);
+        }
+        else if (!isActive)
+        {
+            start(new NioNeuroServerConnection(endpoint));
+        }
+    }
+
+    /**
+     * Begins replaying a recording of the lines NeuroServer sends, and notification of
+     * <code>IRawSampleGenerator</code> listeners, just as if the samples were coming from
+     * the EEG device.  Objects that call <code>startReplay</code> should always call
+     * <code>stopReading</code> when they are done reading EEG data.
+     *
+     * @param recording  the file of recorded packet lines
+     * @param sampleRate the number of samples per second when the recording was made
+     * @param speed      how many times faster than real time to replay, such as 2 or 10,
+     *                   or <code>UNTHROTTLED</code> to replay as fast as possible
+     * @param loop       true to start again at the beginning of the recording when we reach
+     *                   the end, false to stop sending samples
+     * @throws IOException if we are unable to read the recording
+     */
+    public synchronized void startReplay(File recording, int sampleRate, double speed, boolean loop)
+            throws IOException
     {
         if (!isActive)
         {
-            // Wire together the wave acquisition and analysis components
-            reader = new NeuroServerReader();
-            reader.addPacketListener(demultiplexer);
+            start(new ReplayConnection(recording, sampleRate, speed, loop));
+        }
+    }
 
-            // Start up the reader
-            reader.startReading(debugMode);
-            reader.start();
-            isActive = true;
+    /**
+     * Begins replaying the EEG signals of an EDF or EDF+ file, and notification of
+     * <code>IRawSampleGenerator</code> listeners, just as if the samples were coming from
+     * the EEG device.  Objects that call <code>startEdfReplay</code> should always call
+     * <code>stopReading</code> when they are done reading EEG data.
+     *
+     * @param edfFile the EDF file, such as one written by <code>startEdfRecording</code>
+     * @param speed   how many times faster than real time to replay, such as 2 or 10,
+     *                or <code>UNTHROTTLED</code> to replay as fast as possible
+     * @param loop    true to start again at the beginning of the file when we reach
+     *                the end, false to stop sending samples
+     * @throws IOException if we are unable to read the file, or it isn't an EDF file
+     * @see EdfReader
+     */
+    public synchronized void startEdfReplay(File edfFile, double speed, boolean loop) throws IOException
+    {
+        if (!isActive)
+        {
+            EdfReader edfReader = new EdfReader(edfFile);
+            try
+            {
+                start(new EdfReplayConnection(edfFile, edfReader, speed, loop, NeuroServerReader.SIGNAL_DIFFERENCE));
+            }
+            catch (IOException e)
+            {
+                edfReader.close();
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                edfReader.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Wires together the wave acquisition and analysis components, and starts reading
+     *
+     * @param connection where our packets come from
+     * @throws IOException if we are unable to connect
+     */
+    private void start(INeuroServerConnection connection) throws IOException
+    {
+        // The dispatcher buffers packets between the reader and demultiplexer threads
+        dispatcher = new AsyncPacketDispatcher(endpoint, overflowPolicy);
+        // The sequencer checks for lost packets, including those dropped by the dispatcher
+        sequencer = new PacketSequencer(endpoint, gapInterpolation, maxFilledGap, packetCounterModulus);
+        sequencer.addPacketListener(demultiplexer);
+        dispatcher.addPacketListener(sequencer);
+        reader = new NeuroServerReader(endpoint);
+        reader.addPacketListener(dispatcher);
+
+        // Start up the reader
+        reader.startReading(connection);
+        dispatcher.start();
+        reader.start();
+        isActive = true;
+    }
+
+    /**
+     * Begins recording every raw packet read, until <code>stopRecording</code> or
+     * <code>stopReading</code> is called.  Packets are recorded as they are read, even if
+     * the listeners fall behind and packets are dropped before they reach them.
+     *
+     * @param recording  the file to record to, replacing it if it exists
+     * @param sampleRate the number of samples per second the device sends
+     * @throws IOException           if the recording can't be created
+     * @throws IllegalStateException if we aren't reading, or are already recording
+     * @see SessionRecording
+     */
+    public synchronized void startRecording(File recording, int sampleRate) throws IOException
+    {
+        checkCanRecord();
+        recorder = new SessionRecorder(recording, sampleRate);
+        reader.addPacketListener(recorder);
+    }
+
+    /**
+     * Begins recording every raw packet read to an EDF+ file, until <code>stopRecording</code>
+     * or <code>stopReading</code> is called.  The signals are described by the device's EDF
+     * header, if it has one.  Packets are recorded as they are read, even if the listeners
+     * fall behind and packets are dropped before they reach them.
+     *
+     * @param edfFile    the file to record to, replacing it if it exists
+     * @param sampleRate the number of samples per second the device sends
+     * @throws IOException           if the file can't be created
+     * @throws IllegalStateException if we aren't reading, or are already recording
+     * @see EdfReader
+     */
+    public synchronized void startEdfRecording(File edfFile, int sampleRate) throws IOException
+    {
+        checkCanRecord();
+        recorder = new EdfWriter(edfFile, sampleRate, reader.getEdfHeader());
+        reader.addPacketListener(recorder);
+    }
+
+    private void checkCanRecord()
+    {
+        if (!isActive)
+        {
+            throw new IllegalStateException("Can't record until reading has started");
+        }
+        if (recorder != null)
+        {
+            throw new IllegalStateException("Already recording");
         }
     }
 
     /**
-     * Ends the reading of EEG data, and notification of <code>IRawSampleGenerator</code>
-     * listeners
+     * Ends recording, and finishes the recording file.  Does nothing if we aren't recording.
      */
-    public void stopReading()
+    public synchronized void stopRecording()
+    {
+        if (recorder != null)
+        {
+            if (reader != null)
+            {
+                reader.removePacketListener(recorder);
+            }
+            recorder.close();
+            recorder = null;
+        }
+    }
+
+    /**
+     * Ends the reading of EEG data, recording, and notification of
+     * <code>IRawSampleGenerator</code> listeners
+     */
+    public synchronized void stopReading()
     {
         if (isActive)
         {
+            stopRecording();
             isActive = false;
 
             reader.stopReading();
             reader.removeAllPacketListeners();
             reader = null;
 
+            // Keep the dispatcher so its statistics are still available
+            dispatcher.stopDispatching();
+            dispatcher.removeAllPacketListeners();
+            sequencer.removeAllPacketListeners();
+            sequencer = null;
+
             demultiplexer.removeAllSampleListeners();
         }
     }
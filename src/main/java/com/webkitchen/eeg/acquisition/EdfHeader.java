@@ -0,0 +1,530 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+
+/**
+ * The header record of an EDF or EDF+ file, as sent by NeuroServer's "getheader" command
+ * and written at the start of an EDF file.  The header describes the recording, and each
+ * signal in it: its label, units, sampling, and how its digital values map to physical ones.
+ * <P>
+ * EDF headers are fixed-width ASCII: 256 bytes for the recording, then 256 bytes for each
+ * signal, with each field padded with spaces.  See
+ * <a href="https://www.edfplus.info/specs/">https://www.edfplus.info/specs/</a>.
+ *
+ * @author Amy Palke
+ * @see EdfWriter
+ * @see EdfReader
+ */
+public class EdfHeader
+{
+    /**
+     * The label of the EDF+ signal that holds annotations rather than samples
+     */
+    public static final String ANNOTATIONS_LABEL = "EDF Annotations";
+    /**
+     * The size of the header record for the recording, and for each signal
+     */
+    public static final int RECORD_SIZE = 256;
+
+    private static final String ASCII = "US-ASCII";
+
+    private final String patient;
+    private final String recording;
+    private final Date startTime;
+    private final String reserved;
+    private long dataRecordCount;
+    private final double dataRecordDuration;
+    private final Signal[] signals;
+
+    /**
+     * Creates a new header
+     *
+     * @param patient            the patient identification
+     * @param recording          the recording identification
+     * @param startTime          when the recording started, to the second
+     * @param reserved           "EDF+C" for a continuous EDF+ file, blank for EDF
+     * @param dataRecordCount    the number of data records, or -1 if not yet known
+     * @param dataRecordDuration the length of each data record, in seconds
+     * @param signals            the signals in each data record
+     */
+    public EdfHeader(String patient, String recording, Date startTime, String reserved,
+                     long dataRecordCount, double dataRecordDuration, Signal[] signals)
+    {
+        this.patient = patient;
+        this.recording = recording;
+        this.startTime = new Date(startTime.getTime());
+        this.reserved = reserved;
+        this.dataRecordCount = dataRecordCount;
+        this.dataRecordDuration = dataRecordDuration;
+        this.signals = signals.clone();
+    }
+
+    /**
+     * Parses a header, such as the reply to NeuroServer's "getheader" command
+     *
+     * @param header the header text
+     * @return the header
+     * @throws IOException if the text isn't a valid EDF header
+     */
+    public static EdfHeader parse(String header) throws IOException
+    {
+        return parse(header.getBytes(ASCII));
+    }
+
+    /**
+     * Parses a header from its bytes
+     *
+     * @param bytes the header, at least 256 bytes for the recording and 256 for each signal
+     * @return the header
+     * @throws IOException if the bytes aren't a valid EDF header
+     */
+    public static EdfHeader parse(byte[] bytes) throws IOException
+    {
+        if (bytes.length < RECORD_SIZE)
+        {
+            throw new IOException("EDF header is too short: " + bytes.length + " bytes");
+        }
+        Fields fields = new Fields(bytes);
+        fields.next(8); // version
+        String patient = fields.next(80);
+        String recording = fields.next(80);
+        String date = fields.next(8);
+        String time = fields.next(8);
+        fields.next(8); // header size
+        String reserved = fields.next(44);
+        long dataRecordCount = fields.nextLong(8);
+        double dataRecordDuration = fields.nextDouble(8);
+        int signalCount = (int) fields.nextLong(4);
+        if (signalCount < 0 || bytes.length < RECORD_SIZE * (signalCount + 1))
+        {
+            throw new IOException("EDF header is too short for " + signalCount + " signals");
+        }
+
+        Signal[] signals = new Signal[signalCount];
+        String[][] text = new String[4][signalCount];
+        double[][] numbers = new double[5][signalCount];
+        int[] widths = {16, 80, 8};
+        for (int field = 0; field < widths.length; field++)
+        {
+            for (int s = 0; s < signalCount; s++)
+            {
+                text[field][s] = fields.next(widths[field]);
+            }
+        }
+        for (int field = 0; field < 4; field++)
+        {
+            for (int s = 0; s < signalCount; s++)
+            {
+                numbers[field][s] = fields.nextDouble(8);
+            }
+        }
+        for (int s = 0; s < signalCount; s++)
+        {
+            text[3][s] = fields.next(80);
+        }
+        for (int s = 0; s < signalCount; s++)
+        {
+            numbers[4][s] = fields.nextLong(8);
+        }
+        for (int s = 0; s < signalCount; s++)
+        {
+            signals[s] = new Signal(text[0][s], text[1][s], text[2][s], numbers[0][s], numbers[1][s],
+                                    (int) numbers[2][s], (int) numbers[3][s], text[3][s], (int) numbers[4][s]);
+        }
+
+        Date startTime;
+        try
+        {
+            startTime = new SimpleDateFormat("dd.MM.yy HH.mm.ss", Locale.US).parse(date + " " + time);
+        }
+        catch (java.text.ParseException e)
+        {
+            throw new IOException("Invalid EDF start date and time: " + date + " " + time);
+        }
+        return new EdfHeader(patient, recording, startTime, reserved, dataRecordCount, dataRecordDuration, signals);
+    }
+
+    /**
+     * Creates an EDF+ header for a ModularEEG read through NeuroServer, with data records
+     * of one second and an annotations signal.  Samples are in the units delivered by the
+     * <code>IRawSampleGenerator</code>, the device's digital values less 512.
+     *
+     * @param channelCount the number of EEG channels
+     * @param sampleRate   the number of samples per second on each channel
+     * @param startTime    when recording started
+     * @return the header, with an unknown number of data records
+     */
+    public static EdfHeader createDefault(int channelCount, int sampleRate, Date startTime)
+    {
+        Signal[] signals = new Signal[channelCount];
+        for (int c = 0; c < channelCount; c++)
+        {
+            signals[c] = new Signal("EEG " + (c + 1), "ModularEEG electrode", "uV", -512, 512, 0, 1023, "",
+                                    sampleRate);
+        }
+        return createEdfPlus(signals, startTime);
+    }
+
+    /**
+     * Creates an EDF+ header for the given EEG signals, adding an annotations signal, with
+     * data records of one second
+     *
+     * @param signals   the EEG signals
+     * @param startTime when recording started
+     * @return the header, with an unknown number of data records
+     */
+    public static EdfHeader createEdfPlus(Signal[] signals, Date startTime)
+    {
+        Signal[] all = new Signal[signals.length + 1];
+        System.arraycopy(signals, 0, all, 0, signals.length);
+        all[signals.length] = new Signal(ANNOTATIONS_LABEL, "", "", -1, 1, -32768, 32767, "",
+                                         EdfWriter.ANNOTATION_SAMPLES);
+        String date = new SimpleDateFormat("dd-MMM-yyyy", Locale.US).format(startTime).toUpperCase(Locale.US);
+        return new EdfHeader("X X X X", "Startdate " + date + " X X Brainathlon", startTime, "EDF+C", -1, 1, all);
+    }
+
+    /**
+     * Returns the header as the bytes written at the start of an EDF file
+     *
+     * @return the header record
+     */
+    public byte[] toBytes()
+    {
+        StringBuilder header = new StringBuilder(getHeaderSize());
+        append(header, "0", 8);
+        append(header, patient, 80);
+        append(header, recording, 80);
+        append(header, new SimpleDateFormat("dd.MM.yy", Locale.US).format(startTime), 8);
+        append(header, new SimpleDateFormat("HH.mm.ss", Locale.US).format(startTime), 8);
+        append(header, String.valueOf(getHeaderSize()), 8);
+        append(header, reserved, 44);
+        append(header, String.valueOf(dataRecordCount), 8);
+        append(header, formatNumber(dataRecordDuration), 8);
+        append(header, String.valueOf(signals.length), 4);
+        for (Signal signal : signals)
+        {
+            append(header, signal.label, 16);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, signal.transducer, 80);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, signal.physicalDimension, 8);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, formatNumber(signal.physicalMinimum), 8);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, formatNumber(signal.physicalMaximum), 8);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, String.valueOf(signal.digitalMinimum), 8);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, String.valueOf(signal.digitalMaximum), 8);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, signal.prefiltering, 80);
+        }
+        for (Signal signal : signals)
+        {
+            append(header, String.valueOf(signal.samplesPerRecord), 8);
+        }
+        for (int s = 0; s < signals.length; s++)
+        {
+            append(header, "", 32);
+        }
+        try
+        {
+            return header.toString().getBytes(ASCII);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("US-ASCII is always supported");
+        }
+    }
+
+    public String getPatient()
+    {
+        return patient;
+    }
+
+    public String getRecording()
+    {
+        return recording;
+    }
+
+    public Date getStartTime()
+    {
+        return new Date(startTime.getTime());
+    }
+
+    /**
+     * Returns true if this is an EDF+ header, rather than plain EDF
+     *
+     * @return true for EDF+
+     */
+    public boolean isEdfPlus()
+    {
+        return reserved.startsWith("EDF+");
+    }
+
+    /**
+     * Returns the number of data records in the file
+     *
+     * @return the number of data records, or -1 if it isn't known
+     */
+    public long getDataRecordCount()
+    {
+        return dataRecordCount;
+    }
+
+    void setDataRecordCount(long dataRecordCount)
+    {
+        this.dataRecordCount = dataRecordCount;
+    }
+
+    /**
+     * Returns the length of each data record
+     *
+     * @return the duration in seconds
+     */
+    public double getDataRecordDuration()
+    {
+        return dataRecordDuration;
+    }
+
+    /**
+     * Returns the size of the header record, and the offset of the first data record
+     *
+     * @return the header size in bytes
+     */
+    public int getHeaderSize()
+    {
+        return RECORD_SIZE * (signals.length + 1);
+    }
+
+    /**
+     * Returns the size of each data record
+     *
+     * @return the data record size in bytes
+     */
+    public int getDataRecordSize()
+    {
+        int samples = 0;
+        for (Signal signal : signals)
+        {
+            samples += signal.samplesPerRecord;
+        }
+        return samples * 2;
+    }
+
+    /**
+     * Returns every signal in the data records, including any annotations signal
+     *
+     * @return the signals
+     */
+    public Signal[] getSignals()
+    {
+        return signals.clone();
+    }
+
+    private static void append(StringBuilder header, String value, int width)
+    {
+        String field = (value.length() > width) ? value.substring(0, width) : value;
+        header.append(field);
+        for (int i = field.length(); i < width; i++)
+        {
+            header.append(' ');
+        }
+    }
+
+    /**
+     * Formats a number in at most 8 characters, without a needless decimal point
+     */
+    private static String formatNumber(double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < 1e7)
+        {
+            return String.valueOf((long) value);
+        }
+        String text = String.valueOf(value);
+        return (text.length() > 8) ? text.substring(0, 8) : text;
+    }
+
+
+    /**
+     * One signal in an EDF file
+     */
+    public static class Signal
+    {
+        private final String label;
+        private final String transducer;
+        private final String physicalDimension;
+        private final double physicalMinimum;
+        private final double physicalMaximum;
+        private final int digitalMinimum;
+        private final int digitalMaximum;
+        private final String prefiltering;
+        private final int samplesPerRecord;
+
+        /**
+         * Creates a new signal description
+         *
+         * @param label             the signal's label, such as "EEG Fpz-Cz"
+         * @param transducer        the type of sensor
+         * @param physicalDimension the units of the physical values, such as "uV"
+         * @param physicalMinimum   the physical value of the digital minimum
+         * @param physicalMaximum   the physical value of the digital maximum
+         * @param digitalMinimum    the smallest digital value
+         * @param digitalMaximum    the largest digital value
+         * @param prefiltering      any filtering done before sampling
+         * @param samplesPerRecord  the number of samples of this signal in each data record
+         */
+        public Signal(String label, String transducer, String physicalDimension, double physicalMinimum,
+                      double physicalMaximum, int digitalMinimum, int digitalMaximum, String prefiltering,
+                      int samplesPerRecord)
+        {
+            this.label = label;
+            this.transducer = transducer;
+            this.physicalDimension = physicalDimension;
+            this.physicalMinimum = physicalMinimum;
+            this.physicalMaximum = physicalMaximum;
+            this.digitalMinimum = digitalMinimum;
+            this.digitalMaximum = digitalMaximum;
+            this.prefiltering = prefiltering;
+            this.samplesPerRecord = samplesPerRecord;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+
+        public String getTransducer()
+        {
+            return transducer;
+        }
+
+        public String getPhysicalDimension()
+        {
+            return physicalDimension;
+        }
+
+        public double getPhysicalMinimum()
+        {
+            return physicalMinimum;
+        }
+
+        public double getPhysicalMaximum()
+        {
+            return physicalMaximum;
+        }
+
+        public int getDigitalMinimum()
+        {
+            return digitalMinimum;
+        }
+
+        public int getDigitalMaximum()
+        {
+            return digitalMaximum;
+        }
+
+        public String getPrefiltering()
+        {
+            return prefiltering;
+        }
+
+        public int getSamplesPerRecord()
+        {
+            return samplesPerRecord;
+        }
+
+        /**
+         * Returns true if this is the EDF+ annotations signal
+         *
+         * @return true for annotations
+         */
+        public boolean isAnnotations()
+        {
+            return ANNOTATIONS_LABEL.equals(label);
+        }
+
+        /**
+         * Returns the amount added to a digital value to give the sample delivered by the
+         * <code>IRawSampleGenerator</code>, which like NeuroServer shifts the digital range
+         * to start at the physical minimum rather than scaling it
+         *
+         * @return the physical minimum less the digital minimum
+         */
+        public int getSignalDifference()
+        {
+            return (int) Math.round(physicalMinimum) - digitalMinimum;
+        }
+    }
+
+
+    /**
+     * Reads the fixed-width fields of a header in turn
+     */
+    private static class Fields
+    {
+        private final byte[] bytes;
+        private int position;
+
+        Fields(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        String next(int width) throws IOException
+        {
+            if (position + width > bytes.length)
+            {
+                throw new IOException("EDF header ends in the middle of a field");
+            }
+            String field = new String(bytes, position, width, ASCII).trim();
+            position += width;
+            return field;
+        }
+
+        long nextLong(int width) throws IOException
+        {
+            String field = next(width);
+            try
+            {
+                return Long.parseLong(field);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Invalid number in EDF header: \"" + field + "\"");
+            }
+        }
+
+        double nextDouble(int width) throws IOException
+        {
+            String field = next(width);
+            try
+            {
+                return Double.parseDouble(field);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Invalid number in EDF header: \"" + field + "\"");
+            }
+        }
+    }
+}
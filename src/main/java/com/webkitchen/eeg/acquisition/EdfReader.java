@@ -0,0 +1,304 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Reads the EEG signals of an EDF or EDF+ file one sample at a time, from any point in
+ * the file, such as a file written by <code>EEGAcquisitionController.startEdfRecording</code>
+ * or by other EEG software.
+ * <P>
+ * Data records are read from the <code>FileChannel</code> into a direct buffer several at
+ * a time, by default 16, and each sample is picked out of its signal in place.  Since
+ * every data record is the same size, seeking just works out which record holds the
+ * sample.  The EDF+ annotations signal is skipped.
+ * <P>
+ * Samples are returned in the units delivered in <code>RawSample</code>s: each digital
+ * value plus its signal's physical minimum less its digital minimum, as NeuroServer does.
+ * Every EEG signal must have the same number of samples in each data record, as they
+ * do in files written from the pipeline.  An <code>EdfReader</code> is not thread-safe.
+ *
+ * @author Amy Palke
+ * @see EdfHeader
+ * @see EEGAcquisitionController#startEdfReplay
+ */
+public class EdfReader
+{
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final EdfHeader header;
+    private final int recordsPerBatch;
+
+    // The EEG signals' offsets within a data record, in bytes, and signal differences
+    private final int[] signalOffset;
+    private final int[] signalDifference;
+    private final int samplesPerRecord;
+    private final int recordSize;
+    private final long recordCount;
+
+    private final ByteBuffer batch;
+    // The first record in our batch, and the number of records in it
+    private long batchStart;
+    private int batchRecords;
+    private long position;
+
+    /**
+     * Opens an EDF file, reading 16 data records at a time
+     *
+     * @param file the EDF file
+     * @throws IOException if the file can't be read, or isn't an EDF file we can read
+     */
+    public EdfReader(File file) throws IOException
+    {
+        this(file, 16);
+    }
+
+    /**
+     * Opens an EDF file
+     *
+     * @param file            the EDF file
+     * @param recordsPerBatch the number of data records read at once
+     * @throws IOException if the file can't be read, or isn't an EDF file we can read
+     */
+    public EdfReader(File file, int recordsPerBatch) throws IOException
+    {
+        if (recordsPerBatch <= 0)
+        {
+            throw new IllegalArgumentException("Batch size must be positive: " + recordsPerBatch);
+        }
+        this.file = file;
+        this.recordsPerBatch = recordsPerBatch;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        try
+        {
+            header = readHeader();
+            EdfHeader.Signal[] signals = header.getSignals();
+            int eegSignals = 0;
+            for (EdfHeader.Signal signal : signals)
+            {
+                if (!signal.isAnnotations())
+                {
+                    eegSignals++;
+                }
+            }
+            signalOffset = new int[eegSignals];
+            signalDifference = new int[eegSignals];
+            int samples = -1;
+            int offset = 0;
+            int eeg = 0;
+            for (EdfHeader.Signal signal : signals)
+            {
+                if (!signal.isAnnotations())
+                {
+                    if (samples >= 0 && signal.getSamplesPerRecord() != samples)
+                    {
+                        throw new IOException(file + " has signals with different sample rates");
+                    }
+                    samples = signal.getSamplesPerRecord();
+                    signalOffset[eeg] = offset;
+                    signalDifference[eeg] = signal.getSignalDifference();
+                    eeg++;
+                }
+                offset += signal.getSamplesPerRecord() * 2;
+            }
+            if (samples <= 0)
+            {
+                throw new IOException(file + " has no EEG signals");
+            }
+            samplesPerRecord = samples;
+            recordSize = header.getDataRecordSize();
+
+            // A file that wasn't finished has an unknown record count, so count them
+            long complete = (channel.size() - header.getHeaderSize()) / recordSize;
+            recordCount = (header.getDataRecordCount() < 0) ? complete
+                          : Math.min(header.getDataRecordCount(), complete);
+            batch = ByteBuffer.allocateDirect(recordSize * recordsPerBatch).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the file's header
+     *
+     * @return the header
+     */
+    public EdfHeader getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Returns the number of samples per second on each channel
+     *
+     * @return the sample rate
+     */
+    public int getSampleRate()
+    {
+        return (int) Math.round(samplesPerRecord / header.getDataRecordDuration());
+    }
+
+    /**
+     * Returns the number of EEG channels, not counting any annotations signal
+     *
+     * @return the channel count
+     */
+    public int getChannelCount()
+    {
+        return signalOffset.length;
+    }
+
+    /**
+     * Returns the number of samples on each channel
+     *
+     * @return the sample count
+     */
+    public long getSampleCount()
+    {
+        return recordCount * samplesPerRecord;
+    }
+
+    /**
+     * Returns the length of the recording
+     *
+     * @return the duration in seconds
+     */
+    public double getDuration()
+    {
+        return recordCount * header.getDataRecordDuration();
+    }
+
+    /**
+     * Returns the number of the sample that <code>next</code> will read
+     *
+     * @return the position, starting at 0
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves to the sample recorded at the given time since the start of the recording
+     *
+     * @param seconds the time since the start of the recording
+     */
+    public void seek(double seconds)
+    {
+        seekSample((long) Math.floor(seconds * samplesPerRecord / header.getDataRecordDuration()));
+    }
+
+    /**
+     * Moves to the given sample
+     *
+     * @param sample the number of the sample, starting at 0
+     */
+    public void seekSample(long sample)
+    {
+        if (sample < 0 || sample > getSampleCount())
+        {
+            throw new IllegalArgumentException("Sample " + sample + " is outside the recording, which has "
+                                               + getSampleCount() + " samples");
+        }
+        position = sample;
+    }
+
+    /**
+     * Reads the next sample of every channel, in signal order
+     *
+     * @param samples receives the samples, must have room for every channel
+     * @return false at the end of the recording
+     * @throws IOException if the file can't be read
+     */
+    public boolean next(int[] samples) throws IOException
+    {
+        if (position >= getSampleCount())
+        {
+            return false;
+        }
+        long record = position / samplesPerRecord;
+        if (record < batchStart || record >= batchStart + batchRecords)
+        {
+            readBatch(record);
+        }
+        int sampleOffset = ((int) (record - batchStart) * recordSize)
+                           + ((int) (position % samplesPerRecord) * 2);
+        for (int c = 0; c < signalOffset.length; c++)
+        {
+            samples[c] = batch.getShort(sampleOffset + signalOffset[c]) + signalDifference[c];
+        }
+        position++;
+        return true;
+    }
+
+    /**
+     * Closes the file
+     */
+    public void close()
+    {
+        try
+        {
+            randomAccessFile.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to close EDF file " + file);
+            e.printStackTrace();
+        }
+    }
+
+    private EdfHeader readHeader() throws IOException
+    {
+        ByteBuffer fixed = ByteBuffer.allocate(EdfHeader.RECORD_SIZE);
+        readFully(fixed, 0);
+        // The signal count is the last field of the fixed part
+        String signalCount = new String(fixed.array(), EdfHeader.RECORD_SIZE - 4, 4, "US-ASCII").trim();
+        int signals;
+        try
+        {
+            signals = Integer.parseInt(signalCount);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(file + " isn't an EDF file");
+        }
+        if (signals <= 0 || signals > 4096)
+        {
+            throw new IOException(file + " has an invalid signal count: " + signals);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(EdfHeader.RECORD_SIZE * (signals + 1));
+        readFully(bytes, 0);
+        return EdfHeader.parse(bytes.array());
+    }
+
+    private void readBatch(long record) throws IOException
+    {
+        batchStart = record;
+        batchRecords = (int) Math.min(recordsPerBatch, recordCount - record);
+        batch.clear();
+        batch.limit(batchRecords * recordSize);
+        readFully(batch, header.getHeaderSize() + (record * recordSize));
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+    }
+}
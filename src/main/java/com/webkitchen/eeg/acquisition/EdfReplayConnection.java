@@ -0,0 +1,188 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+
+/**
+ * Connection that replays the EEG signals of an EDF or EDF+ file, by turning each sample
+ * into the data line NeuroServer would have sent for it.  Lines are released on the
+ * schedule kept by <code>PacedConnection</code>, at the file's sample rate times the speed.
+ * <P>
+ * The line's values are the samples less the reader's signal difference, so the
+ * <code>RawSample</code>s delivered are the samples read by the <code>EdfReader</code>,
+ * whatever the file's digital range.  Packet numbers count samples from the start of the
+ * file.  Lines are formatted straight into the reader's buffer, without creating strings.
+ *
+ * @author Amy Palke
+ * @see EdfReader
+ * @see EEGAcquisitionController#startEdfReplay
+ */
+class EdfReplayConnection extends PacedConnection
+{
+    private final File recording;
+    private final boolean loop;
+    private final int readerSignalDifference;
+    private EdfReader reader;
+    private int[] samples;
+    private final LineFormatter line = new LineFormatter();
+
+    /**
+     * Creates a connection that replays an EDF file
+     *
+     * @param recording              the EDF file's name
+     * @param reader                 the open EDF file, which the connection closes
+     * @param speed                  how many times faster than real time to replay, or
+     *                               <code>UNTHROTTLED</code> to replay as fast as possible
+     * @param loop                   true to start again at the beginning when we reach the
+     *                               end, false to stop sending lines
+     * @param readerSignalDifference the amount the reader adds to each value in a line
+     */
+    EdfReplayConnection(File recording, EdfReader reader, double speed, boolean loop, int readerSignalDifference)
+    {
+        super(reader.getSampleRate(), speed);
+        this.recording = recording;
+        this.reader = reader;
+        this.loop = loop;
+        this.readerSignalDifference = readerSignalDifference;
+        this.samples = new int[reader.getChannelCount()];
+    }
+
+    /**
+     * The EDF file is opened when the connection is created
+     *
+     * @throws java.io.IOException if the file has no samples
+     * @throws java.net.UnknownHostException never
+     */
+    public void connect() throws IOException, UnknownHostException
+    {
+        if (reader.getSampleCount() == 0)
+        {
+            close();
+            throw new EOFException("No data in " + recording);
+        }
+    }
+
+    /**
+     * Returns the EDF file's header
+     *
+     * @return the header record
+     * @throws java.io.IOException never
+     */
+    public String getEDFHeader() throws IOException
+    {
+        return new String(reader.getHeader().toBytes(), "US-ASCII");
+    }
+
+    /**
+     * Format the next sample as a data line in the buffer.  Once we reach the end of the
+     * file, go back to the beginning if we're looping.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws IOException if the file can't be read
+     */
+    protected int readLine(byte[] buffer) throws IOException
+    {
+        long packetNumber = reader.getPosition();
+        reader.next(samples);
+        if (loop && reader.getPosition() == reader.getSampleCount())
+        {
+            reader.seekSample(0);
+        }
+
+        // "! 0 <packet> <channels> <value> ..."
+        line.reset(buffer);
+        line.put('!');
+        line.put(' ');
+        line.put('0');
+        line.put(' ');
+        line.put((int) packetNumber);
+        line.put(' ');
+        line.put(samples.length);
+        for (int c = 0; c < samples.length; c++)
+        {
+            line.put(' ');
+            line.put(samples[c] - readerSignalDifference);
+        }
+        return line.getLength();
+    }
+
+    /**
+     * Close the EDF file
+     */
+    public void close()
+    {
+        if (reader != null)
+        {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    protected boolean hasMoreLines()
+    {
+        return reader != null && reader.getPosition() < reader.getSampleCount();
+    }
+
+    protected String getRecordingName()
+    {
+        return recording.toString();
+    }
+
+
+    /**
+     * Writes characters and decimal integers into a line buffer, noting if it overflows
+     */
+    private static class LineFormatter
+    {
+        private byte[] buffer;
+        private int length;
+
+        void reset(byte[] buffer)
+        {
+            this.buffer = buffer;
+            length = 0;
+        }
+
+        void put(char c)
+        {
+            if (length < buffer.length)
+            {
+                buffer[length] = (byte) c;
+            }
+            length++;
+        }
+
+        void put(int value)
+        {
+            long remaining = value;
+            if (remaining < 0)
+            {
+                put('-');
+                remaining = -remaining;
+            }
+            int digits = 1;
+            for (long power = 10; power <= remaining; power *= 10)
+            {
+                digits++;
+            }
+            for (int i = digits - 1; i >= 0; i--)
+            {
+                if (length + i < buffer.length)
+                {
+                    buffer[length + i] = (byte) ('0' + (remaining % 10));
+                }
+                remaining /= 10;
+            }
+            length += digits;
+        }
+
+        int getLength()
+        {
+            return (length > buffer.length) ? -1 : length;
+        }
+    }
+}
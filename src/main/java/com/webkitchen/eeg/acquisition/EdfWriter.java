@@ -0,0 +1,381 @@
+package com.webkitchen.eeg.acquisition;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+
+/**
+ * Records every raw packet the reader receives to an EDF+ file, which can be read by
+ * other EEG software, or back into the pipeline with an <code>EdfReader</code>.  Like a
+ * <code>SessionRecorder</code>, the writer listens to the <code>NeuroServerReader</code>
+ * directly, so it records packets even when the dispatcher drops them.
+ * <P>
+ * EDF stores each data record signal by signal, so a second of samples is gathered before
+ * it can be written.  Data records are one second long, and are built in place in a
+ * direct buffer holding several of them, which is handed to the <code>FileChannel</code>
+ * in a single write when it is full - by default every 16 seconds.  Each record ends with
+ * the EDF+ annotations signal, holding the record's time-keeping annotation.
+ * <P>
+ * Samples are written as the device's digital values: the signal descriptions come from
+ * the device's EDF header if it has one for each channel, and otherwise from
+ * <code>EdfHeader.createDefault</code>.  The header is written when the first packet
+ * arrives, with an unknown number of data records, and the count is filled in when the
+ * writer is closed.  A partly-filled last record is padded with its last samples.
+ * Packets with a different number of channels than the first one are skipped.
+ *
+ * @author Amy Palke
+ * @see EdfReader
+ * @see EEGAcquisitionController#startEdfRecording
+ */
+class EdfWriter implements IPacketRecorder
+{
+    private static Logger logger = Logger.getLogger(EdfWriter.class);
+
+    /**
+     * The number of samples in each record's annotations signal, room for 32 characters
+     */
+    static final int ANNOTATION_SAMPLES = 16;
+    // Offset of the number of data records in the header
+    private static final int DATA_RECORD_COUNT_OFFSET = 236;
+
+    private final File file;
+    private final int sampleRate;
+    private final int recordsPerBatch;
+    private final EdfHeader deviceHeader;
+    private final FileChannel channel;
+
+    private EdfHeader header;
+    private int channelCount = -1;
+    private int[] signalDifference;
+    private int[] digitalMin;
+    private int[] digitalMax;
+    private int recordSize;
+    private ByteBuffer batch;
+    // The record being filled within the batch, and the number of samples in it
+    private int batchRecords;
+    private int recordSamples;
+    private long recordCount;
+    private long skippedPackets;
+    private boolean closed;
+
+    /**
+     * Creates a writer that writes a new EDF+ file, 16 data records at a time
+     *
+     * @param file         the file to write, replacing it if it exists
+     * @param sampleRate   the number of packets the device sends per second
+     * @param deviceHeader the device's EDF header, or null to describe the signals ourselves
+     * @throws IOException if the file can't be created
+     */
+    EdfWriter(File file, int sampleRate, EdfHeader deviceHeader) throws IOException
+    {
+        this(file, sampleRate, deviceHeader, 16);
+    }
+
+    /**
+     * Creates a writer that writes a new EDF+ file
+     *
+     * @param file            the file to write, replacing it if it exists
+     * @param sampleRate      the number of packets the device sends per second
+     * @param deviceHeader    the device's EDF header, or null to describe the signals ourselves
+     * @param recordsPerBatch the number of one-second data records written at once
+     * @throws IOException if the file can't be created
+     */
+    EdfWriter(File file, int sampleRate, EdfHeader deviceHeader, int recordsPerBatch) throws IOException
+    {
+        if (sampleRate <= 0 || recordsPerBatch <= 0)
+        {
+            throw new IllegalArgumentException("Sample rate and batch size must be positive");
+        }
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.deviceHeader = deviceHeader;
+        this.recordsPerBatch = recordsPerBatch;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * Adds the packet's samples to the current data record, and writes the batch of
+     * records when it's full.  Called by the reader thread.
+     *
+     * @param packet the latest EDF packet received by the reader
+     */
+    public synchronized void receivePacket(Packet packet)
+    {
+        if (closed)
+        {
+            return;
+        }
+        if (channelCount < 0)
+        {
+            startRecording(packet.getChannelCount());
+            if (closed)
+            {
+                return;
+            }
+        }
+        if (packet.getChannelCount() != channelCount)
+        {
+            if (skippedPackets++ == 0)
+            {
+                logger.warn("Skipping packets with " + packet.getChannelCount() + " channels, EDF file "
+                            + file + " has " + channelCount);
+            }
+            return;
+        }
+        putSamples(packet.getSamples());
+    }
+
+    /**
+     * Pads and writes any partly-filled data record, writes the batch, fills in the
+     * number of data records, and closes the file.  Packets received afterwards are ignored.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            if (channelCount < 0)
+            {
+                startRecording(0);
+            }
+            if (!closed)
+            {
+                if (recordSamples > 0)
+                {
+                    padRecord();
+                }
+                writeBatch();
+                ByteBuffer count = ByteBuffer.wrap(padded(String.valueOf(recordCount)));
+                while (count.hasRemaining())
+                {
+                    channel.write(count, DATA_RECORD_COUNT_OFFSET + count.position());
+                }
+            }
+            if (skippedPackets > 0)
+            {
+                logger.warn("Skipped " + skippedPackets + " packets with the wrong channel count in " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to finish EDF file " + file, e);
+        }
+        finally
+        {
+            closed = true;
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to close EDF file " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of complete data records written so far, or waiting in the batch
+     *
+     * @return the number of one-second data records
+     */
+    synchronized long getDataRecordCount()
+    {
+        return recordCount + batchRecords;
+    }
+
+    /**
+     * Returns the header we write, once the first packet has arrived
+     *
+     * @return the header, or null if no packets have arrived
+     */
+    synchronized EdfHeader getHeader()
+    {
+        return header;
+    }
+
+    private void startRecording(int channels)
+    {
+        channelCount = channels;
+        header = createHeader(channels);
+        EdfHeader.Signal[] signals = header.getSignals();
+        signalDifference = new int[channels];
+        digitalMin = new int[channels];
+        digitalMax = new int[channels];
+        for (int c = 0; c < channels; c++)
+        {
+            signalDifference[c] = signals[c].getSignalDifference();
+            // Clamp to the digital range, which must also fit in 16 bits
+            digitalMin[c] = Math.max(Short.MIN_VALUE, signals[c].getDigitalMinimum());
+            digitalMax[c] = Math.min(Short.MAX_VALUE, signals[c].getDigitalMaximum());
+        }
+        recordSize = header.getDataRecordSize();
+        batch = ByteBuffer.allocateDirect(recordSize * recordsPerBatch).order(ByteOrder.LITTLE_ENDIAN);
+        try
+        {
+            ByteBuffer bytes = ByteBuffer.wrap(header.toBytes());
+            while (bytes.hasRemaining())
+            {
+                channel.write(bytes);
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * Describes our signals with the device's header, if it has a signal for each channel,
+     * but with one-second data records at our sample rate
+     */
+    private EdfHeader createHeader(int channels)
+    {
+        Date now = new Date();
+        if (deviceHeader != null)
+        {
+            EdfHeader.Signal[] deviceSignals = deviceHeader.getSignals();
+            EdfHeader.Signal[] signals = new EdfHeader.Signal[channels];
+            int count = 0;
+            for (int s = 0; s < deviceSignals.length && count < channels; s++)
+            {
+                EdfHeader.Signal signal = deviceSignals[s];
+                if (!signal.isAnnotations())
+                {
+                    signals[count++] = new EdfHeader.Signal(signal.getLabel(), signal.getTransducer(),
+                                                            signal.getPhysicalDimension(),
+                                                            signal.getPhysicalMinimum(),
+                                                            signal.getPhysicalMaximum(),
+                                                            signal.getDigitalMinimum(),
+                                                            signal.getDigitalMaximum(),
+                                                            signal.getPrefiltering(), sampleRate);
+                }
+            }
+            if (count == channels)
+            {
+                return EdfHeader.createEdfPlus(signals, now);
+            }
+            logger.warn("Device header has " + count + " signals for " + channels + " channels, using defaults");
+        }
+        return EdfHeader.createDefault(channels, sampleRate, now);
+    }
+
+    private void putSamples(int[] samples)
+    {
+        // Each signal's samples are together, so sample i of channel c is at c * rate + i
+        int recordStart = batchRecords * recordSize;
+        for (int c = 0; c < channelCount; c++)
+        {
+            int digital = samples[c] - signalDifference[c];
+            digital = Math.max(digitalMin[c], Math.min(digitalMax[c], digital));
+            batch.putShort(recordStart + (((c * sampleRate) + recordSamples) * 2), (short) digital);
+        }
+        recordSamples++;
+        if (recordSamples == sampleRate)
+        {
+            finishRecord();
+        }
+    }
+
+    private void padRecord()
+    {
+        int recordStart = batchRecords * recordSize;
+        for (int c = 0; c < channelCount; c++)
+        {
+            int signalStart = recordStart + (c * sampleRate * 2);
+            short last = batch.getShort(signalStart + ((recordSamples - 1) * 2));
+            for (int i = recordSamples; i < sampleRate; i++)
+            {
+                batch.putShort(signalStart + (i * 2), last);
+            }
+        }
+        finishRecord();
+    }
+
+    /**
+     * Writes the record's time-keeping annotation, "+onset" and two separators, padded with
+     * zeros, and writes the batch if it's full
+     */
+    private void finishRecord()
+    {
+        int annotationStart = (batchRecords * recordSize) + (channelCount * sampleRate * 2);
+        String onset = "+" + (recordCount + batchRecords);
+        for (int i = 0; i < ANNOTATION_SAMPLES * 2; i++)
+        {
+            byte b = 0;
+            if (i < onset.length())
+            {
+                b = (byte) onset.charAt(i);
+            }
+            else if (i < onset.length() + 2)
+            {
+                b = 0x14;
+            }
+            batch.put(annotationStart + i, b);
+        }
+        recordSamples = 0;
+        batchRecords++;
+        if (batchRecords == recordsPerBatch)
+        {
+            try
+            {
+                writeBatch();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException
+    {
+        batch.position(0);
+        batch.limit(batchRecords * recordSize);
+        while (batch.hasRemaining())
+        {
+            channel.write(batch);
+        }
+        batch.clear();
+        recordCount += batchRecords;
+        batchRecords = 0;
+    }
+
+    private static byte[] padded(String value)
+    {
+        byte[] field = new byte[8];
+        for (int i = 0; i < field.length; i++)
+        {
+            field[i] = (byte) ((i < value.length()) ? value.charAt(i) : ' ');
+        }
+        return field;
+    }
+
+    /**
+     * Stops recording after a write fails, rather than reporting every later packet
+     */
+    private void fail(IOException e)
+    {
+        logger.error("Unable to write EDF file " + file + ", recording stopped", e);
+        closed = true;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+}
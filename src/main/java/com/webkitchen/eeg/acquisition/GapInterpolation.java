@@ -0,0 +1,39 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * Specifies how the samples of missing packets are filled in when a short gap is found in
+ * the packet sequence.  Gaps longer than the controller's maximum filled gap are never
+ * filled; the first sample after them is flagged instead, so listeners can start afresh.
+ *
+ * @author Amy Palke
+ * @see EEGAcquisitionController#setGapFilling
+ * @see PacketSequencer
+ */
+public final class GapInterpolation
+{
+    /**
+     * Fill each missing sample on a straight line between the samples either side of the gap
+     */
+    public static final GapInterpolation LINEAR = new GapInterpolation("Linear");
+    /**
+     * Repeat the last sample before the gap for each missing sample
+     */
+    public static final GapInterpolation HOLD = new GapInterpolation("Hold");
+    /**
+     * Never fill gaps, flag every gap, however short
+     */
+    public static final GapInterpolation NONE = new GapInterpolation("None");
+
+    private final String name;
+
+    private GapInterpolation(String name)
+    {
+        this.name = name;
+    }
+
+    public String toString()
+    {
+        return this.name;
+    }
+}
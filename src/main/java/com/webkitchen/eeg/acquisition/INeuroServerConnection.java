@@ -41,6 +41,14 @@ interface INeuroServerConnection
      */
     boolean hasNextLine();
 
+    /**
+     * Wait until more data is available, or the timeout expires
+     *
+     * @param timeoutMillis the longest time to wait, in milliseconds
+     * @return true if more data is available, false otherwise
+     */
+    boolean awaitNextLine(long timeoutMillis);
+
     /**
      * Retreive the next line of data
      *
@@ -48,6 +56,16 @@ interface INeuroServerConnection
      */
     String getNextLine() throws IOException;
 
+    /**
+     * Retreive the next line of data into the buffer, without creating a <code>String</code>.
+     * The line terminator is not copied into the buffer.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     *         (the rest of the line is discarded)
+     */
+    int getNextLine(byte[] buffer) throws IOException;
+
     /**
      * Close the socket connection
      */
@@ -0,0 +1,19 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * A packet listener that writes the packets it receives to a file, which must be closed
+ * to finish the file once recording is over
+ *
+ * @author Amy Palke
+ * @see SessionRecorder
+ * @see EdfWriter
+ */
+interface IPacketRecorder extends IPacketListener
+{
+    /**
+     * Writes any packets not yet written, finishes the file and closes it.  Packets
+     * received afterwards are ignored.
+     */
+    void close();
+}
@@ -0,0 +1,26 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.util.EventListener;
+
+
+/**
+ * Listener interface for receiving raw EEG samples in batches.  Rather than one call per
+ * packet, listeners receive a block of consecutive samples for each of their channels, so
+ * they can process them in tight loops over primitive arrays.  Classes must add themselves
+ * as listeners to the <code>IRawSampleGenerator</code> using its <code>addBatchListener</code>
+ * method.
+ *
+ * @author Amy Palke
+ * @see IRawSampleGenerator
+ * @see RawSampleBatch
+ */
+public interface IRawSampleBatchListener extends EventListener
+{
+    /**
+     * Receive the latest batch of raw EEG samples for a specific channel or set of
+     * channels
+     *
+     * @param batch the latest batch of raw EEG samples
+     */
+    public void receiveSamples(RawSampleBatch batch);
+}
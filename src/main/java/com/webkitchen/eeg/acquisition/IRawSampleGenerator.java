@@ -5,11 +5,14 @@ package com.webkitchen.eeg.acquisition;
  * Generates the raw EEG samples for a specific channel or channels.  Objects can add
  * themselves as listeners/observers to receive copies of all new samples on a
  * specific channel or set of channels.  Listeners must implement the <code>IRawSampleListener</code>
- * interface.
+ * interface.  Listeners that would rather process blocks of samples can register for
+ * batches instead, and implement the <code>IRawSampleBatchListener</code> interface.
  *
  * @author Amy Palke
  * @see IRawSampleListener
  * @see RawSample
+ * @see IRawSampleBatchListener
+ * @see RawSampleBatch
  */
 public interface IRawSampleGenerator
 {
@@ -30,6 +33,24 @@ public interface IRawSampleGenerator
      */
     public void removeSampleListener(IRawSampleListener listener);
 
+    /**
+     * Attach listener to receive batches of <code>RawSample</code> values for the specified
+     * channels.  The listener is notified each time <code>batchSize</code> packets have arrived.
+     *
+     * @param listener  the observer who wants to receive <code>RawSampleBatch</code>es
+     * @param channels  the channels to listen to
+     * @param batchSize the number of samples per channel in each batch
+     */
+    public void addBatchListener(IRawSampleBatchListener listener, int[] channels, int batchSize);
+
+    /**
+     * Remove batch listener from our notification list.  If the listener is listening to
+     * multiple channels, it will be removed from all of them.
+     *
+     * @param listener the observer to remove
+     */
+    public void removeBatchListener(IRawSampleBatchListener listener);
+
     /**
      * Remove all listeners from our notification list
      */
@@ -2,10 +2,10 @@ package com.webkitchen.eeg.acquisition;
 
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.StringTokenizer;
 
@@ -18,21 +18,25 @@ import java.util.StringTokenizer;
  */
 class NeuroServerConnection implements INeuroServerConnection
 {
-    // the single instance of NeuroServerConnection
-    private static NeuroServerConnection ourInstance = new NeuroServerConnection();
+    // The NeuroServer address and device number we read from
+    private final NeuroServerEndpoint endpoint;
 
     // The socket connection to NeuroServer
     private Socket socket;
 
     // The input and output streams to/from NeuroServer
-    private BufferedReader input;
+    private InputStream input;
     private DataOutputStream output;
 
-    // NeuroServer uses port 8336 on localhost, TCPTrace uses 8335 proxy
-    private static final int TCP_TRACE_PORT = 8335;
-//    private static final int PORT = TCP_TRACE_PORT; // comment out for direct access/in to debug
-    private static final int PORT = 8336;          // comment out to debug/in for direct access
-    private static final String HOST = "localhost";
+    // We do our own input buffering, so data lines can be read without creating Strings
+    private static final int READ_BUFFER_SIZE = 8192;
+    private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPosition;
+    private int readLimit;
+
+    // NeuroServer uses port 8336 on localhost by default, TCPTrace uses 8335 proxy -
+    // create the endpoint with TCP_TRACE_PORT to debug
+    static final int TCP_TRACE_PORT = 8335;
 
     // NeuroServer response codes
     private static final int ok = 200;
@@ -52,21 +56,13 @@ class NeuroServerConnection implements INeuroServerConnection
 
 
     /**
-     * Private constructor - access instance through getInstance() factory method
-     */
-    private NeuroServerConnection()
-    {
-        // private to ensure singleton status
-    }
-
-    /**
-     * Factory method for return the single instance of NeuroServerConnection
+     * Creates a new connection to an EEG device
      *
-     * @return the single instance of NeuroServerConnection
+     * @param endpoint the NeuroServer address and device number
      */
-    public static NeuroServerConnection getInstance()
+    NeuroServerConnection(NeuroServerEndpoint endpoint)
     {
-        return ourInstance;
+        this.endpoint = endpoint;
     }
 
     /**
@@ -77,15 +73,17 @@ class NeuroServerConnection implements INeuroServerConnection
      */
     public void connect() throws IOException
     {
-        socket = new Socket(HOST, PORT);
-        input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        socket = new Socket(endpoint.getHost(), endpoint.getPort());
+        input = socket.getInputStream();
+        readPosition = 0;
+        readLimit = 0;
         output = new DataOutputStream(socket.getOutputStream());
 
         // Enter "display" role and check that the reply code is 200 OK
         sendCommand("display", ok);
 
         isConnected = true;
-        logger.debug("Connected");
+        logger.debug("Connected to " + endpoint);
     }
 
     /**
@@ -98,7 +96,7 @@ class NeuroServerConnection implements INeuroServerConnection
     {
         checkConnection();
         // Send getheader command, and check that the reply code is 200 OK
-        sendCommand("getheader", ok);
+        sendCommand("getheader " + endpoint.getDeviceId(), ok);
         String reply = getNextLine();
         logger.debug("Header:" + CRLF + reply);
         return reply;
@@ -113,7 +111,7 @@ class NeuroServerConnection implements INeuroServerConnection
     {
         checkConnection();
         // Send watch command, and check that the reply code is 200 OK
-        sendCommand("watch", ok);
+        sendCommand("watch " + endpoint.getDeviceId(), ok);
         logger.debug("Watching");
     }
 
@@ -128,17 +126,41 @@ class NeuroServerConnection implements INeuroServerConnection
         boolean result = false;
         try
         {
-            result = input.ready();
+            result = isReady();
         }
         catch (IOException ignore)
         {
             // Print out the error, and continue on (returning false)
-            logger.error("Error calling input.ready() " + ignore);
+            logger.error("Error checking for input " + ignore);
             ignore.printStackTrace();
         }
         return result;
     }
 
+    /**
+     * Wait until more data is available, or the timeout expires.  A blocking socket
+     * can't tell us when data arrives, so we just sleep for the timeout if none is ready.
+     *
+     * @param timeoutMillis the longest time to wait, in milliseconds
+     * @return true if more data is available, false otherwise
+     */
+    public boolean awaitNextLine(long timeoutMillis)
+    {
+        if (hasNextLine())
+        {
+            return true;
+        }
+        try
+        {
+            Thread.sleep(timeoutMillis);
+        }
+        catch (InterruptedException ignore)
+        {
+            // ignore interruptions
+        }
+        return hasNextLine();
+    }
+
     /**
      * Retreive the next line of data
      *
@@ -149,9 +171,9 @@ class NeuroServerConnection implements INeuroServerConnection
     {
         checkConnection();
         String reply;
-        if (input.ready())
+        if (isReady())
         {
-            reply = input.readLine();
+            reply = readLine();
             logger.debug(reply);
         }
         else
@@ -162,6 +184,37 @@ class NeuroServerConnection implements INeuroServerConnection
         return reply;
     }
 
+    /**
+     * Retreive the next line of data into the buffer, without creating a <code>String</code>.
+     * The line terminator is not copied into the buffer.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws java.io.IOException if we are unable to communicate with the EEG device
+     */
+    public int getNextLine(byte[] buffer) throws IOException
+    {
+        checkConnection();
+        int length = 0;
+        boolean overflow = false;
+        int b;
+        while ((b = read()) != '\n')
+        {
+            if (b != '\r')
+            {
+                if (length < buffer.length)
+                {
+                    buffer[length++] = (byte) b;
+                }
+                else
+                {
+                    overflow = true;
+                }
+            }
+        }
+        return overflow ? -1 : length;
+    }
+
     /**
      * Close the socket connection
      */
@@ -182,8 +235,61 @@ class NeuroServerConnection implements INeuroServerConnection
             {
                 logger.warn("Unable to close connection: " + e);
             }
-            logger.info("Closed connection");
+            logger.info("Closed connection to " + endpoint);
+        }
+    }
+
+    /**
+     * Check if there is buffered or unread input
+     *
+     * @return true if a read will not block
+     * @throws IOException if we are unable to communicate with the EEG device
+     */
+    private boolean isReady() throws IOException
+    {
+        return readPosition < readLimit || input.available() > 0;
+    }
+
+    /**
+     * Read the next byte, refilling our buffer from the socket when it is empty
+     *
+     * @return the next byte
+     * @throws IOException if we are unable to communicate with the EEG device,
+     *                     or NeuroServer closed the connection
+     */
+    private int read() throws IOException
+    {
+        if (readPosition >= readLimit)
+        {
+            readLimit = input.read(readBuffer, 0, readBuffer.length);
+            readPosition = 0;
+            if (readLimit <= 0)
+            {
+                readLimit = 0;
+                throw new EOFException("NeuroServer closed the connection");
+            }
+        }
+        return readBuffer[readPosition++];
+    }
+
+    /**
+     * Read one line of text, such as a command reply or the EDF header
+     *
+     * @return the line, without the line terminator
+     * @throws IOException if we are unable to communicate with the EEG device
+     */
+    private String readLine() throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = read()) != '\n')
+        {
+            if (b != '\r')
+            {
+                line.append((char) (b & 0xff));
+            }
         }
+        return line.toString();
     }
 
     private void checkConnection()
@@ -205,7 +311,7 @@ class NeuroServerConnection implements INeuroServerConnection
         logger.debug("Sending: " + command);
         // Write command (terminated with CRLF) to server
         output.writeBytes(command + CRLF);
-        String reply = input.readLine();
+        String reply = readLine();
         logger.debug("Server said: " + reply);
     }
 
@@ -223,7 +329,7 @@ class NeuroServerConnection implements INeuroServerConnection
         logger.debug("Sending: " + command + ", expecting: " + responseCode);
         // Write command (terminated with CRLF) to server and read reply from server
         output.writeBytes(command + CRLF);
-        String reply = input.readLine();
+        String reply = readLine();
 
         // Check that the server's reply code is the same as responseCode.
         // If not, throw an IOException
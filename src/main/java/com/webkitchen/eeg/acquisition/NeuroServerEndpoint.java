@@ -0,0 +1,111 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * Identifies one EEG device served by a NeuroServer - the host and port NeuroServer
+ * listens on, and the number of the device within that NeuroServer.
+ * <code>NeuroServerEndpoint</code>s are immutable, and can be used as map keys.
+ *
+ * @author Amy Palke
+ * @see EEGAcquisitionController
+ */
+public final class NeuroServerEndpoint
+{
+    /**
+     * The host NeuroServer runs on by default
+     */
+    public static final String DEFAULT_HOST = "localhost";
+    /**
+     * The port NeuroServer listens on by default
+     */
+    public static final int DEFAULT_PORT = 8336;
+    /**
+     * The first device attached to a NeuroServer
+     */
+    public static final int DEFAULT_DEVICE_ID = 0;
+
+    /**
+     * The first device of a NeuroServer running on this machine
+     */
+    public static final NeuroServerEndpoint DEFAULT = new NeuroServerEndpoint(DEFAULT_HOST, DEFAULT_PORT, DEFAULT_DEVICE_ID);
+
+    private final String host;
+    private final int port;
+    private final int deviceId;
+
+    /**
+     * Creates a new <code>NeuroServerEndpoint</code>
+     *
+     * @param host     the NeuroServer host name
+     * @param port     the NeuroServer port
+     * @param deviceId the number of the device within the NeuroServer, starting at 0
+     */
+    public NeuroServerEndpoint(String host, int port, int deviceId)
+    {
+        if (host == null)
+        {
+            throw new IllegalArgumentException("host must not be null");
+        }
+        this.host = host;
+        this.port = port;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Returns the NeuroServer host name
+     *
+     * @return the NeuroServer host name
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Returns the NeuroServer port
+     *
+     * @return the NeuroServer port
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Returns the number of the device within the NeuroServer
+     *
+     * @return the device number, starting at 0
+     */
+    public int getDeviceId()
+    {
+        return deviceId;
+    }
+
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof NeuroServerEndpoint)) return false;
+
+        final NeuroServerEndpoint endpoint = (NeuroServerEndpoint) o;
+
+        if (port != endpoint.port) return false;
+        if (deviceId != endpoint.deviceId) return false;
+        if (!host.equals(endpoint.host)) return false;
+
+        return true;
+    }
+
+    public int hashCode()
+    {
+        int result;
+        result = host.hashCode();
+        result = 29 * result + port;
+        result = 29 * result + deviceId;
+        return result;
+    }
+
+    public String toString()
+    {
+        return host + ":" + port + "/" + deviceId;
+    }
+}
@@ -1,56 +1,137 @@
 package com.webkitchen.eeg.acquisition;
 
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
  * Observable reader that communicates with NeuroServer to retrieve EDF packets.  Objects can
  * add themselves as listeners/observers to receive copies of all new packets retrieved.
+ * <P>
+ * We count the packets we read, the lines that weren't valid packets, and, for each
+ * channel, the samples at the limits of the device's range, which is where a loose or
+ * dead electrode's signal ends up.  These counts are kept in the <code>MetricRegistry</code>
+ * under <code>acquisition.</code> and our device's endpoint.
  *
  * @author Amy Palke
  * @see NeuroServerConnection
- * @see DebuggingConnection
+ * @see NioNeuroServerConnection
+ * @see ReplayConnection
  * @see IPacketListener
  * @see Packet
  */
 class NeuroServerReader extends Thread
 {
+    private static Logger logger = Logger.getLogger(NeuroServerReader.class);
+
     private INeuroServerConnection connection;
-    // Our listener list must be synchronized since listeners will be added and deleted
-    // by the main thread, but notification happens in the reader thread.
-    private List<IPacketListener> listeners = Collections.synchronizedList(new ArrayList<IPacketListener>());
+    private volatile EdfHeader header;
+    // Our listener list must be thread-safe since listeners will be added and deleted
+    // by the main thread, but notification happens in the reader thread.  Copy-on-write
+    // lets us iterate without copying the list for every packet.
+    private List<IPacketListener> listeners = new CopyOnWriteArrayList<IPacketListener>();
     private int sleepDuration = 10;
-    private boolean reading;
+    private volatile boolean reading;
+
+    private static final int PHYSICAL_MIN = -512;   // physical max = 512
+    private static final int DIGITAL_MIN = 0;       // digital max = 1023
+    private static final int DIGITAL_MAX = 1023;
+    /**
+     * The amount we add to each value in a data line to give the sample
+     */
+    static final int SIGNAL_DIFFERENCE = PHYSICAL_MIN - DIGITAL_MIN;
+
+    // Data lines are decoded straight from our line buffer into a single reused Packet,
+    // so reading creates no garbage.  "! 0 " + packet + count + 16 samples fits easily.
+    private static final int MAX_LINE_LENGTH = 1024;
+    private byte[] lineBuffer = new byte[MAX_LINE_LENGTH];
+    private PacketParser parser = new PacketParser(SIGNAL_DIFFERENCE);
+    private Packet packet = new Packet();
+
+    private final String metricPrefix;
+    private final Counter packetsRead;
+    private final Counter invalidPackets;
+    // The count of railed samples for each channel, added to as channels appear
+    private Counter[] railedSamples = new Counter[0];
+    private volatile long lastArrival = LatencyTracer.UNSTAMPED;
+
+    /**
+     * Creates a new reader thread for an EEG device
+     *
+     * @param endpoint the EEG device we will read, used to name our thread and metrics
+     */
+    NeuroServerReader(NeuroServerEndpoint endpoint)
+    {
+        super("NeuroServer reader " + endpoint);
+        metricPrefix = "acquisition." + endpoint + ".";
+        MetricRegistry registry = MetricRegistry.getInstance();
+        packetsRead = registry.counter(metricPrefix + "packets.read", "Packets read from NeuroServer");
+        invalidPackets = registry.counter(metricPrefix + "packets.invalid", "Lines that weren't valid packets");
+    }
 
-    private int physicalMin = -512;   // physical max = 512
-    private int digitalMin = 0;       // digital max = 1023
-    private int signalDifference = physicalMin - digitalMin;
+    /**
+     * Returns the time the last packet arrived
+     *
+     * @return the <code>System.nanoTime</code> the last packet arrived, or
+     *         <code>LatencyTracer.UNSTAMPED</code> if no packet has arrived yet
+     */
+    long getLastArrival()
+    {
+        return lastArrival;
+    }
 
     /**
      * Beginning reading any incoming data packets
      *
-     * @param debugMode true to read from a file for debugging, false to read from the EEG device
+     * @param connection the connection to read from
      * @throws IOException if we are unable to connect to the EEG device
      */
-    public void startReading(boolean debugMode) throws IOException
+    public void startReading(INeuroServerConnection connection) throws IOException
+    {
+        this.connection = connection;
+        connection.connect();
+        readHeader();
+        connection.startWatch();
+        reading = true;
+    }
+
+    /**
+     * Returns the device's EDF header, read when we started reading
+     *
+     * @return the header, or null if the connection has none, or it couldn't be read
+     */
+    EdfHeader getEdfHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Asks the connection for the device's EDF header.  Without a header we can still read
+     * samples, so a header that can't be read is only logged.
+     */
+    private void readHeader()
     {
-        // Read from static file when in debug mode, from EEG machine when not in debugMode
-        if (debugMode)
+        header = null;
+        try
         {
-            connection = DebuggingConnection.getInstance();
+            String text = connection.getEDFHeader();
+            if (text != null && text.length() > 0)
+            {
+                header = EdfHeader.parse(text);
+            }
         }
-        else
+        catch (IOException e)
         {
-            connection = NeuroServerConnection.getInstance();
+            logger.warn("Unable to read the EDF header, continuing without it", e);
         }
-
-        connection.connect();
-        connection.startWatch();
-        reading = true;
     }
 
     /**
@@ -66,26 +147,14 @@ class NeuroServerReader extends Thread
      */
     public void run()
     {
-        // Loop while in reading mode, checking for packets
+        // Loop while in reading mode, waiting for packets.  The connection decides how to wait,
+        // so a selector-driven connection wakes us as soon as a packet arrives
         while (reading)
         {
-            // Read all lines in the buffer
-            while (connection.hasNextLine() && reading)
+            if (connection.awaitNextLine(sleepDuration) && reading)
             {
                 notifyPacketListeners();
             }
-
-            try
-            {
-                if (reading)
-                {
-                    Thread.sleep(sleepDuration);
-                }
-            }
-            catch (InterruptedException ignore)
-            {
-                // ignore interruptions
-            }
         }
         connection.close();
     }
@@ -132,15 +201,20 @@ class NeuroServerReader extends Thread
             try
             {
                 Packet packet = getNext();
-                // Note: This method is called by the eeg reader thread so we'll make an
-                //  array copy to iterate to protect against concurrent modification errors
-                //  if the listener list is changed by the main thread
-                IPacketListener[] listenerCopy = listeners.toArray(new IPacketListener[0]);
-                for (IPacketListener listener : listenerCopy)
+                // Note: This method is called by the eeg reader thread.  Our copy-on-write
+                //  list iterates over a snapshot, so changes made by the main thread
+                //  can't cause concurrent modification errors
+                for (IPacketListener listener : listeners)
                 {
                     listener.receivePacket(packet);
                 }
             }
+            catch (EOFException e)
+            {
+                // The connection is gone, there will be no more packets
+                logger.warn("Stopped reading: " + e.getMessage());
+                reading = false;
+            }
             catch (IOException e)
             {
                 System.out.println("Unable to read the next packet");
@@ -150,29 +224,57 @@ class NeuroServerReader extends Thread
     }
 
     /**
-     * Read the data from our connection and package it into a <code>Packet</code> object
+     * Read the data from our connection and decode it into our reusable <code>Packet</code> object,
+     * stamped with the time it arrived
      *
      * @return the next raw data packet
-     * @throws IOException if we are unable to connect to the EEG device
+     * @throws IOException if we are unable to connect to the EEG device, or the data is not
+     *                     a valid packet
      */
     private Packet getNext() throws IOException
     {
-        String data = connection.getNextLine();
-        StringTokenizer tokenizer = new StringTokenizer(data);
-        // skip over first 2 tokens "!" & "0"
-        tokenizer.nextToken();
-        tokenizer.nextToken();
-        int packetNumber = Integer.parseInt(tokenizer.nextToken());
-        int channelCount = Integer.parseInt(tokenizer.nextToken());
-        int samples[] = new int[channelCount];
-        // add each rawSample to our array of samples
-        for (int i = 0; i < channelCount; i++)
+        // The line is waiting for us, so this is when the packet arrived
+        long arrived = System.nanoTime();
+        int length = connection.getNextLine(lineBuffer);
+        if (length < 0 || !parser.parse(lineBuffer, 0, length, packet))
         {
-            // Account for difference in physical and digital signal
-            int sample = Integer.parseInt(tokenizer.nextToken()) + signalDifference;
-            samples[i] = sample;
+            invalidPackets.increment();
+            throw new IOException("Unable to parse packet data");
+        }
+        packet.setTimestamp(arrived);
+        lastArrival = arrived;
+        packetsRead.increment();
+        countRailedSamples(packet);
+        return packet;
+    }
+
+    /**
+     * Counts the samples on each channel that are at the limits of the device's range
+     *
+     * @param packet the packet just read
+     */
+    private void countRailedSamples(Packet packet)
+    {
+        int[] samples = packet.getSamples();
+        if (samples.length > railedSamples.length)
+        {
+            Counter[] counters = Arrays.copyOf(railedSamples, samples.length);
+            for (int i = railedSamples.length; i < counters.length; i++)
+            {
+                counters[i] = MetricRegistry.getInstance().counter(
+                        metricPrefix + "channel" + (i + 1) + ".railed",
+                        "Samples at the limit of the device's range, from a loose or dead electrode");
+            }
+            railedSamples = counters;
+        }
+        for (int i = 0; i < samples.length; i++)
+        {
+            int sample = samples[i];
+            if (sample == DIGITAL_MIN + SIGNAL_DIFFERENCE || sample == DIGITAL_MAX + SIGNAL_DIFFERENCE)
+            {
+                railedSamples[i].increment();
+            }
         }
-        return new Packet(packetNumber, channelCount, samples);
     }
 
 }
@@ -0,0 +1,167 @@
+package com.webkitchen.eeg.acquisition;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A single selector thread that reads data for any number of
+ * <code>NioNeuroServerConnection</code>s.  The thread sleeps in <code>select</code> until
+ * one of the NeuroServer sockets has bytes for us, then hands them to the connection,
+ * which wakes up its reader.
+ *
+ * @author Amy Palke
+ * @see NioNeuroServerConnection
+ */
+class NeuroServerSelector implements Runnable
+{
+    // the single instance of NeuroServerSelector
+    private static final NeuroServerSelector INSTANCE = new NeuroServerSelector();
+
+    private volatile Selector selector;
+    private Thread thread;
+
+    // Registrations and read resumes are requested by other threads, but
+    // must be applied by the selector thread
+    private final Queue<NioNeuroServerConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioNeuroServerConnection>();
+    private final Queue<SelectionKey> pendingResumes = new ConcurrentLinkedQueue<SelectionKey>();
+
+    // Log file for debugging
+    private static Logger logger = Logger.getLogger(NeuroServerSelector.class);
+
+    /**
+     * Private constructor - access instance through getInstance() factory method
+     */
+    private NeuroServerSelector()
+    {
+        // private to ensure singleton status
+    }
+
+    /**
+     * Factory method for return the single instance of NeuroServerSelector
+     *
+     * @return the single instance of NeuroServerSelector
+     */
+    static NeuroServerSelector getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Start watching the connection's channel for incoming data.  The channel
+     * must already be in non-blocking mode.
+     *
+     * @param connection the connection to watch
+     * @throws IOException if we are unable to open the selector
+     */
+    synchronized void register(NioNeuroServerConnection connection) throws IOException
+    {
+        if (thread == null)
+        {
+            selector = Selector.open();
+            thread = new Thread(this, "NeuroServer selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        pendingRegistrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Start reading from a connection again, after it was paused because its buffer was full
+     *
+     * @param key the connection's selection key
+     */
+    void resume(SelectionKey key)
+    {
+        pendingResumes.add(key);
+        selector.wakeup();
+    }
+
+    /**
+     * Wait for data on any of our connections, and pass it along
+     */
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                selector.select();
+                applyPendingChanges();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try
+                    {
+                        if (key.isValid() && key.isReadable())
+                        {
+                            NioNeuroServerConnection connection = (NioNeuroServerConnection) key.attachment();
+                            if (!connection.readAvailable())
+                            {
+                                // The connection's buffer is full, stop reading until it catches up
+                                key.interestOps(0);
+                            }
+                        }
+                    }
+                    catch (CancelledKeyException ignore)
+                    {
+                        // the connection was closed while we were reading
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Give up on this connection, but keep serving our other connections
+                        NioNeuroServerConnection connection = (NioNeuroServerConnection) key.attachment();
+                        logger.error("Unexpected error reading NeuroServer data", e);
+                        connection.lost("Unexpected error reading NeuroServer data: " + e);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // Keep serving our other connections
+                logger.error("Error selecting NeuroServer data: " + e);
+            }
+        }
+    }
+
+    private void applyPendingChanges()
+    {
+        NioNeuroServerConnection connection;
+        while ((connection = pendingRegistrations.poll()) != null)
+        {
+            try
+            {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.setSelectionKey(key);
+            }
+            catch (ClosedChannelException e)
+            {
+                logger.warn("Connection closed before it could be watched");
+            }
+        }
+        SelectionKey key;
+        while ((key = pendingResumes.poll()) != null)
+        {
+            try
+            {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            catch (CancelledKeyException ignore)
+            {
+                // the connection was closed while it was paused
+            }
+        }
+    }
+}
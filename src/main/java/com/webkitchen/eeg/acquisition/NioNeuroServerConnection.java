@@ -0,0 +1,519 @@
+package com.webkitchen.eeg.acquisition;
+
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.StringTokenizer;
+
+
+/**
+ * NioNeuroServerConnection connects to NeuroServer's socket with a non-blocking
+ * <code>SocketChannel</code> to collect TCP wrapped EDF packets.
+ * <P>
+ * Commands are sent and answered in blocking mode.  Once we start watching, the channel
+ * is handed to the shared <code>NeuroServerSelector</code>, whose single thread reads
+ * incoming bytes for every connection into their buffers.  Readers wait on the connection
+ * and are woken as soon as a complete line arrives, rather than polling.
+ * <P>
+ * If NeuroServer closes the connection, or reading from it fails, waiting readers are
+ * woken, and once they have taken the lines already buffered, <code>getNextLine</code>
+ * throws an <code>EOFException</code>.
+ *
+ * @author Amy Palke
+ * @see NeuroServerSelector
+ * @see NeuroServerReader
+ */
+class NioNeuroServerConnection implements INeuroServerConnection
+{
+    private final NeuroServerEndpoint endpoint;
+
+    // The channel connected to NeuroServer
+    private SocketChannel channel;
+    // Set by the selector thread, read by the reader thread
+    private volatile SelectionKey selectionKey;
+
+    // Bytes read from NeuroServer that haven't been consumed yet are data[start..end),
+    // and we've already checked data[start..scan) for a line feed
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final byte[] data = new byte[BUFFER_SIZE];
+    private final ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+    private int start;
+    private int end;
+    private int scan;
+
+    // True if the selector stopped reading for us because our buffer was full
+    private boolean paused;
+
+    // Why the connection was lost while watching, or null if it wasn't
+    private volatile String lostReason;
+
+    // NeuroServer response codes
+    private static final int ok = 200;
+
+    // Internal error code
+    private static final int internalError = -1;
+
+    // Carriage return & line feed for terminating each NeuroServer command
+    private static final String CRLF = "\r\n";
+
+    // Are we currently connected to NeuroServer
+    private volatile boolean isConnected = false;
+
+    // Log file for debugging
+    private static Logger logger = Logger.getLogger(NioNeuroServerConnection.class);
+
+    // How much we read, and how often NeuroServer goes away, for operators
+    private final Counter bytesRead;
+    private final Counter connectionsLost;
+
+
+    /**
+     * Creates a new connection to an EEG device
+     *
+     * @param endpoint the NeuroServer address and device number
+     */
+    NioNeuroServerConnection(NeuroServerEndpoint endpoint)
+    {
+        this.endpoint = endpoint;
+        String prefix = "acquisition." + endpoint + ".";
+        bytesRead = MetricRegistry.getInstance().counter(prefix + "bytes.read", "Bytes read from NeuroServer");
+        connectionsLost = MetricRegistry.getInstance().counter(prefix + "connections.lost",
+                                                               "Connections closed or broken while watching");
+    }
+
+    /**
+     * Open the socket connection
+     *
+     * @throws java.io.IOException if we are unable to create a connection to the
+     *                             EEG device
+     */
+    public void connect() throws IOException
+    {
+        channel = SocketChannel.open(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()));
+        channel.socket().setTcpNoDelay(true);
+        synchronized (this)
+        {
+            start = 0;
+            end = 0;
+            scan = 0;
+            paused = false;
+            lostReason = null;
+        }
+
+        // Enter "display" role and check that the reply code is 200 OK
+        sendCommand("display", ok);
+
+        isConnected = true;
+        logger.debug("Connected to " + endpoint);
+    }
+
+    /**
+     * Retreive the EDF header record
+     *
+     * @return the EDF header record
+     * @throws java.io.IOException if we are unable to communicate with the EEG device
+     */
+    public String getEDFHeader() throws IOException
+    {
+        checkConnection();
+        if (selectionKey != null)
+        {
+            throw new IllegalStateException("Can't request the header while watching");
+        }
+        // Send getheader command, and check that the reply code is 200 OK
+        sendCommand("getheader " + endpoint.getDeviceId(), ok);
+        String reply = readLineBlocking();
+        logger.debug("Header:" + CRLF + reply);
+        return reply;
+    }
+
+    /**
+     * Begin watching for data.  From now on our selector thread reads the data.
+     *
+     * @throws java.io.IOException if we are unable to communicate with the EEG device
+     */
+    public void startWatch() throws IOException
+    {
+        checkConnection();
+        // Send watch command, and check that the reply code is 200 OK
+        sendCommand("watch " + endpoint.getDeviceId(), ok);
+        channel.configureBlocking(false);
+        NeuroServerSelector.getInstance().register(this);
+        logger.debug("Watching " + endpoint);
+    }
+
+    /**
+     * Check if more data is available
+     *
+     * @return true if a complete line is available, false otherwise
+     */
+    public boolean hasNextLine()
+    {
+        checkConnection();
+        synchronized (this)
+        {
+            return hasLine();
+        }
+    }
+
+    /**
+     * Wait until a complete line has arrived, or the timeout expires.
+     * Our selector thread wakes us as soon as data arrives, or the connection is lost.
+     *
+     * @param timeoutMillis the longest time to wait, in milliseconds
+     * @return true if a complete line is available, or the connection has been lost and
+     *         <code>getNextLine</code> will throw, false otherwise
+     */
+    public boolean awaitNextLine(long timeoutMillis)
+    {
+        checkConnection();
+        synchronized (this)
+        {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (!hasLine() && lostReason == null && remaining > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException ignore)
+                {
+                    // ignore interruptions
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return hasLine() || lostReason != null;
+        }
+    }
+
+    /**
+     * Retreive the next line of data
+     *
+     * @return the next line of data
+     * @throws java.io.IOException if no complete line is available
+     */
+    public synchronized String getNextLine() throws IOException
+    {
+        byte[] line = new byte[hasLine() ? scan - start : 0];
+        int length = getNextLine(line);
+        return new String(line, 0, length, "US-ASCII");
+    }
+
+    /**
+     * Retreive the next line of data into the buffer, without creating a <code>String</code>.
+     * The line terminator is not copied into the buffer.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws EOFException        if the connection was lost, and every line has been taken
+     * @throws java.io.IOException if no complete line is available
+     */
+    public int getNextLine(byte[] buffer) throws IOException
+    {
+        checkConnection();
+        boolean resume = false;
+        int length;
+        synchronized (this)
+        {
+            if (!hasLine() && lostReason != null)
+            {
+                throw new EOFException(lostReason);
+            }
+            if (!hasLine())
+            {
+                logger.warn("Input isn't ready");
+                throw new IOException("Input isn't ready");
+            }
+            length = takeLine(buffer);
+            // Once the reader has caught up, let the selector read for us again
+            if (paused && (end - start) < BUFFER_SIZE / 2)
+            {
+                paused = false;
+                resume = true;
+            }
+        }
+        if (resume)
+        {
+            NeuroServerSelector.getInstance().resume(selectionKey);
+        }
+        return length;
+    }
+
+    /**
+     * Close the socket connection
+     */
+    public void close()
+    {
+        if (isConnected)
+        {
+            isConnected = false;
+            try
+            {
+                // Don't look for a reply, since we could have unread EDF packets in our buffer,
+                // and there's no one to reply if the connection was lost
+                if (lostReason == null)
+                {
+                    writeCommand("close");
+                }
+                // Closing the channel also removes it from our selector
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to close connection: " + e);
+            }
+            logger.info("Closed connection to " + endpoint);
+        }
+    }
+
+    /**
+     * Called by the selector thread when our channel has data.  Reads everything
+     * available into our buffer and wakes up any waiting reader.
+     *
+     * @return false if our buffer is full and the selector should stop reading for us
+     */
+    boolean readAvailable()
+    {
+        synchronized (this)
+        {
+            try
+            {
+                compact();
+                dataBuffer.limit(BUFFER_SIZE);
+                dataBuffer.position(end);
+                int count = channel.read(dataBuffer);
+                if (count < 0)
+                {
+                    logger.warn("NeuroServer at " + endpoint + " closed the connection");
+                    lost("NeuroServer at " + endpoint + " closed the connection");
+                }
+                else
+                {
+                    bytesRead.add(count);
+                }
+                end = dataBuffer.position();
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to read from NeuroServer at " + endpoint + ": " + e);
+                lost("Unable to read from NeuroServer at " + endpoint + ": " + e);
+            }
+
+            if (end == BUFFER_SIZE && start == 0)
+            {
+                if (hasLine())
+                {
+                    paused = true;
+                }
+                else
+                {
+                    // A full buffer without a line feed can't be NeuroServer data, drop it
+                    logger.warn("Discarding " + end + " bytes without a line feed");
+                    start = 0;
+                    end = 0;
+                    scan = 0;
+                }
+            }
+            notifyAll();
+            return !paused;
+        }
+    }
+
+    /**
+     * Called by the selector thread when our connection can no longer be read.  Stops the
+     * selector reading for us, and wakes any waiting reader, whose <code>getNextLine</code>
+     * will throw once it has taken the lines already buffered.
+     *
+     * @param reason why the connection was lost
+     */
+    synchronized void lost(String reason)
+    {
+        if (lostReason == null)
+        {
+            lostReason = reason;
+            connectionsLost.increment();
+        }
+        SelectionKey key = selectionKey;
+        if (key != null)
+        {
+            key.cancel();
+        }
+        notifyAll();
+    }
+
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey)
+    {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Returns true if data[start..end) contains a line feed.  Must hold our lock.
+     */
+    private boolean hasLine()
+    {
+        while (scan < end)
+        {
+            if (data[scan] == '\n')
+            {
+                return true;
+            }
+            scan++;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the line at data[start..scan] into the buffer, dropping the line
+     * terminator, and consumes it.  Must hold our lock, and hasLine() must be true.
+     */
+    private int takeLine(byte[] buffer)
+    {
+        int length = 0;
+        boolean overflow = false;
+        for (int i = start; i < scan; i++)
+        {
+            byte b = data[i];
+            if (b != '\r')
+            {
+                if (length < buffer.length)
+                {
+                    buffer[length++] = b;
+                }
+                else
+                {
+                    overflow = true;
+                }
+            }
+        }
+        start = scan + 1;
+        scan = start;
+        return overflow ? -1 : length;
+    }
+
+    /**
+     * Moves unconsumed bytes to the front of our buffer.  Must hold our lock.
+     */
+    private void compact()
+    {
+        if (start > 0)
+        {
+            System.arraycopy(data, start, data, 0, end - start);
+            end -= start;
+            scan -= start;
+            start = 0;
+        }
+    }
+
+    /**
+     * Reads a line while the channel is still in blocking mode, before we start watching
+     */
+    private String readLineBlocking() throws IOException
+    {
+        synchronized (this)
+        {
+            while (!hasLine())
+            {
+                compact();
+                if (end == BUFFER_SIZE)
+                {
+                    throw new IOException("Reply from NeuroServer is too long");
+                }
+                dataBuffer.limit(BUFFER_SIZE);
+                dataBuffer.position(end);
+                if (channel.read(dataBuffer) < 0)
+                {
+                    throw new EOFException("NeuroServer closed the connection");
+                }
+                end = dataBuffer.position();
+            }
+            byte[] line = new byte[scan - start];
+            int length = takeLine(line);
+            return new String(line, 0, length, "US-ASCII");
+        }
+    }
+
+    private void checkConnection()
+    {
+        if (!isConnected)
+        {
+            throw new IllegalStateException("Not connected.");
+        }
+    }
+
+    /**
+     * Write a command (terminated with CRLF) to the server
+     *
+     * @param command the command to send
+     * @throws java.io.IOException if we are unable to communicate with the EEG device
+     */
+    private void writeCommand(String command) throws IOException
+    {
+        logger.debug("Sending: " + command);
+        ByteBuffer bytes = ByteBuffer.wrap((command + CRLF).getBytes("US-ASCII"));
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Send a command to the server, and check that the response code
+     * is correct
+     *
+     * @param command      the command to send
+     * @param responseCode the response we expect
+     * @return the server's reply
+     * @throws java.io.IOException if we are unable to communicate with the EEG device
+     */
+    private String sendCommand(String command, int responseCode) throws IOException
+    {
+        writeCommand(command);
+        String reply = readLineBlocking();
+
+        // Check that the server's reply code is the same as responseCode.
+        // If not, throw an IOException
+        int replyCode = parseReply(reply);
+        if (replyCode != responseCode)
+        {
+            logger.warn("Error, server says: " + reply);
+            throw new IOException("Error, server says: " + reply);
+        }
+        logger.debug("Server said: " + reply);
+        return reply;
+    }
+
+    /**
+     * Parse the reply line from the server
+     *
+     * @param reply the reply string
+     * @return the response code
+     */
+    private int parseReply(String reply)
+    {
+        int i;
+        StringTokenizer tokenizer = new StringTokenizer(reply);
+        try
+        {
+            i = Integer.parseInt(tokenizer.nextToken());
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("First token in reply was not an int: " + reply);
+            i = internalError;
+        }
+        return i;
+    }
+}
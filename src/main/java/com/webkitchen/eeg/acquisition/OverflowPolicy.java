@@ -0,0 +1,41 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * Specifies what happens when the reader thread produces packets faster than the
+ * analysis listeners consume them, and the packet buffer between them is full.
+ *
+ * @author Amy Palke
+ * @see EEGAcquisitionController#setOverflowPolicy
+ * @see PacketRingBuffer
+ */
+public final class OverflowPolicy
+{
+    /**
+     * Discard the oldest buffered packet to make room for the new one, so listeners
+     * always catch up to the latest EEG data
+     */
+    public static final OverflowPolicy DROP_OLDEST = new OverflowPolicy("Drop oldest");
+    /**
+     * Make the reader thread wait until there is room, so no packets are lost.
+     * NeuroServer data backs up in the socket while the reader waits.
+     */
+    public static final OverflowPolicy BLOCK = new OverflowPolicy("Block");
+    /**
+     * Discard the new packet, count it, and periodically report the number of
+     * discarded packets to the log
+     */
+    public static final OverflowPolicy COUNT_AND_REPORT = new OverflowPolicy("Count and report");
+
+    private final String name;
+
+    private OverflowPolicy(String name)
+    {
+        this.name = name;
+    }
+
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -0,0 +1,202 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Base class for connections that replay recorded samples, releasing one line per sample
+ * on the schedule NeuroServer would have sent them.
+ * <P>
+ * Lines are released on a schedule worked out from the sample rate and a speed
+ * multiplier: each line is due at a fixed time after the first, so waiting never adds up
+ * to drift.  We park until just before a line is due, then yield until it is, since
+ * parking alone can overshoot by more than a sample period.  A speed of 2 replays twice
+ * as fast as the recording was made, and <code>UNTHROTTLED</code> replays as fast as the
+ * listeners can keep up.
+ * <P>
+ * If the listeners are stalled for more than a second, we carry on from the current
+ * time rather than releasing all the overdue lines at once.
+ *
+ * @author Amy Palke
+ * @see ReplayConnection
+ * @see EdfReplayConnection
+ */
+abstract class PacedConnection implements INeuroServerConnection
+{
+    /**
+     * Speed that replays lines as fast as they are read, with no pacing
+     */
+    static final double UNTHROTTLED = 0;
+
+    // Park until this close to a line's time, then yield
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // Restart the schedule if we fall this far behind it
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    // Time between lines, or 0 if unthrottled
+    private final double lineNanos;
+
+    // When the schedule started, and the number of lines released since
+    private long scheduleStart;
+    private long linesSinceStart;
+    private byte[] stringBuffer;
+
+    /**
+     * Creates a connection that releases lines at the given rate
+     *
+     * @param sampleRate the number of lines per second when the recording was made
+     * @param speed      how many times faster than real time to replay, or
+     *                   <code>UNTHROTTLED</code> to replay as fast as possible
+     */
+    PacedConnection(int sampleRate, double speed)
+    {
+        if (sampleRate <= 0)
+        {
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        }
+        if (speed < 0 || Double.isNaN(speed))
+        {
+            throw new IllegalArgumentException("Speed can't be negative: " + speed);
+        }
+        this.lineNanos = (speed == UNTHROTTLED || Double.isInfinite(speed))
+                         ? 0 : TimeUnit.SECONDS.toNanos(1) / (sampleRate * speed);
+    }
+
+    /**
+     * Start the replay schedule
+     *
+     * @throws java.io.IOException never
+     */
+    public void startWatch() throws IOException
+    {
+        restartSchedule(System.nanoTime());
+    }
+
+    /**
+     * Check if the next line is due
+     *
+     * @return true if the next line is due, false otherwise
+     */
+    public boolean hasNextLine()
+    {
+        return hasMoreLines() && (lineNanos == 0 || System.nanoTime() - nextLineTime() >= 0);
+    }
+
+    /**
+     * Wait until the next line is due, or the timeout expires
+     *
+     * @param timeoutMillis the longest time to wait, in milliseconds
+     * @return true if the next line is due, false otherwise
+     */
+    public boolean awaitNextLine(long timeoutMillis)
+    {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!hasMoreLines())
+        {
+            LockSupport.parkNanos(timeout);
+            return false;
+        }
+        if (lineNanos == 0)
+        {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        long due = nextLineTime();
+        if (now - due > MAX_LAG_NANOS)
+        {
+            restartSchedule(now);
+            return true;
+        }
+        if (due - now > timeout)
+        {
+            LockSupport.parkNanos(timeout);
+            return false;
+        }
+        if (due - now > SPIN_NANOS)
+        {
+            LockSupport.parkNanos(due - now - SPIN_NANOS);
+        }
+        while (System.nanoTime() - due < 0)
+        {
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Retreive the next line of data
+     *
+     * @return the next line of data
+     * @throws EOFException if we have replayed the whole recording
+     */
+    public String getNextLine() throws IOException
+    {
+        if (stringBuffer == null)
+        {
+            stringBuffer = new byte[MAX_LINE_LENGTH];
+        }
+        int length = getNextLine(stringBuffer);
+        if (length < 0)
+        {
+            throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes in " + getRecordingName());
+        }
+        return new String(stringBuffer, 0, length, "US-ASCII");
+    }
+
+    /**
+     * Retreive the next line of data into the buffer
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws EOFException if we have replayed the whole recording
+     */
+    public int getNextLine(byte[] buffer) throws IOException
+    {
+        if (!hasMoreLines())
+        {
+            throw new EOFException("End of " + getRecordingName());
+        }
+        linesSinceStart++;
+        return readLine(buffer);
+    }
+
+    /**
+     * Returns true if there are lines left to replay, whether or not they are due yet
+     *
+     * @return true if there are more lines
+     */
+    protected abstract boolean hasMoreLines();
+
+    /**
+     * Reads the next line into the buffer, without its line terminator.  Only called when
+     * <code>hasMoreLines</code> is true.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws IOException if the recording can't be read
+     */
+    protected abstract int readLine(byte[] buffer) throws IOException;
+
+    /**
+     * Returns the name of the recording, for error messages
+     *
+     * @return the recording's name
+     */
+    protected abstract String getRecordingName();
+
+    private long nextLineTime()
+    {
+        return scheduleStart + (long) (linesSinceStart * lineNanos);
+    }
+
+    private void restartSchedule(long now)
+    {
+        scheduleStart = now;
+        linesSinceStart = 0;
+    }
+}
@@ -1,19 +1,28 @@
 package com.webkitchen.eeg.acquisition;
 
+import com.webkitchen.eeg.latency.LatencyTracer;
 
 /**
  * Represents one packet of EDF data, containing samples for all active channels.
- * Packets are immutable; their data cannot be changed after they have been created.
+ * To avoid creating garbage for every sample, the <code>NeuroServerReader</code> reuses
+ * a single <code>Packet</code>, so listeners must copy any values they want to keep
+ * after <code>receivePacket</code> returns.
+ * <P>
+ * The reader stamps each packet with the <code>System.nanoTime</code> it arrived, so the
+ * <code>LatencyTracer</code> can measure how long its samples take to reach each stage.
  *
  * @author Amy Palke
  * @see NeuroServerReader
  * @see IPacketListener
+ * @see com.webkitchen.eeg.latency.LatencyTracer
  */
 final class Packet
 {
-    private final int packetNumber;
-    private final int channelCount;
-    private final int[] samples;
+    private int packetNumber;
+    private int channelCount;
+    private int[] samples;
+    private long timestamp = LatencyTracer.UNSTAMPED;
+    private boolean afterGap;
 
     /**
      * Creates a new <code>Packet</code> containing packet sequence number, channel count, and
@@ -30,6 +39,75 @@ final class Packet
         this.samples = samples;
     }
 
+    /**
+     * Creates a new, empty <code>Packet</code> that will be filled in by a <code>PacketParser</code>
+     */
+    Packet()
+    {
+        this(0, 0, new int[0]);
+    }
+
+    /**
+     * Prepares the packet to receive new values.  The sample array is reused unless
+     * the channel count has changed.
+     *
+     * @param packetNumber the packet sequence number
+     * @param channelCount the number of active channels
+     * @return the array that the caller should fill with samples for each active channel
+     */
+    int[] reset(int packetNumber, int channelCount)
+    {
+        this.packetNumber = packetNumber;
+        if (channelCount != samples.length)
+        {
+            samples = new int[channelCount];
+        }
+        this.channelCount = channelCount;
+        return samples;
+    }
+
+    /**
+     * Stamps the packet with the time it arrived
+     *
+     * @param timestamp the <code>System.nanoTime</code> the packet arrived
+     */
+    void setTimestamp(long timestamp)
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the time the packet arrived
+     *
+     * @return the <code>System.nanoTime</code> the packet arrived, or
+     *         <code>LatencyTracer.UNSTAMPED</code> if it wasn't stamped
+     */
+    long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Flags the packet as the first after a gap in the packet sequence that wasn't filled
+     *
+     * @param afterGap true if packets are missing before this one
+     */
+    void setAfterGap(boolean afterGap)
+    {
+        this.afterGap = afterGap;
+    }
+
+    /**
+     * Returns true if packets are missing before this one, and weren't filled in
+     *
+     * @return true if this is the first packet after a gap
+     * @see PacketSequencer
+     */
+    boolean isAfterGap()
+    {
+        return afterGap;
+    }
+
     /**
      * Returns the packet sequence number
      *
@@ -0,0 +1,158 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * Decodes NeuroServer's ASCII data lines ("! 0 &lt;packet&gt; &lt;channels&gt; &lt;sample&gt; ...")
+ * directly from a byte buffer into a reusable <code>Packet</code>.
+ * <P>
+ * Unlike splitting a <code>String</code> with a <code>StringTokenizer</code>, the parser
+ * creates no objects while decoding, so the reader thread doesn't produce garbage for
+ * every packet.  A parser is not thread-safe, it should only be used by one reader.
+ *
+ * @author Amy Palke
+ * @see NeuroServerReader
+ * @see Packet
+ */
+final class PacketParser
+{
+    private static final byte SPACE = ' ';
+    private static final byte TAB = '\t';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    // Difference between the physical and digital signal, added to each sample
+    private final int signalDifference;
+
+    // Parse position within the current line
+    private byte[] line;
+    private int position;
+    private int limit;
+
+    /**
+     * Creates a new <code>PacketParser</code>
+     *
+     * @param signalDifference the amount added to each sample to account for the difference
+     *                         in physical and digital signal
+     */
+    PacketParser(int signalDifference)
+    {
+        this.signalDifference = signalDifference;
+    }
+
+    /**
+     * Decodes one data line into the packet.  The packet's sample array is only
+     * reallocated if the channel count changes.
+     *
+     * @param buffer the bytes holding the data line
+     * @param offset the offset of the first byte of the line
+     * @param length the number of bytes in the line, the line terminator is optional
+     * @param packet the packet that will receive the decoded values
+     * @return true if the line was decoded, false if it was not a valid data line
+     */
+    boolean parse(byte[] buffer, int offset, int length, Packet packet)
+    {
+        line = buffer;
+        position = offset;
+        limit = offset + length;
+
+        // skip over first 2 tokens "!" & "0"
+        if (!skipToken() || !skipToken())
+        {
+            return false;
+        }
+        int packetNumber = nextInt();
+        int channelCount = nextInt();
+        if (packetNumber == Integer.MIN_VALUE || channelCount == Integer.MIN_VALUE || channelCount < 0)
+        {
+            return false;
+        }
+
+        int[] samples = packet.reset(packetNumber, channelCount);
+        // add each rawSample to our array of samples
+        for (int i = 0; i < channelCount; i++)
+        {
+            int sample = nextInt();
+            if (sample == Integer.MIN_VALUE)
+            {
+                return false;
+            }
+            // Account for difference in physical and digital signal
+            samples[i] = sample + signalDifference;
+        }
+        return true;
+    }
+
+    /**
+     * Skips any separators, then one token
+     *
+     * @return true if a token was found, false if we reached the end of the line
+     */
+    private boolean skipToken()
+    {
+        skipSeparators();
+        if (position >= limit)
+        {
+            return false;
+        }
+        while (position < limit && !isSeparator(line[position]))
+        {
+            position++;
+        }
+        return true;
+    }
+
+    /**
+     * Skips any separators, then decodes one (optionally signed) decimal integer
+     *
+     * @return the integer, or Integer.MIN_VALUE if the next token isn't an integer
+     */
+    private int nextInt()
+    {
+        skipSeparators();
+        if (position >= limit)
+        {
+            return Integer.MIN_VALUE;
+        }
+        boolean negative = false;
+        if (line[position] == '-')
+        {
+            negative = true;
+            position++;
+        }
+        else if (line[position] == '+')
+        {
+            position++;
+        }
+
+        int start = position;
+        int value = 0;
+        while (position < limit && !isSeparator(line[position]))
+        {
+            int digit = line[position] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                return Integer.MIN_VALUE;
+            }
+            value = (value * 10) + digit;
+            position++;
+        }
+        if (position == start)
+        {
+            return Integer.MIN_VALUE;
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipSeparators()
+    {
+        while (position < limit && isSeparator(line[position]))
+        {
+            position++;
+        }
+    }
+
+    private static boolean isSeparator(byte b)
+    {
+        return b == SPACE || b == TAB || b == CR || b == LF;
+    }
+}
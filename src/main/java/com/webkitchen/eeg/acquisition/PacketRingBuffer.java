@@ -0,0 +1,270 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A lock-free, bounded ring buffer that passes packets from exactly one producer thread
+ * (the reader) to exactly one consumer thread (the dispatcher).
+ * <P>
+ * Packets are copied into preallocated primitive arrays, one slot per packet, so neither
+ * side creates garbage.  The producer publishes a slot by advancing <code>head</code>,
+ * the consumer releases it by advancing <code>tail</code>.  When the buffer is full, the
+ * <code>OverflowPolicy</code> decides whether the producer waits, discards the new packet,
+ * or discards the oldest one.  To discard the oldest packet the producer advances
+ * <code>tail</code> itself, so the consumer claims each slot with a compare-and-set after
+ * copying it, and skips the copy if the producer got there first.
+ *
+ * @author Amy Palke
+ * @see AsyncPacketDispatcher
+ * @see OverflowPolicy
+ */
+final class PacketRingBuffer
+{
+    /**
+     * The default number of packets buffered, 4 seconds of data at 256 samples per second
+     */
+    static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The default maximum number of channels in a packet
+     */
+    static final int DEFAULT_MAX_CHANNELS = 32;
+
+    // How long a blocked producer sleeps before checking for room again
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = 100000L;
+
+    private final OverflowPolicy overflowPolicy;
+    private final int capacity;
+    private final int mask;
+    private final int maxChannels;
+
+    // Slot i holds a packet number, a channel count, a timestamp, and
+    // samples[i * maxChannels .. i * maxChannels + channelCount)
+    private final int[] packetNumbers;
+    private final int[] channelCounts;
+    private final long[] timestamps;
+    private final int[] samples;
+
+    // head is the next slot to write, and is only advanced by the producer.
+    // tail is the next slot to read, and is advanced by the consumer, or by the
+    // producer when dropping the oldest packet.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Occupancy metrics, each with a single writer
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int highWaterMark;
+
+    // The consumer parks while the buffer is empty, and the producer unparks it
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new <code>PacketRingBuffer</code>
+     *
+     * @param overflowPolicy what to do when the buffer is full
+     * @param capacity       the number of packets to buffer, must be a power of 2
+     * @param maxChannels    the largest number of channels in a packet
+     */
+    PacketRingBuffer(OverflowPolicy overflowPolicy, int capacity, int maxChannels)
+    {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+        {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        if (overflowPolicy == null)
+        {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxChannels = maxChannels;
+        packetNumbers = new int[capacity];
+        channelCounts = new int[capacity];
+        timestamps = new long[capacity];
+        samples = new int[capacity * maxChannels];
+    }
+
+    /**
+     * Copies the packet into the buffer.  Must only be called by the producer thread.
+     *
+     * @param packet the packet to copy, which the caller may reuse as soon as we return
+     * @return true if the packet was buffered, false if it was discarded
+     */
+    boolean offer(Packet packet)
+    {
+        offeredCount.lazySet(offeredCount.get() + 1);
+        int channelCount = packet.getChannelCount();
+        if (channelCount > maxChannels)
+        {
+            countDropped();
+            return false;
+        }
+
+        long h = head.get();
+        while (h - tail.get() >= capacity)
+        {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST)
+            {
+                long t = tail.get();
+                if (h - t >= capacity && tail.compareAndSet(t, t + 1))
+                {
+                    countDropped();
+                }
+            }
+            else if (overflowPolicy == OverflowPolicy.BLOCK && !closed)
+            {
+                LockSupport.parkNanos(this, BLOCKED_PRODUCER_PARK_NANOS);
+            }
+            else
+            {
+                countDropped();
+                return false;
+            }
+        }
+
+        int slot = (int) h & mask;
+        packetNumbers[slot] = packet.getPacketNumber();
+        channelCounts[slot] = channelCount;
+        timestamps[slot] = packet.getTimestamp();
+        System.arraycopy(packet.getSamples(), 0, samples, slot * maxChannels, channelCount);
+        // The volatile write publishes the slot, and must come before we read consumerWaiting
+        // so the consumer can't miss our wake up
+        head.set(h + 1);
+
+        int occupancy = (int) (h + 1 - tail.get());
+        if (occupancy > highWaterMark)
+        {
+            highWaterMark = occupancy;
+        }
+        if (consumerWaiting)
+        {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the oldest buffered packet into the packet, if there is one.
+     * Must only be called by the consumer thread.
+     *
+     * @param packet the packet that will receive the buffered values
+     * @return true if a packet was copied, false if the buffer was empty
+     */
+    boolean poll(Packet packet)
+    {
+        while (true)
+        {
+            long t = tail.get();
+            if (t >= head.get())
+            {
+                return false;
+            }
+            int slot = (int) t & mask;
+            // The producer may overwrite this slot while we copy it if it drops the oldest
+            // packet, but then our compare-and-set fails and we discard the copy
+            int channelCount = Math.min(channelCounts[slot], maxChannels);
+            int[] destination = packet.reset(packetNumbers[slot], channelCount);
+            System.arraycopy(samples, slot * maxChannels, destination, 0, channelCount);
+            packet.setTimestamp(timestamps[slot]);
+            if (tail.compareAndSet(t, t + 1))
+            {
+                deliveredCount.lazySet(deliveredCount.get() + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copies the oldest buffered packet into the packet, waiting for one to arrive if
+     * the buffer is empty.  Must only be called by the consumer thread.
+     *
+     * @param packet       the packet that will receive the buffered values
+     * @param timeoutNanos the longest time to wait, in nanoseconds
+     * @return true if a packet was copied, false if the timeout expired or we were closed
+     */
+    boolean take(Packet packet, long timeoutNanos)
+    {
+        if (poll(packet))
+        {
+            return true;
+        }
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        try
+        {
+            // Check again now that the producer knows to wake us
+            if (poll(packet))
+            {
+                return true;
+            }
+            if (!closed)
+            {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+            return poll(packet);
+        }
+        finally
+        {
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * Release a blocked producer or waiting consumer.  Afterwards the producer discards
+     * packets rather than waiting for room.
+     */
+    void close()
+    {
+        closed = true;
+        Thread waiting = consumer;
+        if (waiting != null)
+        {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be consumed
+     *
+     * @return the number of buffered packets
+     */
+    int getOccupancy()
+    {
+        // Read tail first, so a concurrent offer can only make the result too large, then clamp
+        long t = tail.get();
+        long h = head.get();
+        return (int) Math.max(0, Math.min(capacity, h - t));
+    }
+
+    /**
+     * Returns the number of packets discarded because the buffer was full
+     *
+     * @return the number of packets dropped
+     */
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns a snapshot of our occupancy metrics
+     *
+     * @return our current statistics
+     */
+    BufferStatistics getStatistics()
+    {
+        return new BufferStatistics(overflowPolicy, capacity, getOccupancy(), highWaterMark,
+                                    offeredCount.get(), deliveredCount.get(), droppedCount.get());
+    }
+
+    private void countDropped()
+    {
+        droppedCount.lazySet(droppedCount.get() + 1);
+    }
+}
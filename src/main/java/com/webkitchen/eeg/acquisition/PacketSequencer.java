@@ -0,0 +1,235 @@
+package com.webkitchen.eeg.acquisition;
+
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Checks the packet sequence numbers between the packet dispatcher and the
+ * <code>Demultiplexer</code>, so a lost or repeated packet can't silently corrupt the
+ * state of the filters and monitors downstream.
+ * <P>
+ * The ModEEG numbers its packets with a counter that wraps around, at 256 by default.
+ * Each packet should be numbered one more than the last, modulo the counter's range:
+ * <ul>
+ * <li>A packet with the same number as the last is a duplicate, and is dropped.
+ * <li>A short gap, of no more than the maximum filled gap, is filled in with packets
+ * interpolated from the samples either side of it, numbered as the missing packets would
+ * have been, before the packet after the gap is passed along.
+ * <li>A longer gap, or a change in the channel count, isn't filled.  The packet after it is
+ * flagged with <code>isAfterGap</code>, so listeners can reset their filters.
+ * </ul>
+ * Since the counter wraps, a gap of a whole number of counter ranges can't be seen.  Gaps
+ * are found wherever they happened, whether in the device, the USB or serial link,
+ * NeuroServer, or our own packet buffer when it overflows.
+ * <P>
+ * Gaps, missing packets, interpolated packets, long gaps and duplicates are counted in
+ * the <code>MetricRegistry</code> under <code>acquisition.</code> and the device's endpoint,
+ * followed by <code>sequence.</code>
+ *
+ * @author Amy Palke
+ * @see GapInterpolation
+ * @see AsyncPacketDispatcher
+ * @see Demultiplexer
+ */
+class PacketSequencer implements IPacketListener
+{
+    /**
+     * The range of the ModEEG's packet counter
+     */
+    static final int DEFAULT_COUNTER_MODULUS = 256;
+    /**
+     * The most missing packets filled in by default, about 16ms at 256 samples/second
+     */
+    static final int DEFAULT_MAX_FILLED_GAP = 4;
+
+    // Our listener list must be thread-safe since listeners will be added and deleted
+    // by the main thread, but notification happens in the dispatcher thread
+    private List<IPacketListener> listeners = new CopyOnWriteArrayList<IPacketListener>();
+
+    private final GapInterpolation interpolation;
+    private final int maxFilledGap;
+    private final int counterModulus;
+
+    // The last packet we passed along, and its samples, so we can fill a gap after it
+    private boolean started;
+    private int lastPacketNumber;
+    private int[] lastSamples = new int[0];
+    // The packet we fill with interpolated samples, reused for each missing packet
+    private final Packet filled = new Packet();
+
+    private final Counter gaps;
+    private final Counter missingPackets;
+    private final Counter interpolatedPackets;
+    private final Counter longGaps;
+    private final Counter duplicates;
+
+    // Log file for debugging
+    private static Logger logger = Logger.getLogger(PacketSequencer.class);
+
+    /**
+     * Creates a new sequencer for an EEG device
+     *
+     * @param endpoint       the EEG device whose packets we check, used to name our metrics
+     * @param interpolation  how to fill short gaps
+     * @param maxFilledGap   the most missing packets we fill in, longer gaps are flagged
+     * @param counterModulus the range of the device's packet counter, such as 256
+     */
+    PacketSequencer(NeuroServerEndpoint endpoint, GapInterpolation interpolation, int maxFilledGap,
+                    int counterModulus)
+    {
+        if (interpolation == null)
+        {
+            throw new IllegalArgumentException("interpolation must not be null");
+        }
+        if (maxFilledGap < 0)
+        {
+            throw new IllegalArgumentException("Maximum filled gap can't be negative: " + maxFilledGap);
+        }
+        if (counterModulus < 2)
+        {
+            throw new IllegalArgumentException("Packet counter modulus must be at least 2: " + counterModulus);
+        }
+        this.interpolation = interpolation;
+        this.maxFilledGap = (interpolation == GapInterpolation.NONE) ? 0 : maxFilledGap;
+        this.counterModulus = counterModulus;
+
+        String prefix = "acquisition." + endpoint + ".sequence.";
+        MetricRegistry registry = MetricRegistry.getInstance();
+        gaps = registry.counter(prefix + "gaps", "Gaps in the packet sequence");
+        missingPackets = registry.counter(prefix + "missing", "Packets missing from the sequence");
+        interpolatedPackets = registry.counter(prefix + "interpolated", "Missing packets filled in by interpolation");
+        longGaps = registry.counter(prefix + "longGaps", "Gaps too long to fill, flagged for listeners to reset");
+        duplicates = registry.counter(prefix + "duplicates", "Repeated packets dropped");
+    }
+
+    /**
+     * Check the packet's sequence number, fill or flag any gap before it, and pass it
+     * along to our listeners unless it's a duplicate.  Called by the dispatcher thread.
+     *
+     * @param packet the latest EDF packet
+     */
+    public void receivePacket(Packet packet)
+    {
+        int[] samples = packet.getSamples();
+        packet.setAfterGap(false);
+        if (started)
+        {
+            int step = (int) (((long) packet.getPacketNumber() - lastPacketNumber) % counterModulus);
+            if (step < 0)
+            {
+                step += counterModulus;
+            }
+            if (step == 0)
+            {
+                duplicates.increment();
+                return;
+            }
+            int missing = step - 1;
+            if (missing > 0 || samples.length != lastSamples.length)
+            {
+                gaps.increment();
+                missingPackets.add(missing);
+                if (missing <= maxFilledGap && samples.length == lastSamples.length)
+                {
+                    fillGap(missing, packet);
+                }
+                else
+                {
+                    longGaps.increment();
+                    packet.setAfterGap(true);
+                    logger.warn("Missing " + missing + " packets before packet " + packet.getPacketNumber()
+                                + ", too many to fill");
+                }
+            }
+        }
+        notifyPacketListeners(packet);
+        remember(packet);
+    }
+
+    /**
+     * Pass along interpolated packets for each missing packet between the last packet and
+     * the next one
+     *
+     * @param missing the number of missing packets
+     * @param next    the packet after the gap
+     */
+    private void fillGap(int missing, Packet next)
+    {
+        int[] nextSamples = next.getSamples();
+        filled.setTimestamp(next.getTimestamp());
+        filled.setAfterGap(false);
+        for (int k = 1; k <= missing; k++)
+        {
+            int packetNumber = (int) (((long) lastPacketNumber + k) % counterModulus);
+            int[] samples = filled.reset(packetNumber, nextSamples.length);
+            for (int i = 0; i < samples.length; i++)
+            {
+                if (interpolation == GapInterpolation.LINEAR)
+                {
+                    samples[i] = lastSamples[i]
+                                 + (int) Math.round((nextSamples[i] - lastSamples[i]) * (double) k / (missing + 1));
+                }
+                else
+                {
+                    samples[i] = lastSamples[i];
+                }
+            }
+            notifyPacketListeners(filled);
+        }
+        interpolatedPackets.add(missing);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Filled " + missing + " missing packets before packet " + next.getPacketNumber());
+        }
+    }
+
+    /**
+     * Keep the packet's number and samples, to check and fill the gap before the next one
+     */
+    private void remember(Packet packet)
+    {
+        int[] samples = packet.getSamples();
+        if (lastSamples.length != samples.length)
+        {
+            lastSamples = new int[samples.length];
+        }
+        System.arraycopy(samples, 0, lastSamples, 0, samples.length);
+        lastPacketNumber = packet.getPacketNumber();
+        started = true;
+    }
+
+    private void notifyPacketListeners(Packet packet)
+    {
+        for (IPacketListener listener : listeners)
+        {
+            listener.receivePacket(packet);
+        }
+    }
+
+    /**
+     * Attach listener to receive notification/copies of all packets in sequence
+     *
+     * @param listener the observer who wants to receive Packets
+     */
+    public void addPacketListener(IPacketListener listener)
+    {
+        // Add the listener if he isn't already in our list
+        if (!listeners.contains(listener))
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove all listeners from our notification list
+     */
+    public void removeAllPacketListeners()
+    {
+        listeners.clear();
+    }
+}
@@ -1,9 +1,12 @@
 package com.webkitchen.eeg.acquisition;
 
+import com.webkitchen.eeg.latency.LatencyTracer;
 
 /**
  * Contains the raw EEG data sample(s) for a specific channel or set of channels.
- * <code>RawSample</code>s are immutable; their data cannot be changed after they have been created.
+ * To avoid creating garbage for every packet, the <code>Demultiplexer</code> reuses one
+ * <code>RawSample</code> for each set of channels, so listeners must not change its arrays,
+ * and must copy any values they want to keep after <code>receiveSample</code> returns.
  *
  * @author Amy Palke
  * @see IRawSampleGenerator
@@ -11,7 +14,9 @@ package com.webkitchen.eeg.acquisition;
  */
 public final class RawSample
 {
-    private final int packetNumber;
+    private int packetNumber;
+    private long timestamp = LatencyTracer.UNSTAMPED;
+    private boolean afterGap;
     private final int[] channelNumbers;
     private final int[] samples;
 
@@ -30,6 +35,33 @@ public final class RawSample
         this.samples = samples;
     }
 
+    /**
+     * Creates a new, reusable <code>RawSample</code> for a set of channels, that will
+     * be filled in by the <code>Demultiplexer</code> for each packet
+     *
+     * @param channelNumbers the channel numbers
+     */
+    RawSample(int[] channelNumbers)
+    {
+        this(0, channelNumbers, new int[channelNumbers.length]);
+    }
+
+    /**
+     * Prepares the sample to receive values from a new packet
+     *
+     * @param packetNumber the packet sequence number
+     * @param timestamp    the <code>System.nanoTime</code> the packet arrived
+     * @param afterGap     true if the packet is the first after a gap that wasn't filled
+     * @return the array that the caller should fill with samples for each of our channels
+     */
+    int[] reset(int packetNumber, long timestamp, boolean afterGap)
+    {
+        this.packetNumber = packetNumber;
+        this.timestamp = timestamp;
+        this.afterGap = afterGap;
+        return samples;
+    }
+
     /**
      * Returns the packet sequence number for the sample
      *
@@ -40,6 +72,29 @@ public final class RawSample
         return packetNumber;
     }
 
+    /**
+     * Returns the time the sample's packet arrived, for measuring latency
+     *
+     * @return the <code>System.nanoTime</code> the packet arrived, or
+     *         <code>LatencyTracer.UNSTAMPED</code> if it wasn't stamped
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Returns true if samples are missing before this one, too many to be filled in.
+     * Listeners that keep state built from earlier samples, such as filters, should
+     * discard it before using this sample.
+     *
+     * @return true if this is the first sample after a gap
+     */
+    public boolean isAfterGap()
+    {
+        return afterGap;
+    }
+
     /**
      * Returns an array of the channel numbers associated with the samples.
      * They are associated by array position - samples[0] comes from channels[0].
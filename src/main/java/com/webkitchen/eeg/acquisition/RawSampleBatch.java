@@ -0,0 +1,152 @@
+package com.webkitchen.eeg.acquisition;
+
+
+/**
+ * Contains a block of consecutive raw EEG samples for a specific channel or set of channels.
+ * The samples for each channel are held in their own primitive array, in packet order.
+ * <P>
+ * The <code>Demultiplexer</code> reuses one <code>RawSampleBatch</code> for each batch
+ * listener registration, so listeners must not change its arrays, and must copy any values
+ * they want to keep after <code>receiveSamples</code> returns.
+ * <P>
+ * A batch never spans a gap in the packet sequence that wasn't filled in.  The samples
+ * before the gap are delivered as a short batch, and the next batch is flagged with
+ * <code>isAfterGap</code>.
+ *
+ * @author Amy Palke
+ * @see IRawSampleGenerator
+ * @see IRawSampleBatchListener
+ * @see com.webkitchen.eeg.latency.LatencyTracer
+ */
+public final class RawSampleBatch
+{
+    private final int[] channelNumbers;
+    private final int[] packetNumbers;
+    private final long[] timestamps;
+    private final int[][] samples;
+    private int size;
+    private boolean afterGap;
+
+    /**
+     * Creates a new, empty <code>RawSampleBatch</code>
+     *
+     * @param channelNumbers the channel numbers
+     * @param capacity       the number of samples per channel in a full batch
+     */
+    RawSampleBatch(int[] channelNumbers, int capacity)
+    {
+        this.channelNumbers = channelNumbers;
+        packetNumbers = new int[capacity];
+        timestamps = new long[capacity];
+        samples = new int[channelNumbers.length][capacity];
+    }
+
+    /**
+     * Adds one packet's samples for our channels to the batch
+     *
+     * @param packetNumber   the packet sequence number
+     * @param timestamp      the <code>System.nanoTime</code> the packet arrived
+     * @param packetSamples  the samples for all channels in the packet
+     * @param channelIndices the index within packetSamples of each of our channels
+     * @return true if the batch is now full
+     */
+    boolean add(int packetNumber, long timestamp, int[] packetSamples, int[] channelIndices)
+    {
+        packetNumbers[size] = packetNumber;
+        timestamps[size] = timestamp;
+        for (int i = 0; i < channelIndices.length; i++)
+        {
+            samples[i][size] = packetSamples[channelIndices[i]];
+        }
+        size++;
+        return size == packetNumbers.length;
+    }
+
+    /**
+     * Empties the batch, so it can be filled again
+     */
+    void clear()
+    {
+        size = 0;
+        afterGap = false;
+    }
+
+    /**
+     * Flags the batch as starting with the first sample after a gap that wasn't filled.
+     * Only called while the batch is empty.
+     *
+     * @param afterGap true if samples are missing before the batch's first sample
+     */
+    void setAfterGap(boolean afterGap)
+    {
+        this.afterGap = afterGap;
+    }
+
+    /**
+     * Returns true if samples are missing before the batch's first sample, too many to be
+     * filled in.  Listeners that keep state built from earlier samples, such as filters,
+     * should discard it before using this batch.
+     *
+     * @return true if the batch starts after a gap
+     */
+    public boolean isAfterGap()
+    {
+        return afterGap;
+    }
+
+    /**
+     * Returns the number of samples per channel in this batch
+     *
+     * @return the number of valid entries in each sample array
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns an array of the channel numbers associated with the samples.
+     * They are associated by array position - getSamples(0) comes from channels[0].
+     *
+     * @return the channel numbers
+     */
+    public int[] getChannelNumbers()
+    {
+        return channelNumbers;
+    }
+
+    /**
+     * Returns the packet sequence number of each sample in the batch.  Only the
+     * first <code>getSize()</code> entries are valid.
+     *
+     * @return the packet sequence numbers
+     */
+    public int[] getPacketNumbers()
+    {
+        return packetNumbers;
+    }
+
+    /**
+     * Returns the time each sample's packet arrived, for measuring latency.  Only the
+     * first <code>getSize()</code> entries are valid.
+     *
+     * @return the <code>System.nanoTime</code> each packet arrived, or
+     *         <code>LatencyTracer.UNSTAMPED</code> for packets that weren't stamped
+     */
+    public long[] getTimestamps()
+    {
+        return timestamps;
+    }
+
+    /**
+     * Returns the raw samples for one of our channels, oldest first.  Only the
+     * first <code>getSize()</code> entries are valid.
+     *
+     * @param channelIndex the position of the channel in <code>getChannelNumbers()</code>
+     * @return the raw samples for the channel
+     */
+    public int[] getSamples(int channelIndex)
+    {
+        return samples[channelIndex];
+    }
+}
@@ -0,0 +1,177 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Connection for testing, debugging and load tests - Replays a recording of the packet
+ * lines NeuroServer sends, one line per sample, without any EEG hardware.
+ * <P>
+ * The recording is memory-mapped, a window at a time, and lines are copied straight from
+ * the mapping into the reader's buffer, on the schedule kept by <code>PacedConnection</code>.
+ *
+ * @author Amy Palke
+ * @see NeuroServerReader
+ * @see PacedConnection
+ * @see EEGAcquisitionController#startReplay
+ */
+class ReplayConnection extends PacedConnection
+{
+    // Size of the region of the file mapped at once
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final File recording;
+    private final boolean loop;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long fileSize;
+    private MappedByteBuffer window;
+    // File offset of the start of our window
+    private long windowStart;
+
+    /**
+     * Creates a connection that replays a recording
+     *
+     * @param recording  the file of recorded packet lines
+     * @param sampleRate the number of lines per second when the recording was made
+     * @param speed      how many times faster than real time to replay, or
+     *                   <code>UNTHROTTLED</code> to replay as fast as possible
+     * @param loop       true to start again at the beginning when we reach the end,
+     *                   false to stop sending lines
+     */
+    ReplayConnection(File recording, int sampleRate, double speed, boolean loop)
+    {
+        super(sampleRate, speed);
+        this.recording = recording;
+        this.loop = loop;
+    }
+
+    /**
+     * Open and map the recording
+     *
+     * @throws java.io.IOException if the recording can't be read, or is empty
+     * @throws java.net.UnknownHostException never
+     */
+    public void connect() throws IOException, UnknownHostException
+    {
+        file = new RandomAccessFile(recording, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        if (fileSize == 0)
+        {
+            close();
+            throw new EOFException("No data in " + recording);
+        }
+        map(0);
+    }
+
+    /**
+     * Recordings don't have an EDF header record
+     *
+     * @return null
+     * @throws java.io.IOException never
+     */
+    public String getEDFHeader() throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Copy the next line from our window into the buffer.  Once we reach the end of the
+     * recording, loop back to the beginning if we're looping.
+     *
+     * @param buffer the buffer that will receive the line
+     * @return the number of bytes in the line, or -1 if the line was too long for the buffer
+     * @throws IOException if the recording can't be mapped
+     */
+    protected int readLine(byte[] buffer) throws IOException
+    {
+        int lineStart = window.position();
+        int end = findLineEnd(lineStart);
+        // A line that runs past our window is read from a new window that starts with it
+        if (end == window.limit() && windowStart + end < fileSize)
+        {
+            map(windowStart + lineStart);
+            lineStart = 0;
+            end = findLineEnd(0);
+        }
+
+        int length = end - lineStart;
+        if (length > 0 && window.get(end - 1) == '\r')
+        {
+            length--;
+        }
+        boolean overflow = length > buffer.length;
+        if (!overflow)
+        {
+            window.get(buffer, 0, length);
+        }
+        // Step over the rest of the line and its terminator
+        window.position(Math.min(end + 1, window.limit()));
+
+        if (!window.hasRemaining() && windowStart + window.limit() >= fileSize && loop)
+        {
+            map(0);
+        }
+        return overflow ? -1 : length;
+    }
+
+    /**
+     * Close the recording
+     */
+    public void close()
+    {
+        window = null;
+        try
+        {
+            if (file != null)
+            {
+                file.close();
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to close our recording");
+            e.printStackTrace();
+        }
+    }
+
+    protected boolean hasMoreLines()
+    {
+        return window != null && (window.hasRemaining() || windowStart + window.limit() < fileSize);
+    }
+
+    protected String getRecordingName()
+    {
+        return recording.toString();
+    }
+
+    /**
+     * Returns the offset of the next '\n' in our window, or the window's limit if there isn't one
+     */
+    private int findLineEnd(int from)
+    {
+        int limit = window.limit();
+        for (int i = from; i < limit; i++)
+        {
+            if (window.get(i) == '\n')
+            {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    private void map(long start) throws IOException
+    {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+    }
+}
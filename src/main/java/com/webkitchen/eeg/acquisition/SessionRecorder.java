@@ -0,0 +1,356 @@
+package com.webkitchen.eeg.acquisition;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Records every raw packet the reader receives to a compact binary file, which can be
+ * read back with a <code>SessionRecording</code>.  The recorder listens to the
+ * <code>NeuroServerReader</code> directly, so it records packets even when the analysis
+ * listeners fall behind and the dispatcher drops them.
+ * <P>
+ * Packets are written in chunks, one second of packets by default.  Within a chunk each
+ * packet number and sample is stored as its difference from the previous packet's, as a
+ * zig-zag variable-length integer, so the small changes between EEG samples mostly take a
+ * single byte.  Each packet starts with a bit mask of the values that changed, and
+ * unchanged values - the packet number going up by one, or an unused channel - aren't
+ * stored at all.  Each chunk starts from zero, so it can be decoded on its own.  When the
+ * recorder is closed it appends an index of the chunks, so a recording can be searched
+ * by time.  A recording that was never closed can still be read, it just has to be
+ * scanned for its chunks first.
+ * <P>
+ * Packets arrive on the reader thread, and chunks are written on it too - about one
+ * write a second.  A packet with a different number of channels than the first one is
+ * skipped, and counted in the log.
+ *
+ * @author Amy Palke
+ * @see SessionRecording
+ * @see EEGAcquisitionController#startRecording
+ */
+class SessionRecorder implements IPacketRecorder
+{
+    private static Logger logger = Logger.getLogger(SessionRecorder.class);
+
+    private final File file;
+    private final int sampleRate;
+    private final int packetsPerChunk;
+    private final FileChannel channel;
+    private final long startTime;
+
+    // Our chunk index, written when we close.  Each entry is the chunk's first packet,
+    // file offset, time and packet count.
+    private ByteBuffer index = ByteBuffer.allocate(SessionRecording.INDEX_ENTRY_SIZE * 64);
+    private int chunkCount;
+
+    private int channelCount = -1;
+    private ByteBuffer chunk;
+    private int chunkPackets;
+    private long chunkTime;
+    private long packetCount;
+    private int previousPacketNumber;
+    private int[] previousSamples;
+    private long skippedPackets;
+    private boolean closed;
+
+    /**
+     * Creates a recorder that writes a new recording file, with chunks of one second of packets
+     *
+     * @param file       the file to write, replacing it if it exists
+     * @param sampleRate the number of packets the device sends per second
+     * @throws IOException if the file can't be created
+     */
+    SessionRecorder(File file, int sampleRate) throws IOException
+    {
+        this(file, sampleRate, sampleRate);
+    }
+
+    /**
+     * Creates a recorder that writes a new recording file
+     *
+     * @param file            the file to write, replacing it if it exists
+     * @param sampleRate      the number of packets the device sends per second
+     * @param packetsPerChunk the number of packets written at once, and indexed together
+     * @throws IOException if the file can't be created
+     */
+    SessionRecorder(File file, int sampleRate, int packetsPerChunk) throws IOException
+    {
+        if (sampleRate <= 0 || packetsPerChunk <= 0)
+        {
+            throw new IllegalArgumentException("Sample rate and chunk size must be positive");
+        }
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.packetsPerChunk = packetsPerChunk;
+        this.startTime = System.currentTimeMillis();
+        this.channel = new FileOutputStream(file).getChannel();
+        // Leave room for the header, which needs the channel count from the first packet
+        channel.position(SessionRecording.HEADER_SIZE);
+    }
+
+    /**
+     * Adds the packet to the current chunk, and writes the chunk when it's full.
+     * Called by the reader thread.
+     *
+     * @param packet the latest EDF packet received by the reader
+     */
+    public synchronized void receivePacket(Packet packet)
+    {
+        if (closed)
+        {
+            return;
+        }
+        if (channelCount < 0)
+        {
+            startRecording(packet.getChannelCount());
+            if (closed)
+            {
+                return;
+            }
+        }
+        if (packet.getChannelCount() != channelCount)
+        {
+            if (skippedPackets++ == 0)
+            {
+                logger.warn("Skipping packets with " + packet.getChannelCount() + " channels, recording "
+                            + file + " has " + channelCount);
+            }
+            return;
+        }
+
+        if (chunkPackets == 0)
+        {
+            chunkTime = System.currentTimeMillis();
+            chunk.position(SessionRecording.CHUNK_HEADER_SIZE);
+            previousPacketNumber = -1;
+            Arrays.fill(previousSamples, 0);
+        }
+        // Bit 0 of the mask is set if the packet number didn't go up by one, and bit c + 1
+        // if channel c's sample changed
+        int packetNumber = packet.getPacketNumber();
+        int[] samples = packet.getSamples();
+        long mask = (packetNumber != previousPacketNumber + 1) ? 1 : 0;
+        for (int c = 0; c < channelCount; c++)
+        {
+            if (samples[c] != previousSamples[c])
+            {
+                mask |= 1L << (c + 1);
+            }
+        }
+        putUnsignedVarint(chunk, mask);
+        if ((mask & 1) != 0)
+        {
+            putVarint(chunk, packetNumber - previousPacketNumber - 1);
+        }
+        previousPacketNumber = packetNumber;
+        for (int c = 0; c < channelCount; c++)
+        {
+            if ((mask & (1L << (c + 1))) != 0)
+            {
+                putVarint(chunk, samples[c] - previousSamples[c]);
+                previousSamples[c] = samples[c];
+            }
+        }
+        chunkPackets++;
+        if (chunkPackets == packetsPerChunk)
+        {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Writes any partly-filled chunk, the chunk index and the header, and closes the file.
+     * Packets received afterwards are ignored.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            if (channelCount < 0)
+            {
+                startRecording(0);
+            }
+            if (chunkPackets > 0)
+            {
+                writeChunk();
+            }
+            writeIndex();
+            writeHeader();
+            if (skippedPackets > 0)
+            {
+                logger.warn("Skipped " + skippedPackets + " packets with the wrong channel count in " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to finish recording " + file, e);
+        }
+        finally
+        {
+            closed = true;
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to close recording " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of packets recorded so far, including any not yet written
+     *
+     * @return the number of packets recorded
+     */
+    synchronized long getPacketCount()
+    {
+        return packetCount + chunkPackets;
+    }
+
+    private void startRecording(int channels)
+    {
+        channelCount = channels;
+        if (channels > SessionRecording.MAX_CHANNELS)
+        {
+            fail(new IOException(channels + " channels, recordings are limited to " + SessionRecording.MAX_CHANNELS));
+            return;
+        }
+        previousSamples = new int[channels];
+        // An int varint takes at most 5 bytes, and the mask at most 10
+        chunk = ByteBuffer.allocate(SessionRecording.CHUNK_HEADER_SIZE + (packetsPerChunk * (10 + (channels + 1) * 5)));
+        try
+        {
+            // Write the header now too, so a recording that's never closed can still be read
+            writeHeader();
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void writeChunk()
+    {
+        try
+        {
+            long offset = channel.position();
+            int payloadLength = chunk.position() - SessionRecording.CHUNK_HEADER_SIZE;
+            chunk.putInt(0, SessionRecording.CHUNK_MAGIC);
+            chunk.putInt(4, chunkPackets);
+            chunk.putInt(8, payloadLength);
+            chunk.putLong(12, packetCount);
+            chunk.putLong(20, chunkTime);
+            chunk.flip();
+            writeFully(chunk);
+            chunk.clear();
+
+            if (index.remaining() < SessionRecording.INDEX_ENTRY_SIZE)
+            {
+                ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                larger.put(index);
+                index = larger;
+            }
+            index.putLong(packetCount);
+            index.putLong(offset);
+            index.putLong(chunkTime);
+            index.putInt(chunkPackets);
+            chunkCount++;
+            packetCount += chunkPackets;
+            chunkPackets = 0;
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void writeIndex() throws IOException
+    {
+        long indexOffset = channel.position();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(SessionRecording.INDEX_MAGIC);
+        buffer.putInt(chunkCount);
+        buffer.flip();
+        writeFully(buffer);
+        index.flip();
+        writeFully(index);
+
+        buffer = ByteBuffer.allocate(SessionRecording.TRAILER_SIZE);
+        buffer.putLong(indexOffset);
+        buffer.putInt(SessionRecording.TRAILER_MAGIC);
+        buffer.flip();
+        writeFully(buffer);
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(SessionRecording.HEADER_SIZE);
+        header.putInt(SessionRecording.HEADER_MAGIC);
+        header.putInt(SessionRecording.VERSION);
+        header.putInt(sampleRate);
+        header.putInt(channelCount);
+        header.putInt(packetsPerChunk);
+        header.putLong(startTime);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Stops recording after a write fails, rather than reporting every later packet
+     */
+    private void fail(IOException e)
+    {
+        logger.error("Unable to write recording " + file + ", recording stopped", e);
+        closed = true;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+
+    /**
+     * Writes a zig-zag encoded variable-length integer: small values of either sign take
+     * one byte for every 7 bits
+     */
+    static void putVarint(ByteBuffer buffer, int value)
+    {
+        putUnsignedVarint(buffer, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a variable-length unsigned integer, one byte for every 7 bits
+     */
+    static void putUnsignedVarint(ByteBuffer buffer, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,425 @@
+package com.webkitchen.eeg.acquisition;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Reads a session recorded by <code>EEGAcquisitionController.startRecording</code>, one
+ * packet at a time, from any point in the session.
+ * <P>
+ * A recording starts with a header giving the sample rate, channel count and start time,
+ * followed by chunks of packets, and ends with an index of the chunks.  Seeking finds the
+ * chunk holding the packet with a binary search of the index, and then decodes the chunk
+ * up to that packet, so it takes the same short time anywhere in a long recording.  If the
+ * recording wasn't closed properly, and has no index, we scan the chunks to build one
+ * when the recording is opened.
+ * <P>
+ * Packet n of the recording is at time n / sample rate.  Samples are the values
+ * delivered in <code>RawSample</code>s, in channel number order.  A
+ * <code>SessionRecording</code> is not thread-safe.
+ *
+ * @author Amy Palke
+ * @see EEGAcquisitionController#startRecording
+ */
+public class SessionRecording
+{
+    /**
+     * The usual extension of recording files
+     */
+    public static final String FILE_EXTENSION = ".brec";
+
+    // File layout, shared with SessionRecorder
+    static final int HEADER_MAGIC = 0x42524543; // "BREC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int CHUNK_MAGIC = 0x4348554E; // "CHUN"
+    static final int CHUNK_HEADER_SIZE = 28;
+    static final int INDEX_MAGIC = 0x494E4458; // "INDX"
+    static final int INDEX_ENTRY_SIZE = 28;
+    static final int TRAILER_MAGIC = 0x42454E44; // "BEND"
+    static final int TRAILER_SIZE = 12;
+    // Each packet's change mask has a bit for the packet number and each channel
+    static final int MAX_CHANNELS = 63;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int channelCount;
+    private final long startTime;
+
+    // The index: each chunk's first packet, file offset, time and packet count
+    private long[] chunkFirstPacket;
+    private long[] chunkOffset;
+    private long[] chunkTime;
+    private int[] chunkPackets;
+    private int chunkCount;
+    private long packetCount;
+
+    // The chunk being decoded
+    private int currentChunk = -1;
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+    private long position;
+    private int previousPacketNumber;
+    private int[] previousSamples;
+
+    /**
+     * Opens a recording
+     *
+     * @param file the recording
+     * @throws IOException if the file can't be read, or isn't a recording
+     */
+    public SessionRecording(File file) throws IOException
+    {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        try
+        {
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if (header.getInt() != HEADER_MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException(file + " isn't a version " + VERSION + " session recording");
+            }
+            sampleRate = header.getInt();
+            channelCount = header.getInt();
+            header.getInt(); // packets per chunk, only needed when recording
+            startTime = header.getLong();
+            previousSamples = new int[channelCount];
+            if (!readIndex())
+            {
+                scanChunks();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of packets recorded per second
+     *
+     * @return the sample rate
+     */
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the number of channels in each packet
+     *
+     * @return the channel count
+     */
+    public int getChannelCount()
+    {
+        return channelCount;
+    }
+
+    /**
+     * Returns when recording started
+     *
+     * @return the start time, in milliseconds since January 1, 1970 UTC
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Returns the number of packets in the recording
+     *
+     * @return the packet count
+     */
+    public long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * Returns the length of the recording
+     *
+     * @return the duration in seconds
+     */
+    public double getDuration()
+    {
+        return (double) packetCount / sampleRate;
+    }
+
+    /**
+     * Returns the number of the packet that <code>next</code> will read
+     *
+     * @return the position, starting at 0
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Moves to the packet recorded at the given time since the start of the recording
+     *
+     * @param seconds the time since the start of the recording
+     * @throws IOException if the recording can't be read
+     */
+    public void seek(double seconds) throws IOException
+    {
+        seekPacket((long) Math.floor(seconds * sampleRate));
+    }
+
+    /**
+     * Moves to the given packet
+     *
+     * @param packet the number of the packet, starting at 0
+     * @throws IOException if the recording can't be read
+     */
+    public void seekPacket(long packet) throws IOException
+    {
+        if (packet < 0 || packet > packetCount)
+        {
+            throw new IllegalArgumentException("Packet " + packet + " is outside the recording, which has "
+                                               + packetCount + " packets");
+        }
+        if (packet == packetCount)
+        {
+            position = packet;
+            currentChunk = chunkCount;
+            chunk.limit(0);
+            return;
+        }
+        int found = Arrays.binarySearch(chunkFirstPacket, 0, chunkCount, packet);
+        loadChunk((found >= 0) ? found : -found - 2);
+        int[] discard = new int[channelCount];
+        while (position < packet)
+        {
+            decodePacket(discard);
+        }
+    }
+
+    /**
+     * Reads the next packet's samples, in channel number order
+     *
+     * @param samples receives the samples, must have room for every channel
+     * @return the packet's number from the device, or -1 at the end of the recording
+     * @throws IOException if the recording can't be read
+     */
+    public int next(int[] samples) throws IOException
+    {
+        if (position >= packetCount)
+        {
+            return -1;
+        }
+        if (currentChunk < 0 || !chunk.hasRemaining())
+        {
+            loadChunk(currentChunk + 1);
+        }
+        return decodePacket(samples);
+    }
+
+    /**
+     * Returns the wall-clock time the packet was received, to the nearest chunk
+     *
+     * @param packet the number of the packet, starting at 0
+     * @return the time its chunk started, in milliseconds since January 1, 1970 UTC
+     */
+    public long getChunkTime(long packet)
+    {
+        int found = Arrays.binarySearch(chunkFirstPacket, 0, chunkCount, packet);
+        return chunkTime[Math.max(0, (found >= 0) ? found : -found - 2)];
+    }
+
+    /**
+     * Closes the recording
+     */
+    public void close()
+    {
+        try
+        {
+            randomAccessFile.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to close recording " + file);
+            e.printStackTrace();
+        }
+    }
+
+    private int decodePacket(int[] samples)
+    {
+        long mask = getUnsignedVarint(chunk);
+        int packetNumber = previousPacketNumber + 1;
+        if ((mask & 1) != 0)
+        {
+            packetNumber += getVarint(chunk);
+        }
+        previousPacketNumber = packetNumber;
+        for (int c = 0; c < channelCount; c++)
+        {
+            if ((mask & (1L << (c + 1))) != 0)
+            {
+                previousSamples[c] += getVarint(chunk);
+            }
+            samples[c] = previousSamples[c];
+        }
+        position++;
+        return packetNumber;
+    }
+
+    private void loadChunk(int index) throws IOException
+    {
+        ByteBuffer header = read(chunkOffset[index], CHUNK_HEADER_SIZE);
+        header.getInt();
+        header.getInt();
+        int payloadLength = header.getInt();
+        if (chunk.capacity() < payloadLength)
+        {
+            chunk = ByteBuffer.allocate(payloadLength);
+        }
+        chunk.clear();
+        chunk.limit(payloadLength);
+        readFully(chunk, chunkOffset[index] + CHUNK_HEADER_SIZE);
+        chunk.flip();
+        currentChunk = index;
+        position = chunkFirstPacket[index];
+        previousPacketNumber = -1;
+        Arrays.fill(previousSamples, 0);
+    }
+
+    /**
+     * Reads the index written when the recording was closed
+     *
+     * @return false if there's no index
+     */
+    private boolean readIndex() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE)
+        {
+            return false;
+        }
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != TRAILER_MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE - 8)
+        {
+            return false;
+        }
+        ByteBuffer indexHeader = read(indexOffset, 8);
+        if (indexHeader.getInt() != INDEX_MAGIC)
+        {
+            return false;
+        }
+        int count = indexHeader.getInt();
+        ByteBuffer entries = read(indexOffset + 8, count * INDEX_ENTRY_SIZE);
+        allocateIndex(count);
+        for (int i = 0; i < count; i++)
+        {
+            addChunk(entries.getLong(), entries.getLong(), entries.getLong(), entries.getInt());
+        }
+        return true;
+    }
+
+    /**
+     * Builds the index by reading each chunk's header, stopping at the first incomplete chunk
+     */
+    private void scanChunks() throws IOException
+    {
+        allocateIndex(64);
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        while (offset + CHUNK_HEADER_SIZE <= size)
+        {
+            ByteBuffer header = read(offset, CHUNK_HEADER_SIZE);
+            if (header.getInt() != CHUNK_MAGIC)
+            {
+                break;
+            }
+            int packets = header.getInt();
+            int payloadLength = header.getInt();
+            long firstPacket = header.getLong();
+            long time = header.getLong();
+            if (offset + CHUNK_HEADER_SIZE + payloadLength > size)
+            {
+                break;
+            }
+            addChunk(firstPacket, offset, time, packets);
+            offset += CHUNK_HEADER_SIZE + payloadLength;
+        }
+    }
+
+    private void allocateIndex(int capacity)
+    {
+        chunkFirstPacket = new long[capacity];
+        chunkOffset = new long[capacity];
+        chunkTime = new long[capacity];
+        chunkPackets = new int[capacity];
+    }
+
+    private void addChunk(long firstPacket, long offset, long time, int packets)
+    {
+        if (chunkCount == chunkFirstPacket.length)
+        {
+            int capacity = Math.max(1, chunkCount * 2);
+            chunkFirstPacket = Arrays.copyOf(chunkFirstPacket, capacity);
+            chunkOffset = Arrays.copyOf(chunkOffset, capacity);
+            chunkTime = Arrays.copyOf(chunkTime, capacity);
+            chunkPackets = Arrays.copyOf(chunkPackets, capacity);
+        }
+        chunkFirstPacket[chunkCount] = firstPacket;
+        chunkOffset[chunkCount] = offset;
+        chunkTime[chunkCount] = time;
+        chunkPackets[chunkCount] = packets;
+        chunkCount++;
+        packetCount = firstPacket + packets;
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, offset);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a variable-length integer written by <code>SessionRecorder</code>
+     */
+    private static int getVarint(ByteBuffer buffer)
+    {
+        int zigzag = (int) getUnsignedVarint(buffer);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static long getUnsignedVarint(ByteBuffer buffer)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        return value;
+    }
+}
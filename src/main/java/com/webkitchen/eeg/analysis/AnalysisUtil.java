@@ -19,16 +19,27 @@ class AnalysisUtil
      * which is Math.sqrt( Sum( data[i] * data[i] ) / data.length)
      *
      * @param data the data array
-     * @return
+     * @return the rms of the data
      */
     public static double rms(double[] data)
     {
-        int sum = 0;
-        int size = data.length;
-        for (int i = 0; i < size; i++)
+        return Math.sqrt(sumOfSquares(data) / data.length);
+    }
+
+    /**
+     * Returns the sum of the squares of the data, Sum( data[i] * data[i] ).
+     * The sum is accumulated in a double, so fractional values aren't truncated.
+     *
+     * @param data the data array
+     * @return the sum of the squares of the data
+     */
+    public static double sumOfSquares(double[] data)
+    {
+        double sum = 0;
+        for (int i = 0, size = data.length; i < size; i++)
         {
             sum += (data[i] * data[i]);
         }
-        return Math.sqrt(sum / size);
+        return sum;
     }
 }
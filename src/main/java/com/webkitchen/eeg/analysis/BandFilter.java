@@ -3,6 +3,8 @@ package com.webkitchen.eeg.analysis;
 import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
 import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
 import com.webkitchen.eeg.analysis.filterdesign.IIRFilter;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -14,17 +16,26 @@ import java.util.List;
  * the specified frequency band described by our FilterSpecification, and notifies
  * listeners of the filtered value.
  * Objects can add themselves as listeners/observers to receive copies of
- * all new filtered samples.
+ * all new filtered samples.  Batches of raw samples are filtered in one pass, and
+ * passed along as a batch to listeners that implement <code>IBandSampleBatchListener</code>.
+ * After a gap in the signal, the filter is reset and the gap is passed along to listeners
+ * that implement <code>IGapListener</code>.
  *
  * @author Amy Palke
  * @see IBandSampleListener
  */
-public class BandFilter implements IChannelSampleListener, IBandSampleGenerator
+public class BandFilter implements IChannelSampleBatchListener, IGapListener, IBandSampleGenerator
 {
     // Our listener list must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
     private List<IBandSampleListener> listeners = Collections.synchronizedList(new ArrayList<IBandSampleListener>());
     private IIRFilter filter;
+    // Holds the filtered values of the latest batch, grown as needed
+    private double[] bandSamples = new double[0];
+
+    // Raw samples filtered by every band and spectrum filter
+    private static final Counter samplesFiltered = MetricRegistry.getInstance().counter(
+            "filter.samples", "Raw samples filtered into frequency bands");
 
     /**
      * Creates a new <code>BandFilter</code> that builds an <code>IIRFilter</code> to match
@@ -62,10 +73,74 @@ public class BandFilter implements IChannelSampleListener, IBandSampleGenerator
      */
     public void receiveSample(double rawSample)
     {
+        samplesFiltered.increment();
         double bandSampleValue = filter.process(rawSample);
         notifyListeners(bandSampleValue);
     }
 
+    /**
+     * Clears our filter's memory of the samples before a gap in the signal, and tells our
+     * listeners about the gap
+     */
+    public void receiveGap()
+    {
+        filter.reset();
+        IBandSampleListener[] listenerCopy = listeners.toArray(new IBandSampleListener[0]);
+        for (IBandSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IGapListener)
+            {
+                ((IGapListener) listener).receiveGap();
+            }
+        }
+    }
+
+    /**
+     * Processes a batch of samples to filter for our band, and notifies our listeners of the
+     * latest band sample values
+     *
+     * @param rawSamples the raw samples that we will process
+     * @param count      the number of valid samples
+     */
+    public void receiveSamples(double[] rawSamples, int count)
+    {
+        if (bandSamples.length < count)
+        {
+            bandSamples = new double[count];
+        }
+        samplesFiltered.add(count);
+        filter.process(rawSamples, bandSamples, count);
+        notifyListeners(bandSamples, count);
+    }
+
+    /**
+     * Send the new samples to all of our listeners, as a batch to those who accept them
+     *
+     * @param samples the latest samples
+     * @param count   the number of valid samples
+     */
+    private void notifyListeners(double[] samples, int count)
+    {
+        // Note: This method is called by the eeg reader thread so we'll make an
+        //  array copy to iterate to protect against concurrent modification errors
+        //  if the listener list is changed by the main thread
+        IBandSampleListener[] listenerCopy = listeners.toArray(new IBandSampleListener[0]);
+        for (IBandSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IBandSampleBatchListener)
+            {
+                ((IBandSampleBatchListener) listener).receiveBands(samples, count);
+            }
+            else
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    listener.receiveBand(samples[i]);
+                }
+            }
+        }
+    }
+
     /**
      * Send the new sample to all of our listeners
      *
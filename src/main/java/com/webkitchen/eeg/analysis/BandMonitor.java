@@ -1,5 +1,10 @@
 package com.webkitchen.eeg.analysis;
 
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -9,20 +14,23 @@ import java.util.List;
  * Listens for samples in a given band, calculates the amplitude average for the samples,
  * and notifies listeners of the new average amplitude.
  * Objects can add themselves as listeners/observers to receive copies of
- * all new average amplitudes.
+ * all new average amplitudes.  The amplitude is a sliding-window RMS, updated in
+ * constant time per sample, so large windows are cheap.
  *
  * @author Amy Palke
  */
-public class BandMonitor implements IBandSampleListener, IAmplitudeGenerator
+public class BandMonitor implements IBandSampleBatchListener, IGapListener, IAmplitudeGenerator
 {
     // Our listener list must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
     private List<IAmplitudeListener> listeners = Collections.synchronizedList(new ArrayList<IAmplitudeListener>());
-    private int sampleSize;
-    private double[] samples;
-    private int samplesAdded = 0;
+    private SlidingRms rms;
     private int samplesAddedSinceNotification = 0;
 
+    // Amplitudes and ratios measured by every monitor
+    private static final Counter notifications = MetricRegistry.getInstance().counter(
+            "monitor.notifications", "Amplitudes and ratios measured and sent to listeners");
+
     private double lastSentValue;
     private double tolerance;
     private int minNotificationInterval;
@@ -37,10 +45,9 @@ public class BandMonitor implements IBandSampleListener, IAmplitudeGenerator
      */
     public BandMonitor(int sampleSize, double tolerance, int minNotificationInterval)
     {
-        this.sampleSize = sampleSize;
         this.tolerance = tolerance;
         this.minNotificationInterval = minNotificationInterval;
-        samples = new double[sampleSize];
+        rms = new SlidingRms(sampleSize);
     }
 
     /**
@@ -55,20 +62,39 @@ public class BandMonitor implements IBandSampleListener, IAmplitudeGenerator
         process(bandSample);
     }
 
-    private void process(double sample)
+    /**
+     * Processes a batch of samples in order, exactly as if each had been received on its own,
+     * so listeners may be notified several times during one batch
+     *
+     * @param bandSamples the filtered sample values
+     * @param count       the number of valid samples
+     */
+    public void receiveBands(double[] bandSamples, int count)
     {
-        // Don't start averaging until we have a full array of samples
-        if (samplesAdded < sampleSize)
+        for (int i = 0; i < count; i++)
         {
-            samples[samplesAdded++] = sample;
+            process(bandSamples[i]);
         }
-        else
-        {
-            // scoot everything to right by 1 position
-            System.arraycopy(samples, 0, samples, 1, sampleSize - 1);
-            samples[0] = sample;
+    }
 
-            double currentValue = AnalysisUtil.rms(samples);
+    /**
+     * Empties our window after a gap in the signal, so no amplitude mixes samples from
+     * either side of it.  Listeners aren't notified again until the window is full.
+     */
+    public void receiveGap()
+    {
+        rms.clear();
+        samplesAddedSinceNotification = 0;
+    }
+
+    private void process(double sample)
+    {
+        // Don't start averaging until we have a full window of samples
+        boolean full = rms.isFull();
+        rms.add(sample);
+        if (full)
+        {
+            double currentValue = rms.getRms();
             samplesAddedSinceNotification = (++samplesAddedSinceNotification % minNotificationInterval);
             // Notify listeners after every minNotificationInterval samples,
             // or if we've seen an increase or decrease
@@ -89,6 +115,8 @@ public class BandMonitor implements IBandSampleListener, IAmplitudeGenerator
     private void notifyListeners(double rms)
     {
         lastSentValue = rms;
+        LatencyTracer.getInstance().record(LatencyStage.ANALYZED);
+        notifications.increment();
         // Note: This method is called by the eeg reader thread so we'll make an
         //  array copy to iterate to protect against concurrent modification errors
         //  if the listener list is changed by the main thread
@@ -1,8 +1,11 @@
 package com.webkitchen.eeg.analysis;
 
+import com.webkitchen.eeg.analysis.filterdesign.FilterBank;
 import com.webkitchen.eeg.analysis.filterdesign.FilterDesigner;
 import com.webkitchen.eeg.analysis.filterdesign.FilterSpecification;
 import com.webkitchen.eeg.analysis.filterdesign.IIRFilter;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -14,18 +17,27 @@ import java.util.List;
  * as described by our two filter specifications, and notifies
  * listeners of the filtered values.
  * Objects can add themselves as listeners/observers to receive copies of
- * all new filtered samples.
+ * all new filtered samples.  Batches of raw samples are filtered in one pass, and
+ * passed along as a batch to listeners that implement <code>IDualBandSampleBatchListener</code>.
+ * Both bands are run together in a <code>FilterBank</code>.
  *
  * @author Amy Palke
  * @see IDualBandSampleListener
  */
-public class DualBandFilter implements IChannelSampleListener, IDualBandSampleGenerator
+public class DualBandFilter implements IChannelSampleBatchListener, IGapListener, IDualBandSampleGenerator
 {
     // Our listener list must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
     private List<IDualBandSampleListener> listeners = Collections.synchronizedList(new ArrayList<IDualBandSampleListener>());
-    private IIRFilter filter1;
-    private IIRFilter filter2;
+    // Runs both of our filters together, band #1 in lane 0 and band #2 in lane 1
+    private FilterBank filterBank;
+    private double[] bandSampleValues = new double[2];
+    // Hold the filtered values of the latest batch, grown as needed
+    private double[][] bandSamples = new double[2][0];
+
+    // Raw samples filtered by every band and spectrum filter
+    private static final Counter samplesFiltered = MetricRegistry.getInstance().counter(
+            "filter.samples", "Raw samples filtered into frequency bands");
 
     /**
      * Creates a new <code>DualBandFilter</code> that builds two <code>IIRFilter</code>s to match
@@ -38,21 +50,19 @@ public class DualBandFilter implements IChannelSampleListener, IDualBandSampleGe
     public DualBandFilter(FilterSpecification spec1, FilterSpecification spec2)
     {
         FilterDesigner designer = new FilterDesigner();
-        filter1 = designer.createFilter(spec1);
-        filter2 = designer.createFilter(spec2);
+        filterBank = new FilterBank(new IIRFilter[]{designer.createFilter(spec1), designer.createFilter(spec2)});
     }
 
     /**
      * Creates a new <code>DualBandFilter</code> that uses the <code>IIRFilter</code>
-     * parameters to generate band sample values
+     * parameters' coefficients to generate band sample values
      *
      * @param filter1 our first <code>IIRFilter</code>
      * @param filter2 our second <code>IIRFilter</code>
      */
     public DualBandFilter(IIRFilter filter1, IIRFilter filter2)
     {
-        this.filter1 = filter1;
-        this.filter2 = filter2;
+        filterBank = new FilterBank(new IIRFilter[]{filter1, filter2});
     }
 
     /**
@@ -63,9 +73,73 @@ public class DualBandFilter implements IChannelSampleListener, IDualBandSampleGe
      */
     public void receiveSample(double rawSample)
     {
-        double bandSampleValue1 = filter1.process(rawSample);
-        double bandSampleValue2 = filter2.process(rawSample);
-        notifyListeners(bandSampleValue1, bandSampleValue2);
+        samplesFiltered.increment();
+        filterBank.process(rawSample, bandSampleValues);
+        notifyListeners(bandSampleValues[0], bandSampleValues[1]);
+    }
+
+    /**
+     * Clears our filters' memory of the samples before a gap in the signal, and tells our
+     * listeners about the gap
+     */
+    public void receiveGap()
+    {
+        filterBank.reset();
+        IDualBandSampleListener[] listenerCopy = listeners.toArray(new IDualBandSampleListener[0]);
+        for (IDualBandSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IGapListener)
+            {
+                ((IGapListener) listener).receiveGap();
+            }
+        }
+    }
+
+    /**
+     * Processes a batch of samples to filter for our two frequency bands, and notifies
+     * our listeners of the latest band sample values
+     *
+     * @param rawSamples the raw samples that we will process
+     * @param count      the number of valid samples
+     */
+    public void receiveSamples(double[] rawSamples, int count)
+    {
+        if (bandSamples[0].length < count)
+        {
+            bandSamples = new double[2][count];
+        }
+        samplesFiltered.add(count);
+        filterBank.process(rawSamples, bandSamples, count);
+        notifyListeners(bandSamples[0], bandSamples[1], count);
+    }
+
+    /**
+     * Send the new samples to all of our listeners, as a batch to those who accept them
+     *
+     * @param samples1 the latest samples for band #1
+     * @param samples2 the latest samples for band #2
+     * @param count    the number of valid samples
+     */
+    private void notifyListeners(double[] samples1, double[] samples2, int count)
+    {
+        // Note: This method is called by the eeg reader thread so we'll make an
+        //  array copy to iterate to protect against concurrent modification errors
+        //  if the listener list is changed by the main thread
+        IDualBandSampleListener[] listenerCopy = listeners.toArray(new IDualBandSampleListener[0]);
+        for (IDualBandSampleListener listener : listenerCopy)
+        {
+            if (listener instanceof IDualBandSampleBatchListener)
+            {
+                ((IDualBandSampleBatchListener) listener).receiveBands(samples1, samples2, count);
+            }
+            else
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    listener.receiveBand(samples1[i], samples2[i]);
+                }
+            }
+        }
     }
 
     /**
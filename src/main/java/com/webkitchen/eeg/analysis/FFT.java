@@ -0,0 +1,110 @@
+package com.webkitchen.eeg.analysis;
+
+
+/**
+ * An in-place, iterative radix-2 fast Fourier transform of a fixed size.
+ * <P>
+ * The bit-reversal permutation and the twiddle factors (cos and sin of each root of unity)
+ * are calculated once when the transform is created, so transforming creates no garbage and
+ * calls no trigonometric functions.  An FFT is not thread-safe, it should only be used by one
+ * thread.
+ *
+ * @author Amy Palke
+ * @see WelchSpectrumAnalyzer
+ */
+final class FFT
+{
+    private final int size;
+    // For each index, the index with its bits reversed
+    private final int[] reversed;
+    // cos and sin of -2 * PI * k / size, for k < size / 2
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * Creates a new <code>FFT</code>
+     *
+     * @param size the number of points to transform, must be a power of 2
+     */
+    FFT(int size)
+    {
+        if (size < 2 || (size & (size - 1)) != 0)
+        {
+            throw new IllegalArgumentException("size must be a power of 2: " + size);
+        }
+        this.size = size;
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int k = 0; k < size / 2; k++)
+        {
+            double angle = -2 * Math.PI * k / size;
+            cos[k] = Math.cos(angle);
+            sin[k] = Math.sin(angle);
+        }
+    }
+
+    /**
+     * Returns the number of points we transform
+     *
+     * @return our size
+     */
+    int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Replaces the values with their discrete Fourier transform
+     *
+     * @param real the real parts of the values
+     * @param imag the imaginary parts of the values
+     */
+    void transform(double[] real, double[] imag)
+    {
+        // Put the values in bit-reversed order
+        for (int i = 0; i < size; i++)
+        {
+            int j = reversed[i];
+            if (j > i)
+            {
+                double t = real[i];
+                real[i] = real[j];
+                real[j] = t;
+                t = imag[i];
+                imag[i] = imag[j];
+                imag[j] = t;
+            }
+        }
+
+        // Combine pairs of transforms of each length into transforms of twice the length
+        for (int length = 2; length <= size; length <<= 1)
+        {
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length)
+            {
+                for (int k = 0, twiddle = 0; k < half; k++, twiddle += step)
+                {
+                    int even = start + k;
+                    int odd = even + half;
+                    double wr = cos[twiddle];
+                    double wi = sin[twiddle];
+                    double tr = (wr * real[odd]) - (wi * imag[odd]);
+                    double ti = (wr * imag[odd]) + (wi * real[odd]);
+                    real[odd] = real[even] - tr;
+                    imag[odd] = imag[even] - ti;
+                    real[even] += tr;
+                    imag[even] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.webkitchen.eeg.analysis;
+
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Listens for a channel's raw samples, estimates the amplitude in one frequency band, and
+ * notifies listeners of the new amplitude.  This replaces a <code>BandFilter</code> followed
+ * by a <code>BandMonitor</code> when we only need the band's amplitude, not its waveform.
+ * <P>
+ * We keep a sliding DFT (a Goertzel recurrence that moves one sample at a time) of the
+ * latest <code>windowSize</code> samples, for only the DFT bins that fall inside the band.
+ * Each new sample updates each bin with one complex multiply, so the cost per sample grows
+ * with the number of bins in the band, not with the window or a filter order.  By Parseval's
+ * theorem the band's share of the window's power gives an RMS amplitude, in the same units
+ * as <code>BandMonitor</code>'s, and listeners are notified with the same tolerance and
+ * minimum interval rules.
+ * <P>
+ * The recurrence rotates each bin by its twiddle factor every sample, so rounding error
+ * slowly builds up.  As in <code>SlidingRms</code>, each time the window wraps around we
+ * recalculate the bins directly from the window.
+ * <P>
+ * The bins are <code>sampleRate / windowSize</code> Hz apart, so the window must be long
+ * enough to put at least one bin, and preferably several, inside the band.  The estimate
+ * uses a rectangular window, which lets some power leak in from nearby frequencies, and
+ * reads a tone that falls halfway between two bins about 10% low.
+ *
+ * @author Amy Palke
+ * @see BandMonitor
+ * @see BandFilter
+ */
+public class GoertzelMonitor implements IChannelSampleBatchListener, IGapListener, IAmplitudeGenerator
+{
+    // Our listener list must be synchronized since listeners will be added and deleted
+    // by the main thread, but notification happens in the reader thread.
+    private List<IAmplitudeListener> listeners = Collections.synchronizedList(new ArrayList<IAmplitudeListener>());
+    private int samplesAddedSinceNotification = 0;
+
+    // Amplitudes and ratios measured by every monitor
+    private static final Counter notifications = MetricRegistry.getInstance().counter(
+            "monitor.notifications", "Amplitudes and ratios measured and sent to listeners");
+
+    private double lastSentValue;
+    private double tolerance;
+    private int minNotificationInterval;
+
+    private final double[] window;
+    private int next;
+    private int count;
+
+    // The DFT bins inside our band, with each bin's twiddle factor and current value
+    private final int[] bins;
+    private final double[] binCos;
+    private final double[] binSin;
+    private final double[] binReal;
+    private final double[] binImag;
+    // How much each bin's power contributes to the one-sided total
+    private final double[] binWeight;
+
+    // cos and sin of 2 * pi * i / windowSize, for recalculating the bins
+    private final double[] cosTable;
+    private final double[] sinTable;
+
+    /**
+     * Creates a new monitor that will estimate amplitude values in a band of a raw signal
+     *
+     * @param sampleRate              the rate of the raw signal, in samples per second
+     * @param lowFrequency            the lowest frequency of the band, in Hz
+     * @param highFrequency           the highest frequency of the band, in Hz
+     * @param windowSize              the number of samples to use in our amplitude calculation
+     * @param tolerance               the amount of change in amplitude required before notifying listeners
+     * @param minNotificationInterval the minimum interval for notifying listeners, even if amplitude
+     *                                has not changed beyond tolerance amount
+     */
+    public GoertzelMonitor(int sampleRate, double lowFrequency, double highFrequency,
+                           int windowSize, double tolerance, int minNotificationInterval)
+    {
+        if (windowSize < 2)
+        {
+            throw new IllegalArgumentException("windowSize must be at least 2: " + windowSize);
+        }
+        if (lowFrequency > highFrequency)
+        {
+            throw new IllegalArgumentException("Band " + lowFrequency + "-" + highFrequency + "Hz is empty");
+        }
+        this.tolerance = tolerance;
+        this.minNotificationInterval = minNotificationInterval;
+        window = new double[windowSize];
+
+        cosTable = new double[windowSize];
+        sinTable = new double[windowSize];
+        for (int i = 0; i < windowSize; i++)
+        {
+            double angle = 2 * Math.PI * i / windowSize;
+            cosTable[i] = Math.cos(angle);
+            sinTable[i] = Math.sin(angle);
+        }
+
+        bins = findBins(sampleRate, lowFrequency, highFrequency, windowSize);
+        binCos = new double[bins.length];
+        binSin = new double[bins.length];
+        binReal = new double[bins.length];
+        binImag = new double[bins.length];
+        binWeight = new double[bins.length];
+        for (int b = 0; b < bins.length; b++)
+        {
+            int k = bins[b];
+            binCos[b] = cosTable[k];
+            binSin[b] = sinTable[k];
+            // DC and Nyquist have no mirror image in the negative frequencies
+            boolean unpaired = (k == 0) || (k * 2 == windowSize);
+            binWeight[b] = unpaired ? 1 : 2;
+        }
+    }
+
+    /**
+     * Returns the DFT bins whose frequencies fall inside the band, or the single nearest
+     * bin if the band is narrower than the bin spacing
+     */
+    private static int[] findBins(int sampleRate, double lowFrequency, double highFrequency, int windowSize)
+    {
+        double binWidth = (double) sampleRate / windowSize;
+        int nyquistBin = windowSize / 2;
+        int first = Math.max(0, (int) Math.ceil(lowFrequency / binWidth));
+        int last = Math.min(nyquistBin, (int) Math.floor(highFrequency / binWidth));
+        if (first > last)
+        {
+            int nearest = (int) Math.round((lowFrequency + highFrequency) / 2 / binWidth);
+            first = last = Math.max(0, Math.min(nyquistBin, nearest));
+        }
+        int[] bins = new int[last - first + 1];
+        for (int b = 0; b < bins.length; b++)
+        {
+            bins[b] = first + b;
+        }
+        return bins;
+    }
+
+    /**
+     * Processes the sample to estimate the band amplitude, and notifies all listeners if
+     * the difference between the new amplitude and last sent amplitude is greater than our
+     * tolerance amount, or if the number of processed values has reached our minNotificationInterval
+     *
+     * @param rawSample the latest raw EEG sample
+     */
+    public void receiveSample(double rawSample)
+    {
+        process(rawSample);
+    }
+
+    /**
+     * Processes a batch of samples in order, exactly as if each had been received on its own,
+     * so listeners may be notified several times during one batch
+     *
+     * @param rawSamples the latest raw EEG samples
+     * @param count      the number of valid samples
+     */
+    public void receiveSamples(double[] rawSamples, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            process(rawSamples[i]);
+        }
+    }
+
+    /**
+     * Empties our window after a gap in the signal, so no amplitude mixes samples from
+     * either side of it.  Listeners aren't notified again until the window is full.
+     */
+    public void receiveGap()
+    {
+        Arrays.fill(window, 0);
+        Arrays.fill(binReal, 0);
+        Arrays.fill(binImag, 0);
+        next = 0;
+        count = 0;
+        samplesAddedSinceNotification = 0;
+    }
+
+    private void process(double sample)
+    {
+        // Don't start estimating until we have a full window of samples
+        boolean full = (count == window.length);
+        slide(sample);
+        if (full)
+        {
+            double currentValue = getAmplitude();
+            samplesAddedSinceNotification = (++samplesAddedSinceNotification % minNotificationInterval);
+            // Notify listeners after every minNotificationInterval samples,
+            // or if we've seen an increase or decrease
+            if (samplesAddedSinceNotification == 0 ||
+                currentValue < (lastSentValue - tolerance) ||
+                currentValue > (lastSentValue + tolerance))
+            {
+                notifyListeners(currentValue);
+            }
+        }
+    }
+
+    /**
+     * Adds a sample to the window, replacing the oldest, and moves each bin's DFT along by
+     * one sample: the new sample comes in, the oldest goes out, and the bin is rotated so the
+     * window's new oldest sample is again at phase 0
+     */
+    private void slide(double sample)
+    {
+        double delta = sample - window[next];
+        window[next] = sample;
+        for (int b = 0; b < bins.length; b++)
+        {
+            double re = binReal[b] + delta;
+            double im = binImag[b];
+            binReal[b] = (re * binCos[b]) - (im * binSin[b]);
+            binImag[b] = (re * binSin[b]) + (im * binCos[b]);
+        }
+        if (count < window.length)
+        {
+            count++;
+        }
+        if (++next == window.length)
+        {
+            next = 0;
+            // Correct any drift in our bins
+            recalculateBins();
+        }
+    }
+
+    /**
+     * Calculates each bin's DFT directly from the window, which is in oldest-first order
+     * whenever our next position has wrapped around to 0
+     */
+    private void recalculateBins()
+    {
+        int size = window.length;
+        for (int b = 0; b < bins.length; b++)
+        {
+            int k = bins[b];
+            double re = 0;
+            double im = 0;
+            for (int m = 0, phase = 0; m < size; m++)
+            {
+                re += window[m] * cosTable[phase];
+                im -= window[m] * sinTable[phase];
+                phase += k;
+                if (phase >= size)
+                {
+                    phase -= size;
+                }
+            }
+            binReal[b] = re;
+            binImag[b] = im;
+        }
+    }
+
+    /**
+     * Returns the RMS amplitude of the band in the current window
+     */
+    private double getAmplitude()
+    {
+        double power = 0;
+        for (int b = 0; b < bins.length; b++)
+        {
+            power += binWeight[b] * ((binReal[b] * binReal[b]) + (binImag[b] * binImag[b]));
+        }
+        return Math.sqrt(power) / window.length;
+    }
+
+    /**
+     * Send the new amplitude to all of our listeners
+     *
+     * @param amplitude the latest amplitude
+     */
+    private void notifyListeners(double amplitude)
+    {
+        lastSentValue = amplitude;
+        LatencyTracer.getInstance().record(LatencyStage.ANALYZED);
+        notifications.increment();
+        // Note: This method is called by the eeg reader thread so we'll make an
+        //  array copy to iterate to protect against concurrent modification errors
+        //  if the listener list is changed by the main thread
+        IAmplitudeListener[] listenerCopy = listeners.toArray(new IAmplitudeListener[0]);
+        for (IAmplitudeListener listener : listenerCopy)
+        {
+            listener.receiveAmplitude(amplitude);
+        }
+        samplesAddedSinceNotification = 0;
+    }
+
+    /**
+     * Attach listener to receive notification/copies of new amplitude levels
+     *
+     * @param listener the observer who wants to receive amplitude levels
+     */
+    public void addAmplitudeListener(IAmplitudeListener listener)
+    {
+        // Add the listener if he isn't already in our list
+        if (!listeners.contains(listener))
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove listener from our notification list
+     *
+     * @param listener the observer to remove
+     */
+    public void removeAmplitudeListener(IAmplitudeListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Remove all listeners from our notification list
+     */
+    public void removeAllAmplitudeListeners()
+    {
+        listeners.clear();
+    }
+}
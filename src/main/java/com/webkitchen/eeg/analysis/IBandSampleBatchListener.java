@@ -0,0 +1,21 @@
+package com.webkitchen.eeg.analysis;
+
+
+/**
+ * Listener interface for receiving filtered frequency band values in batches.  Generators
+ * deliver a block of consecutive values in one call to listeners that implement this
+ * interface, and one value at a time to other <code>IBandSampleListener</code>s.
+ *
+ * @author Amy Palke
+ * @see IBandSampleGenerator
+ */
+public interface IBandSampleBatchListener extends IBandSampleListener
+{
+    /**
+     * Receive and process the latest filtered frequency band values, oldest first
+     *
+     * @param sampleValues filtered frequency band values, the array must not be changed or kept
+     * @param count        the number of valid values in the array
+     */
+    public void receiveBands(double[] sampleValues, int count);
+}
@@ -0,0 +1,22 @@
+package com.webkitchen.eeg.analysis;
+
+
+/**
+ * Listener interface for receiving a channel's raw EEG samples in batches.  Generators
+ * deliver a block of consecutive samples in one call to listeners that implement this
+ * interface, and one sample at a time to other <code>IChannelSampleListener</code>s, so
+ * batch listeners are added with the generator's usual <code>addSampleListener</code> method.
+ *
+ * @author Amy Palke
+ * @see IChannelSampleGenerator
+ */
+public interface IChannelSampleBatchListener extends IChannelSampleListener
+{
+    /**
+     * Receive the latest raw EEG samples for a specific channel, oldest first
+     *
+     * @param rawSamples the latest raw EEG samples, the array must not be changed or kept
+     * @param count      the number of valid samples in the array
+     */
+    public void receiveSamples(double[] rawSamples, int count);
+}
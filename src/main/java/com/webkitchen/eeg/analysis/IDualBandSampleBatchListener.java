@@ -0,0 +1,23 @@
+package com.webkitchen.eeg.analysis;
+
+
+/**
+ * Listener interface for receiving two filtered frequency band values in batches.  Generators
+ * deliver a block of consecutive values in one call to listeners that implement this
+ * interface, and one pair at a time to other <code>IDualBandSampleListener</code>s.
+ *
+ * @author Amy Palke
+ * @see IDualBandSampleGenerator
+ */
+public interface IDualBandSampleBatchListener extends IDualBandSampleListener
+{
+    /**
+     * Receive and process the latest filtered frequency band values, oldest first.
+     * The arrays must not be changed or kept.
+     *
+     * @param sampleOneValues one set of filtered frequency band values
+     * @param sampleTwoValues the other set of filtered frequency band values
+     * @param count           the number of valid values in each array
+     */
+    public void receiveBands(double[] sampleOneValues, double[] sampleTwoValues, int count);
+}
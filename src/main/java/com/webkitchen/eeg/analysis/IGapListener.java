@@ -0,0 +1,24 @@
+package com.webkitchen.eeg.analysis;
+
+import java.util.EventListener;
+
+
+/**
+ * Listener interface for learning of gaps in a channel's EEG signal, when samples were
+ * lost and couldn't be filled in.  Sample listeners that keep state built from earlier
+ * samples, such as filters and sliding windows, implement this interface as well, so they
+ * can start afresh rather than treat the samples either side of the gap as consecutive.
+ * Filters pass the gap along to their own listeners that implement this interface.
+ *
+ * @author Amy Palke
+ * @see IChannelSampleListener
+ * @see com.webkitchen.eeg.acquisition.RawSample#isAfterGap
+ */
+public interface IGapListener extends EventListener
+{
+    /**
+     * Called before the first sample after a gap.  Discard any state built from the
+     * samples before it.
+     */
+    public void receiveGap();
+}
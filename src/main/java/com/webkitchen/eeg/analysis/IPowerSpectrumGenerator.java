@@ -0,0 +1,31 @@
+package com.webkitchen.eeg.analysis;
+
+/**
+ * Generates power spectral density estimates for a channel, and notifies its
+ * listeners of the latest <code>PowerSpectrum</code>
+ *
+ * @author Amy Palke
+ * @see IPowerSpectrumListener
+ * @see PowerSpectrum
+ */
+public interface IPowerSpectrumGenerator
+{
+    /**
+     * Attach listener to receive notification of new power spectra
+     *
+     * @param listener the observer who wants to receive power spectra
+     */
+    public void addPowerSpectrumListener(IPowerSpectrumListener listener);
+
+    /**
+     * Remove listener from our notification list
+     *
+     * @param listener the observer to remove
+     */
+    public void removePowerSpectrumListener(IPowerSpectrumListener listener);
+
+    /**
+     * Remove all listeners from our notification list
+     */
+    public void removeAllPowerSpectrumListeners();
+}
@@ -0,0 +1,22 @@
+package com.webkitchen.eeg.analysis;
+
+import java.util.EventListener;
+
+
+/**
+ * Listens for new power spectral density estimates
+ *
+ * @author Amy Palke
+ * @see IPowerSpectrumGenerator
+ * @see PowerSpectrum
+ */
+public interface IPowerSpectrumListener extends EventListener
+{
+    /**
+     * Receive and process the latest power spectrum.  The spectrum is reused for the
+     * next estimate, so copy any values you want to keep.
+     *
+     * @param spectrum the latest power spectrum
+     */
+    public void receivePowerSpectrum(PowerSpectrum spectrum);
+}
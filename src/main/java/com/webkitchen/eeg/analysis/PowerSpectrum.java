@@ -0,0 +1,109 @@
+package com.webkitchen.eeg.analysis;
+
+
+/**
+ * Contains a power spectral density estimate for one channel: the power in each
+ * frequency bin, and the total power in each of the generator's frequency bands.
+ * <P>
+ * To avoid creating garbage for every estimate, the generator reuses a single
+ * <code>PowerSpectrum</code>, so listeners must not change its arrays, and must copy
+ * any values they want to keep after <code>receivePowerSpectrum</code> returns.
+ *
+ * @author Amy Palke
+ * @see IPowerSpectrumGenerator
+ * @see WelchSpectrumAnalyzer
+ */
+public final class PowerSpectrum
+{
+    private final double binWidth;
+    private final double[] binPower;
+    private final double[][] bands;
+    private final double[] bandPower;
+
+    /**
+     * Creates a new, empty <code>PowerSpectrum</code>
+     *
+     * @param binWidth the width of each frequency bin, in Hz
+     * @param binCount the number of frequency bins, from 0 Hz to the Nyquist frequency
+     * @param bands    the low and high frequency of each band, in Hz
+     */
+    PowerSpectrum(double binWidth, int binCount, double[][] bands)
+    {
+        this.binWidth = binWidth;
+        this.binPower = new double[binCount];
+        this.bands = bands;
+        this.bandPower = new double[bands.length];
+    }
+
+    /**
+     * Returns the width of each frequency bin
+     *
+     * @return the bin width, in Hz
+     */
+    public double getBinWidth()
+    {
+        return binWidth;
+    }
+
+    /**
+     * Returns the number of frequency bins, from 0 Hz to the Nyquist frequency
+     *
+     * @return the number of bins
+     */
+    public int getBinCount()
+    {
+        return binPower.length;
+    }
+
+    /**
+     * Returns the center frequency of a bin
+     *
+     * @param bin the bin, starting at 0 for 0 Hz
+     * @return the bin's frequency, in Hz
+     */
+    public double getBinFrequency(int bin)
+    {
+        return bin * binWidth;
+    }
+
+    /**
+     * Returns the power spectral density of every bin, in squared sample units per Hz
+     *
+     * @return the density of each bin
+     */
+    public double[] getBinPower()
+    {
+        return binPower;
+    }
+
+    /**
+     * Returns the number of frequency bands
+     *
+     * @return the number of bands
+     */
+    public int getBandCount()
+    {
+        return bands.length;
+    }
+
+    /**
+     * Returns the low and high frequency of a band
+     *
+     * @param band the band, in the order they were given to the generator
+     * @return an array holding the band's low and high frequency, in Hz
+     */
+    public double[] getBand(int band)
+    {
+        return bands[band];
+    }
+
+    /**
+     * Returns the total power of every band, in squared sample units
+     *
+     * @return the power of each band
+     */
+    public double[] getBandPower()
+    {
+        return bandPower;
+    }
+}
@@ -1,5 +1,10 @@
 package com.webkitchen.eeg.analysis;
 
+import com.webkitchen.eeg.latency.LatencyStage;
+import com.webkitchen.eeg.latency.LatencyTracer;
+import com.webkitchen.eeg.metrics.Counter;
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -8,11 +13,12 @@ import java.util.List;
  * Listens for samples in two given bands, calculates the amplitude averages for each and the
  * ratio between the two, then notifies listeners of the ratio.
  * Objects can add themselves as listeners/observers to receive copies of
- * all new amplitude ratios.
+ * all new amplitude ratios.  Each amplitude is a sliding-window RMS, updated in
+ * constant time per sample.
  *
  * @author Amy Palke
  */
-public class RatioMonitor implements IDualBandSampleListener, IRatioGenerator, IDualAmplitudeGenerator
+public class RatioMonitor implements IDualBandSampleBatchListener, IGapListener, IRatioGenerator, IDualAmplitudeGenerator
 {
     // Our listener lists must be synchronized since listeners will be added and deleted
     // by the main thread, but notification happens in the reader thread.
@@ -22,6 +28,10 @@ public class RatioMonitor implements IDualBandSampleListener, IRatioGenerator, I
     private int samplesAdded = 0;
     private int samplesAddedSinceNotification = 0;
 
+    // Amplitudes and ratios measured by every monitor
+    private static final Counter notifications = MetricRegistry.getInstance().counter(
+            "monitor.notifications", "Amplitudes and ratios measured and sent to listeners");
+
     private double lastSentValue;
     private double tolerance;
     private int minNotificationInterval;
@@ -85,9 +95,39 @@ public class RatioMonitor implements IDualBandSampleListener, IRatioGenerator, I
         }
     }
 
+    /**
+     * Processes a batch of samples in order, exactly as if each pair had been received on
+     * its own, so listeners may be notified several times during one batch
+     *
+     * @param samples1 one set of filtered samples
+     * @param samples2 the other set of filtered samples
+     * @param count    the number of valid samples in each array
+     */
+    public void receiveBands(double[] samples1, double[] samples2, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            receiveBand(samples1[i], samples2[i]);
+        }
+    }
+
+    /**
+     * Empties our windows after a gap in the signal, so no ratio mixes samples from
+     * either side of it.  Listeners aren't notified again until the windows are full.
+     */
+    public void receiveGap()
+    {
+        monitor1.clear();
+        monitor2.clear();
+        samplesAdded = 0;
+        samplesAddedSinceNotification = 0;
+    }
+
     private void notifyRatioListeners(double currentRatio)
     {
         lastSentValue = currentRatio;
+        LatencyTracer.getInstance().record(LatencyStage.ANALYZED);
+        notifications.increment();
         // Note: This method is called by the eeg reader thread so we'll make an
         //  array copy to iterate to protect against concurrent modification errors
         //  if the listener list is changed by the main thread
@@ -178,21 +218,24 @@ public class RatioMonitor implements IDualBandSampleListener, IRatioGenerator, I
 
     private class AmplitudeMonitor
     {
-        private double[] samples;
+        private SlidingRms rms;
         private double currentValue;
 
         public AmplitudeMonitor(int sampleSize)
         {
-            samples = new double[sampleSize];
+            rms = new SlidingRms(sampleSize);
         }
 
         private void process(double sample)
         {
-            // scoot everything to right by 1 position
-            System.arraycopy(samples, 0, samples, 1, sampleSize - 1);
-            samples[0] = sample;
+            rms.add(sample);
+            currentValue = rms.getRms();
+        }
 
-            currentValue = AnalysisUtil.rms(samples);
+        private void clear()
+        {
+            rms.clear();
+            currentValue = 0;
         }
 
     }
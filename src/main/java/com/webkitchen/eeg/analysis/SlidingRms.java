@@ -0,0 +1,94 @@
+package com.webkitchen.eeg.analysis;
+
+import java.util.Arrays;
+
+
+/**
+ * Calculates the rms (Root Mean Square) of the latest samples in a fixed-size window,
+ * in constant time per sample.
+ * <P>
+ * Samples are kept in a ring buffer, with a running sum of their squares: each new sample
+ * adds its square and subtracts the square of the sample it replaces.  Adding and
+ * subtracting lets floating point rounding error build up in the running sum, so each time
+ * the ring wraps around we recalculate the sum from the window.  That costs one pass over
+ * the window every <code>windowSize</code> samples, which is still constant time per sample.
+ *
+ * @author Amy Palke
+ * @see BandMonitor
+ * @see RatioMonitor
+ */
+final class SlidingRms
+{
+    private final double[] window;
+    private int next;
+    private int count;
+    private double sumOfSquares;
+
+    /**
+     * Creates a new <code>SlidingRms</code>, with an empty window
+     *
+     * @param windowSize the number of samples to use in our RMS calculation
+     */
+    SlidingRms(int windowSize)
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException("windowSize must be at least 1: " + windowSize);
+        }
+        window = new double[windowSize];
+    }
+
+    /**
+     * Adds a sample to the window, replacing the oldest sample once the window is full
+     *
+     * @param sample the latest sample
+     */
+    void add(double sample)
+    {
+        double oldest = window[next];
+        window[next] = sample;
+        sumOfSquares += (sample * sample) - (oldest * oldest);
+        if (count < window.length)
+        {
+            count++;
+        }
+        if (++next == window.length)
+        {
+            next = 0;
+            // Correct any drift in our running sum
+            sumOfSquares = AnalysisUtil.sumOfSquares(window);
+        }
+    }
+
+    /**
+     * Empties the window, so the rms starts afresh from the next sample
+     */
+    void clear()
+    {
+        Arrays.fill(window, 0);
+        next = 0;
+        count = 0;
+        sumOfSquares = 0;
+    }
+
+    /**
+     * Returns true once the window has been filled with samples
+     *
+     * @return true if the window is full
+     */
+    boolean isFull()
+    {
+        return count == window.length;
+    }
+
+    /**
+     * Returns the rms of the window.  Until the window is full, the missing samples count as 0.
+     *
+     * @return the rms of the latest samples
+     */
+    double getRms()
+    {
+        // Rounding can leave a tiny negative sum when every sample is near 0
+        return Math.sqrt(Math.max(0, sumOfSquares) / window.length);
+    }
+}
@@ -0,0 +1,292 @@
+package com.webkitchen.eeg.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Listens for new raw sample values, and estimates the channel's power spectral density
+ * with Welch's method: the spectra of overlapping, windowed segments are averaged.
+ * Objects can add themselves as listeners/observers to receive each new
+ * <code>PowerSpectrum</code>, with the power in every frequency bin and in each of our
+ * frequency bands.
+ * <P>
+ * Samples are kept in a ring buffer of one segment.  Every <code>hopSize</code> samples we
+ * copy out the latest segment, remove its mean, apply a Hann window, and transform it with
+ * a preallocated radix-2 <code>FFT</code>.  The segment's periodogram replaces the oldest
+ * of the last <code>averagedSegments</code> periodograms, and their average is published.
+ * Window tables and all buffers are created up front, so processing creates no garbage.
+ * <P>
+ * One transform per hop covers every band at once, so any number of bands, with any edges,
+ * costs about the same as one.  Compared to bandpass filters, the estimate is only updated
+ * once per hop, and is smoothed over <code>fftSize + (averagedSegments - 1) * hopSize</code>
+ * samples.
+ * <P>
+ * After a gap in the signal, the segment and the averaged periodograms are emptied, so no
+ * estimate mixes samples from either side of the gap.
+ *
+ * @author Amy Palke
+ * @see PowerSpectrum
+ * @see IPowerSpectrumListener
+ */
+public class WelchSpectrumAnalyzer implements IChannelSampleBatchListener, IGapListener, IPowerSpectrumGenerator
+{
+    // Our listener list must be synchronized since listeners will be added and deleted
+    // by the main thread, but notification happens in the reader thread.
+    private List<IPowerSpectrumListener> listeners = Collections.synchronizedList(new ArrayList<IPowerSpectrumListener>());
+
+    private final FFT fft;
+    private final int fftSize;
+    private final int hopSize;
+
+    // The latest fftSize samples, oldest at next once the ring has filled
+    private final double[] ring;
+    private int next;
+    private int samplesAdded;
+    private int samplesSinceHop;
+
+    // Precomputed Hann window, and the scale that turns |X|^2 into density
+    private final double[] window;
+    private final double densityScale;
+
+    // FFT work arrays
+    private final double[] real;
+    private final double[] imag;
+
+    // The last averagedSegments periodograms, and how many are valid
+    private final double[][] periodograms;
+    private int nextPeriodogram;
+    private int periodogramCount;
+
+    // First (inclusive) and last (exclusive) bin of each band
+    private final int[] bandStart;
+    private final int[] bandEnd;
+
+    private final PowerSpectrum spectrum;
+
+    /**
+     * Creates a new <code>WelchSpectrumAnalyzer</code>
+     *
+     * @param sampleRate       the number of samples per second
+     * @param fftSize          the number of samples in each segment, must be a power of 2
+     * @param hopSize          the number of samples between segments, fftSize / 2 gives the usual 50% overlap
+     * @param averagedSegments the number of segment spectra to average
+     * @param bands            the low (inclusive) and high (exclusive) frequency of each band
+     *                         to total, in Hz, such as {{8, 12}, {12, 25}}
+     */
+    public WelchSpectrumAnalyzer(int sampleRate, int fftSize, int hopSize, int averagedSegments, double[][] bands)
+    {
+        if (hopSize < 1 || hopSize > fftSize)
+        {
+            throw new IllegalArgumentException("hopSize must be between 1 and fftSize: " + hopSize);
+        }
+        if (averagedSegments < 1)
+        {
+            throw new IllegalArgumentException("averagedSegments must be at least 1: " + averagedSegments);
+        }
+        fft = new FFT(fftSize);
+        this.fftSize = fftSize;
+        this.hopSize = hopSize;
+        ring = new double[fftSize];
+        real = new double[fftSize];
+        imag = new double[fftSize];
+
+        // Periodic Hann window, which tiles evenly at 50% overlap
+        window = new double[fftSize];
+        double windowPower = 0;
+        for (int i = 0; i < fftSize; i++)
+        {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize);
+            windowPower += window[i] * window[i];
+        }
+        densityScale = 1.0 / (sampleRate * windowPower);
+
+        int binCount = (fftSize / 2) + 1;
+        periodograms = new double[averagedSegments][binCount];
+
+        double binWidth = (double) sampleRate / fftSize;
+        double[][] bandCopy = new double[bands.length][];
+        bandStart = new int[bands.length];
+        bandEnd = new int[bands.length];
+        for (int i = 0; i < bands.length; i++)
+        {
+            bandCopy[i] = new double[]{bands[i][0], bands[i][1]};
+            bandStart[i] = Math.min(binCount, (int) Math.ceil(bands[i][0] / binWidth));
+            bandEnd[i] = Math.min(binCount, Math.max(bandStart[i], (int) Math.ceil(bands[i][1] / binWidth)));
+        }
+        spectrum = new PowerSpectrum(binWidth, binCount, bandCopy);
+    }
+
+    /**
+     * Adds the sample to our current segment, and publishes a new estimate every hop
+     *
+     * @param rawSample the raw sample that we will process
+     */
+    public void receiveSample(double rawSample)
+    {
+        ring[next] = rawSample;
+        if (++next == fftSize)
+        {
+            next = 0;
+        }
+        if (samplesAdded < fftSize)
+        {
+            samplesAdded++;
+        }
+        // Don't start estimating until we have a full segment
+        if (++samplesSinceHop >= hopSize && samplesAdded == fftSize)
+        {
+            samplesSinceHop = 0;
+            estimate();
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Adds a batch of samples, publishing a new estimate for each hop completed
+     *
+     * @param rawSamples the raw samples that we will process
+     * @param count      the number of valid samples
+     */
+    public void receiveSamples(double[] rawSamples, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            receiveSample(rawSamples[i]);
+        }
+    }
+
+    /**
+     * Empties our segment and periodograms after a gap in the signal, so no estimate mixes
+     * samples from either side of it.  Listeners aren't notified again until a new segment
+     * is full.
+     */
+    public void receiveGap()
+    {
+        Arrays.fill(ring, 0);
+        next = 0;
+        samplesAdded = 0;
+        samplesSinceHop = 0;
+        for (double[] periodogram : periodograms)
+        {
+            Arrays.fill(periodogram, 0);
+        }
+        nextPeriodogram = 0;
+        periodogramCount = 0;
+    }
+
+    /**
+     * Transforms the latest segment, and averages its periodogram into our spectrum
+     */
+    private void estimate()
+    {
+        // Unroll the ring, oldest first, and remove the segment's mean
+        double mean = 0;
+        for (int i = 0; i < fftSize; i++)
+        {
+            mean += ring[i];
+        }
+        mean /= fftSize;
+        for (int i = 0, j = next; i < fftSize; i++)
+        {
+            real[i] = (ring[j] - mean) * window[i];
+            imag[i] = 0;
+            if (++j == fftSize)
+            {
+                j = 0;
+            }
+        }
+        fft.transform(real, imag);
+
+        // One-sided density: every bin but 0 Hz and Nyquist also holds its negative frequency
+        double[] periodogram = periodograms[nextPeriodogram];
+        int binCount = periodogram.length;
+        for (int k = 0; k < binCount; k++)
+        {
+            double density = ((real[k] * real[k]) + (imag[k] * imag[k])) * densityScale;
+            periodogram[k] = (k == 0 || k == binCount - 1) ? density : 2 * density;
+        }
+        if (++nextPeriodogram == periodograms.length)
+        {
+            nextPeriodogram = 0;
+        }
+        if (periodogramCount < periodograms.length)
+        {
+            periodogramCount++;
+        }
+
+        // Average the periodograms we have so far
+        double[] binPower = spectrum.getBinPower();
+        for (int k = 0; k < binCount; k++)
+        {
+            double sum = 0;
+            for (int p = 0; p < periodogramCount; p++)
+            {
+                sum += periodograms[p][k];
+            }
+            binPower[k] = sum / periodogramCount;
+        }
+
+        // Total each band's density over its bins
+        double binWidth = spectrum.getBinWidth();
+        double[] bandPower = spectrum.getBandPower();
+        for (int b = 0; b < bandPower.length; b++)
+        {
+            double sum = 0;
+            for (int k = bandStart[b]; k < bandEnd[b]; k++)
+            {
+                sum += binPower[k];
+            }
+            bandPower[b] = sum * binWidth;
+        }
+    }
+
+    /**
+     * Send the new spectrum to all of our listeners
+     */
+    private void notifyListeners()
+    {
+        // Note: This method is called by the eeg reader thread so we'll make an
+        //  array copy to iterate to protect against concurrent modification errors
+        //  if the listener list is changed by the main thread
+        IPowerSpectrumListener[] listenerCopy = listeners.toArray(new IPowerSpectrumListener[0]);
+        for (IPowerSpectrumListener listener : listenerCopy)
+        {
+            listener.receivePowerSpectrum(spectrum);
+        }
+    }
+
+    /**
+     * Attach listener to receive notification of new power spectra
+     *
+     * @param listener the observer who wants to receive power spectra
+     */
+    public void addPowerSpectrumListener(IPowerSpectrumListener listener)
+    {
+        // Add the listener if he isn't already in our list
+        if (!listeners.contains(listener))
+        {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove listener from our notification list
+     *
+     * @param listener the observer to remove
+     */
+    public void removePowerSpectrumListener(IPowerSpectrumListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Remove all listeners from our notification list
+     */
+    public void removeAllPowerSpectrumListeners()
+    {
+        listeners.clear();
+    }
+}
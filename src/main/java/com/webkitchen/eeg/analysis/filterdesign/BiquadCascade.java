@@ -0,0 +1,195 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.util.Arrays;
+
+
+/**
+ * Runs the coefficients created by the <code>FilterDesigner</code> as a cascade of
+ * second-order sections (biquads) in transposed direct form II.
+ * <P>
+ * The designer's coefficient array holds an overall gain, followed by the two feedback
+ * coefficients of each section.  The feed-forward coefficients aren't stored, since they
+ * follow from the section's position: the first half of the sections have zeros at DC
+ * (1, -2, 1), an odd order's middle section has one zero at each end (1, 0, -1), and the
+ * rest have zeros at Nyquist (1, 2, 1).  We expand them once, when we are created.
+ * <P>
+ * Each section keeps its two state values side by side in one flat array, so processing
+ * a sample is a single pass over the sections, with no array shifting and no branches.
+ * The results match the original Fidlib direct form II code to within rounding error.
+ *
+ * @author Amy Palke
+ * @see IIRFilter
+ * @see FilterDesigner
+ */
+public final class BiquadCascade
+{
+    // Coefficients per section, in order
+    static final int B1 = 0;
+    static final int B2 = 1;
+    static final int A1 = 2;
+    static final int A2 = 3;
+    static final int COEFFICIENTS_PER_SECTION = 4;
+
+    private final double gain;
+    private final int sectionCount;
+    // b1, b2, a1, a2 for each section; b0 is always 1
+    private final double[] sections;
+    // s1, s2 for each section
+    private final double[] state;
+
+    /**
+     * Creates a new <code>BiquadCascade</code> to run the coefficients designed by the
+     * <code>FilterDesigner</code>.  For valid results, the coefficients should have been
+     * designed for the <code>FilterSpecification</code>, but we don't check validity here,
+     * that is the responsibility of the caller.
+     *
+     * @param spec the specification that defines our filter's properties
+     * @param coef the coefficients created by the <code>FilterDesigner</code>
+     */
+    public BiquadCascade(FilterSpecification spec, double[] coef)
+    {
+        int order = spec.getOrder();
+        boolean oddOrder = (order % 2) != 0;
+        gain = coef[0];
+        sectionCount = (coef.length - 1) / 2;
+        sections = new double[sectionCount * COEFFICIENTS_PER_SECTION];
+        state = new double[sectionCount * 2];
+
+        for (int k = 0; k < sectionCount; k++)
+        {
+            // The designer's index of this section's first feedback coefficient
+            int i = (k * 2) + 1;
+            int s = k * COEFFICIENTS_PER_SECTION;
+            if (i < order)
+            {
+                sections[s + B1] = -2;
+                sections[s + B2] = 1;
+            }
+            else if (i == order && oddOrder)
+            {
+                sections[s + B1] = 0;
+                sections[s + B2] = -1;
+            }
+            else
+            {
+                sections[s + B1] = 2;
+                sections[s + B2] = 1;
+            }
+            sections[s + A1] = coef[i + 1];
+            sections[s + A2] = coef[i];
+        }
+    }
+
+    /**
+     * Processes the raw digital signal input to filter for our specific frequencies
+     *
+     * @param val the raw sample value
+     * @return the filtered value
+     */
+    public double process(double val)
+    {
+        final double[] c = sections;
+        final double[] z = state;
+        double x = val * gain;
+        for (int k = 0, s = 0; k < z.length; k += 2, s += COEFFICIENTS_PER_SECTION)
+        {
+            double y = x + z[k];
+            z[k] = (c[s + B1] * x) - (c[s + A1] * y) + z[k + 1];
+            z[k + 1] = (c[s + B2] * x) - (c[s + A2] * y);
+            x = y;
+        }
+        return x;
+    }
+
+    /**
+     * Processes a block of raw digital signal input to filter for our specific frequencies.
+     * Gives the same results as calling <code>process</code> for each value in turn.
+     * <P>
+     * We still run each sample through every section before starting the next sample.  Each
+     * section's recursion is serial, so running the whole block through one section at a time
+     * leaves the processor waiting on every multiply, while sample order lets it overlap one
+     * sample's later sections with the next sample's earlier ones.
+     *
+     * @param input  the raw sample values, oldest first
+     * @param output receives the filtered values, may be the same array as input
+     * @param count  the number of values to process
+     */
+    public void process(double[] input, double[] output, int count)
+    {
+        final double[] c = sections;
+        final double[] z = state;
+        for (int n = 0; n < count; n++)
+        {
+            double x = input[n] * gain;
+            for (int k = 0, s = 0; k < z.length; k += 2, s += COEFFICIENTS_PER_SECTION)
+            {
+                double y = x + z[k];
+                z[k] = (c[s + B1] * x) - (c[s + A1] * y) + z[k + 1];
+                z[k + 1] = (c[s + B2] * x) - (c[s + A2] * y);
+                x = y;
+            }
+            output[n] = x;
+        }
+    }
+
+    /**
+     * Clears our state, as if we had never processed any input
+     */
+    public void reset()
+    {
+        Arrays.fill(state, 0);
+    }
+
+    /**
+     * Sets our state as if we had been given the same input value forever, so a signal
+     * that starts at that value doesn't start with a step.  Each section then outputs its
+     * DC gain times its input: y = x * (1 + b1 + b2) / (1 + a1 + a2).
+     *
+     * @param val the raw sample value
+     */
+    void setSteadyState(double val)
+    {
+        final double[] c = sections;
+        final double[] z = state;
+        double x = val * gain;
+        for (int k = 0, s = 0; k < z.length; k += 2, s += COEFFICIENTS_PER_SECTION)
+        {
+            double y = x * (1 + c[s + B1] + c[s + B2]) / (1 + c[s + A1] + c[s + A2]);
+            z[k] = y - x;
+            z[k + 1] = (c[s + B2] * x) - (c[s + A2] * y);
+            x = y;
+        }
+    }
+
+    /**
+     * Returns the overall gain applied to the input before the first section
+     *
+     * @return the gain
+     */
+    double getGain()
+    {
+        return gain;
+    }
+
+    /**
+     * Returns the number of second-order sections in the cascade
+     *
+     * @return the number of sections
+     */
+    int getSectionCount()
+    {
+        return sectionCount;
+    }
+
+    /**
+     * Returns one coefficient of a section
+     *
+     * @param section     the section, starting at 0
+     * @param coefficient one of B1, B2, A1 or A2
+     * @return the coefficient's value
+     */
+    double getCoefficient(int section, int coefficient)
+    {
+        return sections[(section * COEFFICIENTS_PER_SECTION) + coefficient];
+    }
+}
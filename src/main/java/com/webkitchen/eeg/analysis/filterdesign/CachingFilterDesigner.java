@@ -0,0 +1,74 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+
+/**
+ * A <code>FilterDesigner</code> that looks in the precomputed
+ * <code>FilterCoefficientTable</code> and then a <code>FilterCoefficientCache</code> before
+ * designing, and caches whatever it designs.  Callers use it exactly like a
+ * <code>FilterDesigner</code>.
+ * <P>
+ * Subclasses can override <code>designStarting</code> to learn when a specification
+ * wasn't cached and is about to be designed, for example to tell the user to wait.
+ *
+ * @author Amy Palke
+ * @see FilterCoefficientTable
+ * @see FilterCoefficientCache
+ */
+public class CachingFilterDesigner extends FilterDesigner
+{
+    private final FilterCoefficientCache cache;
+
+    /**
+     * Creates a new designer that uses the application's shared cache
+     */
+    public CachingFilterDesigner()
+    {
+        this(FilterCoefficientCache.getInstance());
+    }
+
+    /**
+     * Creates a new designer that uses the given cache
+     *
+     * @param cache the cache to look in, and to save new designs in
+     */
+    public CachingFilterDesigner(FilterCoefficientCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns an array of filter coefficients, from the precomputed table or the cache if
+     * this specification has been designed before, otherwise newly designed and added to
+     * the cache
+     *
+     * @param spec the filter specifications
+     * @return an array of coefficients for an <code>IIRFilter</code>
+     * @throws FilterDesignException if any error occurs during the filter design
+     *                               - Errors will likely be due to invalid FilterSpecification settings
+     */
+    public double[] createCoefficients(FilterSpecification spec)
+    {
+        double[] coefficients = FilterCoefficientTable.getInstance().getCoefficients(spec);
+        if (coefficients == null)
+        {
+            coefficients = cache.getCoefficients(spec);
+        }
+        if (coefficients == null)
+        {
+            designStarting(spec);
+            coefficients = super.createCoefficients(spec);
+            cache.putCoefficients(spec, coefficients);
+        }
+        return coefficients;
+    }
+
+    /**
+     * Called when a specification wasn't found in the table or the cache, just before it
+     * is designed.  Does nothing by default.
+     *
+     * @param spec the filter specifications about to be designed
+     */
+    protected void designStarting(FilterSpecification spec)
+    {
+    }
+}
@@ -1,5 +1,9 @@
 package com.webkitchen.eeg.analysis.filterdesign;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * Specifies the algorithm/function used to design a filter, such as Butterworth, Bessel,
@@ -37,6 +41,25 @@ public abstract class FilterAlgorithm
         return this.name;
     }
 
+    /**
+     * Returns the algorithm with the given name, as returned by <code>toString</code>
+     *
+     * @param name the algorithm's name, such as "Butterworth"
+     * @return the algorithm
+     * @throws IllegalArgumentException if there's no algorithm by that name
+     */
+    static FilterAlgorithm forName(String name)
+    {
+        for (FilterAlgorithm algorithm : new FilterAlgorithm[]{BUTTERWORTH, BESSEL, CHEBYSHEV})
+        {
+            if (algorithm.name.equals(name))
+            {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown filter algorithm: " + name);
+    }
+
     abstract void generatePoles(FilterDesignScratchpad design);
 
 
@@ -75,28 +98,249 @@ public abstract class FilterAlgorithm
 
     private static class Bessel extends FilterAlgorithm
     {
+        /**
+         * The highest order Fidlib supports, and the highest we've checked our poles for
+         */
+        private static final int MAX_ORDER = 10;
+        // POLES[order - 1] holds the poles for each order, in generatePoles' layout
+        private static final ComplexNumber[][] POLES = new ComplexNumber[MAX_ORDER][];
+
+        static
+        {
+            for (int order = 1; order <= MAX_ORDER; order++)
+            {
+                POLES[order - 1] = calculatePoles(order);
+            }
+        }
+
         private Bessel()
         {
             super("Bessel");
         }
 
+        /**
+         * Generate Bessel poles for the given order.  Fidlib copies these from a table
+         * of the roots of the reverse Bessel polynomials, scaled so the response is 3dB
+         * down at 1 radian/second - we calculate the same table when the class loads.
+         * Like the Butterworth poles, only one pole of each conjugate pair is listed,
+         * followed by the real pole for odd orders.
+         */
         void generatePoles(FilterDesignScratchpad design)
         {
-            throw new UnsupportedOperationException("Sorry!  That's not implemented yet...");
+            int order = design.getOrder();
+            if (order < 1 || order > MAX_ORDER)
+            {
+                throw new FilterDesignException("Bessel filters are limited to orders 1 to " + MAX_ORDER
+                                                + ", not " + order);
+            }
+            // we'll add order/2 + order%2 ComplexNumbers now, and more later according to filter type
+            ComplexNumber[] pol = new ComplexNumber[order];
+            ComplexNumber[] poles = POLES[order - 1];
+            for (int a = 0; a < poles.length; a++)
+            {
+                pol[a] = poles[a].copy();
+            }
+            design.setN_pol(order);
+            design.setPol(pol);
+        }
+
+        /**
+         * Finds the roots of the reverse Bessel polynomial of the given order, and
+         * scales them to a 3dB frequency of 1
+         */
+        private static ComplexNumber[] calculatePoles(int order)
+        {
+            // Coefficients, lowest power first: a[k] = (2n-k)! / (2^(n-k) * k! * (n-k)!)
+            double[] coef = new double[order + 1];
+            coef[order] = 1.0;
+            // so a[k] = a[k+1] * (2n-k)(k+1) / (2(n-k)), working down from a[n] = 1
+            for (int k = order - 1; k >= 0; k--)
+            {
+                coef[k] = coef[k + 1] * (2 * order - k) * (k + 1) / (2.0 * (order - k));
+            }
+
+            double[][] roots = findRoots(coef);
+
+            // The magnitude falls steadily with frequency, so a bisection finds the 3dB point
+            double low = 0.0;
+            double high = 2.0 * order + 2.0;
+            for (int i = 0; i < 200; i++)
+            {
+                double mid = 0.5 * (low + high);
+                if (magnitudeSquared(coef, mid) > 0.5)
+                {
+                    low = mid;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            double cutoff = 0.5 * (low + high);
+
+            // One pole of each pair, with the highest Q first like the Butterworth poles,
+            // and then the real pole
+            List<ComplexNumber> pairs = new ArrayList<ComplexNumber>();
+            ComplexNumber real = null;
+            for (double[] root : roots)
+            {
+                if (Math.abs(root[1]) < 1e-9 * Math.abs(root[0]))
+                {
+                    real = new ComplexNumber(root[0] / cutoff, 0);
+                }
+                else if (root[1] > 0)
+                {
+                    pairs.add(new ComplexNumber(root[0] / cutoff, root[1] / cutoff));
+                }
+            }
+            Collections.sort(pairs, new Comparator<ComplexNumber>()
+            {
+                public int compare(ComplexNumber a, ComplexNumber b)
+                {
+                    return Double.compare(b.imaginary(), a.imaginary());
+                }
+            });
+            if (real != null)
+            {
+                pairs.add(real);
+            }
+            if (pairs.size() != (order / 2) + (order % 2))
+            {
+                throw new IllegalStateException("Unable to find the order " + order + " Bessel poles");
+            }
+            return pairs.toArray(new ComplexNumber[pairs.size()]);
+        }
+
+        /**
+         * Returns |H(jw)|^2 for H(s) = coef[0] / polynomial(s)
+         */
+        private static double magnitudeSquared(double[] coef, double w)
+        {
+            double real = 0;
+            double imag = 0;
+            for (int k = coef.length - 1; k >= 0; k--)
+            {
+                // (real + j*imag) * jw + coef[k]
+                double r = -imag * w + coef[k];
+                imag = real * w;
+                real = r;
+            }
+            return (coef[0] * coef[0]) / (real * real + imag * imag);
+        }
+
+        /**
+         * Finds all roots of a monic polynomial, lowest power first, with the
+         * Durand-Kerner iteration
+         *
+         * @return {real, imaginary} for each root
+         */
+        private static double[][] findRoots(double[] coef)
+        {
+            int n = coef.length - 1;
+            double[][] roots = new double[n][2];
+            // Conventional starting points: powers of (0.4 + 0.9j)
+            double r = 1.0;
+            double i = 0.0;
+            for (int k = 0; k < n; k++)
+            {
+                roots[k][0] = r;
+                roots[k][1] = i;
+                double nr = r * 0.4 - i * 0.9;
+                i = r * 0.9 + i * 0.4;
+                r = nr;
+            }
+            for (int iteration = 0; iteration < 1000; iteration++)
+            {
+                double change = 0;
+                for (int k = 0; k < n; k++)
+                {
+                    double zr = roots[k][0];
+                    double zi = roots[k][1];
+                    // numerator = p(z)
+                    double pr = 0;
+                    double pi = 0;
+                    for (int c = n; c >= 0; c--)
+                    {
+                        double t = pr * zr - pi * zi + coef[c];
+                        pi = pr * zi + pi * zr;
+                        pr = t;
+                    }
+                    // denominator = product of (z - other roots)
+                    double dr = 1;
+                    double di = 0;
+                    for (int j = 0; j < n; j++)
+                    {
+                        if (j != k)
+                        {
+                            double er = zr - roots[j][0];
+                            double ei = zi - roots[j][1];
+                            double t = dr * er - di * ei;
+                            di = dr * ei + di * er;
+                            dr = t;
+                        }
+                    }
+                    double fact = 1.0 / (dr * dr + di * di);
+                    double qr = (pr * dr + pi * di) * fact;
+                    double qi = (pi * dr - pr * di) * fact;
+                    roots[k][0] = zr - qr;
+                    roots[k][1] = zi - qi;
+                    change = Math.max(change, Math.hypot(qr, qi) / Math.max(1.0, Math.hypot(zr, zi)));
+                }
+                if (change < 1e-15)
+                {
+                    break;
+                }
+            }
+            return roots;
         }
     }
 
 
     private static class Chebyshev extends FilterAlgorithm
     {
+        /**
+         * Passband ripple, in dB.  Fidlib takes this as a parameter, but our
+         * specifications don't have one, and half a dB is small next to the
+         * variation in EEG band amplitudes.  The cache keys don't include it, so
+         * changing it means changing the cache key version too.
+         */
+        private static final double RIPPLE = -0.5;
+
         private Chebyshev()
         {
             super("Chebyshev");
         }
 
+        /**
+         * Generate Chebyshev Type I poles for the given order.  These are the
+         * Butterworth poles, squashed onto an ellipse: the real parts are scaled by
+         * sinh(y) and the imaginary parts by cosh(y), where y depends on the ripple.
+         */
         void generatePoles(FilterDesignScratchpad design)
         {
-            throw new UnsupportedOperationException("Sorry!  That's not implemented yet...");
+            BUTTERWORTH.generatePoles(design);
+            double eps = Math.sqrt(-1.0 + Math.pow(10.0, -0.1 * RIPPLE));
+            double y = asinh(1.0 / eps) / design.getOrder();
+            double sh = Math.sinh(y);
+            double ch = Math.cosh(y);
+
+            ComplexNumber[] pol = design.getPol();
+            int order = design.getOrder();
+            int a;
+            for (a = 0; a < (order / 2); a++)
+            {
+                pol[a] = new ComplexNumber(pol[a].real() * sh, pol[a].imaginary() * ch);
+            }
+            // Handle odd order
+            if (a < order)
+            {
+                pol[a] = pol[a].cmulr(sh);
+            }
+        }
+
+        private static double asinh(double x)
+        {
+            return Math.log(x + Math.sqrt(x * x + 1.0));
         }
     }
 
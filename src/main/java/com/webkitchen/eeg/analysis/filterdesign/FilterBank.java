@@ -0,0 +1,219 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.util.Arrays;
+
+
+/**
+ * Runs many independent IIR filters together - several bands of one channel, the same
+ * band on many channels, or both.  Each filter is a lane of the bank.
+ * <P>
+ * Rather than one object per filter, the bank keeps every lane's coefficients and state
+ * in structure-of-arrays layout: for each second-order section and coefficient there is
+ * one array entry per lane, side by side.  Processing a sample advances all lanes through
+ * a section in one tight loop over contiguous arrays, with no dependencies between lanes,
+ * which the JIT can unroll and compile to SIMD instructions.  Filters with fewer sections
+ * than the longest one are padded with pass-through sections.
+ * <P>
+ * Each lane gives the same results as a <code>BiquadCascade</code> built from the same
+ * coefficients.  A bank is not thread-safe, it should only be used by one thread.
+ *
+ * @author Amy Palke
+ * @see BiquadCascade
+ * @see IIRFilter
+ */
+public final class FilterBank
+{
+    private final int laneCount;
+    private final int sectionCount;
+
+    // Index [section * laneCount + lane]
+    private final double[] gain;
+    private final double[] b1;
+    private final double[] b2;
+    private final double[] a1;
+    private final double[] a2;
+    private final double[] z1;
+    private final double[] z2;
+
+    // Each lane's value between sections
+    private final double[] x;
+
+    /**
+     * Creates a new <code>FilterBank</code> with one lane for each filter.  The bank copies
+     * the filters' coefficients, but starts with empty state, and doesn't change the filters.
+     *
+     * @param filters the filters to run, in lane order
+     */
+    public FilterBank(IIRFilter[] filters)
+    {
+        this(cascades(filters));
+    }
+
+    /**
+     * Creates a new <code>FilterBank</code> with one lane for each specification
+     *
+     * @param specs        the specification of each lane's filter
+     * @param coefficients the coefficients of each lane's filter, designed by the <code>FilterDesigner</code>
+     */
+    public FilterBank(FilterSpecification[] specs, double[][] coefficients)
+    {
+        this(cascades(specs, coefficients));
+    }
+
+    private FilterBank(BiquadCascade[] cascades)
+    {
+        laneCount = cascades.length;
+        int sections = 0;
+        for (BiquadCascade cascade : cascades)
+        {
+            sections = Math.max(sections, cascade.getSectionCount());
+        }
+        sectionCount = sections;
+
+        int size = sectionCount * laneCount;
+        gain = new double[laneCount];
+        b1 = new double[size];
+        b2 = new double[size];
+        a1 = new double[size];
+        a2 = new double[size];
+        z1 = new double[size];
+        z2 = new double[size];
+        x = new double[laneCount];
+
+        for (int lane = 0; lane < laneCount; lane++)
+        {
+            BiquadCascade cascade = cascades[lane];
+            gain[lane] = cascade.getGain();
+            // Sections beyond the cascade's own stay all zero, which passes input straight through
+            for (int section = 0; section < cascade.getSectionCount(); section++)
+            {
+                int i = (section * laneCount) + lane;
+                b1[i] = cascade.getCoefficient(section, BiquadCascade.B1);
+                b2[i] = cascade.getCoefficient(section, BiquadCascade.B2);
+                a1[i] = cascade.getCoefficient(section, BiquadCascade.A1);
+                a2[i] = cascade.getCoefficient(section, BiquadCascade.A2);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of filters in the bank
+     *
+     * @return the number of lanes
+     */
+    public int getLaneCount()
+    {
+        return laneCount;
+    }
+
+    /**
+     * Filters one input value with every lane, as when splitting one channel into bands
+     *
+     * @param input   the raw sample value
+     * @param outputs receives each lane's filtered value
+     */
+    public void process(double input, double[] outputs)
+    {
+        for (int lane = 0; lane < laneCount; lane++)
+        {
+            x[lane] = input * gain[lane];
+        }
+        advance();
+        System.arraycopy(x, 0, outputs, 0, laneCount);
+    }
+
+    /**
+     * Filters one input value per lane, as when filtering many channels at once
+     *
+     * @param inputs  each lane's raw sample value
+     * @param outputs receives each lane's filtered value, may be the same array as inputs
+     */
+    public void process(double[] inputs, double[] outputs)
+    {
+        for (int lane = 0; lane < laneCount; lane++)
+        {
+            x[lane] = inputs[lane] * gain[lane];
+        }
+        advance();
+        System.arraycopy(x, 0, outputs, 0, laneCount);
+    }
+
+    /**
+     * Filters a block of input values with every lane, as when splitting a batch of
+     * one channel's samples into bands
+     *
+     * @param input   the raw sample values, oldest first
+     * @param outputs receives each lane's filtered values, outputs[lane][n] for input[n]
+     * @param count   the number of values to process
+     */
+    public void process(double[] input, double[][] outputs, int count)
+    {
+        for (int n = 0; n < count; n++)
+        {
+            double value = input[n];
+            for (int lane = 0; lane < laneCount; lane++)
+            {
+                x[lane] = value * gain[lane];
+            }
+            advance();
+            for (int lane = 0; lane < laneCount; lane++)
+            {
+                outputs[lane][n] = x[lane];
+            }
+        }
+    }
+
+    /**
+     * Clears every lane's state, as if we had never processed any input
+     */
+    public void reset()
+    {
+        Arrays.fill(z1, 0);
+        Arrays.fill(z2, 0);
+    }
+
+    /**
+     * Runs every lane's value in x through all of the sections, in transposed direct form II
+     */
+    private void advance()
+    {
+        final int lanes = laneCount;
+        for (int base = 0, end = sectionCount * lanes; base < end; base += lanes)
+        {
+            // No lane depends on another, so this loop can be vectorized
+            for (int lane = 0; lane < lanes; lane++)
+            {
+                int i = base + lane;
+                double in = x[lane];
+                double y = in + z1[i];
+                z1[i] = (b1[i] * in) - (a1[i] * y) + z2[i];
+                z2[i] = (b2[i] * in) - (a2[i] * y);
+                x[lane] = y;
+            }
+        }
+    }
+
+    private static BiquadCascade[] cascades(IIRFilter[] filters)
+    {
+        BiquadCascade[] cascades = new BiquadCascade[filters.length];
+        for (int i = 0; i < filters.length; i++)
+        {
+            cascades[i] = filters[i].getCascade();
+        }
+        return cascades;
+    }
+
+    private static BiquadCascade[] cascades(FilterSpecification[] specs, double[][] coefficients)
+    {
+        if (specs.length != coefficients.length)
+        {
+            throw new IllegalArgumentException("Need one set of coefficients for each specification");
+        }
+        BiquadCascade[] cascades = new BiquadCascade[specs.length];
+        for (int i = 0; i < specs.length; i++)
+        {
+            cascades[i] = new BiquadCascade(specs[i], coefficients[i]);
+        }
+        return cascades;
+    }
+}
@@ -0,0 +1,334 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Remembers the coefficients designed for each <code>FilterSpecification</code>, so a
+ * filter only has to be designed once per machine.  Designing can take seconds when the
+ * specification asks for the frequencies to be auto-adjusted.
+ * <P>
+ * Coefficients are kept in two layers: a small in-memory LRU map, and a directory of
+ * files, one per specification.  Each file is named by a SHA-256 hash of the
+ * specification's canonical key, which holds only the settings that affect the design -
+ * algorithm, range, rate, frequencies, order and auto-adjust.  The description and
+ * editable flag don't change the coefficients, so specifications that differ only in
+ * those share an entry.
+ * <P>
+ * Each file also stores its full key, which is checked when the file is read, so a hash
+ * collision or a damaged file is treated as a miss rather than giving the wrong filter.
+ * Files are written to a temporary name and then renamed, so a reader never sees a
+ * partly written file.  Problems with the cache directory are reported, but never stop
+ * a filter from being designed.
+ * <P>
+ * The cache is shared by the whole application, and is thread-safe.
+ *
+ * @author Amy Palke
+ * @see CachingFilterDesigner
+ * @see FilterSpecification
+ */
+public final class FilterCoefficientCache
+{
+    // Bump this whenever the designer's output or our file layout changes
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_MAGIC = 0x46434346; // "FCCF"
+    private static final String FILE_SUFFIX = ".coef";
+    private static final int MEMORY_CAPACITY = 32;
+
+    private static final FilterCoefficientCache INSTANCE = new FilterCoefficientCache();
+
+    private final Map<String, double[]> memory = new LinkedHashMap<String, double[]>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest)
+        {
+            return size() > MEMORY_CAPACITY;
+        }
+    };
+    private File directory;
+
+    private FilterCoefficientCache()
+    {
+    }
+
+    /**
+     * Returns the application's coefficient cache
+     *
+     * @return the shared cache
+     */
+    public static FilterCoefficientCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the directory where designed coefficients are saved between runs.  The directory
+     * is created when the first coefficients are saved.
+     *
+     * @param directory the cache directory, or null to only cache in memory
+     */
+    public synchronized void setDirectory(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory where designed coefficients are saved between runs
+     *
+     * @return the cache directory, or null if we only cache in memory
+     */
+    public synchronized File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns a copy of the coefficients cached for the specification
+     *
+     * @param spec the filter specifications
+     * @return the cached coefficients, or null if this specification hasn't been designed
+     */
+    public double[] getCoefficients(FilterSpecification spec)
+    {
+        String key = createKey(spec);
+        double[] coef;
+        File dir;
+        synchronized (this)
+        {
+            coef = memory.get(key);
+            dir = directory;
+        }
+        if (coef == null && dir != null)
+        {
+            coef = readFile(new File(dir, fileName(key)), key);
+            if (coef != null)
+            {
+                synchronized (this)
+                {
+                    memory.put(key, coef);
+                }
+            }
+        }
+        return (coef == null) ? null : coef.clone();
+    }
+
+    /**
+     * Caches coefficients designed for the specification, in memory and on disk
+     *
+     * @param spec the filter specifications
+     * @param coef the coefficients created by the <code>FilterDesigner</code>
+     */
+    public void putCoefficients(FilterSpecification spec, double[] coef)
+    {
+        String key = createKey(spec);
+        double[] copy = coef.clone();
+        File dir;
+        synchronized (this)
+        {
+            memory.put(key, copy);
+            dir = directory;
+        }
+        if (dir != null)
+        {
+            writeFile(dir, fileName(key), key, copy);
+        }
+    }
+
+    /**
+     * Empties the in-memory layer of the cache.  Files on disk are kept.
+     */
+    public synchronized void clearMemory()
+    {
+        memory.clear();
+    }
+
+    /**
+     * Returns the canonical key for a specification, made of only the settings
+     * that affect the designed coefficients
+     *
+     * @param spec the filter specifications
+     * @return the specification's cache key
+     */
+    static String createKey(FilterSpecification spec)
+    {
+        return createKey(String.valueOf(spec.getAlgorithmType()), String.valueOf(spec.getRangeType()),
+                         spec.getRate(), spec.getFrequency0(), spec.getFrequency1(),
+                         spec.getOrder(), spec.isAutoAdjust());
+    }
+
+    /**
+     * Returns the canonical key for a specification's settings
+     *
+     * @param algorithm  the name of the filter algorithm
+     * @param range      the name of the filter range
+     * @param rate       the sample rate
+     * @param frequency0 the first corner frequency
+     * @param frequency1 the second corner frequency
+     * @param order      the filter order
+     * @param autoAdjust whether the frequencies are auto-adjusted
+     * @return the cache key
+     */
+    static String createKey(String algorithm, String range, int rate, double frequency0, double frequency1,
+                            int order, boolean autoAdjust)
+    {
+        return "v" + FORMAT_VERSION
+               + "|algorithm=" + algorithm
+               + "|range=" + range
+               + "|rate=" + rate
+               + "|frequency0=" + Double.toString(frequency0)
+               + "|frequency1=" + Double.toString(frequency1)
+               + "|order=" + order
+               + "|autoAdjust=" + autoAdjust;
+    }
+
+    /**
+     * Returns the file name for a key: the hex SHA-256 hash of the key
+     */
+    private static String fileName(String key)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2 + FILE_SUFFIX.length());
+            for (byte b : hash)
+            {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(FILE_SUFFIX).toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the coefficients saved for the key, or returns null if there is no valid file
+     */
+    private static double[] readFile(File file, String key)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || !key.equals(in.readUTF()))
+            {
+                return null;
+            }
+            int length = in.readInt();
+            if (length < 1 || length > 1024)
+            {
+                return null;
+            }
+            double[] coef = new double[length];
+            for (int i = 0; i < length; i++)
+            {
+                coef[i] = in.readDouble();
+                if (Double.isNaN(coef[i]) || Double.isInfinite(coef[i]))
+                {
+                    return null;
+                }
+            }
+            return coef;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to read cached filter coefficients from " + file);
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Saves the coefficients for the key, replacing any earlier file
+     */
+    private static void writeFile(File dir, String name, String key, double[] coef)
+    {
+        File file = new File(dir, name);
+        File temp = null;
+        DataOutputStream out = null;
+        try
+        {
+            if (!dir.isDirectory() && !dir.mkdirs())
+            {
+                throw new IOException("Unable to create directory " + dir);
+            }
+            temp = File.createTempFile(name, ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(key);
+            out.writeInt(coef.length);
+            for (double c : coef)
+            {
+                out.writeDouble(c);
+            }
+            out.close();
+            out = null;
+            try
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to cache filter coefficients in " + file);
+            e.printStackTrace();
+        }
+        finally
+        {
+            close(out);
+            if (temp != null)
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void close(Closeable stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException ignore)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Looks up coefficients that were designed when the application was built, for a grid
+ * of common bands, orders and sample rates.  A specification in the table never has to
+ * be designed at runtime.
+ * <P>
+ * The table is the <code>filter-table.bin</code> resource next to this class, written by
+ * <code>FilterTableGenerator</code> during the build.  Entries are matched by the same
+ * settings as the <code>FilterCoefficientCache</code> - algorithm, range, rate,
+ * frequencies, order and auto-adjust.  If the resource is missing, as when running
+ * classes that weren't built by Maven, the table is simply empty.
+ * <P>
+ * The table is loaded once, and is read-only, so it is thread-safe.
+ *
+ * @author Amy Palke
+ * @see FilterTableGenerator
+ * @see CachingFilterDesigner
+ */
+public final class FilterCoefficientTable
+{
+    private static final String RESOURCE_NAME = "filter-table.bin";
+    // Written by FilterTableGenerator, which must not load this class while it writes the table
+    static final int TABLE_MAGIC = 0x46435442; // "FCTB"
+    static final int TABLE_VERSION = 1;
+
+    private static final FilterCoefficientTable INSTANCE = new FilterCoefficientTable();
+
+    private final Map<String, double[]> entries;
+
+    private FilterCoefficientTable()
+    {
+        entries = Collections.unmodifiableMap(load());
+    }
+
+    /**
+     * Returns the table bundled with the application
+     *
+     * @return the shared table
+     */
+    public static FilterCoefficientTable getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a copy of the precomputed coefficients for the specification
+     *
+     * @param spec the filter specifications
+     * @return the coefficients, or null if the specification isn't in the table
+     */
+    public double[] getCoefficients(FilterSpecification spec)
+    {
+        double[] coef = entries.get(FilterCoefficientCache.createKey(spec));
+        return (coef == null) ? null : coef.clone();
+    }
+
+    /**
+     * Returns true if the table holds coefficients for the specification
+     *
+     * @param spec the filter specifications
+     * @return true if the specification is in the table
+     */
+    public boolean contains(FilterSpecification spec)
+    {
+        return entries.containsKey(FilterCoefficientCache.createKey(spec));
+    }
+
+    /**
+     * Returns the number of specifications in the table
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private static Map<String, double[]> load()
+    {
+        Map<String, double[]> table = new HashMap<String, double[]>();
+        InputStream resource = FilterCoefficientTable.class.getResourceAsStream(RESOURCE_NAME);
+        if (resource == null)
+        {
+            return table;
+        }
+        try
+        {
+            readTable(new BufferedInputStream(resource), table);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to read the precomputed filter table");
+            e.printStackTrace();
+            table.clear();
+        }
+        finally
+        {
+            try
+            {
+                resource.close();
+            }
+            catch (IOException ignore)
+            {
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Reads a table written by <code>FilterTableGenerator</code> into the map, by cache key
+     */
+    private static void readTable(InputStream stream, Map<String, double[]> table) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != TABLE_MAGIC || in.readInt() != TABLE_VERSION)
+        {
+            throw new IOException("Not a version " + TABLE_VERSION + " filter table");
+        }
+
+        // The algorithm and range names are stored once, and referred to by index
+        String[] names = new String[in.readUnsignedByte()];
+        for (int i = 0; i < names.length; i++)
+        {
+            names[i] = in.readUTF();
+        }
+
+        int entryCount = in.readInt();
+        for (int e = 0; e < entryCount; e++)
+        {
+            String algorithm = names[in.readUnsignedByte()];
+            String range = names[in.readUnsignedByte()];
+            int rate = in.readInt();
+            double frequency0 = in.readDouble();
+            double frequency1 = in.readDouble();
+            int order = in.readUnsignedByte();
+            boolean autoAdjust = in.readBoolean();
+            double[] coef = new double[in.readUnsignedShort()];
+            for (int i = 0; i < coef.length; i++)
+            {
+                coef[i] = in.readDouble();
+            }
+            table.put(FilterCoefficientCache.createKey(algorithm, range, rate, frequency0, frequency1, order, autoAdjust),
+                      coef);
+        }
+    }
+}
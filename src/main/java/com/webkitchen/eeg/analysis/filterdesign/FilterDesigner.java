@@ -3,6 +3,8 @@ package com.webkitchen.eeg.analysis.filterdesign;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -66,6 +68,35 @@ public class FilterDesigner
         return coefficients;
     }
 
+    /**
+     * Returns an array of filter coefficients for each specification, as when designing a
+     * whole filter bank.  The designs are independent, so they run in parallel on the
+     * fork/join common pool, and each is designed by <code>createCoefficients</code>.
+     * With a single processor, handing the designs to the pool only adds overhead, so
+     * we design them one after another.
+     *
+     * @param specs the filter specifications
+     * @return the coefficients for each specification, in the same order
+     * @throws FilterDesignException if any error occurs during the filter design
+     *                               - Errors will likely be due to invalid FilterSpecification settings
+     */
+    public double[][] createCoefficients(FilterSpecification[] specs)
+    {
+        double[][] coefficients = new double[specs.length][];
+        if (specs.length == 1 || ForkJoinPool.getCommonPoolParallelism() < 2)
+        {
+            for (int i = 0; i < specs.length; i++)
+            {
+                coefficients[i] = createCoefficients(specs[i]);
+            }
+        }
+        else
+        {
+            ForkJoinPool.commonPool().invoke(new DesignTask(specs, coefficients, 0, specs.length));
+        }
+        return coefficients;
+    }
+
     /**
      * Design a filter and reduce it to a list of all the non-const
      * coefficients.
@@ -272,11 +303,13 @@ public class FilterDesigner
             }
             else
             {
-                ComplexNumber val = pol[a].copy();
-                val = val.cneg();
-                val = val.cadd(new ComplexNumber(2, 0));
-                pol[a] = pol[a].cadd(new ComplexNumber(2, 0));
-                pol[a] = pol[a].cdiv(val);
+                // Same steps as cneg, cadd and cdiv, without the intermediate objects
+                double r = pol[a].real();
+                double i = pol[a].imaginary();
+                MutableComplex val = new MutableComplex(-r + 2, -i + 0);
+                MutableComplex num = new MutableComplex(r + 2, i + 0);
+                num.cdiv(val);
+                pol[a] = new ComplexNumber(num.real(), num.imaginary());
                 a++;
             }
         }
@@ -318,6 +351,10 @@ public class FilterDesigner
      * The given gain is inserted at the start of the FidFilter as a
      * one-coefficient FIR filter.  This is positioned to be easily
      * adjusted later to correct the filter gain.
+     * <p/>
+     * Each complex pole stands for itself and its conjugate, and makes a 2x2 section
+     * with two zeros.  Real poles are paired into 2x2 sections too, and as in Fidlib,
+     * a single real pole left over makes a 1x1 section with the last zero.
      *
      * @param design the scratchpad object that contains our specification and working numbers
      * @return a list of the FidFilters created
@@ -327,6 +364,7 @@ public class FilterDesigner
         // Worst case: gain + 2-element IIR/FIR
         //   for each pole/zero
         int a;
+        int p;  // index of the next pole, which runs ahead of a after a pair of real poles
         List<FidFilter> rv;
         FidFilter ff;
         rv = new ArrayList<FidFilter>();
@@ -335,26 +373,34 @@ public class FilterDesigner
         rv.add(ff);
 
         // Output as much as possible as 2x2 IIR/FIR filters
-        for (a = 0; a < design.getN_pol() && a < design.getN_zer(); a++)
+        ComplexNumber[] pol = design.getPol();
+        for (a = 0, p = 0; p < design.getN_pol() && (a * 2) + 1 < design.getN_zer(); a++)
         {
             // Look for a pair of values for an IIR
-            if (design.getPol()[a].isReal() && design.getPol()[a + 1].isReal())
+            if (pol[p].isReal())
             {
+                if (p + 1 >= design.getN_pol() || !pol[p + 1].isReal())
+                {
+                    // A single real pole, left for the 1x1 section below
+                    break;
+                }
                 // Two real values
                 ff = new FidFilter('I', 3);
                 ff.getVal()[0] = 1;
-                ff.getVal()[1] = -(design.getPol()[a].real() + design.getPol()[a + 1].real());
-                ff.getVal()[2] = design.getPol()[a].real() * design.getPol()[a + 1].real();
+                ff.getVal()[1] = -(pol[p].real() + pol[p + 1].real());
+                ff.getVal()[2] = pol[p].real() * pol[p + 1].real();
                 rv.add(ff);
+                p += 2;
             }
             else
             {
                 // A complex value and its conjugate pair
                 ff = new FidFilter('I', 3);
                 ff.getVal()[0] = 1;
-                ff.getVal()[1] = -2 * design.getPol()[a].real();
-                ff.getVal()[2] = design.getPol()[a].real() * design.getPol()[a].real() + design.getPol()[a].imaginary() * design.getPol()[a].imaginary();
+                ff.getVal()[1] = -2 * pol[p].real();
+                ff.getVal()[2] = pol[p].real() * pol[p].real() + pol[p].imaginary() * pol[p].imaginary();
                 rv.add(ff);
+                p++;
             }
             // Look for a pair of values for an FIR
             int zerIndex = a * 2;
@@ -392,28 +438,29 @@ public class FilterDesigner
 
         // Clear up any remaining bits and pieces.  Should only be a 1x1
         // IIR/FIR.
-        if (design.getN_pol() - a == 0 && design.getN_zer() - (a * 2) == 0)
+        int zerIndex = a * 2;
+        if (design.getN_pol() - p == 0 && design.getN_zer() - zerIndex == 0)
         {
             ;
         }
         // Handle odd number of poles case
-        else if (design.getN_pol() - a == 1 && design.getN_zer() - (a * 2) == 1)
+        else if (design.getN_pol() - p == 1 && design.getN_zer() - zerIndex == 1)
         {
-            if (design.getZertyp()[a] != 1)
+            if (!pol[p].isReal() || design.getZertyp()[zerIndex] != 1)
             {
                 throw new FilterDesignException("Internal error; bad poltyp or zertyp for final pole/zero");
             }
-            ff = new FidFilter('F', 2);
+            ff = new FidFilter('I', 2);
             ff.getVal()[0] = 1;
-            ff.getVal()[1] = -(design.getPol()[a].real());
+            ff.getVal()[1] = -(pol[p].real());
             rv.add(ff);
 
             // Skip FIR if it is constant and zero
-            if (design.getCbm() != 0 || design.getZer()[a] != 0.0)
+            if (design.getCbm() != 0 || design.getZer()[zerIndex] != 0.0)
             {
                 ff = new FidFilter('F', design.getCbm(), 2);
                 ff.getVal()[0] = 1;
-                ff.getVal()[1] = -(design.getZer()[a]);
+                ff.getVal()[1] = -(design.getZer()[zerIndex]);
                 rv.add(ff);
             }
         }
@@ -428,25 +475,29 @@ public class FilterDesigner
 //
 //	Get the response of a filter at the given frequency (expressed
 //	as a proportion of the sampling rate, 0->0.5).
+//	This is called thousands of times per design, so all of the
+//	complex arithmetic is done in place, in a few local objects.
     private double fid_response(List<FidFilter> filterList, double freq)
     {
         double theta = freq * 2 * Math.PI;
-        ComplexNumber top = new ComplexNumber(1, 0);
-        ComplexNumber bot = new ComplexNumber(1, 0);
-        ComplexNumber zz = new ComplexNumber(Math.cos(theta), Math.sin(theta));
+        MutableComplex top = new MutableComplex(1, 0);
+        MutableComplex bot = new MutableComplex(1, 0);
+        MutableComplex zz = new MutableComplex(Math.cos(theta), Math.sin(theta));
+        MutableComplex resp = new MutableComplex(0, 0);
+        MutableComplex pz = new MutableComplex(0, 0);
 
-        for (Iterator i = filterList.iterator(); i.hasNext();)
+        for (int f = 0, size = filterList.size(); f < size; f++)
         {
-            FidFilter filt = (FidFilter) i.next();
+            FidFilter filt = filterList.get(f);
             int cnt = filt.getVal().length;
-            ComplexNumber resp = evaluate(filt.getVal(), cnt, zz);
+            evaluate(filt.getVal(), cnt, zz, pz, resp);
             if (filt.getTyp() == 'I')
             {
-                bot = bot.cmul(resp);
+                bot.cmul(resp);
             }
             else if (filt.getTyp() == 'F')
             {
-                top = top.cmul(resp);
+                top.cmul(resp);
             }
             else
             {
@@ -454,43 +505,39 @@ public class FilterDesigner
             }
         }
 
-        top = top.cdiv(bot);
+        top.cdiv(bot);
 
         return top.hypot();
     }
 
 //
 //      Evaluate a complex polynomial given the coefficients.
-//      rv[0]+i*rv[1] is the result, in[0]+i*in[1] is the input value.
+//      rv is set to the result, in is the input value, and pz
+//      is working space for the powers of in.
 //      Coefficients are real values.
 //
-    private ComplexNumber evaluate(double[] coef, int n_coef, ComplexNumber in)
+    private void evaluate(double[] coef, int n_coef, MutableComplex in, MutableComplex pz, MutableComplex rv)
     {
-        ComplexNumber pz;        // Powers of Z
         int coefIndex = 0;
 
         // Handle first iteration by hand
-        ComplexNumber rv = new ComplexNumber(coef[coefIndex++], 0);
-        ComplexNumber c;
+        rv.set(coef[coefIndex++], 0);
 
         if (--n_coef > 0)
         {
             // Handle second iteration by hand
-            pz = in.copy();
-            c = pz.cmulr(coef[coefIndex++]);
-            rv = rv.cadd(c);
+            pz.set(in);
+            rv.caddmulr(pz, coef[coefIndex++]);
             n_coef--;
 
             // Loop for remainder
             while (n_coef > 0)
             {
-                pz = pz.cmul(in);
-                c = pz.cmulr(coef[coefIndex++]);
-                rv = rv.cadd(c);
+                pz.cmul(in);
+                rv.caddmulr(pz, coef[coefIndex++]);
                 n_coef--;
             }
         }
-        return rv;
     }
 
 //
@@ -545,6 +592,43 @@ public class FilterDesigner
     }
 
 
+    /**
+     * Designs a range of specifications, splitting the range in half until each task
+     * designs a single filter
+     */
+    private class DesignTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FilterSpecification[] specs;
+        private final double[][] coefficients;
+        private final int start;
+        private final int end;
+
+        DesignTask(FilterSpecification[] specs, double[][] coefficients, int start, int end)
+        {
+            this.specs = specs;
+            this.coefficients = coefficients;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start == 1)
+            {
+                coefficients[start] = createCoefficients(specs[start]);
+            }
+            else
+            {
+                int middle = (start + end) >>> 1;
+                invokeAll(new DesignTask(specs, coefficients, start, middle),
+                          new DesignTask(specs, coefficients, middle, end));
+            }
+        }
+    }
+
+
     private class AutoAdjuster
     {
         double mid;
@@ -615,6 +699,13 @@ public class FilterDesigner
                 {
                     throw new FilterDesignException("auto_adjust_dual -- design not converging");
                 }
+                // Once delta is too small to change anything, every later pass tries the same
+                // designs.  That happens when an early step overshoots - Chebyshev's flat passband
+                // can make it look like progress - so start over with big steps from the best so far.
+                if (mid + delta == mid && width + delta == width)
+                {
+                    delta = width * 0.5 / 0.51;
+                }
             }
             return rv;
         }
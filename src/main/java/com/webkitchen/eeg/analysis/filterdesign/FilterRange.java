@@ -84,6 +84,11 @@ public abstract class FilterRange
 
         /**
          * Adjust raw poles to BP filter.  The number of poles is doubled.
+         * <p/>
+         * A real pole becomes either a complex pole (listed once, for the conjugate pair)
+         * or, when the band is wide next to the pole, two real poles.  The two real poles
+         * both go in the list, which is then one longer than before, so that
+         * <code>z2fidfilter</code> can pair them into one section.
          */
         void adjustRawPoles(FilterDesignScratchpad design)
         {
@@ -95,6 +100,24 @@ public abstract class FilterRange
             double w0 = TWOPI * Math.sqrt(freq1 * freq2);
             double bw = 0.5 * TWOPI * (freq2 - freq1);
 
+            // Only an odd order has a real pole, and it's last in the list
+            int last = (polLength / 2) + (polLength % 2) - 1;
+            if (pol[last].isReal())
+            {
+                double hba = pol[last].real() * bw;
+                double disc = 1.0 - (w0 / hba) * (w0 / hba);
+                if (disc >= 0.0)
+                {
+                    // Two real poles, hba * (1 +/- sqrt(disc))
+                    ComplexNumber[] expanded = new ComplexNumber[polLength + 1];
+                    System.arraycopy(pol, 0, expanded, 0, polLength);
+                    expanded[polLength] = new ComplexNumber(hba * (1.0 - Math.sqrt(disc)), 0.0);
+                    pol = expanded;
+                    design.setPol(pol);
+                    design.setN_pol(pol.length);
+                }
+            }
+
             // Run through the list backwards, expanding as we go
             // Add (n_pol % 2) to round up if n_pol is odd
             for (int a = (polLength / 2) + (polLength % 2), b = polLength; a > 0;)
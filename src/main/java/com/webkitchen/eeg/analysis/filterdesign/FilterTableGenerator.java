@@ -0,0 +1,193 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Designs bandpass filters, with auto-adjusted frequencies, for every combination of a
+ * grid of algorithms, sample rates, orders and bands, and writes them as the table
+ * read by <code>FilterCoefficientTable</code>.  The Maven build runs this after compiling,
+ * with the grid declared in <code>pom.xml</code>, so the table is bundled in the jar.
+ * <P>
+ * Usage: <code>FilterTableGenerator outputFile algorithms rates orders bands</code>, for example
+ * <code>FilterTableGenerator filter-table.bin Butterworth,Chebyshev 128,256 4,5 4-8,8-12</code>.
+ * If the designer can't handle any of the combinations, they are listed and no table is
+ * written, so the build fails rather than shipping a table with filters missing.
+ *
+ * @author Amy Palke
+ * @see FilterCoefficientTable
+ */
+public class FilterTableGenerator
+{
+    /**
+     * @throws FilterDesignException if any combination in the grid can't be designed
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 5)
+        {
+            System.out.println("Usage: FilterTableGenerator outputFile algorithms rates orders bands");
+            System.exit(1);
+        }
+        File outputFile = new File(args[0]);
+        FilterAlgorithm[] algorithms = parseAlgorithms(args[1]);
+        int[] rates = parseIntegers(args[2]);
+        int[] orders = parseIntegers(args[3]);
+        double[][] bands = parseBands(args[4]);
+
+        FilterDesigner designer = new FilterDesigner();
+        List<FilterSpecification> specs = new ArrayList<FilterSpecification>();
+        List<double[]> coefficients = new ArrayList<double[]>();
+        List<String> failures = new ArrayList<String>();
+        for (FilterAlgorithm algorithm : algorithms)
+        {
+            for (int rate : rates)
+            {
+                for (int order : orders)
+                {
+                    for (double[] band : bands)
+                    {
+                        FilterSpecification spec = new FilterSpecification();
+                        spec.setAlgorithmType(algorithm);
+                        spec.setRangeType(FilterRange.BANDPASS);
+                        spec.setRate(rate);
+                        spec.setOrder(order);
+                        spec.setFrequency0(band[0]);
+                        spec.setFrequency1(band[1]);
+                        spec.setAutoAdjust(true);
+                        try
+                        {
+                            coefficients.add(designer.createCoefficients(spec));
+                            specs.add(spec);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            failures.add(algorithm + " " + band[0] + "-" + band[1] + "Hz, order "
+                                         + order + " at " + rate + "Hz: " + e);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (!failures.isEmpty())
+        {
+            for (String failure : failures)
+            {
+                System.out.println("Unable to design " + failure);
+            }
+            throw new FilterDesignException("Unable to design " + failures.size() + " of "
+                                            + (specs.size() + failures.size()) + " filters, no table written");
+        }
+
+        File directory = outputFile.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try
+        {
+            writeTable(specs, coefficients, out);
+        }
+        finally
+        {
+            out.close();
+        }
+        System.out.println("Wrote " + specs.size() + " filters to " + outputFile);
+    }
+
+    /**
+     * Writes a table of specifications and their coefficients, in the layout read by
+     * <code>FilterCoefficientTable</code>
+     *
+     * @param specs        the specifications
+     * @param coefficients the coefficients designed for each specification
+     * @param stream       where to write the table
+     * @throws IOException if the table can't be written
+     */
+    static void writeTable(List<FilterSpecification> specs, List<double[]> coefficients, OutputStream stream)
+            throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        for (FilterSpecification spec : specs)
+        {
+            for (String name : new String[]{String.valueOf(spec.getAlgorithmType()), String.valueOf(spec.getRangeType())})
+            {
+                if (!names.contains(name))
+                {
+                    names.add(name);
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(FilterCoefficientTable.TABLE_MAGIC);
+        out.writeInt(FilterCoefficientTable.TABLE_VERSION);
+        out.writeByte(names.size());
+        for (String name : names)
+        {
+            out.writeUTF(name);
+        }
+        out.writeInt(specs.size());
+        for (int e = 0; e < specs.size(); e++)
+        {
+            FilterSpecification spec = specs.get(e);
+            double[] coef = coefficients.get(e);
+            out.writeByte(names.indexOf(String.valueOf(spec.getAlgorithmType())));
+            out.writeByte(names.indexOf(String.valueOf(spec.getRangeType())));
+            out.writeInt(spec.getRate());
+            out.writeDouble(spec.getFrequency0());
+            out.writeDouble(spec.getFrequency1());
+            out.writeByte(spec.getOrder());
+            out.writeBoolean(spec.isAutoAdjust());
+            out.writeShort(coef.length);
+            for (double c : coef)
+            {
+                out.writeDouble(c);
+            }
+        }
+        out.flush();
+    }
+
+    private static FilterAlgorithm[] parseAlgorithms(String list)
+    {
+        String[] values = list.split(",");
+        FilterAlgorithm[] result = new FilterAlgorithm[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            result[i] = FilterAlgorithm.forName(values[i].trim());
+        }
+        return result;
+    }
+
+    private static int[] parseIntegers(String list)
+    {
+        String[] values = list.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
+    private static double[][] parseBands(String list)
+    {
+        String[] values = list.split(",");
+        double[][] result = new double[values.length][];
+        for (int i = 0; i < values.length; i++)
+        {
+            String[] frequencies = values[i].trim().split("-");
+            result[i] = new double[]{Double.parseDouble(frequencies[0]), Double.parseDouble(frequencies[1])};
+        }
+        return result;
+    }
+}
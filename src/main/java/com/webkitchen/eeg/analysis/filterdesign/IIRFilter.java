@@ -4,19 +4,18 @@ package com.webkitchen.eeg.analysis.filterdesign;
 /**
  * Processes digital signal input to filter for specific frequencies.
  * Frequencies, filter type and filtering algorithm are all specified in our
- * <code>FilterSpecification</code>.
+ * <code>FilterSpecification</code>.  Filtering is done by a <code>BiquadCascade</code>.
  *
  * @author Amy Palke
  * @see FilterSpecification
+ * @see BiquadCascade
  */
 public class IIRFilter
 {
     // coef array is package-accessible for testing - could make private if TestFilterDesigner is removed
     double[] coef;
-    private double[] buf;
-    private int bufferSize;
-    private int order;
-    private boolean oddOrder;
+    // Runs our coefficients as cascaded second-order sections
+    private BiquadCascade cascade;
 
     /**
      * Creates a new IIRFilter that be used to filter raw input.
@@ -31,11 +30,8 @@ public class IIRFilter
      */
     public IIRFilter(FilterSpecification spec, double[] coef)
     {
-        this.order = spec.getOrder();
-        this.bufferSize = order * 2;
-        this.buf = new double[bufferSize];
         this.coef = coef;
-        this.oddOrder = (order % 2) == 0 ? false : true;
+        this.cascade = new BiquadCascade(spec, coef);
     }
 
     /**
@@ -46,31 +42,37 @@ public class IIRFilter
      */
     public double process(double val)
     {
-        double tmp, fir, iir;
-        tmp = buf[0]; // save current [0] as arraycopy below overwrites it
-        // scoot everything to left by 1 position
-        System.arraycopy(buf, 1, buf, 0, bufferSize - 1);
+        return cascade.process(val);
+    }
+
+    /**
+     * Processes a block of raw digital signal input to filter for our specific frequencies.
+     * Gives the same results as calling <code>process</code> for each value in turn.
+     *
+     * @param input  the raw sample values, oldest first
+     * @param output receives the filtered values, may be the same array as input
+     * @param count  the number of values to process
+     */
+    public void process(double[] input, double[] output, int count)
+    {
+        cascade.process(input, output, count);
+    }
+
+    /**
+     * Clears the filter's memory of earlier input, as if it had just been created
+     */
+    public void reset()
+    {
+        cascade.reset();
+    }
 
-        val *= coef[0];
-        for (int i = 1, length = buf.length, midpoint = order; i <= length; i += 2)
-        {
-            iir = val - (coef[i] * tmp) - (coef[i + 1] * buf[i - 1]);
-            if (i < midpoint)
-            {
-                fir = -buf[i - 1] - buf[i - 1] + tmp + iir;
-            }
-            else if (i == midpoint && oddOrder)
-            {
-                fir = -tmp + iir;
-            }
-            else
-            {
-                fir = buf[i - 1] + buf[i - 1] + tmp + iir;
-            }
-            tmp = buf[i];
-            buf[i] = iir;
-            val = fir;
-        }
-        return val;
+    /**
+     * Returns the cascade that runs our coefficients, so a <code>FilterBank</code> can copy them
+     *
+     * @return our cascade
+     */
+    BiquadCascade getCascade()
+    {
+        return cascade;
     }
 }
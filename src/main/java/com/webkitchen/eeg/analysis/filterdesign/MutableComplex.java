@@ -0,0 +1,113 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+
+/**
+ * A complex number that is changed in place, for the inner loops of filter design.
+ * <code>ComplexNumber</code> creates a new object for every arithmetic step, which is fine
+ * for generating poles, but evaluating frequency responses does thousands of steps per
+ * design.  Each operation here uses exactly the same arithmetic as its
+ * <code>ComplexNumber</code> equivalent, so both paths give identical results.
+ * <P>
+ * Instances are not thread-safe, and are meant to be kept in local variables.
+ *
+ * @author Amy Palke
+ * @see ComplexNumber
+ */
+final class MutableComplex
+{
+    private double realPart;
+    private double imaginaryPart;
+
+    /**
+     * Constructs a new <code>MutableComplex</code> with real and imaginary variables
+     *
+     * @param real      the real part
+     * @param imaginary the imaginary part
+     */
+    MutableComplex(double real, double imaginary)
+    {
+        this.realPart = real;
+        this.imaginaryPart = imaginary;
+    }
+
+    /**
+     * Returns the real part of the complex number
+     */
+    double real()
+    {
+        return realPart;
+    }
+
+    /**
+     * Returns the imaginary part of the complex number
+     */
+    double imaginary()
+    {
+        return imaginaryPart;
+    }
+
+    /**
+     * Sets this to (<code>real</code> + i * <code>imaginary</code>)
+     */
+    void set(double real, double imaginary)
+    {
+        this.realPart = real;
+        this.imaginaryPart = imaginary;
+    }
+
+    /**
+     * Sets this to <code>b</code>
+     */
+    void set(MutableComplex b)
+    {
+        this.realPart = b.realPart;
+        this.imaginaryPart = b.imaginaryPart;
+    }
+
+    /**
+     * Sets this to (<code>this</code> * <code>b</code>)
+     */
+    void cmul(MutableComplex b)
+    {
+        double r = realPart * b.realPart - imaginaryPart * b.imaginaryPart;
+        double i = realPart * b.imaginaryPart + imaginaryPart * b.realPart;
+        realPart = r;
+        imaginaryPart = i;
+    }
+
+    /**
+     * Adds (<code>a</code> * <code>b</code>) to this, where <code>b</code> is real
+     */
+    void caddmulr(MutableComplex a, double b)
+    {
+        realPart += a.realPart * b;
+        imaginaryPart += a.imaginaryPart * b;
+    }
+
+    /**
+     * Sets this to (<code>this</code> / <code>b</code>)
+     */
+    void cdiv(MutableComplex b)
+    {
+        double fact = 1.0 / (b.realPart * b.realPart + b.imaginaryPart * b.imaginaryPart);
+        double r = realPart * b.realPart + imaginaryPart * b.imaginaryPart;
+        r *= fact;
+        double i = -realPart * b.imaginaryPart + imaginaryPart * b.realPart;
+        i *= fact;
+        realPart = r;
+        imaginaryPart = i;
+    }
+
+    /**
+     * Returns sqrt(<i>realPart</i><sup>2</sup>&nbsp;+<i>imaginaryPart</i><sup>2</sup>)
+     */
+    double hypot()
+    {
+        return Math.hypot(realPart, imaginaryPart);
+    }
+
+    public String toString()
+    {
+        return "{" + realPart + "," + imaginaryPart + "}";
+    }
+}
@@ -0,0 +1,275 @@
+package com.webkitchen.eeg.analysis.filterdesign;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Filters whole recorded signals with no phase shift, for analysing sessions after
+ * they're over.  Each signal is run through the filter forwards, and then the result
+ * is run through it again backwards, like MATLAB's and SciPy's <code>filtfilt</code>.
+ * The phase shifts of the two passes cancel, so band amplitudes line up in time with
+ * the raw signal, and the magnitude response is squared - an auto-adjusted filter's
+ * response at its band edges drops from 0.5 to 0.25.
+ * <P>
+ * To keep the ends of the signal from ringing, each pass starts with the filter in the
+ * steady state for its first value, and the signal is extended at both ends by reflecting
+ * it through its end points.  By default the extensions are 3 samples per coefficient,
+ * as in SciPy.
+ * <P>
+ * Signals may be <code>double</code> arrays, or <code>DoubleBuffer</code>s, such as a
+ * view of a memory-mapped recording, in which case we copy a block at a time rather
+ * than the whole signal.  <code>filterAll</code> filters several channels with several
+ * bands at once, in parallel on the fork/join common pool.
+ * <P>
+ * Each call uses its own filter state, so one <code>ZeroPhaseFilter</code> can be used by
+ * many threads at once.
+ *
+ * @author Amy Palke
+ * @see IIRFilter
+ * @see FilterDesigner
+ */
+public class ZeroPhaseFilter
+{
+    // Samples copied out of a DoubleBuffer at a time
+    private static final int BLOCK_SIZE = 8192;
+
+    private final FilterSpecification spec;
+    private final double[] coef;
+    private final int padLength;
+
+    /**
+     * Creates a new <code>ZeroPhaseFilter</code>, which extends signals by 3 samples for
+     * each coefficient.  The coefficients should have been designed for the
+     * <code>FilterSpecification</code>, as for an <code>IIRFilter</code>.
+     *
+     * @param spec the specification that defines our filter's properties
+     * @param coef the coefficients created by the <code>FilterDesigner</code>
+     */
+    public ZeroPhaseFilter(FilterSpecification spec, double[] coef)
+    {
+        this(spec, coef, 3 * coef.length);
+    }
+
+    /**
+     * Creates a new <code>ZeroPhaseFilter</code>, which extends signals by the given number
+     * of samples.  Narrow bands ring for longer, and may need longer extensions.
+     *
+     * @param spec      the specification that defines our filter's properties
+     * @param coef      the coefficients created by the <code>FilterDesigner</code>
+     * @param padLength the number of samples to add at each end, if the signal is long enough
+     */
+    public ZeroPhaseFilter(FilterSpecification spec, double[] coef, int padLength)
+    {
+        if (padLength < 0)
+        {
+            throw new IllegalArgumentException("Pad length can't be negative: " + padLength);
+        }
+        this.spec = spec;
+        this.coef = coef.clone();
+        this.padLength = padLength;
+    }
+
+    /**
+     * Returns the specification of our filter
+     *
+     * @return our filter specification
+     */
+    public FilterSpecification getSpecification()
+    {
+        return spec;
+    }
+
+    /**
+     * Filters a whole signal
+     *
+     * @param input  the raw sample values, oldest first
+     * @param output receives the filtered values, may be the same array as input
+     */
+    public void filter(double[] input, double[] output)
+    {
+        filter(DoubleBuffer.wrap(input), DoubleBuffer.wrap(output));
+    }
+
+    /**
+     * Filters the values remaining in the input buffer, from its position up to its limit,
+     * into the output buffer starting at its position.  Neither buffer's position changes.
+     *
+     * @param input  the raw sample values, oldest first
+     * @param output receives the filtered values, may be the same buffer as input
+     * @throws IllegalArgumentException if the output has fewer values remaining than the input
+     */
+    public void filter(DoubleBuffer input, DoubleBuffer output)
+    {
+        DoubleBuffer in = input.duplicate();
+        DoubleBuffer out = output.duplicate();
+        int length = in.remaining();
+        if (out.remaining() < length)
+        {
+            throw new IllegalArgumentException("Output has room for " + out.remaining()
+                                               + " values, but there are " + length + " to filter");
+        }
+        if (length == 0)
+        {
+            return;
+        }
+        int inStart = in.position();
+        int outStart = out.position();
+
+        // Reflect the signal through its end points.  We copy them before filtering,
+        // since the output may overwrite the input.
+        int pad = Math.min(padLength, length - 1);
+        double first = in.get(inStart);
+        double last = in.get(inStart + length - 1);
+        double[] head = new double[pad];
+        double[] tail = new double[pad];
+        for (int i = 0; i < pad; i++)
+        {
+            head[i] = (2 * first) - in.get(inStart + pad - i);
+            tail[i] = (2 * last) - in.get(inStart + length - 2 - i);
+        }
+
+        BiquadCascade cascade = new BiquadCascade(spec, coef);
+        double[] block = new double[Math.min(BLOCK_SIZE, length)];
+
+        // Forwards, through the head, the signal and the tail
+        cascade.setSteadyState((pad > 0) ? head[0] : first);
+        cascade.process(head, head, pad);
+        for (int begin = 0; begin < length; begin += block.length)
+        {
+            int count = Math.min(block.length, length - begin);
+            in.position(inStart + begin);
+            in.get(block, 0, count);
+            cascade.process(block, block, count);
+            out.position(outStart + begin);
+            out.put(block, 0, count);
+        }
+        cascade.process(tail, tail, pad);
+
+        // Backwards, through the tail and the signal - we don't need the head's output
+        cascade.setSteadyState((pad > 0) ? tail[pad - 1] : out.get(outStart + length - 1));
+        for (int i = pad - 1; i >= 0; i--)
+        {
+            cascade.process(tail[i]);
+        }
+        for (int end = length; end > 0;)
+        {
+            int count = Math.min(block.length, end);
+            int begin = end - count;
+            out.position(outStart + begin);
+            out.get(block, 0, count);
+            reverse(block, count);
+            cascade.process(block, block, count);
+            reverse(block, count);
+            out.position(outStart + begin);
+            out.put(block, 0, count);
+            end = begin;
+        }
+    }
+
+    /**
+     * Filters every channel with every band, in parallel
+     *
+     * @param bands    the filters to apply to each channel
+     * @param channels the raw sample values of each channel
+     * @return the filtered values, indexed by channel, then band
+     */
+    public static double[][][] filterAll(ZeroPhaseFilter[] bands, double[][] channels)
+    {
+        double[][][] result = new double[channels.length][bands.length][];
+        DoubleBuffer[] inputs = new DoubleBuffer[channels.length];
+        DoubleBuffer[][] outputs = new DoubleBuffer[channels.length][bands.length];
+        for (int c = 0; c < channels.length; c++)
+        {
+            inputs[c] = DoubleBuffer.wrap(channels[c]);
+            for (int b = 0; b < bands.length; b++)
+            {
+                result[c][b] = new double[channels[c].length];
+                outputs[c][b] = DoubleBuffer.wrap(result[c][b]);
+            }
+        }
+        filterAll(bands, inputs, outputs);
+        return result;
+    }
+
+    /**
+     * Filters every channel with every band, in parallel on the fork/join common pool.
+     * Each channel and band is filtered by <code>filter</code>, as a separate task.  With a
+     * single processor, handing the work to the pool only adds overhead, so we filter
+     * them one after another.
+     *
+     * @param bands    the filters to apply to each channel
+     * @param channels the raw sample values of each channel
+     * @param outputs  receive the filtered values, indexed by channel, then band
+     */
+    public static void filterAll(ZeroPhaseFilter[] bands, DoubleBuffer[] channels, DoubleBuffer[][] outputs)
+    {
+        int taskCount = channels.length * bands.length;
+        if (taskCount == 1 || ForkJoinPool.getCommonPoolParallelism() < 2)
+        {
+            for (int c = 0; c < channels.length; c++)
+            {
+                for (int b = 0; b < bands.length; b++)
+                {
+                    bands[b].filter(channels[c], outputs[c][b]);
+                }
+            }
+        }
+        else if (taskCount > 1)
+        {
+            ForkJoinPool.commonPool().invoke(new FilterTask(bands, channels, outputs, 0, taskCount));
+        }
+    }
+
+    private static void reverse(double[] values, int count)
+    {
+        for (int i = 0, j = count - 1; i < j; i++, j--)
+        {
+            double value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+
+    /**
+     * Filters a range of channel and band pairs, splitting the range in half until each
+     * task filters a single channel with a single band
+     */
+    private static class FilterTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ZeroPhaseFilter[] bands;
+        private final DoubleBuffer[] channels;
+        private final DoubleBuffer[][] outputs;
+        private final int start;
+        private final int end;
+
+        FilterTask(ZeroPhaseFilter[] bands, DoubleBuffer[] channels, DoubleBuffer[][] outputs, int start, int end)
+        {
+            this.bands = bands;
+            this.channels = channels;
+            this.outputs = outputs;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start == 1)
+            {
+                int channel = start / bands.length;
+                int band = start % bands.length;
+                bands[band].filter(channels[channel], outputs[channel][band]);
+            }
+            else
+            {
+                int middle = (start + end) >>> 1;
+                invokeAll(new FilterTask(bands, channels, outputs, start, middle),
+                          new FilterTask(bands, channels, outputs, middle, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.webkitchen.eeg.latency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of latencies, in the style of HdrHistogram: a fixed set of log-linear
+ * buckets, so recording a value is a few shifts and an atomic increment, never
+ * allocates, and every value is kept to within 1.6% of what was recorded.
+ * <P>
+ * Values are recorded in microseconds.  Below 128us each microsecond has its own bucket.
+ * Above that, each power of 2 is split into 64 equal buckets, so the bucket width grows
+ * with the value, up to values of about 35 minutes, which is as long as we track.
+ * Percentiles are reported as the highest value in their bucket, so they never
+ * understate a latency.
+ * <P>
+ * Any thread may record values, and any thread may read them while they are recorded.
+ * Reads and resets are not atomic with respect to recording, so a report may leave out a
+ * value that was recorded while it was being made.
+ *
+ * @author Amy Palke
+ * @see LatencyTracer
+ */
+public final class LatencyHistogram
+{
+    // Values below SUB_BUCKETS get a bucket each, above it each power of 2 gets HALF of them
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final long MAX_MICROS = Integer.MAX_VALUE;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_MICROS) + 1;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Creates a new, empty histogram
+     *
+     * @param name the name we report our values under
+     */
+    public LatencyHistogram(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name we report our values under
+     *
+     * @return our name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Records a latency.  Negative latencies are recorded as 0, and latencies too long
+     * to track as our longest.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void recordNanos(long nanos)
+    {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        counts.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros))
+        {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     *
+     * @return the number of latencies
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean latency
+     *
+     * @return the mean latency in nanoseconds, or 0 if none have been recorded
+     */
+    public long getMeanNanos()
+    {
+        long n = count.get();
+        return (n == 0) ? 0 : TimeUnit.MICROSECONDS.toNanos(totalMicros.get() / n);
+    }
+
+    /**
+     * Returns the longest latency recorded
+     *
+     * @return the longest latency in nanoseconds
+     */
+    public long getMaxNanos()
+    {
+        return TimeUnit.MICROSECONDS.toNanos(maxMicros.get());
+    }
+
+    /**
+     * Returns the latency that the given percentage of recorded latencies are no longer than
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the latency in nanoseconds, or 0 if none have been recorded
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        return getPercentilesNanos(new double[]{percentile})[0];
+    }
+
+    /**
+     * Returns the latencies for several percentiles, all from the same reading of our buckets
+     *
+     * @param percentiles the percentages, from 0 to 100, in increasing order
+     * @return the latency in nanoseconds for each percentage, 0 if none have been recorded
+     */
+    public long[] getPercentilesNanos(double[] percentiles)
+    {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long max = maxMicros.get();
+        long[] values = new long[percentiles.length];
+        if (total == 0)
+        {
+            return values;
+        }
+        int bucket = 0;
+        long seen = snapshot[0];
+        for (int p = 0; p < percentiles.length; p++)
+        {
+            // The rank of the value we want, at least the first
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentiles[p], 100) / 100));
+            while (seen < rank && bucket < BUCKET_COUNT - 1)
+            {
+                seen += snapshot[++bucket];
+            }
+            values[p] = TimeUnit.MICROSECONDS.toNanos(Math.min(highestValue(bucket), max));
+        }
+        return values;
+    }
+
+    /**
+     * Forgets every latency recorded so far
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Returns a one-line summary of our latencies, in milliseconds
+     *
+     * @return the count, mean, 50th, 90th, 99th and 99.9th percentiles, and maximum
+     */
+    public String getSummary()
+    {
+        long[] values = getPercentilesNanos(new double[]{50, 90, 99, 99.9});
+        return "count=" + getCount() + ", mean=" + millis(getMeanNanos())
+               + ", p50=" + millis(values[0]) + ", p90=" + millis(values[1])
+               + ", p99=" + millis(values[2]) + ", p99.9=" + millis(values[3])
+               + ", max=" + millis(getMaxNanos()) + " ms";
+    }
+
+    public String toString()
+    {
+        return name + ": " + getSummary();
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.valueOf(Math.round(nanos / 10000.0) / 100.0);
+    }
+
+    /**
+     * Returns the bucket for a value: the value itself if it's small, otherwise its top 7
+     * bits pick one of the HALF buckets for its power of 2
+     */
+    private static int bucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) micros;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(micros)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + ((shift - 1) * HALF) + (int) ((micros >> shift) - HALF);
+    }
+
+    /**
+     * Returns the highest value that falls in a bucket
+     */
+    private static long highestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = ((bucket - SUB_BUCKETS) / HALF) + 1;
+        long subBucket = ((bucket - SUB_BUCKETS) % HALF) + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,76 @@
+package com.webkitchen.eeg.latency;
+
+
+/**
+ * A point in the pipeline where the <code>LatencyTracer</code> measures how long it has
+ * been since a sample's packet arrived from NeuroServer.  The last stages are the
+ * feedback the player notices, so their latencies are the end-to-end latencies.
+ *
+ * @author Amy Palke
+ * @see LatencyTracer
+ */
+public final class LatencyStage
+{
+    /**
+     * The packet dispatcher has taken the packet from its buffer
+     */
+    public static final LatencyStage DISPATCHED = new LatencyStage(0, "dispatched", "Dispatched");
+    /**
+     * A player has received the sample from the demultiplexer
+     */
+    public static final LatencyStage DELIVERED = new LatencyStage(1, "delivered", "Delivered to player");
+    /**
+     * A monitor has measured a new amplitude or ratio from the filtered sample
+     */
+    public static final LatencyStage ANALYZED = new LatencyStage(2, "analyzed", "Amplitude measured");
+    /**
+     * The score listeners, such as the course UI, have been notified of a new score
+     */
+    public static final LatencyStage SCORED = new LatencyStage(3, "scored", "Score notified");
+    /**
+     * The reward listeners, such as the course UI, have been notified of a reward
+     */
+    public static final LatencyStage REWARDED = new LatencyStage(4, "rewarded", "Reward notified");
+    /**
+     * A MIDI feedback sound has been sent to the synthesizer
+     */
+    public static final LatencyStage SOUNDED = new LatencyStage(5, "sounded", "Sound played");
+
+    static final LatencyStage[] ALL = {DISPATCHED, DELIVERED, ANALYZED, SCORED, REWARDED, SOUNDED};
+
+    private final int index;
+    private final String key;
+    private final String name;
+
+    private LatencyStage(int index, String key, String name)
+    {
+        this.index = index;
+        this.key = key;
+        this.name = name;
+    }
+
+    /**
+     * Returns a short lower-case name for the stage, used in the names of its metrics
+     *
+     * @return the stage's key, such as "dispatched"
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Returns our position in the pipeline, for looking up our histogram
+     *
+     * @return our index in <code>ALL</code>
+     */
+    int getIndex()
+    {
+        return index;
+    }
+
+    public String toString()
+    {
+        return this.name;
+    }
+}
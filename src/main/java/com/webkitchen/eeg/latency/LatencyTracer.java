@@ -0,0 +1,168 @@
+package com.webkitchen.eeg.latency;
+
+import com.webkitchen.eeg.metrics.MetricRegistry;
+
+
+/**
+ * Measures how long EEG samples take to pass through the pipeline, from the moment their
+ * packet arrives from NeuroServer to each <code>LatencyStage</code>, and keeps a
+ * <code>LatencyHistogram</code> of the latencies at each stage.  The report of every
+ * stage's histogram can be printed at any time, and shows which stage adds the latency
+ * when the feedback falls behind.
+ * <P>
+ * The reader stamps each <code>Packet</code> with <code>System.nanoTime</code> as it reads
+ * the packet's line, and the stamp travels with the packet's samples in each
+ * <code>RawSample</code> and <code>RawSampleBatch</code>.  Past the player, samples are
+ * plain <code>double</code> values, so a player starts a trace with the stamp before
+ * passing its samples along, and every stage reached on the same thread until the trace
+ * ends is measured from it.  A batch is traced from its oldest packet, so its latencies
+ * include the time spent waiting for the batch to fill.  Stages reached outside of a
+ * trace, such as sounds played while a player chooses an instrument, aren't measured.
+ * <P>
+ * Each stage's histogram is also registered with the <code>MetricRegistry</code> as
+ * <code>latency.</code> followed by the stage's key, such as <code>latency.sounded</code>.
+ *
+ * @author Amy Palke
+ * @see LatencyStage
+ * @see LatencyHistogram
+ */
+public class LatencyTracer
+{
+    // the single instance of LatencyTracer
+    private static final LatencyTracer INSTANCE = new LatencyTracer();
+
+    /**
+     * The stamp of packets that weren't stamped, which aren't traced
+     */
+    public static final long UNSTAMPED = 0;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[LatencyStage.ALL.length];
+    // The stamp of the samples each thread is passing along, or UNSTAMPED
+    private final ThreadLocal<long[]> traceOrigin = new ThreadLocal<long[]>()
+    {
+        protected long[] initialValue()
+        {
+            return new long[]{UNSTAMPED};
+        }
+    };
+
+    /**
+     * Private constructor - access instance through getInstance() factory method
+     */
+    private LatencyTracer()
+    {
+        // private to ensure singleton status
+        for (LatencyStage stage : LatencyStage.ALL)
+        {
+            histograms[stage.getIndex()] = new LatencyHistogram(stage.toString());
+            MetricRegistry.getInstance().histogram("latency." + stage.getKey(),
+                                                   "Time from packet arrival until: " + stage,
+                                                   histograms[stage.getIndex()]);
+        }
+    }
+
+    /**
+     * Factory method for return the single instance of LatencyTracer
+     *
+     * @return the single instance of LatencyTracer
+     */
+    public static LatencyTracer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts tracing samples stamped at the given time on the current thread, until
+     * <code>endTrace</code> is called
+     *
+     * @param stamp the <code>System.nanoTime</code> the samples' packet arrived, or
+     *              <code>UNSTAMPED</code> to stop tracing
+     */
+    public void startTrace(long stamp)
+    {
+        traceOrigin.get()[0] = stamp;
+    }
+
+    /**
+     * Returns the stamp of the samples being traced on the current thread, so the trace
+     * can be carried on by another thread that the samples' results are handed to
+     *
+     * @return the stamp passed to <code>startTrace</code>, or <code>UNSTAMPED</code> if
+     *         the thread isn't tracing
+     */
+    public long getTrace()
+    {
+        return traceOrigin.get()[0];
+    }
+
+    /**
+     * Stops tracing samples on the current thread
+     */
+    public void endTrace()
+    {
+        traceOrigin.get()[0] = UNSTAMPED;
+    }
+
+    /**
+     * Records how long it has been since the samples being traced on the current thread
+     * arrived.  Does nothing if the thread isn't tracing.
+     *
+     * @param stage the stage the samples have reached
+     */
+    public void record(LatencyStage stage)
+    {
+        record(stage, traceOrigin.get()[0]);
+    }
+
+    /**
+     * Records how long it has been since a packet arrived.  Does nothing if the packet
+     * wasn't stamped.
+     *
+     * @param stage the stage the packet has reached
+     * @param stamp the <code>System.nanoTime</code> the packet arrived
+     */
+    public void record(LatencyStage stage, long stamp)
+    {
+        if (stamp != UNSTAMPED)
+        {
+            histograms[stage.getIndex()].recordNanos(System.nanoTime() - stamp);
+        }
+    }
+
+    /**
+     * Returns the histogram of latencies up to a stage
+     *
+     * @param stage the stage
+     * @return the stage's histogram
+     */
+    public LatencyHistogram getHistogram(LatencyStage stage)
+    {
+        return histograms[stage.getIndex()];
+    }
+
+    /**
+     * Forgets every latency recorded so far, at every stage
+     */
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms)
+        {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns a report of the latencies up to each stage, one line per stage in pipeline order
+     *
+     * @return the report
+     */
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder("Latency since packet arrival:");
+        for (LatencyHistogram histogram : histograms)
+        {
+            report.append(System.getProperty("line.separator")).append("  ").append(histogram);
+        }
+        return report.toString();
+    }
+}
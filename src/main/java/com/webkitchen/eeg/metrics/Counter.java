@@ -0,0 +1,58 @@
+package com.webkitchen.eeg.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts events, such as packets read.  The count is a <code>LongAdder</code>, which
+ * stripes its total across cells when threads collide, so counting is a plain add on the
+ * hot path, and never makes threads wait for each other.  Counts only go up.
+ * <P>
+ * Create counters with <code>MetricRegistry.counter</code>, and keep them in a field
+ * rather than looking them up for every event.
+ *
+ * @author Amy Palke
+ * @see MetricRegistry#counter
+ */
+public final class Counter extends Metric implements CounterMXBean
+{
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String description)
+    {
+        super(name, description);
+    }
+
+    /**
+     * Counts one event
+     */
+    public void increment()
+    {
+        count.increment();
+    }
+
+    /**
+     * Counts several events at once
+     *
+     * @param events the number of events
+     */
+    public void add(long events)
+    {
+        count.add(events);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    String getType()
+    {
+        return "Counter";
+    }
+
+    String getValueString()
+    {
+        return String.valueOf(getCount());
+    }
+}
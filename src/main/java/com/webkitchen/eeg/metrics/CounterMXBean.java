@@ -0,0 +1,25 @@
+package com.webkitchen.eeg.metrics;
+
+
+/**
+ * The JMX view of a <code>Counter</code>
+ *
+ * @author Amy Palke
+ * @see Counter
+ */
+public interface CounterMXBean
+{
+    /**
+     * Returns the number of events counted since the application started
+     *
+     * @return the count
+     */
+    public long getCount();
+
+    /**
+     * Returns what the counter counts
+     *
+     * @return the counter's description
+     */
+    public String getDescription();
+}
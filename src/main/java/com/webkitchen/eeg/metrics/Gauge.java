@@ -0,0 +1,36 @@
+package com.webkitchen.eeg.metrics;
+
+
+/**
+ * Reports a value that is read when it's wanted, such as the number of packets waiting in
+ * a buffer.  Subclasses read the value from whatever they measure; it should be quick to
+ * read, and safe to read from any thread, since JMX consoles read it on their own threads.
+ *
+ * @author Amy Palke
+ * @see MetricRegistry#register
+ */
+public abstract class Gauge extends Metric implements GaugeMXBean
+{
+    /**
+     * Creates a new gauge
+     *
+     * @param name        the gauge's dotted name
+     * @param description what the gauge measures, shown in JMX consoles
+     */
+    protected Gauge(String name, String description)
+    {
+        super(name, description);
+    }
+
+    public abstract long getValue();
+
+    String getType()
+    {
+        return "Gauge";
+    }
+
+    String getValueString()
+    {
+        return String.valueOf(getValue());
+    }
+}
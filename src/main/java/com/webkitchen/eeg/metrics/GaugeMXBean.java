@@ -0,0 +1,25 @@
+package com.webkitchen.eeg.metrics;
+
+
+/**
+ * The JMX view of a <code>Gauge</code>
+ *
+ * @author Amy Palke
+ * @see Gauge
+ */
+public interface GaugeMXBean
+{
+    /**
+     * Returns the gauge's current value
+     *
+     * @return the value
+     */
+    public long getValue();
+
+    /**
+     * Returns what the gauge measures
+     *
+     * @return the gauge's description
+     */
+    public String getDescription();
+}
@@ -0,0 +1,75 @@
+package com.webkitchen.eeg.metrics;
+
+import com.webkitchen.eeg.latency.LatencyHistogram;
+
+
+/**
+ * Reports the distribution of a <code>LatencyHistogram</code>, such as one of the
+ * <code>LatencyTracer</code>'s stages
+ *
+ * @author Amy Palke
+ * @see LatencyHistogram
+ * @see MetricRegistry#histogram
+ */
+public final class Histogram extends Metric implements HistogramMXBean
+{
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final LatencyHistogram histogram;
+
+    Histogram(String name, String description, LatencyHistogram histogram)
+    {
+        super(name, description);
+        this.histogram = histogram;
+    }
+
+    public long getCount()
+    {
+        return histogram.getCount();
+    }
+
+    public double getMeanMillis()
+    {
+        return histogram.getMeanNanos() / NANOS_PER_MILLI;
+    }
+
+    public double get50thPercentileMillis()
+    {
+        return histogram.getPercentileNanos(50) / NANOS_PER_MILLI;
+    }
+
+    public double get90thPercentileMillis()
+    {
+        return histogram.getPercentileNanos(90) / NANOS_PER_MILLI;
+    }
+
+    public double get99thPercentileMillis()
+    {
+        return histogram.getPercentileNanos(99) / NANOS_PER_MILLI;
+    }
+
+    public double get999thPercentileMillis()
+    {
+        return histogram.getPercentileNanos(99.9) / NANOS_PER_MILLI;
+    }
+
+    public double getMaxMillis()
+    {
+        return histogram.getMaxNanos() / NANOS_PER_MILLI;
+    }
+
+    public void reset()
+    {
+        histogram.reset();
+    }
+
+    String getType()
+    {
+        return "Histogram";
+    }
+
+    String getValueString()
+    {
+        return histogram.getSummary();
+    }
+}
@@ -0,0 +1,32 @@
+package com.webkitchen.eeg.metrics;
+
+
+/**
+ * The JMX view of a <code>Histogram</code>, with latencies in milliseconds
+ *
+ * @author Amy Palke
+ * @see Histogram
+ */
+public interface HistogramMXBean
+{
+    public long getCount();
+
+    public double getMeanMillis();
+
+    public double get50thPercentileMillis();
+
+    public double get90thPercentileMillis();
+
+    public double get99thPercentileMillis();
+
+    public double get999thPercentileMillis();
+
+    public double getMaxMillis();
+
+    public String getDescription();
+
+    /**
+     * Forgets every latency recorded so far
+     */
+    public void reset();
+}
@@ -0,0 +1,71 @@
+package com.webkitchen.eeg.metrics;
+
+
+/**
+ * A named measurement of the EEG pipeline, kept in the <code>MetricRegistry</code> and
+ * exported as a JMX MBean.  Metric names are dotted paths, starting with the part of the
+ * pipeline they measure, such as <code>acquisition.packets.read</code>.
+ *
+ * @author Amy Palke
+ * @see MetricRegistry
+ */
+public abstract class Metric
+{
+    private final String name;
+    private final String description;
+
+    /**
+     * Creates a new metric
+     *
+     * @param name        the metric's dotted name
+     * @param description what the metric measures, shown in JMX consoles
+     */
+    protected Metric(String name, String description)
+    {
+        if (name == null || name.length() == 0)
+        {
+            throw new IllegalArgumentException("Metric name must not be empty");
+        }
+        this.name = name;
+        this.description = description;
+    }
+
+    /**
+     * Returns the metric's dotted name
+     *
+     * @return the metric's name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns what the metric measures
+     *
+     * @return the metric's description
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * Returns the name of the kind of metric, used as the JMX type
+     *
+     * @return the kind of metric, such as "Counter"
+     */
+    abstract String getType();
+
+    /**
+     * Returns the metric's current value, formatted for a report
+     *
+     * @return the metric's value
+     */
+    abstract String getValueString();
+
+    public String toString()
+    {
+        return name + " = " + getValueString();
+    }
+}
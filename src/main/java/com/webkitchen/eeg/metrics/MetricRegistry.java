@@ -0,0 +1,272 @@
+package com.webkitchen.eeg.metrics;
+
+import com.webkitchen.eeg.latency.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Keeps the counters, gauges and histograms that show what the EEG pipeline is doing:
+ * packets read and dropped, listeners attached, queue depths, and latencies.  Operators
+ * can watch them in a JMX console such as JConsole, once <code>startJmxExport</code> has
+ * been called, or print them with <code>getReport</code>.
+ * <P>
+ * Each metric is exported as its own MBean in the <code>com.webkitchen.eeg</code> domain,
+ * named by its type and dotted name, such as
+ * <code>com.webkitchen.eeg:type=Counter,name=acquisition.packets.read</code>.  Metrics
+ * registered while exporting are exported straight away.
+ *
+ * @author Amy Palke
+ * @see Counter
+ * @see Gauge
+ * @see Histogram
+ */
+public class MetricRegistry
+{
+    /**
+     * The JMX domain our MBeans are registered in
+     */
+    public static final String JMX_DOMAIN = "com.webkitchen.eeg";
+
+    // the single instance of MetricRegistry
+    private static final MetricRegistry INSTANCE = new MetricRegistry();
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private MBeanServer mBeanServer;
+
+    /**
+     * Private constructor - access instance through getInstance() factory method
+     */
+    private MetricRegistry()
+    {
+        // private to ensure singleton status
+    }
+
+    /**
+     * Factory method for return the single instance of MetricRegistry
+     *
+     * @return the single instance of MetricRegistry
+     */
+    public static MetricRegistry getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary, so every class
+     * that counts the same events shares one counter
+     *
+     * @param name        the counter's dotted name
+     * @param description what the counter counts
+     * @return the counter
+     * @throws IllegalArgumentException if a different kind of metric has the name
+     */
+    public Counter counter(String name, String description)
+    {
+        Metric metric = metrics.get(name);
+        if (metric == null)
+        {
+            synchronized (this)
+            {
+                metric = metrics.get(name);
+                if (metric == null)
+                {
+                    metric = new Counter(name, description);
+                    add(metric);
+                }
+            }
+        }
+        if (!(metric instanceof Counter))
+        {
+            throw new IllegalArgumentException(name + " is a " + metric.getType() + ", not a Counter");
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Registers a histogram that reports the latencies recorded in a
+     * <code>LatencyHistogram</code>, replacing any metric with the same name
+     *
+     * @param name        the histogram's dotted name
+     * @param description what the histogram measures
+     * @param histogram   the latencies to report
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String description, LatencyHistogram histogram)
+    {
+        Histogram metric = new Histogram(name, description, histogram);
+        register(metric);
+        return metric;
+    }
+
+    /**
+     * Registers a metric, such as a <code>Gauge</code>, replacing any metric with the same name.
+     * Gauges that read an object which is replaced, such as a reader thread, should be
+     * registered again with the new object.
+     *
+     * @param metric the metric to register
+     */
+    public synchronized void register(Metric metric)
+    {
+        unregister(metric.getName());
+        add(metric);
+    }
+
+    /**
+     * Removes a metric.  Does nothing if there is no metric with the name.
+     *
+     * @param name the metric's dotted name
+     */
+    public synchronized void unregister(String name)
+    {
+        Metric metric = metrics.remove(name);
+        if (metric != null && mBeanServer != null)
+        {
+            unexport(metric);
+        }
+    }
+
+    /**
+     * Returns a metric
+     *
+     * @param name the metric's dotted name
+     * @return the metric, or null if there is no metric with the name
+     */
+    public Metric getMetric(String name)
+    {
+        return metrics.get(name);
+    }
+
+    /**
+     * Returns every metric, in name order
+     *
+     * @return a list of our metrics
+     */
+    public List<Metric> getMetrics()
+    {
+        List<Metric> sorted = new ArrayList<Metric>(metrics.values());
+        Collections.sort(sorted, new Comparator<Metric>()
+        {
+            public int compare(Metric m1, Metric m2)
+            {
+                return m1.getName().compareTo(m2.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the current value of every metric, one per line in name order
+     *
+     * @return the report
+     */
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder("Pipeline metrics:");
+        for (Metric metric : getMetrics())
+        {
+            report.append(System.getProperty("line.separator")).append("  ").append(metric);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Exports every metric, and every metric registered from now on, as an MBean of the
+     * platform MBean server.  Does nothing if we are already exporting.
+     */
+    public synchronized void startJmxExport()
+    {
+        if (mBeanServer == null)
+        {
+            mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            for (Metric metric : metrics.values())
+            {
+                export(metric);
+            }
+        }
+    }
+
+    /**
+     * Removes our MBeans from the platform MBean server
+     */
+    public synchronized void stopJmxExport()
+    {
+        if (mBeanServer != null)
+        {
+            for (Metric metric : metrics.values())
+            {
+                unexport(metric);
+            }
+            mBeanServer = null;
+        }
+    }
+
+    /**
+     * Returns the JMX name of a metric's MBean
+     *
+     * @param metric the metric
+     * @return the MBean's name
+     * @throws JMException if the metric's name can't be used in an MBean name
+     */
+    public static ObjectName getObjectName(Metric metric) throws JMException
+    {
+        String name = metric.getName();
+        // Names like device endpoints have characters that must be quoted
+        if (name.matches(".*[,=:\"*?\\\\\\n].*"))
+        {
+            name = ObjectName.quote(name);
+        }
+        return new ObjectName(JMX_DOMAIN + ":type=" + metric.getType() + ",name=" + name);
+    }
+
+    private void add(Metric metric)
+    {
+        metrics.put(metric.getName(), metric);
+        if (mBeanServer != null)
+        {
+            export(metric);
+        }
+    }
+
+    private void export(Metric metric)
+    {
+        try
+        {
+            ObjectName objectName = getObjectName(metric);
+            if (mBeanServer.isRegistered(objectName))
+            {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(metric, objectName);
+        }
+        catch (JMException e)
+        {
+            System.out.println("Unable to export metric " + metric.getName() + " to JMX: " + e);
+        }
+    }
+
+    private void unexport(Metric metric)
+    {
+        try
+        {
+            ObjectName objectName = getObjectName(metric);
+            if (mBeanServer.isRegistered(objectName))
+            {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e)
+        {
+            System.out.println("Unable to remove metric " + metric.getName() + " from JMX: " + e);
+        }
+    }
+}